@@ -0,0 +1,84 @@
+-- キーワード検索のベンチマーク（LIKEによる従来の検索と、pg_trgmのGINインデックスによる検索の比較）
+-- 実行方法: psql -d bookmarkdb -f docs/keyword_search_benchmark.sql
+-- アプリの表には触れず、keyword_bench スキーマに同じ構成の表を作成してデータを投入する
+-- ブックマーク20万件のユーザー1人と、2千件ずつのユーザー100人を作成する
+
+\timing on
+SELECT setseed(0.42);
+
+DROP SCHEMA IF EXISTS keyword_bench CASCADE;
+CREATE SCHEMA keyword_bench;
+SET search_path = keyword_bench, public;
+
+CREATE TABLE bookmark (
+    id BIGINT PRIMARY KEY,
+    app_user_id BIGINT NOT NULL,
+    title VARCHAR(255) NOT NULL,
+    url VARCHAR(2048) NOT NULL
+);
+CREATE INDEX idx_bookmark_app_user_url ON bookmark (app_user_id, url);
+CREATE TABLE tag (
+    id BIGINT PRIMARY KEY,
+    name VARCHAR(255) NOT NULL UNIQUE
+);
+CREATE TABLE bookmark_tag (
+    bookmark_id BIGINT NOT NULL,
+    tag_id BIGINT NOT NULL,
+    PRIMARY KEY (bookmark_id, tag_id)
+);
+
+-- タイトルは日本語と英語の単語を組み合わせる
+INSERT INTO bookmark (id, app_user_id, title, url)
+SELECT n,
+       CASE WHEN n <= 200000 THEN 1 ELSE 2 + (n - 200001) / 2000 END,
+       w[1 + floor(random() * 20)::int] || w[1 + floor(random() * 20)::int] || ' ' || w[1 + floor(random() * 20)::int] || ' ' || n,
+       'https://site' || floor(random() * 5000)::int || '.example/' || w[1 + floor(random() * 10)::int + 10] || '/' || n
+FROM generate_series(1, 400000) AS n,
+     (SELECT ARRAY['東京', '京都', '大阪', '天気', '予報', '観光', 'ガイド', '料理', 'レシピ', 'ニュース',
+                   'spring', 'java', 'postgres', 'docker', 'aws', 'react', 'python', 'kotlin', 'linux', 'security'] AS w) AS words;
+
+INSERT INTO tag (id, name)
+SELECT n, 'tag' || n FROM generate_series(1, 2000) AS n;
+
+INSERT INTO bookmark_tag (bookmark_id, tag_id)
+SELECT DISTINCT b.id, 1 + floor(random() * 2000)::int
+FROM bookmark b, generate_series(1, 2);
+
+ANALYZE;
+
+-- 1. 従来の検索（インデックスなし）: ユーザーの全ブックマークを走査する
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT b.id, b.title FROM bookmark b
+WHERE b.app_user_id = 1
+  AND (LOWER(b.title) LIKE '%観光ガイド%' OR LOWER(b.url) LIKE '%観光ガイド%'
+       OR EXISTS (SELECT 1 FROM bookmark_tag bt JOIN tag t ON t.id = bt.tag_id
+                  WHERE bt.bookmark_id = b.id AND LOWER(t.name) LIKE '%観光ガイド%'))
+ORDER BY b.id DESC LIMIT 51;
+
+-- アプリの起動時に作成するインデックス（src/main/resources/db/postgresql/keyword-search.sql と同じ）
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+CREATE INDEX idx_bookmark_title_trgm ON bookmark USING gin (LOWER(title) gin_trgm_ops);
+CREATE INDEX idx_bookmark_url_trgm ON bookmark USING gin (LOWER(url) gin_trgm_ops);
+CREATE INDEX idx_tag_name_trgm ON tag USING gin (LOWER(name) gin_trgm_ops);
+CREATE INDEX idx_bookmark_tag_tag_id ON bookmark_tag (tag_id);
+ANALYZE;
+
+-- 2. 従来の検索（インデックスあり）: OR条件とEXISTSのため、列ごとのインデックスは使われない
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT b.id, b.title FROM bookmark b
+WHERE b.app_user_id = 1
+  AND (LOWER(b.title) LIKE '%観光ガイド%' OR LOWER(b.url) LIKE '%観光ガイド%'
+       OR EXISTS (SELECT 1 FROM bookmark_tag bt JOIN tag t ON t.id = bt.tag_id
+                  WHERE bt.bookmark_id = b.id AND LOWER(t.name) LIKE '%観光ガイド%'))
+ORDER BY b.id DESC LIMIT 51;
+
+-- 3. DatabaseKeywordSearch の検索: 列ごとにインデックスで一致するIDを求めてUNIONでまとめる
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT b.id FROM bookmark b WHERE b.app_user_id = 1 AND LOWER(b.title) LIKE '%観光ガイド%'
+UNION SELECT b.id FROM bookmark b WHERE b.app_user_id = 1 AND LOWER(b.url) LIKE '%観光ガイド%'
+UNION SELECT b.id FROM bookmark b JOIN bookmark_tag bt ON bt.bookmark_id = b.id JOIN tag t ON t.id = bt.tag_id
+      WHERE b.app_user_id = 1 AND LOWER(t.name) LIKE '%観光ガイド%'
+LIMIT 5001;
+
+-- 後片付け
+-- DROP SCHEMA keyword_bench CASCADE;
@@ -0,0 +1,84 @@
+-- ランキング集計のベンチマーク（URLの文字列による集計と、正規化済みURLの行のID（url_id）による集計の比較）
+-- 実行方法: psql -d bookmarkdb -f docs/url_dimension_benchmark.sql
+-- アプリの表には触れず、url_bench スキーマに同じ構成の表を作成してデータを投入する
+-- ユーザー2万人・ブックマーク100万件（URLは10万種類、長さは100文字前後）、直近のクリックログ50万件を作成する
+
+\timing on
+SELECT setseed(0.42);
+
+DROP SCHEMA IF EXISTS url_bench CASCADE;
+CREATE SCHEMA url_bench;
+SET search_path = url_bench, public;
+
+CREATE TABLE url_metadata (
+    id BIGINT PRIMARY KEY,
+    url_hash VARCHAR(64) NOT NULL UNIQUE,
+    url VARCHAR(2048) NOT NULL
+);
+CREATE TABLE bookmark (
+    id BIGINT PRIMARY KEY,
+    app_user_id BIGINT NOT NULL,
+    url VARCHAR(2048) NOT NULL,
+    url_id BIGINT,
+    total_click_count BIGINT NOT NULL DEFAULT 0
+);
+CREATE TABLE bookmark_click_log (
+    id BIGSERIAL PRIMARY KEY,
+    bookmark_id BIGINT NOT NULL,
+    app_user_id BIGINT NOT NULL,
+    clicked_at TIMESTAMP NOT NULL
+);
+CREATE INDEX idx_bookmark_app_user_url ON bookmark (app_user_id, url);
+CREATE INDEX idx_bookmark_url_id_app_user ON bookmark (url_id, app_user_id);
+CREATE INDEX idx_bookmark_click_log_clicked_at ON bookmark_click_log (clicked_at);
+
+INSERT INTO url_metadata (id, url_hash, url)
+SELECT n, encode(sha256(convert_to(u, 'UTF8')), 'hex'), u
+FROM (SELECT n, 'https://www.site' || (n % 5000) || '.example.com/articles/2024/category-' || (n % 37) || '/some-long-article-slug-' || n || '?utm_source=feed' AS u
+      FROM generate_series(1, 100000) AS n) AS s;
+
+-- 人気のURLほど多くのユーザーに登録されるよう偏らせる
+INSERT INTO bookmark (id, app_user_id, url, url_id, total_click_count)
+SELECT n, 1 + floor(random() * 20000)::int, m.url, m.id, floor(random() * 20)::int
+FROM (SELECT n, 1 + floor(100000 * power(random(), 3))::int AS url_id FROM generate_series(1, 1000000) AS n) AS s
+JOIN url_metadata m ON m.id = s.url_id;
+
+INSERT INTO bookmark_click_log (bookmark_id, app_user_id, clicked_at)
+SELECT 1 + floor(random() * 1000000)::int, 1 + floor(random() * 20000)::int, now() - random() * interval '7 days'
+FROM generate_series(1, 500000);
+
+-- インデックスオンリースキャンでヒープを読まないよう、可視性マップも作成する
+VACUUM ANALYZE;
+
+-- 1. 従来の集計: URLの文字列でグループ化・結合する
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT b.url AS url, COUNT(DISTINCT b.app_user_id) AS unique_user_count,
+       COALESCE(SUM(b.total_click_count), 0) AS total_click_count, COALESCE(MAX(r.recent_click_count), 0) AS recent_click_count
+FROM bookmark b LEFT JOIN (
+    SELECT rb.url AS url, COUNT(*) AS recent_click_count FROM bookmark_click_log l JOIN bookmark rb ON rb.id = l.bookmark_id
+    WHERE l.clicked_at >= now() - interval '7 days' GROUP BY rb.url HAVING COUNT(DISTINCT l.app_user_id) > 1
+) r ON r.url = b.url
+GROUP BY b.url
+HAVING COUNT(DISTINCT b.app_user_id) > 1;
+
+-- 2. url_idによる集計: グループ化・結合はBIGINTで行い、URLの文字列は集計後に結合する
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT a.url_id AS url_id, m.url AS url, a.unique_user_count AS unique_user_count,
+       a.total_click_count AS total_click_count, COALESCE(r.recent_click_count, 0) AS recent_click_count
+FROM (
+    SELECT b.url_id AS url_id, COUNT(DISTINCT b.app_user_id) AS unique_user_count, COALESCE(SUM(b.total_click_count), 0) AS total_click_count
+    FROM bookmark b WHERE b.url_id IS NOT NULL GROUP BY b.url_id HAVING COUNT(DISTINCT b.app_user_id) > 1
+) a JOIN url_metadata m ON m.id = a.url_id LEFT JOIN (
+    SELECT rb.url_id AS url_id, COUNT(*) AS recent_click_count FROM bookmark_click_log l JOIN bookmark rb ON rb.id = l.bookmark_id
+    WHERE l.clicked_at >= now() - interval '7 days' GROUP BY rb.url_id HAVING COUNT(DISTINCT l.app_user_id) > 1
+) r ON r.url_id = a.url_id;
+
+-- 3. 公開ブックマーク数（従来）
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT COUNT(*) FROM (SELECT b.url FROM bookmark b GROUP BY b.url HAVING COUNT(DISTINCT b.app_user_id) > 1) AS p;
+
+-- 4. 公開ブックマーク数（url_id）
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT COUNT(*) FROM (SELECT b.url_id FROM bookmark b GROUP BY b.url_id HAVING COUNT(DISTINCT b.app_user_id) > 1) AS p;
+
+DROP SCHEMA url_bench CASCADE;
@@ -0,0 +1,115 @@
+-- ランキング集計のベンチマーク（ブックマークとクリックログの走査による集計と、書き込み時に更新する集計値の表（url_stats）の読み込みの比較）
+-- 実行方法: psql -d bookmarkdb -f docs/url_stats_benchmark.sql
+-- アプリの表には触れず、url_stats_bench スキーマに同じ構成の表を作成してデータを投入する
+-- ユーザー2万人・ブックマーク100万件（URLは10万種類、長さは100文字前後）、直近のクリックログ50万件を作成する
+
+\timing on
+SELECT setseed(0.42);
+
+DROP SCHEMA IF EXISTS url_stats_bench CASCADE;
+CREATE SCHEMA url_stats_bench;
+SET search_path = url_stats_bench, public;
+
+CREATE TABLE url_metadata (
+    id BIGINT PRIMARY KEY,
+    url_hash VARCHAR(64) NOT NULL UNIQUE,
+    url VARCHAR(2048) NOT NULL
+);
+CREATE TABLE bookmark (
+    id BIGINT PRIMARY KEY,
+    app_user_id BIGINT NOT NULL,
+    url VARCHAR(2048) NOT NULL,
+    url_id BIGINT,
+    total_click_count BIGINT NOT NULL DEFAULT 0
+);
+CREATE TABLE bookmark_click_log (
+    id BIGSERIAL PRIMARY KEY,
+    bookmark_id BIGINT NOT NULL,
+    app_user_id BIGINT NOT NULL,
+    clicked_at TIMESTAMP NOT NULL
+);
+CREATE INDEX idx_bookmark_app_user_url ON bookmark (app_user_id, url);
+CREATE INDEX idx_bookmark_url_id_app_user ON bookmark (url_id, app_user_id);
+CREATE INDEX idx_bookmark_click_log_clicked_at ON bookmark_click_log (clicked_at);
+CREATE TABLE url_stats (
+    url_id BIGINT PRIMARY KEY,
+    unique_user_count BIGINT NOT NULL,
+    total_click_count BIGINT NOT NULL,
+    public_url BOOLEAN NOT NULL
+);
+CREATE INDEX idx_url_stats_public_url ON url_stats (public_url);
+CREATE TABLE url_click_bucket (
+    id BIGSERIAL PRIMARY KEY,
+    url_id BIGINT NOT NULL,
+    bucket_date DATE NOT NULL,
+    click_count BIGINT NOT NULL,
+    first_clicker_id BIGINT,
+    multiple_clickers BOOLEAN NOT NULL,
+    UNIQUE (url_id, bucket_date)
+);
+CREATE INDEX idx_url_click_bucket_date ON url_click_bucket (bucket_date);
+
+INSERT INTO url_metadata (id, url_hash, url)
+SELECT n, encode(sha256(convert_to(u, 'UTF8')), 'hex'), u
+FROM (SELECT n, 'https://www.site' || (n % 5000) || '.example.com/articles/2024/category-' || (n % 37) || '/some-long-article-slug-' || n || '?utm_source=feed' AS u
+      FROM generate_series(1, 100000) AS n) AS s;
+
+-- 人気のURLほど多くのユーザーに登録されるよう偏らせる
+INSERT INTO bookmark (id, app_user_id, url, url_id, total_click_count)
+SELECT n, 1 + floor(random() * 20000)::int, m.url, m.id, floor(random() * 20)::int
+FROM (SELECT n, 1 + floor(100000 * power(random(), 3))::int AS url_id FROM generate_series(1, 1000000) AS n) AS s
+JOIN url_metadata m ON m.id = s.url_id;
+
+INSERT INTO bookmark_click_log (bookmark_id, app_user_id, clicked_at)
+SELECT 1 + floor(random() * 1000000)::int, 1 + floor(random() * 20000)::int, now() - random() * interval '7 days'
+FROM generate_series(1, 500000);
+
+-- インデックスオンリースキャンでヒープを読まないよう、可視性マップも作成する
+VACUUM ANALYZE;
+
+-- 集計値の表を作成する（表が空のときの初回の突き合わせと同じ集計。実行時間は突き合わせの所要時間の目安になる）
+EXPLAIN (ANALYZE, BUFFERS)
+INSERT INTO url_stats (url_id, unique_user_count, total_click_count, public_url)
+SELECT b.url_id, COUNT(DISTINCT b.app_user_id), COALESCE(SUM(b.total_click_count), 0), COUNT(DISTINCT b.app_user_id) > 1
+FROM bookmark b WHERE b.url_id IS NOT NULL GROUP BY b.url_id;
+
+EXPLAIN (ANALYZE, BUFFERS)
+INSERT INTO url_click_bucket (url_id, bucket_date, click_count, first_clicker_id, multiple_clickers)
+SELECT b.url_id, CAST(l.clicked_at AS DATE), COUNT(*), MIN(l.app_user_id), COUNT(DISTINCT l.app_user_id) > 1
+FROM bookmark_click_log l JOIN bookmark b ON b.id = l.bookmark_id
+WHERE b.url_id IS NOT NULL AND l.clicked_at >= CAST(now() - interval '1 month' AS DATE) GROUP BY b.url_id, CAST(l.clicked_at AS DATE);
+
+VACUUM ANALYZE url_stats;
+VACUUM ANALYZE url_click_bucket;
+
+-- 1. 変更前: ブックマークとクリックログを走査して集計する
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT a.url_id AS url_id, m.url AS url, a.unique_user_count AS unique_user_count,
+       a.total_click_count AS total_click_count, COALESCE(r.recent_click_count, 0) AS recent_click_count
+FROM (
+    SELECT b.url_id AS url_id, COUNT(DISTINCT b.app_user_id) AS unique_user_count, COALESCE(SUM(b.total_click_count), 0) AS total_click_count
+    FROM bookmark b WHERE b.url_id IS NOT NULL GROUP BY b.url_id HAVING COUNT(DISTINCT b.app_user_id) > 1
+) a JOIN url_metadata m ON m.id = a.url_id LEFT JOIN (
+    SELECT rb.url_id AS url_id, COUNT(*) AS recent_click_count FROM bookmark_click_log l JOIN bookmark rb ON rb.id = l.bookmark_id
+    WHERE l.clicked_at >= now() - interval '1 month' GROUP BY rb.url_id HAVING COUNT(DISTINCT l.app_user_id) > 1
+) r ON r.url_id = a.url_id;
+
+-- 2. 変更後: 集計値の表と日ごとのクリック数を読む
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT s.url_id AS url_id, m.url AS url, s.unique_user_count AS unique_user_count,
+       s.total_click_count AS total_click_count, COALESCE(r.recent_click_count, 0) AS recent_click_count
+FROM url_stats s JOIN url_metadata m ON m.id = s.url_id LEFT JOIN (
+    SELECT k.url_id AS url_id, SUM(k.click_count) AS recent_click_count FROM url_click_bucket k
+    WHERE k.bucket_date >= CAST(now() - interval '1 month' AS DATE) GROUP BY k.url_id
+    HAVING MAX(CASE WHEN k.multiple_clickers THEN 1 ELSE 0 END) = 1 OR COUNT(DISTINCT k.first_clicker_id) > 1
+) r ON r.url_id = s.url_id WHERE s.public_url = TRUE;
+
+-- 3. 公開ブックマーク数（変更前）
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT COUNT(*) FROM (SELECT b.url_id FROM bookmark b GROUP BY b.url_id HAVING COUNT(DISTINCT b.app_user_id) > 1) AS p;
+
+-- 4. 公開ブックマーク数（変更後）
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT COUNT(*) FROM url_stats WHERE public_url = TRUE;
+
+DROP SCHEMA url_stats_bench CASCADE;
@@ -0,0 +1,19 @@
+package com.hukisanagi.springboot_bookmark_manager.config;
+
+import org.springframework.boot.autoconfigure.transaction.TransactionManagerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+
+@Configuration
+public class TransactionConfig {
+
+    // トランザクション外（NOT_SUPPORTED）のメソッドでは、DBへの問い合わせごとに接続を返却する
+    // 既定ではメソッドの終わりまでEntityManagerと接続を保持するため、外部サイトへの通信中や、
+    // 別のトランザクションを開始したときに接続を2つ同時に使ってしまう
+    @Bean
+    public TransactionManagerCustomizer<AbstractPlatformTransactionManager> transactionSynchronizationCustomizer() {
+        return transactionManager -> transactionManager.setTransactionSynchronization(
+                AbstractPlatformTransactionManager.SYNCHRONIZATION_ON_ACTUAL_TRANSACTION);
+    }
+}
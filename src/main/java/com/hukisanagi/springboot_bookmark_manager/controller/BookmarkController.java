@@ -2,15 +2,17 @@ package com.hukisanagi.springboot_bookmark_manager.controller;
 
 import com.hukisanagi.springboot_bookmark_manager.model.AppUser;
 import com.hukisanagi.springboot_bookmark_manager.model.Bookmark;
+import com.hukisanagi.springboot_bookmark_manager.model.BookmarkListItem;
+import com.hukisanagi.springboot_bookmark_manager.model.BookmarkSlice;
 import com.hukisanagi.springboot_bookmark_manager.model.RankingItem;
-import com.hukisanagi.springboot_bookmark_manager.repository.AppUserRepository;
-import com.hukisanagi.springboot_bookmark_manager.repository.RankingCacheRepository;
+import com.hukisanagi.springboot_bookmark_manager.service.AppUserService;
 import com.hukisanagi.springboot_bookmark_manager.service.BookmarkService;
+import com.hukisanagi.springboot_bookmark_manager.service.BroadenDeck;
+import jakarta.servlet.http.HttpSession;
 import jakarta.validation.Valid;
-import org.springframework.data.domain.Page;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
-import org.springframework.data.domain.Sort;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.security.oauth2.core.oidc.user.OidcUser;
 import org.springframework.stereotype.Controller;
@@ -24,6 +26,8 @@ import org.springframework.web.bind.annotation.ResponseBody;
 
 import java.util.Optional;
 import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,60 +38,48 @@ public class BookmarkController {
 
     private static final Logger logger = LoggerFactory.getLogger(BookmarkController.class);
 
+    private static final String BROADEN_DECK_ATTRIBUTE = "broadenDeck";
+
     private final BookmarkService bookmarkService;
-    private final AppUserRepository appUserRepository;
-    private final RankingCacheRepository rankingCacheRepository;
+    private final AppUserService appUserService;
+
+    // trueの場合、broaden画面ではセッションごとに公開ブックマークを重複なく1周するまで順番に表示する
+    @Value("${broaden.deck-mode:false}")
+    private boolean broadenDeckMode;
 
-    public BookmarkController(BookmarkService bookmarkService, AppUserRepository appUserRepository, RankingCacheRepository rankingCacheRepository) {
+    public BookmarkController(BookmarkService bookmarkService, AppUserService appUserService) {
         this.bookmarkService = bookmarkService;
-        this.appUserRepository = appUserRepository;
-        this.rankingCacheRepository = rankingCacheRepository;
+        this.appUserService = appUserService;
     }
 
     private AppUser getOrCreateUser(OidcUser oidcUser) {
         if (oidcUser == null) {
             throw new IllegalStateException("User not authenticated");
         }
-        String cognitoSub = oidcUser.getSubject();
-        return appUserRepository.findByCognitoSub(cognitoSub)
-                .orElseGet(() -> {
-                    AppUser newUser = new AppUser(cognitoSub);
-                    return appUserRepository.save(newUser);
-                });
+        return appUserService.getOrCreateUser(oidcUser.getSubject());
     }
 
     @GetMapping("/")
     public String index(
             @RequestParam(required = false) String keyword,
             @RequestParam(required = false) List<String> tags,
-            @RequestParam(defaultValue = "0") int page,
-            @RequestParam(defaultValue = "100") int size,
+            @RequestParam(defaultValue = "50") int size,
             @RequestParam(defaultValue = "id,asc") String sort,
             @RequestParam(required = false) Boolean showFavorites,
             Model model, @AuthenticationPrincipal OidcUser oidcUser) {
 
         AppUser appUser = getOrCreateUser(oidcUser);
 
-        Sort sortOrder = Sort.by(Sort.Direction.fromString(sort.split(",")[1]), sort.split(",")[0]);
-        Pageable pageable = PageRequest.of(page, size, sortOrder);
-
-        Page<Bookmark> bookmarkPage = bookmarkService.findBookmarks(appUser, keyword, tags, pageable, showFavorites);
+        // 最初の1回分だけを描画し、続きは /api/bookmarks からスクロールに合わせて読み込む
+        BookmarkSlice<BookmarkListItem> bookmarkSlice = bookmarkService.findBookmarkSlice(appUser, keyword, tags, sort, null, size, showFavorites);
 
-        bookmarkPage.getContent().forEach(bookmark -> {
-            if (bookmark.getFaviconPath() != null && !bookmark.getFaviconPath().isEmpty()) {
-                bookmark.setDisplayFaviconUrl(bookmarkService.getFaviconUrl(bookmark.getFaviconPath()));
-            }
-        });
-
-        model.addAttribute("bookmarkPage", bookmarkPage);
-        model.addAttribute("bookmarks", bookmarkPage.getContent());
+        model.addAttribute("bookmarks", bookmarkSlice.items());
+        model.addAttribute("nextCursor", bookmarkSlice.nextCursor());
         model.addAttribute("keyword", keyword);
         model.addAttribute("tags", tags);
-        model.addAttribute("currentPage", page);
         model.addAttribute("pageSize", size);
         model.addAttribute("sort", sort);
-        model.addAttribute("totalElements", bookmarkPage.getTotalElements());
-        model.addAttribute("numberOfElements", bookmarkPage.getNumberOfElements());
+        model.addAttribute("totalElements", bookmarkService.countBookmarks(appUser, keyword, tags, showFavorites));
         model.addAttribute("showFavorites", showFavorites);
 
         // RedirectAttributesから渡されたメッセージをModelに追加
@@ -157,6 +149,21 @@ public class BookmarkController {
                 .orElseThrow(() -> new IllegalArgumentException("Bookmark not found or not authorized"));
     }
 
+    // 一覧の続きを返す（無限スクロール用）。cursorには前回の応答のnextCursorを渡す
+    @GetMapping("/api/bookmarks")
+    @ResponseBody
+    public BookmarkSlice<BookmarkListItem> listBookmarks(
+            @RequestParam(required = false) String keyword,
+            @RequestParam(required = false) List<String> tags,
+            @RequestParam(defaultValue = "id,asc") String sort,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "50") int size,
+            @RequestParam(required = false) Boolean showFavorites,
+            @AuthenticationPrincipal OidcUser oidcUser) {
+        AppUser appUser = getOrCreateUser(oidcUser);
+        return bookmarkService.findBookmarkSlice(appUser, keyword, tags, sort, cursor, size, showFavorites);
+    }
+
     @PostMapping("/update")
     public String updateBookmark(@RequestParam Long id, @Valid Bookmark updatedBookmark, BindingResult bindingResult, @RequestParam String tagsInput, @AuthenticationPrincipal OidcUser oidcUser, RedirectAttributes redirectAttributes) {
         AppUser appUser = getOrCreateUser(oidcUser);        
@@ -201,6 +208,9 @@ public class BookmarkController {
             case "overallScore":
                 ranking = bookmarkService.getTopBookmarksByOverallScore(pageable);
                 break;
+            case "trending":
+                ranking = bookmarkService.getTopBookmarksByTrending(pageable);
+                break;
             case "uniqueUserCount":
             default:
                 ranking = bookmarkService.getTopBookmarks(pageable);
@@ -215,9 +225,9 @@ public class BookmarkController {
 
         if (oidcUser != null) {
             AppUser appUser = getOrCreateUser(oidcUser);
-            ranking.forEach(item -> {
-                item.setBookmarked(bookmarkService.isBookmarkedByUser(appUser, item.getUrl()));
-            });
+            Set<String> bookmarkedUrls = bookmarkService.findBookmarkedUrls(appUser,
+                    ranking.stream().map(RankingItem::getUrl).collect(Collectors.toList()));
+            ranking.forEach(item -> item.setBookmarked(bookmarkedUrls.contains(item.getUrl())));
         }
         
         model.addAttribute("ranking", ranking);
@@ -225,7 +235,7 @@ public class BookmarkController {
         model.addAttribute("pageSize", size);
         model.addAttribute("activePage", "ranking");
         model.addAttribute("type", type);
-        model.addAttribute("publicBookmarkCount", rankingCacheRepository.count());
+        model.addAttribute("publicBookmarkCount", bookmarkService.getPublicBookmarkCount());
 
         if (model.containsAttribute("bookmark")) {
             model.addAttribute("bookmark", model.getAttribute("bookmark"));
@@ -324,12 +334,20 @@ public class BookmarkController {
     }
 
     @GetMapping("/broaden")
-    public String showBroaden(Model model, @AuthenticationPrincipal OidcUser oidcUser, @RequestParam(required = false) String errorUrl) {
+    public String showBroaden(Model model, @AuthenticationPrincipal OidcUser oidcUser, @RequestParam(required = false) String errorUrl, HttpSession session) {
         Optional<RankingItem> broadenItemOptional;
 
         if (errorUrl != null && !errorUrl.isEmpty()) {
             // エラー時のURLが指定されていれば、そのブックマークを取得
             broadenItemOptional = bookmarkService.getPublicBookmarkByUrl(errorUrl);
+        } else if (broadenDeckMode) {
+            // セッション内でまだ表示していないブックマークを取得
+            BroadenDeck deck = (BroadenDeck) session.getAttribute(BROADEN_DECK_ATTRIBUTE);
+            if (deck == null) {
+                deck = new BroadenDeck();
+            }
+            broadenItemOptional = bookmarkService.drawPublicBookmark(deck);
+            session.setAttribute(BROADEN_DECK_ATTRIBUTE, deck);
         } else {
             // それ以外はランダムなブックマークを取得
             broadenItemOptional = bookmarkService.getRandomPublicBookmark();
@@ -347,7 +365,7 @@ public class BookmarkController {
         });
 
         model.addAttribute("activePage", "broaden"); // ナビゲーションバーのハイライト用
-        model.addAttribute("publicBookmarkCount", rankingCacheRepository.count()); // 公開ブックマーク数を追加
+        model.addAttribute("publicBookmarkCount", bookmarkService.getPublicBookmarkCount()); // 公開ブックマーク数を追加
 
         if (model.containsAttribute("bookmark")) {
             model.addAttribute("bookmark", model.getAttribute("bookmark"));
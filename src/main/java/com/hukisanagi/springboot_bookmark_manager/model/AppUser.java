@@ -29,6 +29,10 @@ public class AppUser {
     @JsonIgnore
     private Set<BookmarkClickLog> bookmarkClickLogs = new HashSet<>();
 
+    @OneToMany(mappedBy = "appUser", cascade = CascadeType.ALL, orphanRemoval = true)
+    @JsonIgnore
+    private Set<UserTagCount> tagCounts = new HashSet<>();
+
     public AppUser() {
     }
 
@@ -68,16 +72,16 @@ public class AppUser {
         this.bookmarkClickLogs = bookmarkClickLogs;
     }
 
+    // 参照のみ取得したユーザー（Hibernateのプロキシ）とも比較できるよう、クラスではなく型とIDで比較する
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
-        AppUser appUser = (AppUser) o;
-        return id != null && id.equals(appUser.id);
+        if (!(o instanceof AppUser appUser)) return false;
+        return getId() != null && getId().equals(appUser.getId());
     }
 
     @Override
     public int hashCode() {
-        return getClass().hashCode();
+        return AppUser.class.hashCode();
     }
 }
\ No newline at end of file
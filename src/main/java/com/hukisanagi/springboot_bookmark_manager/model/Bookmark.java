@@ -2,10 +2,14 @@ package com.hukisanagi.springboot_bookmark_manager.model;
 
 import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
 import jakarta.persistence.FetchType;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
 import jakarta.persistence.CascadeType;
 import jakarta.persistence.JoinColumn;
 import jakarta.persistence.JoinTable;
@@ -15,12 +19,24 @@ import jakarta.persistence.OneToMany;
 import jakarta.validation.constraints.NotBlank;
 import org.hibernate.validator.constraints.URL;
 import jakarta.persistence.Transient;
+import org.hibernate.annotations.DynamicUpdate;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 
 import java.util.HashSet;
 import java.util.Set;
 
+// クリック数はUPDATE文の加算で更新するため、編集時に古い値で上書きしないよう変更した列だけを更新する
+// ユーザーごとの登録済みURLの判定のため (app_user_id, url) に索引を設ける
+// URLごとの集計・重複チェックは正規化済みURLの行のID（url_id）で行うため (url_id, app_user_id) に索引を設ける
+// 一覧のページ送り（登録順・タイトル順のキーセット）は索引の順に読めるよう (app_user_id, id) と (app_user_id, title, id) に索引を設ける
 @Entity
+@Table(name = "bookmark", indexes = {
+        @Index(name = "idx_bookmark_app_user_url", columnList = "app_user_id, url"),
+        @Index(name = "idx_bookmark_url_id_app_user", columnList = "url_id, app_user_id"),
+        @Index(name = "idx_bookmark_app_user_id", columnList = "app_user_id, id"),
+        @Index(name = "idx_bookmark_app_user_title_id", columnList = "app_user_id, title, id")
+})
+@DynamicUpdate
 public class Bookmark {
 
     @Id
@@ -33,6 +49,11 @@ public class Bookmark {
     private String url;
     @Column(length = 2048)
     private String faviconPath;
+
+    // ファビコンの非同期取得状態（既存データはnull=取得済みとして扱う）
+    @Enumerated(EnumType.STRING)
+    @Column(length = 16)
+    private FaviconStatus faviconStatus;
     
     private long totalClickCount = 0;
 
@@ -43,6 +64,12 @@ public class Bookmark {
     @JsonIgnore
     private AppUser appUser;
 
+    // 正規化済みURLの行（全ユーザーで共有する。既存の行は起動時・ランキング集計時に設定する）
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "url_id")
+    @JsonIgnore
+    private UrlMetadata urlMetadata;
+
     @ManyToMany(cascade = {CascadeType.PERSIST, CascadeType.MERGE})
     @JoinTable(name = "bookmark_tag",
             joinColumns = @JoinColumn(name = "bookmark_id"),
@@ -94,6 +121,22 @@ public class Bookmark {
         this.faviconPath = faviconPath;
     }
 
+    public FaviconStatus getFaviconStatus() {
+        return faviconStatus;
+    }
+
+    public void setFaviconStatus(FaviconStatus faviconStatus) {
+        this.faviconStatus = faviconStatus;
+    }
+
+    public UrlMetadata getUrlMetadata() {
+        return urlMetadata;
+    }
+
+    public void setUrlMetadata(UrlMetadata urlMetadata) {
+        this.urlMetadata = urlMetadata;
+    }
+
     public AppUser getAppUser() {
         return appUser;
     }
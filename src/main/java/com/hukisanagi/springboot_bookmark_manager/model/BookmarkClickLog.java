@@ -4,12 +4,16 @@ import jakarta.persistence.Entity;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
+import jakarta.persistence.Index;
 import jakarta.persistence.ManyToOne;
 import jakarta.persistence.JoinColumn;
+import jakarta.persistence.Table;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import java.time.LocalDateTime;
 
+// 急上昇ランキングの読み直し・集計値の突き合わせ・保存期間を過ぎた行の削除は、いずれもクリック日時の範囲で検索する
 @Entity
+@Table(name = "bookmark_click_log", indexes = @Index(name = "idx_bookmark_click_log_clicked_at", columnList = "clicked_at"))
 public class BookmarkClickLog {
 
     @Id
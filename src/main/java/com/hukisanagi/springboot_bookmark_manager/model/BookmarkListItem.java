@@ -0,0 +1,15 @@
+package com.hukisanagi.springboot_bookmark_manager.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.util.List;
+
+// ブックマーク一覧（ホーム画面・無限スクロールのAPI）で表示する1件分の内容
+// 必要な列だけを読み込んだ読み取り専用の値で、エンティティとしては管理しない
+public record BookmarkListItem(Long id, String title, String url, @JsonIgnore String faviconPath, String faviconUrl,
+                               boolean favorite, List<String> tags) {
+
+    public BookmarkListItem withFaviconUrl(String faviconUrl) {
+        return new BookmarkListItem(id, title, url, faviconPath, faviconUrl, favorite, tags);
+    }
+}
@@ -0,0 +1,16 @@
+package com.hukisanagi.springboot_bookmark_manager.model;
+
+import java.util.List;
+import java.util.function.Function;
+
+// ブックマーク一覧の1回分の取得結果。nextCursorがnullであれば続きはない
+public record BookmarkSlice<T>(List<T> items, String nextCursor) {
+
+    public boolean hasNext() {
+        return nextCursor != null;
+    }
+
+    public <R> BookmarkSlice<R> map(Function<T, R> mapper) {
+        return new BookmarkSlice<>(items.stream().map(mapper).toList(), nextCursor);
+    }
+}
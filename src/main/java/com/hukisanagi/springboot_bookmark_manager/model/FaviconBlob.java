@@ -0,0 +1,94 @@
+package com.hukisanagi.springboot_bookmark_manager.model;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+import jakarta.persistence.UniqueConstraint;
+import java.time.LocalDateTime;
+
+// 内容のハッシュ値で保存したファビコンと、それを参照しているブックマークの数
+@Entity
+@Table(name = "favicon_blob", uniqueConstraints = {
+        @UniqueConstraint(name = "uk_favicon_blob_storage_key", columnNames = "storageKey")
+}, indexes = {
+        @Index(name = "idx_favicon_blob_ref_count", columnList = "refCount")
+})
+public class FaviconBlob {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(nullable = false, length = 128)
+    private String storageKey;
+
+    private long size;
+
+    private long refCount = 0;
+
+    private LocalDateTime createdAt;
+
+    // 最後に参照が解放された日時（参照数0のまま一定期間経過したものを削除する）
+    private LocalDateTime lastReleasedAt;
+
+    public FaviconBlob() {
+    }
+
+    public FaviconBlob(String storageKey, long size, LocalDateTime now) {
+        this.storageKey = storageKey;
+        this.size = size;
+        this.createdAt = now;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public String getStorageKey() {
+        return storageKey;
+    }
+
+    public void setStorageKey(String storageKey) {
+        this.storageKey = storageKey;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    public long getRefCount() {
+        return refCount;
+    }
+
+    public void setRefCount(long refCount) {
+        this.refCount = refCount;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(LocalDateTime createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public LocalDateTime getLastReleasedAt() {
+        return lastReleasedAt;
+    }
+
+    public void setLastReleasedAt(LocalDateTime lastReleasedAt) {
+        this.lastReleasedAt = lastReleasedAt;
+    }
+}
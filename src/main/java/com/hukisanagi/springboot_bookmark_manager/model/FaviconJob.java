@@ -0,0 +1,104 @@
+package com.hukisanagi.springboot_bookmark_manager.model;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+import java.time.LocalDateTime;
+
+// ファビコン取得ジョブ（DBに永続化し、再起動後も処理を継続できるようにする）
+@Entity
+@Table(name = "favicon_job", indexes = {
+        @Index(name = "idx_favicon_job_next_attempt_at", columnList = "nextAttemptAt"),
+        @Index(name = "idx_favicon_job_bookmark_id", columnList = "bookmarkId")
+})
+public class FaviconJob {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(nullable = false)
+    private Long bookmarkId;
+
+    private int attempts = 0;
+
+    @Column(nullable = false)
+    private LocalDateTime nextAttemptAt;
+
+    // ワーカーが処理中の間だけ設定されるリース期限（期限切れなら他のワーカーが再取得できる）
+    private LocalDateTime lockedUntil;
+
+    @Column(length = 512)
+    private String lastError;
+
+    private LocalDateTime createdAt;
+
+    public FaviconJob() {
+    }
+
+    public FaviconJob(Long bookmarkId, LocalDateTime now) {
+        this.bookmarkId = bookmarkId;
+        this.nextAttemptAt = now;
+        this.createdAt = now;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public Long getBookmarkId() {
+        return bookmarkId;
+    }
+
+    public void setBookmarkId(Long bookmarkId) {
+        this.bookmarkId = bookmarkId;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public LocalDateTime getNextAttemptAt() {
+        return nextAttemptAt;
+    }
+
+    public void setNextAttemptAt(LocalDateTime nextAttemptAt) {
+        this.nextAttemptAt = nextAttemptAt;
+    }
+
+    public LocalDateTime getLockedUntil() {
+        return lockedUntil;
+    }
+
+    public void setLockedUntil(LocalDateTime lockedUntil) {
+        this.lockedUntil = lockedUntil;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public void setLastError(String lastError) {
+        this.lastError = lastError;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(LocalDateTime createdAt) {
+        this.createdAt = createdAt;
+    }
+}
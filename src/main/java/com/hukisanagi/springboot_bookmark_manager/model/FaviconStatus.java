@@ -0,0 +1,8 @@
+package com.hukisanagi.springboot_bookmark_manager.model;
+
+// ブックマークのファビコン取得状態
+public enum FaviconStatus {
+    PENDING, // 取得待ち（非同期ジョブで処理中）
+    DONE,    // 取得処理完了（取得できなかった場合も含む）
+    FAILED   // リトライ上限に達して取得失敗
+}
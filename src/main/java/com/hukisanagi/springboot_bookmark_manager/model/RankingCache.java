@@ -5,18 +5,32 @@ import jakarta.persistence.Entity;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
+import jakarta.persistence.Index;
 import jakarta.persistence.Table;
+import jakarta.persistence.UniqueConstraint;
 import java.time.LocalDateTime;
 
+// ランキングの1行。集計のたびに新しい世代として書き込み、書き込み完了後に公開する（RankingGeneration）
+// 世代ごとに同じURLを持つため、URLの一意制約があった旧テーブル(ranking_cache)とは別のテーブルに保存する
 @Entity
-@Table(name = "ranking_cache")
+@Table(name = "ranking_cache_entry", uniqueConstraints = {
+        @UniqueConstraint(name = "uk_ranking_cache_entry_generation_url", columnNames = {"generation", "url"})
+}, indexes = {
+        @Index(name = "idx_ranking_cache_entry_favicon_path", columnList = "faviconPath")
+})
 public class RankingCache {
 
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
     private Long id;
 
-    @Column(length = 2048, unique = true, nullable = false)
+    @Column(nullable = false)
+    private Long generation;
+
+    // 正規化済みURLの行のID（url_metadata.id）。代表のタイトル・ファビコンを選ぶ際にブックマークをこのIDで引く
+    private Long urlId;
+
+    @Column(length = 2048, nullable = false)
     private String url;
 
     @Column(length = 512, nullable = false)
@@ -56,6 +70,22 @@ public class RankingCache {
         this.id = id;
     }
 
+    public Long getGeneration() {
+        return generation;
+    }
+
+    public void setGeneration(Long generation) {
+        this.generation = generation;
+    }
+
+    public Long getUrlId() {
+        return urlId;
+    }
+
+    public void setUrlId(Long urlId) {
+        this.urlId = urlId;
+    }
+
     public String getUrl() {
         return url;
     }
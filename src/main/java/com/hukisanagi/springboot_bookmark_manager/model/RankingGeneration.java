@@ -0,0 +1,51 @@
+package com.hukisanagi.springboot_bookmark_manager.model;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import java.time.LocalDateTime;
+
+// ランキングの世代。公開済みの世代のうち最新のものが表示される
+// 公開日時の更新は1行の更新のため、書き込み途中のランキングが表示されることはない
+@Entity
+@Table(name = "ranking_generation")
+public class RankingGeneration {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    private LocalDateTime createdAt;
+
+    // 書き込みが完了して公開した日時（書き込み中はnull）
+    private LocalDateTime publishedAt;
+
+    public RankingGeneration() {
+    }
+
+    public RankingGeneration(LocalDateTime createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    public LocalDateTime getPublishedAt() {
+        return publishedAt;
+    }
+
+    public void setPublishedAt(LocalDateTime publishedAt) {
+        this.publishedAt = publishedAt;
+    }
+}
@@ -1,21 +1,31 @@
 package com.hukisanagi.springboot_bookmark_manager.model;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
 import jakarta.persistence.ManyToMany;
+import jakarta.persistence.Table;
+import jakarta.persistence.UniqueConstraint;
+import java.time.LocalDateTime;
 import java.util.HashSet;
 import java.util.Set;
 
+// タグ名は全ユーザーで共有する。同時に同じ名前のタグが作成されないよう一意制約を設ける
 @Entity
+@Table(name = "tag", uniqueConstraints = @UniqueConstraint(name = "uk_tag_name", columnNames = "name"))
 public class Tag {
 
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
     private Long id;
+    @Column(nullable = false)
     private String name;
+    // どのユーザーも使わなくなった日時（作成時にも設定する）。猶予期間を過ぎてから定期処理で削除する
+    @JsonIgnore
+    private LocalDateTime unusedSince;
 
     @ManyToMany(mappedBy = "tags")
     @JsonIgnore
@@ -44,6 +54,14 @@ public class Tag {
         this.name = name;
     }
 
+    public LocalDateTime getUnusedSince() {
+        return unusedSince;
+    }
+
+    public void setUnusedSince(LocalDateTime unusedSince) {
+        this.unusedSince = unusedSince;
+    }
+
     public Set<Bookmark> getBookmarks() {
         return bookmarks;
     }
@@ -52,22 +70,22 @@ public class Tag {
         this.bookmarks = bookmarks;
     }
 
+    // 参照のみ取得したタグ（プロキシ）とも比較できるよう、クラスの一致ではなくinstanceofとgetterで比較する
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
-        Tag tag = (Tag) o;
+        if (!(o instanceof Tag tag)) return false;
         // IDがnullでない場合はIDで比較
-        if (id != null && tag.id != null) {
-            return id.equals(tag.id);
+        if (getId() != null && tag.getId() != null) {
+            return getId().equals(tag.getId());
         }
         // IDがnullの場合はnameで比較
-        return name != null && name.equals(tag.name);
+        return getName() != null && getName().equals(tag.getName());
     }
 
     @Override
     public int hashCode() {
-        // IDがnullでない場合はIDのハッシュコード、そうでない場合はnameのハッシュコード
-        return id != null ? id.hashCode() : (name != null ? name.hashCode() : 0);
+        // 保存の前後でハッシュコードが変わらないよう固定値を返す
+        return Tag.class.hashCode();
     }
 }
@@ -0,0 +1,5 @@
+package com.hukisanagi.springboot_bookmark_manager.model;
+
+// タグ一覧に表示するタグ名と、そのタグが付いたブックマークの数
+public record TagCount(String name, long bookmarkCount) {
+}
@@ -0,0 +1,66 @@
+package com.hukisanagi.springboot_bookmark_manager.model;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+import jakarta.persistence.UniqueConstraint;
+import java.time.LocalDate;
+
+// 正規化済みURLごと・日ごとのクリック数（クリックログに記録したクリックのみ数える）
+// 直近クリック数は期間内の行の合計で求め、期間外の行はランキングの集計時に削除する
+// 「2人以上がクリックしたURLのみ数える」条件のため、最初にクリックしたユーザーと、複数のユーザーがクリックしたかを保持する
+@Entity
+@Table(name = "url_click_bucket", uniqueConstraints = {
+        @UniqueConstraint(name = "uk_url_click_bucket_url_date", columnNames = {"url_id", "bucket_date"})
+}, indexes = {
+        @Index(name = "idx_url_click_bucket_date", columnList = "bucket_date")
+})
+public class UrlClickBucket {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(nullable = false)
+    private Long urlId;
+
+    @Column(nullable = false)
+    private LocalDate bucketDate;
+
+    private long clickCount;
+
+    private Long firstClickerId;
+
+    private boolean multipleClickers;
+
+    public UrlClickBucket() {
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Long getUrlId() {
+        return urlId;
+    }
+
+    public LocalDate getBucketDate() {
+        return bucketDate;
+    }
+
+    public long getClickCount() {
+        return clickCount;
+    }
+
+    public Long getFirstClickerId() {
+        return firstClickerId;
+    }
+
+    public boolean isMultipleClickers() {
+        return multipleClickers;
+    }
+}
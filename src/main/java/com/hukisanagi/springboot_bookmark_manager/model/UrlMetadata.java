@@ -0,0 +1,140 @@
+package com.hukisanagi.springboot_bookmark_manager.model;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import jakarta.persistence.UniqueConstraint;
+import java.time.LocalDateTime;
+
+// 正規化済みURLごとのメタデータ（全ユーザーとランキング集計で共有する）
+@Entity
+@Table(name = "url_metadata", uniqueConstraints = {
+        @UniqueConstraint(name = "uk_url_metadata_url_hash", columnNames = "urlHash")
+})
+public class UrlMetadata {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    // URLは長くなりうるため、SHA-256のハッシュ値で検索する
+    @Column(nullable = false, length = 64)
+    private String urlHash;
+
+    @Column(nullable = false, length = 2048)
+    private String url;
+
+    @Column(length = 1024)
+    private String title;
+
+    // タイトルを取得した日時（nullならタイトル未取得）
+    private LocalDateTime fetchedAt;
+
+    // 条件付きリクエスト用のHTTPバリデーター
+    @Column(length = 512)
+    private String etag;
+
+    @Column(length = 128)
+    private String lastModified;
+
+    // タイトルの取得時にページから求めたファビコンのURL（nullなら未取得）
+    // ファビコンの取得時にページを取得し直さずに使う
+    @Column(length = 2048)
+    private String iconUrl;
+
+    @Column(length = 2048)
+    private String faviconPath;
+
+    private LocalDateTime faviconFetchedAt;
+
+    public UrlMetadata() {
+    }
+
+    public UrlMetadata(String urlHash, String url) {
+        this.urlHash = urlHash;
+        this.url = url;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public String getUrlHash() {
+        return urlHash;
+    }
+
+    public void setUrlHash(String urlHash) {
+        this.urlHash = urlHash;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public void setUrl(String url) {
+        this.url = url;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public void setTitle(String title) {
+        this.title = title;
+    }
+
+    public LocalDateTime getFetchedAt() {
+        return fetchedAt;
+    }
+
+    public void setFetchedAt(LocalDateTime fetchedAt) {
+        this.fetchedAt = fetchedAt;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public void setEtag(String etag) {
+        this.etag = etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public void setLastModified(String lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    public String getIconUrl() {
+        return iconUrl;
+    }
+
+    public void setIconUrl(String iconUrl) {
+        this.iconUrl = iconUrl;
+    }
+
+    public String getFaviconPath() {
+        return faviconPath;
+    }
+
+    public void setFaviconPath(String faviconPath) {
+        this.faviconPath = faviconPath;
+    }
+
+    public LocalDateTime getFaviconFetchedAt() {
+        return faviconFetchedAt;
+    }
+
+    public void setFaviconFetchedAt(LocalDateTime faviconFetchedAt) {
+        this.faviconFetchedAt = faviconFetchedAt;
+    }
+}
@@ -0,0 +1,43 @@
+package com.hukisanagi.springboot_bookmark_manager.model;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+
+// 正規化済みURLごとの集計値（登録ユーザー数・合計クリック数・公開かどうか）
+// ブックマークの追加・削除とクリックの書き込み時に加減算し、ランキングと公開ブックマーク数はこの表から読む
+@Entity
+@Table(name = "url_stats", indexes = @Index(name = "idx_url_stats_public_url", columnList = "public_url"))
+public class UrlStats {
+
+    // 正規化済みURLの行のID（url_metadata.id）
+    @Id
+    private Long urlId;
+
+    private long uniqueUserCount;
+
+    private long totalClickCount;
+
+    // 2人以上が登録したURLであればtrue（公開ブックマーク）
+    private boolean publicUrl;
+
+    public UrlStats() {
+    }
+
+    public Long getUrlId() {
+        return urlId;
+    }
+
+    public long getUniqueUserCount() {
+        return uniqueUserCount;
+    }
+
+    public long getTotalClickCount() {
+        return totalClickCount;
+    }
+
+    public boolean isPublicUrl() {
+        return publicUrl;
+    }
+}
@@ -0,0 +1,60 @@
+package com.hukisanagi.springboot_bookmark_manager.model;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.FetchType;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.JoinColumn;
+import jakarta.persistence.ManyToOne;
+import jakarta.persistence.Table;
+import jakarta.persistence.UniqueConstraint;
+
+// ユーザーごとのタグの使用数（そのタグが付いたブックマークの数）
+// ブックマークの追加・更新・削除時に加減算し、タグ一覧の表示と未使用のタグの判定に使う
+@Entity
+@Table(name = "user_tag_count",
+        uniqueConstraints = @UniqueConstraint(name = "uk_user_tag_count_app_user_tag", columnNames = {"app_user_id", "tag_id"}),
+        indexes = @Index(name = "idx_user_tag_count_tag", columnList = "tag_id"))
+public class UserTagCount {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "app_user_id", nullable = false)
+    private AppUser appUser;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "tag_id", nullable = false)
+    private Tag tag;
+
+    private long bookmarkCount;
+
+    public UserTagCount() {
+    }
+
+    public UserTagCount(AppUser appUser, Tag tag, long bookmarkCount) {
+        this.appUser = appUser;
+        this.tag = tag;
+        this.bookmarkCount = bookmarkCount;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public AppUser getAppUser() {
+        return appUser;
+    }
+
+    public Tag getTag() {
+        return tag;
+    }
+
+    public long getBookmarkCount() {
+        return bookmarkCount;
+    }
+}
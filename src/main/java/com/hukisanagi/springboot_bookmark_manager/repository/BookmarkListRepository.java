@@ -0,0 +1,23 @@
+package com.hukisanagi.springboot_bookmark_manager.repository;
+
+import com.hukisanagi.springboot_bookmark_manager.model.AppUser;
+import com.hukisanagi.springboot_bookmark_manager.model.Bookmark;
+import com.hukisanagi.springboot_bookmark_manager.model.BookmarkListItem;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.jpa.domain.Specification;
+
+import java.util.List;
+
+// ブックマーク一覧の表示用の読み込み（BookmarkRepositoryに組み込む）
+public interface BookmarkListRepository {
+
+    // 一覧に表示する列とタグ名だけを読み込む（faviconUrlは設定しない）
+    List<BookmarkListItem> findListItems(Specification<Bookmark> specification, Sort sort, int limit);
+
+    // ユーザーの全ブックマークを同じ形で読み込む（検索インデックスの作成用。1ユーザーあたり2クエリ）
+    List<BookmarkListItem> findAllListItems(AppUser appUser);
+
+    // タイトル・URL・タグ名にキーワードを含むブックマークのID（列ごとの問い合わせをUNIONでまとめる）
+    // PostgreSQLでは各列のpg_trgmのGINインデックスで求められる
+    List<Long> findIdsByKeyword(AppUser appUser, String keyword, int limit);
+}
@@ -0,0 +1,107 @@
+package com.hukisanagi.springboot_bookmark_manager.repository;
+
+import com.hukisanagi.springboot_bookmark_manager.model.AppUser;
+import com.hukisanagi.springboot_bookmark_manager.model.Bookmark;
+import com.hukisanagi.springboot_bookmark_manager.model.BookmarkListItem;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import jakarta.persistence.Tuple;
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.CriteriaQuery;
+import jakarta.persistence.criteria.Predicate;
+import jakarta.persistence.criteria.Root;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.jpa.domain.Specification;
+import org.springframework.data.jpa.repository.query.QueryUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// 一覧の行は列を指定して読み込み、タグ名は表示する行の分を2回目の問い合わせでまとめて読み込む
+// エンティティを読み込まないため、行ごとのタグの遅延読み込みや永続化コンテキストでの変更検知が発生しない
+public class BookmarkListRepositoryImpl implements BookmarkListRepository {
+
+    private static final String FIND_TAG_NAMES_JPQL =
+            "SELECT b.id, t.name FROM Bookmark b JOIN b.tags t WHERE b.id IN :ids ORDER BY t.name";
+
+    private static final String FIND_ALL_ROWS_JPQL =
+            "SELECT b.id, b.title, b.url, b.faviconPath, b.isFavorite FROM Bookmark b WHERE b.appUser = :appUser";
+
+    private static final String FIND_ALL_TAG_NAMES_JPQL =
+            "SELECT b.id, t.name FROM Bookmark b JOIN b.tags t WHERE b.appUser = :appUser";
+
+    // OR条件では列ごとのインデックスを組み合わせられないため、列ごとに問い合わせてUNIONでまとめる
+    private static final String FIND_IDS_BY_KEYWORD_JPQL =
+            "SELECT b.id FROM Bookmark b WHERE b.appUser = :appUser AND LOWER(b.title) LIKE :pattern " +
+            "UNION SELECT b.id FROM Bookmark b WHERE b.appUser = :appUser AND LOWER(b.url) LIKE :pattern " +
+            "UNION SELECT b.id FROM Bookmark b JOIN b.tags t WHERE b.appUser = :appUser AND LOWER(t.name) LIKE :pattern";
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    public List<BookmarkListItem> findListItems(Specification<Bookmark> specification, Sort sort, int limit) {
+        CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+        CriteriaQuery<Tuple> query = cb.createTupleQuery();
+        Root<Bookmark> root = query.from(Bookmark.class);
+        query.multiselect(
+                root.get("id").alias("id"),
+                root.get("title").alias("title"),
+                root.get("url").alias("url"),
+                root.get("faviconPath").alias("faviconPath"),
+                root.get("isFavorite").alias("favorite"));
+        Predicate predicate = specification.toPredicate(root, query, cb);
+        if (predicate != null) {
+            query.where(predicate);
+        }
+        query.orderBy(QueryUtils.toOrders(sort, root, cb));
+
+        List<Tuple> rows = entityManager.createQuery(query).setMaxResults(limit).getResultList();
+        if (rows.isEmpty()) {
+            return List.of();
+        }
+
+        List<Long> ids = rows.stream().map(row -> row.get("id", Long.class)).toList();
+        Map<Long, List<String>> tagNames = new HashMap<>();
+        for (Object[] row : entityManager.createQuery(FIND_TAG_NAMES_JPQL, Object[].class).setParameter("ids", ids).getResultList()) {
+            tagNames.computeIfAbsent((Long) row[0], id -> new ArrayList<>()).add((String) row[1]);
+        }
+
+        List<BookmarkListItem> items = new ArrayList<>(rows.size());
+        for (Tuple row : rows) {
+            Long id = row.get("id", Long.class);
+            items.add(new BookmarkListItem(id, row.get("title", String.class), row.get("url", String.class),
+                    row.get("faviconPath", String.class), null, row.get("favorite", Boolean.class),
+                    tagNames.getOrDefault(id, List.of())));
+        }
+        return items;
+    }
+
+    @Override
+    public List<BookmarkListItem> findAllListItems(AppUser appUser) {
+        Map<Long, List<String>> tagNames = new HashMap<>();
+        for (Object[] row : entityManager.createQuery(FIND_ALL_TAG_NAMES_JPQL, Object[].class).setParameter("appUser", appUser).getResultList()) {
+            tagNames.computeIfAbsent((Long) row[0], id -> new ArrayList<>()).add((String) row[1]);
+        }
+
+        List<Object[]> rows = entityManager.createQuery(FIND_ALL_ROWS_JPQL, Object[].class).setParameter("appUser", appUser).getResultList();
+        List<BookmarkListItem> items = new ArrayList<>(rows.size());
+        for (Object[] row : rows) {
+            Long id = (Long) row[0];
+            items.add(new BookmarkListItem(id, (String) row[1], (String) row[2], (String) row[3], null, (Boolean) row[4],
+                    tagNames.getOrDefault(id, List.of())));
+        }
+        return items;
+    }
+
+    @Override
+    public List<Long> findIdsByKeyword(AppUser appUser, String keyword, int limit) {
+        return entityManager.createQuery(FIND_IDS_BY_KEYWORD_JPQL, Long.class)
+                .setParameter("appUser", appUser)
+                .setParameter("pattern", "%" + keyword.toLowerCase() + "%")
+                .setMaxResults(limit)
+                .getResultList();
+    }
+}
@@ -2,10 +2,14 @@ package com.hukisanagi.springboot_bookmark_manager.repository;
 
 import com.hukisanagi.springboot_bookmark_manager.model.AppUser;
 import com.hukisanagi.springboot_bookmark_manager.model.Bookmark;
+import com.hukisanagi.springboot_bookmark_manager.model.UrlMetadata;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import com.hukisanagi.springboot_bookmark_manager.model.RankingItem;
+import com.hukisanagi.springboot_bookmark_manager.model.FaviconStatus;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
@@ -14,40 +18,23 @@ import java.util.List;
 import java.util.Optional;
 
 @Repository
-public interface BookmarkRepository extends JpaRepository<Bookmark, Long> {
-    @Query("SELECT b FROM Bookmark b LEFT JOIN b.tags t " +
-           "WHERE b.appUser = :appUser " +
-           "AND (:keyword IS NULL OR :keyword = '' OR LOWER(b.title) LIKE LOWER(CONCAT('%', :keyword, '%')) OR LOWER(b.url) LIKE LOWER(CONCAT('%', :keyword, '%')) OR LOWER(t.name) LIKE LOWER(CONCAT('%', :keyword, '%')))" +
-           "AND (:exactTagNames IS NULL OR b.id IN (SELECT b2.id FROM Bookmark b2 JOIN b2.tags t2 WHERE t2.name IN :exactTagNames GROUP BY b2.id HAVING COUNT(DISTINCT t2.name) = :exactTagNamesSize))" +
-           "AND (:isFavorite IS NULL OR b.isFavorite = :isFavorite) " +
-           "GROUP BY b.id")
-    Page<Bookmark> findBookmarksByAppUserAndCriteria(@Param("appUser") AppUser appUser,
-                                                      @Param("keyword") String keyword,
-                                                      @Param("exactTagNames") java.util.Collection<String> exactTagNames,
-                                                      @Param("exactTagNamesSize") int exactTagNamesSize,
-                                                      @Param("isFavorite") Boolean isFavorite,
-                                                      Pageable pageable);
+public interface BookmarkRepository extends JpaRepository<Bookmark, Long>, JpaSpecificationExecutor<Bookmark>, BookmarkListRepository {
 
-    @Query("SELECT new com.hukisanagi.springboot_bookmark_manager.model.RankingItem(b.url, MIN(b.title), MIN(b.faviconPath), COUNT(DISTINCT b.appUser)) " +
-           "FROM Bookmark b " +
-           "GROUP BY b.url " +
-           "HAVING COUNT(DISTINCT b.appUser) > 1 " +
-           "ORDER BY COUNT(DISTINCT b.appUser) DESC")
-    List<RankingItem> findTopBookmarksByUniqueUserCount(Pageable pageable);
-
-    @Query("SELECT new com.hukisanagi.springboot_bookmark_manager.model.RankingItem(b.url, MIN(b.title), MIN(b.faviconPath), SUM(b.totalClickCount)) " +
-           "FROM Bookmark b " +
-           "GROUP BY b.url " +
-           "HAVING COUNT(DISTINCT b.appUser) > 1 " +
-           "ORDER BY SUM(b.totalClickCount) DESC")
-    List<RankingItem> findTopBookmarksByTotalClickCount(Pageable pageable);
+    @Query("SELECT b.faviconPath FROM Bookmark b WHERE b.appUser = :appUser AND b.faviconPath IS NOT NULL")
+    List<String> findFaviconPathsByAppUser(@Param("appUser") AppUser appUser);
 
     List<Bookmark> findByAppUserAndUrl(AppUser appUser, String url);
 
-    List<Bookmark> findByAppUserAndUrlContaining(AppUser appUser, String urlKeyword);
+    boolean existsByAppUserAndUrlMetadata(AppUser appUser, UrlMetadata urlMetadata);
+
+    @Query("SELECT DISTINCT b.url FROM Bookmark b WHERE b.appUser = :appUser")
+    List<String> findUrlsByAppUser(@Param("appUser") AppUser appUser);
 
-    @Query("SELECT COUNT(DISTINCT b.url) FROM Bookmark b WHERE b.url IN (SELECT b2.url FROM Bookmark b2 GROUP BY b2.url HAVING COUNT(DISTINCT b2.appUser) > 1)")
-    Long countPublicBookmarks();
+    // ユーザーのブックマークIDとタグ名の組（タグのビットマップの作成用）
+    @Query("SELECT b.id, t.name FROM Bookmark b JOIN b.tags t WHERE b.appUser = :appUser")
+    List<Object[]> findIdAndTagNameByAppUser(@Param("appUser") AppUser appUser);
+
+    List<Bookmark> findByAppUserAndUrlContaining(AppUser appUser, String urlKeyword);
 
     @Query(value = "SELECT new com.hukisanagi.springboot_bookmark_manager.model.RankingItem(b.url, MIN(b.title), MIN(b.faviconPath), COUNT(DISTINCT b.appUser)) " +
                    "FROM Bookmark b " +
@@ -57,11 +44,8 @@ public interface BookmarkRepository extends JpaRepository<Bookmark, Long> {
            countQuery = "SELECT COUNT(DISTINCT b.url) FROM Bookmark b GROUP BY b.url HAVING COUNT(DISTINCT b.appUser) > 1")
     Page<RankingItem> findRandomPublicBookmarks(Pageable pageable);
 
-    List<Bookmark> findByUrlIn(List<String> urls);
-    
-    @Query("SELECT b.url FROM Bookmark b WHERE b.url = :url GROUP BY b.url HAVING COUNT(DISTINCT b.appUser) >= 2")
-    List<String> findByUrlAndUniqueUserCountGreaterThanEqual(@Param("url") String url);
-
-    @Query("SELECT b.url FROM Bookmark b WHERE b.url LIKE CONCAT(:urlPrefix, '%') GROUP BY b.url HAVING COUNT(DISTINCT b.appUser) >= 2")
-    List<String> findByUrlStartingWithAndUniqueUserCountGreaterThanEqual(@Param("urlPrefix") String urlPrefix);
+    // ファビコン取得結果のみを更新（他のカラムを上書きしないよう個別に更新する）
+    @Modifying
+    @Query("UPDATE Bookmark b SET b.faviconPath = :faviconPath, b.faviconStatus = :faviconStatus WHERE b.id = :id")
+    int updateFavicon(@Param("id") Long id, @Param("faviconPath") String faviconPath, @Param("faviconStatus") FaviconStatus faviconStatus);
 }
@@ -0,0 +1,82 @@
+package com.hukisanagi.springboot_bookmark_manager.repository;
+
+import com.hukisanagi.springboot_bookmark_manager.model.AppUser;
+import com.hukisanagi.springboot_bookmark_manager.model.Bookmark;
+import com.hukisanagi.springboot_bookmark_manager.model.Tag;
+import jakarta.persistence.criteria.Join;
+import jakarta.persistence.criteria.Predicate;
+import jakarta.persistence.criteria.Root;
+import jakarta.persistence.criteria.Subquery;
+import org.springframework.data.jpa.domain.Specification;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+
+// ブックマーク一覧の絞り込み・keyset方式のページングの条件
+public final class BookmarkSpecifications {
+
+    private BookmarkSpecifications() {
+    }
+
+    // 一覧画面の絞り込み条件（キーワードはタイトル・URL・タグ名の部分一致、タグは指定したものを全て持つ）
+    // タグとの結合は副問い合わせで行い、一覧の取得・件数の集計にGROUP BYを使わない
+    public static Specification<Bookmark> matching(AppUser appUser, String keyword, Collection<String> exactTagNames, Boolean isFavorite) {
+        return (root, query, cb) -> {
+            List<Predicate> predicates = new ArrayList<>();
+            predicates.add(cb.equal(root.get("appUser"), appUser));
+
+            if (keyword != null && !keyword.isEmpty()) {
+                String pattern = "%" + keyword.toLowerCase() + "%";
+                Subquery<Long> tagMatch = query.subquery(Long.class);
+                Root<Bookmark> tagged = tagMatch.from(Bookmark.class);
+                Join<Bookmark, Tag> tag = tagged.join("tags");
+                tagMatch.select(tagged.get("id"))
+                        .where(cb.equal(tagged, root), cb.like(cb.lower(tag.get("name")), pattern));
+                predicates.add(cb.or(
+                        cb.like(cb.lower(root.get("title")), pattern),
+                        cb.like(cb.lower(root.get("url")), pattern),
+                        cb.exists(tagMatch)));
+            }
+
+            if (exactTagNames != null && !exactTagNames.isEmpty()) {
+                // 指定したタグを全て持つブックマーク
+                Collection<String> tagNames = new HashSet<>(exactTagNames);
+                Subquery<Long> allTagged = query.subquery(Long.class);
+                Root<Bookmark> tagged = allTagged.from(Bookmark.class);
+                Join<Bookmark, Tag> tag = tagged.join("tags");
+                allTagged.select(tagged.get("id"))
+                        .where(cb.equal(tagged.get("appUser"), appUser), tag.get("name").in(tagNames))
+                        .groupBy(tagged.get("id"))
+                        .having(cb.equal(cb.countDistinct(tag.get("name")), (long) tagNames.size()));
+                predicates.add(root.get("id").in(allTagged));
+            }
+
+            if (isFavorite != null) {
+                predicates.add(cb.equal(root.get("isFavorite"), isFavorite));
+            }
+            return cb.and(predicates.toArray(new Predicate[0]));
+        };
+    }
+
+    // 検索インデックスでキーワードに一致したブックマーク
+    public static Specification<Bookmark> idIn(Collection<Long> ids) {
+        return (root, query, cb) -> ids.isEmpty() ? cb.disjunction() : root.get("id").in(ids);
+    }
+
+    // 前回の最後の行より後ろの行（keyset方式）
+    // タイトル順の場合は同じタイトルの中をidで並べるため、(title, id) の組で比較する
+    public static Specification<Bookmark> after(boolean byTitle, boolean ascending, String lastTitle, Long lastId) {
+        return (root, query, cb) -> {
+            Predicate idAfter = ascending ? cb.greaterThan(root.get("id"), lastId) : cb.lessThan(root.get("id"), lastId);
+            if (!byTitle) {
+                return idAfter;
+            }
+            Predicate titleAfter = ascending
+                    ? cb.greaterThan(root.<String>get("title"), lastTitle)
+                    : cb.lessThan(root.<String>get("title"), lastTitle);
+            return cb.or(titleAfter, cb.and(cb.equal(root.get("title"), lastTitle), idAfter));
+        };
+    }
+}
@@ -0,0 +1,44 @@
+package com.hukisanagi.springboot_bookmark_manager.repository;
+
+import com.hukisanagi.springboot_bookmark_manager.model.FaviconBlob;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface FaviconBlobRepository extends JpaRepository<FaviconBlob, Long> {
+
+    Optional<FaviconBlob> findByStorageKey(String storageKey);
+
+    // 参照数を増やす（更新件数が0ならファイルは既に削除されている）
+    @Modifying
+    @Query("UPDATE FaviconBlob b SET b.refCount = b.refCount + 1 WHERE b.storageKey = :storageKey")
+    int retain(@Param("storageKey") String storageKey);
+
+    @Modifying
+    @Query("UPDATE FaviconBlob b SET b.refCount = b.refCount + :count WHERE b.storageKey = :storageKey")
+    int retain(@Param("storageKey") String storageKey, @Param("count") long count);
+
+    @Modifying
+    @Query("UPDATE FaviconBlob b SET b.refCount = CASE WHEN b.refCount > :count THEN b.refCount - :count ELSE 0 END, " +
+           "b.lastReleasedAt = :now WHERE b.storageKey = :storageKey")
+    int release(@Param("storageKey") String storageKey, @Param("count") long count, @Param("now") LocalDateTime now);
+
+    // 参照数0のまま猶予期間を過ぎ、ランキングからも参照されていないもの
+    @Query("SELECT b FROM FaviconBlob b " +
+           "WHERE b.refCount = 0 AND COALESCE(b.lastReleasedAt, b.createdAt) < :threshold " +
+           "AND NOT EXISTS (SELECT r.id FROM RankingCache r WHERE r.faviconPath = b.storageKey)")
+    List<FaviconBlob> findPurgeable(@Param("threshold") LocalDateTime threshold, Pageable pageable);
+
+    // 削除直前に再び参照された場合は削除しない
+    @Modifying
+    @Query("DELETE FROM FaviconBlob b WHERE b.id = :id AND b.refCount = 0")
+    int deleteIfUnreferenced(@Param("id") Long id);
+}
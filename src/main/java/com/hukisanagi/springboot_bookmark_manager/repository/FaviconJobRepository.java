@@ -0,0 +1,46 @@
+package com.hukisanagi.springboot_bookmark_manager.repository;
+
+import com.hukisanagi.springboot_bookmark_manager.model.FaviconJob;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Repository
+public interface FaviconJobRepository extends JpaRepository<FaviconJob, Long> {
+
+    // 実行時刻に達し、かつ他のワーカーが処理中でないジョブを取得
+    @Query("SELECT j.id FROM FaviconJob j " +
+           "WHERE j.nextAttemptAt <= :now AND (j.lockedUntil IS NULL OR j.lockedUntil < :now) " +
+           "ORDER BY j.nextAttemptAt")
+    List<Long> findDueJobIds(@Param("now") LocalDateTime now, Pageable pageable);
+
+    // ジョブのリースを取得（更新件数が1なら自分が取得できた）
+    @Modifying
+    @Query("UPDATE FaviconJob j SET j.lockedUntil = :lockedUntil " +
+           "WHERE j.id = :id AND (j.lockedUntil IS NULL OR j.lockedUntil < :now)")
+    int claim(@Param("id") Long id, @Param("now") LocalDateTime now, @Param("lockedUntil") LocalDateTime lockedUntil);
+
+    // 次回の実行時刻を設定してリースを解放する
+    // 処理中に削除された・リースが切れて他のワーカーが取得したジョブは更新しない（更新件数が0になる）
+    @Modifying
+    @Query("UPDATE FaviconJob j SET j.attempts = :attempts, j.nextAttemptAt = :nextAttemptAt, j.lockedUntil = NULL, j.lastError = :lastError " +
+           "WHERE j.id = :id AND j.lockedUntil = :lockedUntil")
+    int reschedule(@Param("id") Long id, @Param("lockedUntil") LocalDateTime lockedUntil, @Param("attempts") int attempts,
+                   @Param("nextAttemptAt") LocalDateTime nextAttemptAt, @Param("lastError") String lastError);
+
+    // 処理を終えたジョブを削除する（削除件数が1なら、リースを保持したまま処理を終えられた）
+    // 処理中に削除された・リースが切れて他のワーカーが取得したジョブは削除しない（削除件数が0になる）
+    @Modifying
+    @Query("DELETE FROM FaviconJob j WHERE j.id = :id AND j.lockedUntil = :lockedUntil")
+    int deleteLeased(@Param("id") Long id, @Param("lockedUntil") LocalDateTime lockedUntil);
+
+    @Modifying
+    @Query("DELETE FROM FaviconJob j WHERE j.bookmarkId = :bookmarkId")
+    void deleteByBookmarkId(@Param("bookmarkId") Long bookmarkId);
+}
@@ -2,11 +2,22 @@ package com.hukisanagi.springboot_bookmark_manager.repository;
 
 import com.hukisanagi.springboot_bookmark_manager.model.RankingCache;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
-import java.util.Optional;
+import java.time.LocalDateTime;
+import java.util.List;
 
 @Repository
 public interface RankingCacheRepository extends JpaRepository<RankingCache, Long> {
-    Optional<RankingCache> findByUrl(String url);
-}
\ No newline at end of file
+
+    List<RankingCache> findByGeneration(Long generation);
+
+    // 指定した世代より古い世代の行を削除する（書き込み中の可能性がある未公開の世代は、作成から一定時間経つまで残す）
+    @Modifying
+    @Query("DELETE FROM RankingCache r WHERE r.generation IN " +
+           "(SELECT g.id FROM RankingGeneration g WHERE g.id < :generation AND (g.publishedAt IS NOT NULL OR g.createdAt < :abandonedBefore))")
+    int deleteGenerationsBefore(@Param("generation") Long generation, @Param("abandonedBefore") LocalDateTime abandonedBefore);
+}
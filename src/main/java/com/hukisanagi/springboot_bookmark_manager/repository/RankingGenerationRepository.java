@@ -0,0 +1,31 @@
+package com.hukisanagi.springboot_bookmark_manager.repository;
+
+import com.hukisanagi.springboot_bookmark_manager.model.RankingGeneration;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.Optional;
+
+@Repository
+public interface RankingGenerationRepository extends JpaRepository<RankingGeneration, Long> {
+
+    // 表示中の世代
+    @Query("SELECT MAX(g.id) FROM RankingGeneration g WHERE g.publishedAt IS NOT NULL")
+    Optional<Long> findCurrentGenerationId();
+
+    // 指定した世代より前に公開された世代のうち最新のもの
+    @Query("SELECT MAX(g.id) FROM RankingGeneration g WHERE g.publishedAt IS NOT NULL AND g.id < :generation")
+    Optional<Long> findPreviousGenerationId(@Param("generation") Long generation);
+
+    @Modifying
+    @Query("UPDATE RankingGeneration g SET g.publishedAt = :now WHERE g.id = :generation")
+    int publish(@Param("generation") Long generation, @Param("now") LocalDateTime now);
+
+    @Modifying
+    @Query("DELETE FROM RankingGeneration g WHERE g.id < :generation AND (g.publishedAt IS NOT NULL OR g.createdAt < :abandonedBefore)")
+    int deleteGenerationsBefore(@Param("generation") Long generation, @Param("abandonedBefore") LocalDateTime abandonedBefore);
+}
@@ -1,16 +1,40 @@
 package com.hukisanagi.springboot_bookmark_manager.repository;
 
 import com.hukisanagi.springboot_bookmark_manager.model.Tag;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
-import org.springframework.stereotype.Repository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
 
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 
 @Repository
 public interface TagRepository extends JpaRepository<Tag, Long> {
     Optional<Tag> findByName(String name);
 
-    @Query("SELECT COUNT(b) FROM Bookmark b JOIN b.tags t WHERE t = :tag")
-    long countBookmarksByTag(Tag tag);
+    List<Tag> findByNameIn(Collection<String> names);
+
+    // どのユーザーも使わなくなったタグに日時を記録する（削除は猶予期間を過ぎてから行う）
+    @Modifying
+    @Query("UPDATE Tag t SET t.unusedSince = :now WHERE t.id IN :ids " +
+           "AND NOT EXISTS (SELECT c.id FROM UserTagCount c WHERE c.tag = t)")
+    int markUnused(@Param("ids") Collection<Long> ids, @Param("now") LocalDateTime now);
+
+    // 使われないまま猶予期間を過ぎたもの
+    @Query("SELECT t FROM Tag t WHERE t.unusedSince < :threshold " +
+           "AND NOT EXISTS (SELECT c.id FROM UserTagCount c WHERE c.tag = t) " +
+           "AND NOT EXISTS (SELECT b.id FROM Bookmark b JOIN b.tags bt WHERE bt = t)")
+    List<Tag> findPurgeable(@Param("threshold") LocalDateTime threshold, Pageable pageable);
+
+    // 削除直前に再び使われた場合は削除しない
+    @Modifying
+    @Query("DELETE FROM Tag t WHERE t.id = :id " +
+           "AND NOT EXISTS (SELECT c.id FROM UserTagCount c WHERE c.tag = t) " +
+           "AND NOT EXISTS (SELECT b.id FROM Bookmark b JOIN b.tags bt WHERE bt = t)")
+    int deleteIfUnused(@Param("id") Long id);
 }
@@ -0,0 +1,21 @@
+package com.hukisanagi.springboot_bookmark_manager.repository;
+
+import com.hukisanagi.springboot_bookmark_manager.model.UrlMetadata;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.Optional;
+
+@Repository
+public interface UrlMetadataRepository extends JpaRepository<UrlMetadata, Long> {
+
+    Optional<UrlMetadata> findByUrlHash(String urlHash);
+
+    // 削除したファビコンを参照しているURLは、次回追加時に再取得させる
+    @Modifying
+    @Query("UPDATE UrlMetadata m SET m.faviconPath = NULL, m.faviconFetchedAt = NULL WHERE m.faviconPath = :faviconPath")
+    int clearFaviconPath(@Param("faviconPath") String faviconPath);
+}
@@ -0,0 +1,22 @@
+package com.hukisanagi.springboot_bookmark_manager.repository;
+
+import com.hukisanagi.springboot_bookmark_manager.model.UrlStats;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface UrlStatsRepository extends JpaRepository<UrlStats, Long> {
+
+    long countByPublicUrlTrue();
+
+    // 公開ブックマークであれば、そのURLを返す（URLのハッシュ値で正規化済みURLの行を引く）
+    @Query("SELECT m.url FROM UrlStats s, UrlMetadata m WHERE m.id = s.urlId AND s.publicUrl = true AND m.urlHash = :urlHash")
+    List<String> findPublicUrlsByUrlHash(@Param("urlHash") String urlHash);
+
+    @Query("SELECT m.url FROM UrlStats s, UrlMetadata m WHERE m.id = s.urlId AND s.publicUrl = true AND m.url LIKE CONCAT(:urlPrefix, '%')")
+    List<String> findPublicUrlsByUrlPrefix(@Param("urlPrefix") String urlPrefix);
+}
@@ -0,0 +1,36 @@
+package com.hukisanagi.springboot_bookmark_manager.repository;
+
+import com.hukisanagi.springboot_bookmark_manager.model.AppUser;
+import com.hukisanagi.springboot_bookmark_manager.model.Tag;
+import com.hukisanagi.springboot_bookmark_manager.model.TagCount;
+import com.hukisanagi.springboot_bookmark_manager.model.UserTagCount;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface UserTagCountRepository extends JpaRepository<UserTagCount, Long> {
+
+    @Query("SELECT new com.hukisanagi.springboot_bookmark_manager.model.TagCount(t.name, c.bookmarkCount) " +
+           "FROM UserTagCount c JOIN c.tag t WHERE c.appUser = :appUser AND c.bookmarkCount > 0 ORDER BY t.name")
+    List<TagCount> findTagCountsByAppUser(@Param("appUser") AppUser appUser);
+
+    // 行がなければ0を返す（呼び出し側で行を追加する）
+    @Modifying
+    @Query("UPDATE UserTagCount c SET c.bookmarkCount = c.bookmarkCount + :delta WHERE c.appUser = :appUser AND c.tag = :tag")
+    int addBookmarkCount(@Param("appUser") AppUser appUser, @Param("tag") Tag tag, @Param("delta") long delta);
+
+    // 行がなければ作成する（他のリクエストが作成済みであれば0を返す）
+    @Modifying
+    @Query(value = "INSERT INTO user_tag_count (app_user_id, tag_id, bookmark_count) SELECT :appUserId, :tagId, :count " +
+                   "WHERE NOT EXISTS (SELECT 1 FROM user_tag_count WHERE app_user_id = :appUserId AND tag_id = :tagId)", nativeQuery = true)
+    int insertIfAbsent(@Param("appUserId") Long appUserId, @Param("tagId") Long tagId, @Param("count") long count);
+
+    @Modifying
+    @Query("DELETE FROM UserTagCount c WHERE c.appUser = :appUser AND c.bookmarkCount <= 0")
+    int deleteUnusedByAppUser(@Param("appUser") AppUser appUser);
+}
@@ -1,10 +1,22 @@
 package com.hukisanagi.springboot_bookmark_manager.service;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.hukisanagi.springboot_bookmark_manager.model.AppUser;
 import com.hukisanagi.springboot_bookmark_manager.repository.AppUserRepository;
+import com.hukisanagi.springboot_bookmark_manager.repository.BookmarkRepository;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.security.authentication.event.AuthenticationSuccessEvent;
+import org.springframework.security.oauth2.core.oidc.user.OidcUser;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import software.amazon.awssdk.services.cognitoidentityprovider.CognitoIdentityProviderClient;
 import software.amazon.awssdk.services.cognitoidentityprovider.model.AdminDeleteUserRequest;
 import software.amazon.awssdk.services.cognitoidentityprovider.model.ChangePasswordRequest;
@@ -21,14 +33,68 @@ public class AppUserService {
     private final AppUserRepository appUserRepository;
     private final CognitoIdentityProviderClient cognitoClient;
     private final StorageService storageService;
+    private final BookmarkRepository bookmarkRepository;
+    private final FaviconBlobService faviconBlobService;
+    private final BookmarkedUrlCache bookmarkedUrlCache;
+    private final UrlStatsService urlStatsService;
+    private final TransactionTemplate newTransactionTemplate;
+    // cognitoSubごとのユーザーID（リクエストのたびにユーザーを検索しないようにする）
+    private final Cache<String, Long> appUserIds;
 
     @Value("${aws.cognito.user-pool-id}")
     private String userPoolId;
 
-    public AppUserService(AppUserRepository appUserRepository, CognitoIdentityProviderClient cognitoClient, StorageService storageService) {
+    public AppUserService(AppUserRepository appUserRepository, CognitoIdentityProviderClient cognitoClient, StorageService storageService, BookmarkRepository bookmarkRepository, FaviconBlobService faviconBlobService, BookmarkedUrlCache bookmarkedUrlCache, UrlStatsService urlStatsService, PlatformTransactionManager transactionManager, @Value("${app-user.cache-size:10000}") long cacheSize) {
         this.appUserRepository = appUserRepository;
         this.cognitoClient = cognitoClient;
         this.storageService = storageService;
+        this.bookmarkRepository = bookmarkRepository;
+        this.faviconBlobService = faviconBlobService;
+        this.bookmarkedUrlCache = bookmarkedUrlCache;
+        this.urlStatsService = urlStatsService;
+        this.newTransactionTemplate = new TransactionTemplate(transactionManager);
+        this.newTransactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.appUserIds = Caffeine.newBuilder().maximumSize(cacheSize).build();
+    }
+
+    // ログインしたユーザーを返す。初回は作成する
+    // IDはキャッシュから引き、エンティティは参照のみを返す（DBへの問い合わせは行わない）
+    public AppUser getOrCreateUser(String cognitoSub) {
+        Long appUserId = appUserIds.get(cognitoSub, this::findOrCreateUserId);
+        return appUserRepository.getReferenceById(appUserId);
+    }
+
+    // ログイン時にユーザーを作成・読み込みしておく
+    @EventListener
+    public void onAuthenticationSuccess(AuthenticationSuccessEvent event) {
+        if (event.getAuthentication().getPrincipal() instanceof OidcUser oidcUser) {
+            getOrCreateUser(oidcUser.getSubject());
+        }
+    }
+
+    private Long findOrCreateUserId(String cognitoSub) {
+        Optional<AppUser> existing = appUserRepository.findByCognitoSub(cognitoSub);
+        if (existing.isPresent()) {
+            return existing.get().getId();
+        }
+        try {
+            return newTransactionTemplate.execute(status -> appUserRepository.saveAndFlush(new AppUser(cognitoSub)).getId());
+        } catch (DataIntegrityViolationException e) {
+            // 同じユーザーの最初のリクエストが同時に届き、他方が作成済みだった
+            return appUserRepository.findByCognitoSub(cognitoSub).map(AppUser::getId).orElseThrow(() -> e);
+        }
+    }
+
+    private void evictUser(String cognitoSub) {
+        appUserIds.invalidate(cognitoSub);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    appUserIds.invalidate(cognitoSub);
+                }
+            });
+        }
     }
 
     @Transactional
@@ -38,8 +104,10 @@ public class AppUserService {
             // DBからユーザー情報を先に取得
             Optional<AppUser> userOptional = appUserRepository.findByCognitoSub(cognitoSub);
             
-            // Step 1: (DBにユーザーが存在すれば) S3からファビコンフォルダを削除
+            // Step 1: (DBにユーザーが存在すれば) 共有ファビコンの参照を解放し、旧形式のファビコンフォルダを削除
             userOptional.ifPresent(appUser -> {
+                faviconBlobService.releaseAll(bookmarkRepository.findFaviconPathsByAppUser(appUser));
+
                 String userFaviconFolder = String.valueOf(appUser.getId());
                 logger.info("Attempting to delete favicon folder from S3: {}", userFaviconFolder);
                 storageService.deleteFolder(userFaviconFolder);
@@ -58,7 +126,11 @@ public class AppUserService {
             // Step 3: (DBにユーザーが存在すれば) DBからユーザーと関連データを削除
             userOptional.ifPresent(appUser -> {
                 logger.info("Attempting to delete user from DB: cognitoSub={}", cognitoSub);
+                // 削除するブックマークの分をURLごとの集計値から減算する
+                urlStatsService.removeBookmarksOf(appUser);
                 appUserRepository.delete(appUser);
+                bookmarkedUrlCache.invalidate(appUser);
+                evictUser(cognitoSub);
                 logger.info("Successfully deleted user from DB: cognitoSub={}", cognitoSub);
             });
 
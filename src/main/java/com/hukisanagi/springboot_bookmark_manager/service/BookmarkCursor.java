@@ -0,0 +1,31 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+// ブックマーク一覧の続きを取得するためのカーソル（前回の最後の行の並び順のキー）
+// 画面・APIには並び順と合わせて1つの文字列として渡し、並び順が変わった場合は使えないものとして扱う
+record BookmarkCursor(String sort, Long id, String title) {
+
+    static BookmarkCursor decode(String token, String sort) {
+        String[] parts;
+        try {
+            parts = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8).split("\n", 3);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + token, e);
+        }
+        if (parts.length != 3 || !parts[0].equals(sort)) {
+            throw new IllegalArgumentException("Invalid cursor: " + token);
+        }
+        try {
+            return new BookmarkCursor(parts[0], Long.valueOf(parts[1]), parts[2]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + token, e);
+        }
+    }
+
+    String encode() {
+        String value = sort + "\n" + id + "\n" + (title != null ? title : "");
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
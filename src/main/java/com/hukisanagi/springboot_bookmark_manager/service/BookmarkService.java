@@ -1,6 +1,5 @@
 package com.hukisanagi.springboot_bookmark_manager.service;
 
-import com.hukisanagi.springboot_bookmark_manager.model.BookmarkClickLog;
 import com.hukisanagi.springboot_bookmark_manager.repository.BookmarkClickLogRepository;
 import java.time.LocalDateTime;
 import java.util.regex.Matcher;
@@ -8,35 +7,36 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.scheduling.annotation.Scheduled;
 import java.util.regex.Pattern;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.select.Elements;
 import de.malkusch.whoisServerList.publicSuffixList.PublicSuffixList;
 import de.malkusch.whoisServerList.publicSuffixList.PublicSuffixListFactory;
 
 import com.hukisanagi.springboot_bookmark_manager.model.AppUser;
 import com.hukisanagi.springboot_bookmark_manager.model.Bookmark;
+import com.hukisanagi.springboot_bookmark_manager.model.BookmarkListItem;
+import com.hukisanagi.springboot_bookmark_manager.model.BookmarkSlice;
+import com.hukisanagi.springboot_bookmark_manager.model.FaviconStatus;
 import com.hukisanagi.springboot_bookmark_manager.model.Tag;
+import com.hukisanagi.springboot_bookmark_manager.model.TagCount;
+import com.hukisanagi.springboot_bookmark_manager.model.UrlMetadata;
 import com.hukisanagi.springboot_bookmark_manager.repository.AppUserRepository;
 import com.hukisanagi.springboot_bookmark_manager.repository.BookmarkRepository;
-import com.hukisanagi.springboot_bookmark_manager.repository.TagRepository;
+import com.hukisanagi.springboot_bookmark_manager.repository.BookmarkSpecifications;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.jpa.domain.Specification;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLConnection;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
-import java.io.InputStream;
-import javax.imageio.ImageIO;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -44,19 +44,10 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Collectors;
 import com.hukisanagi.springboot_bookmark_manager.model.RankingItem;
-import com.hukisanagi.springboot_bookmark_manager.model.RankingCache;
-import com.hukisanagi.springboot_bookmark_manager.repository.RankingCacheRepository;
 import org.springframework.data.domain.Page;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Comparator;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import org.apache.batik.transcoder.TranscoderInput;
-import org.apache.batik.transcoder.TranscoderOutput;
-import org.apache.batik.transcoder.image.PNGTranscoder;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 @Service
 @Transactional
@@ -66,73 +57,147 @@ public class BookmarkService {
 
     private final BookmarkRepository bookmarkRepository;
     private final AppUserRepository appUserRepository;
-    private final TagRepository tagRepository;
     private final BookmarkClickLogRepository bookmarkClickLogRepository;
     private final PublicSuffixList publicSuffixList;
-    private final RankingCacheRepository rankingCacheRepository;
+    private final RankingSnapshotService rankingSnapshotService;
     private final StorageService storageService;
-
-    public BookmarkService(BookmarkRepository bookmarkRepository, AppUserRepository appUserRepository, TagRepository tagRepository, BookmarkClickLogRepository bookmarkClickLogRepository, RankingCacheRepository rankingCacheRepository, StorageService storageService) {
+    private final UrlMetadataService urlMetadataService;
+    private final FaviconBlobService faviconBlobService;
+    private final FaviconEnrichmentService faviconEnrichmentService;
+    private final ClickIngestionService clickIngestionService;
+    private final BookmarkedUrlCache bookmarkedUrlCache;
+    private final UserTagCountService userTagCountService;
+    private final TagResolver tagResolver;
+    private final DatabaseKeywordSearch databaseKeywordSearch;
+    private final TagBitmapIndex tagBitmapIndex;
+    private final UrlStatsService urlStatsService;
+    private final TrendingRankingService trendingRankingService;
+    private final TransactionTemplate transactionTemplate;
+
+    public BookmarkService(BookmarkRepository bookmarkRepository, AppUserRepository appUserRepository, BookmarkClickLogRepository bookmarkClickLogRepository, RankingSnapshotService rankingSnapshotService, StorageService storageService, UrlMetadataService urlMetadataService, FaviconBlobService faviconBlobService, FaviconEnrichmentService faviconEnrichmentService, ClickIngestionService clickIngestionService, BookmarkedUrlCache bookmarkedUrlCache, UserTagCountService userTagCountService, TagResolver tagResolver, DatabaseKeywordSearch databaseKeywordSearch, TagBitmapIndex tagBitmapIndex, UrlStatsService urlStatsService, TrendingRankingService trendingRankingService, PlatformTransactionManager transactionManager) {
         this.bookmarkRepository = bookmarkRepository;
         this.appUserRepository = appUserRepository;
-        this.tagRepository = tagRepository;
         this.bookmarkClickLogRepository = bookmarkClickLogRepository;
         this.publicSuffixList = new PublicSuffixListFactory().build();
-        this.rankingCacheRepository = rankingCacheRepository;
+        this.rankingSnapshotService = rankingSnapshotService;
         this.storageService = storageService;
+        this.urlMetadataService = urlMetadataService;
+        this.faviconBlobService = faviconBlobService;
+        this.faviconEnrichmentService = faviconEnrichmentService;
+        this.clickIngestionService = clickIngestionService;
+        this.bookmarkedUrlCache = bookmarkedUrlCache;
+        this.userTagCountService = userTagCountService;
+        this.tagResolver = tagResolver;
+        this.databaseKeywordSearch = databaseKeywordSearch;
+        this.tagBitmapIndex = tagBitmapIndex;
+        this.urlStatsService = urlStatsService;
+        this.trendingRankingService = trendingRankingService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
     }
 
-    public Page<Bookmark> findBookmarks(AppUser appUser, String keyword, List<String> tags, Pageable pageable, Boolean showFavorites) {
-        String actualKeyword = keyword;
-        List<String> exactTagNames = new ArrayList<>();
+    // 一覧画面・APIの1回分の取得件数の上限
+    private static final int MAX_SLICE_SIZE = 200;
+
+    // キーワードからハッシュタグ（#タグ名）を取り出し、tagsパラメータと合わせたタグの完全一致条件にする
+    private record SearchCriteria(String keyword, List<String> exactTagNames) {
+
+        static SearchCriteria of(String keyword, List<String> tags) {
+            String actualKeyword = keyword;
+            List<String> exactTagNames = new ArrayList<>();
+
+            if (keyword != null && !keyword.isEmpty()) {
+                // キーワードからハッシュタグを抽出
+                Pattern pattern = Pattern.compile("#(\\S+)");
+                Matcher matcher = pattern.matcher(keyword);
+                StringBuffer sb = new StringBuffer();
+                while (matcher.find()) {
+                    exactTagNames.add(matcher.group(1));
+                    matcher.appendReplacement(sb, ""); // ハッシュタグ部分を削除
+                }
+                matcher.appendTail(sb);
+                actualKeyword = sb.toString().trim(); // 残った部分がキーワード
+            }
 
-        if (keyword != null && !keyword.isEmpty()) {
-            // キーワードからハッシュタグを抽出
-            Pattern pattern = Pattern.compile("#(\\S+)");
-            Matcher matcher = pattern.matcher(keyword);
-            StringBuffer sb = new StringBuffer();
-            while (matcher.find()) {
-                exactTagNames.add(matcher.group(1));
-                matcher.appendReplacement(sb, ""); // ハッシュタグ部分を削除
+            // tagsパラメータが渡された場合、exactTagNamesに追加
+            if (tags != null && !tags.isEmpty()) {
+                exactTagNames.addAll(tags);
             }
-            matcher.appendTail(sb);
-            actualKeyword = sb.toString().trim(); // 残った部分がキーワード
+            return new SearchCriteria(actualKeyword, exactTagNames);
+        }
+    }
+
+    // キーワード・タグはインデックスで一致したIDに絞り込み、インデックスを使えない場合はSQLの条件（LIKE・副問い合わせ）で絞り込む
+    private Specification<Bookmark> toSpecification(AppUser appUser, SearchCriteria criteria, Boolean showFavorites) {
+        String keyword = criteria.keyword();
+        Optional<List<Long>> keywordIds = keyword != null && !keyword.isEmpty() ? searchKeyword(appUser, keyword) : Optional.empty();
+        Optional<List<Long>> tagIds = tagBitmapIndex.findByAllTags(appUser, criteria.exactTagNames());
+        Specification<Bookmark> specification = BookmarkSpecifications.matching(appUser,
+                keywordIds.isPresent() ? null : keyword, tagIds.isPresent() ? null : criteria.exactTagNames(), showFavorites);
+        if (keywordIds.isPresent()) {
+            specification = specification.and(BookmarkSpecifications.idIn(keywordIds.get()));
+        }
+        if (tagIds.isPresent()) {
+            specification = specification.and(BookmarkSpecifications.idIn(tagIds.get()));
         }
+        return specification;
+    }
+
+    // DBのインデックス（PostgreSQLのpg_trgm）を使う設定であれば使う
+    // 無効の場合は、これまでどおりLIKEの部分一致で検索する
+    private Optional<List<Long>> searchKeyword(AppUser appUser, String keyword) {
+        return databaseKeywordSearch.search(appUser, keyword);
+    }
 
-        // tagsパラメータが渡された場合、exactTagNamesに追加
-        if (tags != null && !tags.isEmpty()) {
-            exactTagNames.addAll(tags);
+    // ブックマーク一覧をkeyset方式で取得する（sortは "title,asc" の形式。idとtitleの昇順・降順に対応）
+    // OFFSETを使わず前回の最後の行の続きから読むため、後ろのページでも取得時間が変わらない
+    // 表示に必要な列とタグ名だけを読み込み、エンティティは読み込まない
+    @Transactional(readOnly = true)
+    public BookmarkSlice<BookmarkListItem> findBookmarkSlice(AppUser appUser, String keyword, List<String> tags, String sort,
+                                                     String cursor, int size, Boolean showFavorites) {
+        String[] sortParts = sort.split(",");
+        if (sortParts.length != 2 || !(sortParts[0].equals("id") || sortParts[0].equals("title"))) {
+            throw new IllegalArgumentException("Unsupported sort: " + sort);
+        }
+        boolean byTitle = sortParts[0].equals("title");
+        Sort.Direction direction = Sort.Direction.fromString(sortParts[1]);
+        int limit = Math.max(1, Math.min(size, MAX_SLICE_SIZE));
+
+        Specification<Bookmark> specification = toSpecification(appUser, SearchCriteria.of(keyword, tags), showFavorites);
+        if (cursor != null && !cursor.isEmpty()) {
+            BookmarkCursor last = BookmarkCursor.decode(cursor, sort);
+            specification = specification.and(BookmarkSpecifications.after(byTitle, direction.isAscending(), last.title(), last.id()));
         }
+        Sort sortOrder = byTitle ? Sort.by(direction, "title").and(Sort.by(direction, "id")) : Sort.by(direction, "id");
+
+        // 1件多く読み、続きがあるかを判定する（件数の集計は行わない）
+        List<BookmarkListItem> rows = bookmarkRepository.findListItems(specification, sortOrder, limit + 1).stream()
+                .map(item -> item.faviconPath() != null && !item.faviconPath().isEmpty() ? item.withFaviconUrl(getFaviconUrl(item.faviconPath())) : item)
+                .toList();
+        if (rows.size() <= limit) {
+            return new BookmarkSlice<>(rows, null);
+        }
+        List<BookmarkListItem> items = rows.subList(0, limit);
+        BookmarkListItem lastItem = items.get(limit - 1);
+        return new BookmarkSlice<>(items, new BookmarkCursor(sort, lastItem.id(), byTitle ? lastItem.title() : null).encode());
+    }
 
-        // exactTagNamesが空の場合はnullを設定し、クエリで無視されるようにする
-        List<String> finalExactTagNames = exactTagNames.isEmpty() ? null : exactTagNames;
-        int finalExactTagNamesSize = (finalExactTagNames == null) ? 0 : finalExactTagNames.size();
-
-        return bookmarkRepository.findBookmarksByAppUserAndCriteria(
-                appUser,
-                actualKeyword,
-                finalExactTagNames,
-                finalExactTagNamesSize,
-                showFavorites, // showFavoritesを直接渡す
-                pageable
-        );
-    }
-
-    public Set<Tag> findAllTags(AppUser appUser) { // showFavoritesパラメータを削除
-        // ユーザーが持つ全てのブックマークからタグを取得
-        return bookmarkRepository.findBookmarksByAppUserAndCriteria(
-                appUser,
-                null, // keyword
-                null, // exactTagNames
-                0,    // exactTagNamesSize
-                null, // isFavorite (常に全てのブックマークからタグを取得するためnull)
-                Pageable.unpaged() // 全ページ取得
-            )
-            .stream()
-            .flatMap(b -> b.getTags().stream())
-            .collect(Collectors.toSet());
+    // 一覧画面の件数表示用（GROUP BYを使わない条件で数える）
+    @Transactional(readOnly = true)
+    public long countBookmarks(AppUser appUser, String keyword, List<String> tags, Boolean showFavorites) {
+        return bookmarkRepository.count(toSpecification(appUser, SearchCriteria.of(keyword, tags), showFavorites));
     }
 
+    // タグ一覧（ユーザーごとの使用数の表から1回の問い合わせで取得する）
+    @Transactional(readOnly = true)
+    public List<TagCount> findAllTags(AppUser appUser) {
+        return userTagCountService.findTagCounts(appUser);
+    }
+
+    // ファビコンは非同期ジョブで取得するため、ここではブックマークの保存とジョブ登録のみ行う
+    // 他のユーザーが登録済みのURLであれば、共有のファビコンをそのまま使う（外部への通信は行わない）
+    // URLの行・タグ・集計値の行はそれぞれ短いトランザクションで先に作成し、重複チェック・保存・加算を1つのトランザクションで行う
+    // （作成を保存のトランザクション内で行うと、1回の追加で接続を2つ同時に使い、接続プールを使い切る）
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
     public void addBookmark(Bookmark bookmark, String tagsInput, AppUser appUser) {
         // URLのバリデーション
         try {
@@ -142,62 +207,68 @@ public class BookmarkService {
         }
 
         bookmark.setAppUser(appUser);
-        Set<Tag> tags = parseTags(tagsInput);
-        bookmark.setTags(tags);
 
-        String normalizedUrl = normalizeUrl(bookmark.getUrl());
+        String normalizedUrl = UrlNormalizer.normalize(bookmark.getUrl());
         bookmark.setUrl(normalizedUrl);
-
-        // 重複チェック
-        List<Bookmark> existingBookmarks = bookmarkRepository.findByAppUserAndUrl(appUser, normalizedUrl);
-        if (!existingBookmarks.isEmpty()) {
-            throw new IllegalArgumentException("You have already bookmarked this URL.");
-        }
-
-        // ファビコンURLの生成
-        try {
-            String faviconUrl = extractFaviconUrl(bookmark.getUrl());
-            byte[] faviconBytes = null;
-
-            if (faviconUrl != null) {
-                faviconBytes = downloadFavicon(faviconUrl);
+        UrlMetadata urlMetadata = urlMetadataService.getUrlReference(normalizedUrl);
+        bookmark.setUrlMetadata(urlMetadata);
+
+        // 未登録のタグは別のトランザクションで作成するため、重複の場合は解決する前に断る
+        checkNotBookmarked(appUser, urlMetadata);
+
+        List<String> tagNames = prepareTags(tagsInput);
+        userTagCountService.prepareTagCounts(appUser, tagNames);
+        urlStatsService.prepareBookmark(urlMetadata.getId());
+
+        transactionTemplate.executeWithoutResult(status -> {
+            // 同時に追加された場合に備えて、保存と同じトランザクションで確認し直す
+            checkNotBookmarked(appUser, urlMetadata);
+            Set<Tag> tags = resolveTags(tagNames);
+            bookmark.setTags(tags);
+
+            bookmarkedUrlCache.invalidate(appUser);
+            userTagCountService.applyTagChange(appUser, Set.of(), tags);
+            urlStatsService.addBookmark(urlMetadata.getId());
+            Optional<String> knownFaviconPath = urlMetadataService.acquireKnownFavicon(normalizedUrl);
+            if (knownFaviconPath.isPresent()) {
+                bookmark.setFaviconPath(knownFaviconPath.get());
+                bookmark.setFaviconStatus(FaviconStatus.DONE);
+                bookmarkRepository.save(bookmark);
+                tagBitmapIndex.indexBookmark(appUser, bookmark);
+                return;
             }
 
-            // Jsoupでの取得に失敗した場合、外部APIを試す
-            if (faviconBytes == null) {
-                logger.info("Favicon not found with Jsoup, trying external APIs for {}", bookmark.getUrl());
-                faviconBytes = downloadFaviconFromExternalApis(bookmark.getUrl());
-            }
+            bookmark.setFaviconPath(null);
+            bookmark.setFaviconStatus(FaviconStatus.PENDING);
+            bookmarkRepository.save(bookmark);
+            tagBitmapIndex.indexBookmark(appUser, bookmark);
+            faviconEnrichmentService.enqueue(bookmark);
+        });
+    }
 
-            if (faviconBytes != null) {
-                String fileName = appUser.getId() + "/" + getMd5Hash(bookmark.getUrl()) + ".png";
-                String savedFaviconPath = storageService.saveFile(faviconBytes, fileName);
-                bookmark.setFaviconPath(savedFaviconPath);
-            } else {
-                 bookmark.setFaviconPath(null); // 最終的に取得失敗時はnullを設定
-            }
-        } catch (Exception e) {
-            logger.error("Failed to extract or save favicon for URL: " + bookmark.getUrl(), e);
-            bookmark.setFaviconPath(null); // 取得失敗時はnullを設定
+    // 重複チェック（正規化済みURLの行のIDで判定する）
+    private void checkNotBookmarked(AppUser appUser, UrlMetadata urlMetadata) {
+        if (bookmarkRepository.existsByAppUserAndUrlMetadata(appUser, urlMetadata)) {
+            throw new IllegalArgumentException("You have already bookmarked this URL.");
         }
-        
-        bookmarkRepository.save(bookmark);
     }
 
     public void deleteBookmark(Long id, AppUser appUser) {
         Optional<Bookmark> bookmarkOptional = bookmarkRepository.findById(id);
         bookmarkOptional.ifPresent(bookmark -> {
             if (bookmark.getAppUser().equals(appUser)) {
-                // Delete favicon from storage
-                if (bookmark.getFaviconPath() != null && !bookmark.getFaviconPath().isEmpty()) {
-                    storageService.deleteFile(bookmark.getFaviconPath());
-                }
+                // ファビコンの参照を解放（他のブックマークと共有しているため、ファイルは参照がなくなってから削除される）
+                faviconBlobService.release(bookmark.getFaviconPath());
 
-                // 関連するクリックログを先に削除
+                // URLごとの集計値から減算し、関連するクリックログと未処理のファビコン取得ジョブを先に削除
+                urlStatsService.removeBookmark(id);
                 bookmarkClickLogRepository.deleteByBookmark(bookmark);
-                Set<Tag> tagsToDeleteCheck = new HashSet<>(bookmark.getTags());
+                faviconEnrichmentService.cancel(id);
+                Set<Tag> oldTags = new HashSet<>(bookmark.getTags());
                 bookmarkRepository.deleteById(id);
-                deleteOrphanedTags(tagsToDeleteCheck);
+                bookmarkedUrlCache.invalidate(appUser);
+                userTagCountService.applyTagChange(appUser, oldTags, Set.of());
+                tagBitmapIndex.removeBookmark(appUser, id);
             }
         });
     }
@@ -207,106 +278,93 @@ public class BookmarkService {
             Optional<Bookmark> bookmarkOptional = bookmarkRepository.findById(id);
             bookmarkOptional.ifPresent(bookmark -> {
                 if (bookmark.getAppUser().equals(appUser)) {
-                    // Delete favicon from storage
-                    if (bookmark.getFaviconPath() != null && !bookmark.getFaviconPath().isEmpty()) {
-                        storageService.deleteFile(bookmark.getFaviconPath());
-                    }
+                    // ファビコンの参照を解放（他のブックマークと共有しているため、ファイルは参照がなくなってから削除される）
+                    faviconBlobService.release(bookmark.getFaviconPath());
 
-                    // 関連するクリックログを先に削除
+                    // URLごとの集計値から減算し、関連するクリックログと未処理のファビコン取得ジョブを先に削除
+                    urlStatsService.removeBookmark(id);
                     bookmarkClickLogRepository.deleteByBookmark(bookmark);
-                    Set<Tag> tagsToDeleteCheck = new HashSet<>(bookmark.getTags());
+                    faviconEnrichmentService.cancel(id);
+                    Set<Tag> oldTags = new HashSet<>(bookmark.getTags());
                     bookmarkRepository.deleteById(id);
-                    deleteOrphanedTags(tagsToDeleteCheck);
+                    bookmarkedUrlCache.invalidate(appUser);
+                    userTagCountService.applyTagChange(appUser, oldTags, Set.of());
+                    tagBitmapIndex.removeBookmark(appUser, id);
                 }
             });
         });
     }
 
     public Optional<Bookmark> findBookmarkByIdAndUser(Long id, AppUser appUser) {
-        return bookmarkRepository.findById(id)
-                .filter(bookmark -> bookmark.getAppUser().equals(appUser));
+        Optional<Bookmark> bookmark = bookmarkRepository.findById(id)
+                .filter(found -> found.getAppUser().equals(appUser));
+        // APIの応答にタグを含めるため、トランザクション内で読み込んでおく
+        bookmark.ifPresent(found -> found.getTags().size());
+        return bookmark;
     }
 
+    // 未登録のタグは別のトランザクションで作成するため、保存のトランザクションを開始する前に作成しておく
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
     public void updateBookmark(Long id, Bookmark updatedBookmark, String tagsInput, AppUser appUser) {
-        Optional<Bookmark> bookmarkOptional = bookmarkRepository.findById(id);
-        if (bookmarkOptional.isPresent()) {
-            Bookmark existingBookmark = bookmarkOptional.get();
-            if (existingBookmark.getAppUser().equals(appUser)) {
-                Set<Tag> oldTags = new HashSet<>(existingBookmark.getTags());
+        List<String> tagNames = prepareTags(tagsInput);
+        userTagCountService.prepareTagCounts(appUser, tagNames);
+        transactionTemplate.executeWithoutResult(status -> {
+            Optional<Bookmark> bookmarkOptional = bookmarkRepository.findById(id);
+            if (bookmarkOptional.isPresent()) {
+                Bookmark existingBookmark = bookmarkOptional.get();
+                if (existingBookmark.getAppUser().equals(appUser)) {
+                    Set<Tag> oldTags = new HashSet<>(existingBookmark.getTags());
 
-                existingBookmark.setTitle(updatedBookmark.getTitle());
-                String normalizedUrl = normalizeUrl(updatedBookmark.getUrl());
+                    existingBookmark.setTitle(updatedBookmark.getTitle());
+                    String normalizedUrl = UrlNormalizer.normalize(updatedBookmark.getUrl());
 
-                if (!existingBookmark.getUrl().equals(normalizedUrl)) {
-                    throw new IllegalArgumentException("URL cannot be changed.");
-                }
+                    if (!existingBookmark.getUrl().equals(normalizedUrl)) {
+                        throw new IllegalArgumentException("URL cannot be changed.");
+                    }
                 
-                existingBookmark.setUrl(normalizedUrl);
-
-                // 更新時に重複チェック（自分自身を除く）
-                List<Bookmark> duplicateBookmarks = bookmarkRepository.findByAppUserAndUrl(appUser, normalizedUrl);
-                if (!duplicateBookmarks.isEmpty()) {
-                    for (Bookmark duplicate : duplicateBookmarks) {
-                        if (!duplicate.getId().equals(existingBookmark.getId())) {
-                            throw new IllegalArgumentException("You have already bookmarked this URL.");
+                    existingBookmark.setUrl(normalizedUrl);
+
+                    // 更新時に重複チェック（自分自身を除く）
+                    List<Bookmark> duplicateBookmarks = bookmarkRepository.findByAppUserAndUrl(appUser, normalizedUrl);
+                    if (!duplicateBookmarks.isEmpty()) {
+                        for (Bookmark duplicate : duplicateBookmarks) {
+                            if (!duplicate.getId().equals(existingBookmark.getId())) {
+                                throw new IllegalArgumentException("You have already bookmarked this URL.");
+                            }
                         }
                     }
-                }
-
-                Set<Tag> newTags = parseTags(tagsInput);
-                existingBookmark.setTags(newTags);
 
-                bookmarkRepository.save(existingBookmark);
+                    Set<Tag> newTags = resolveTags(tagNames);
+                    existingBookmark.setTags(newTags);
 
-                Set<Tag> tagsToCheckForOrphan = new HashSet<>(oldTags);
-                tagsToCheckForOrphan.removeAll(newTags);
+                    bookmarkRepository.save(existingBookmark);
 
-                deleteOrphanedTags(tagsToCheckForOrphan);
-            }
-        }
-    }
-
-    private String normalizeUrl(String originalUrl) {
-        try {
-            URL url = new URL(originalUrl);
-            String protocol = url.getProtocol();
-            String host = url.getHost().toLowerCase(); // ホスト名を小文字に変換
-            int port = url.getPort();
-            String path = url.getPath();
-            String query = url.getQuery();
-            String ref = url.getRef();
-
-            // パスの末尾のスラッシュを削除
-            if (path.endsWith("/")) {
-                path = path.substring(0, path.length() - 1);
-            }
-
-            // ポート番号を再構築
-            String portString = "";
-            if (port != -1 && !((protocol.equals("http") && port == 80) || (protocol.equals("https") && port == 443))) {
-                portString = ":" + port;
+                    userTagCountService.applyTagChange(appUser, oldTags, newTags);
+                    tagBitmapIndex.indexBookmark(appUser, existingBookmark);
+                }
             }
-
-            // クエリパラメータとフラグメントはそのまま維持
-            String queryString = (query != null && !query.isEmpty()) ? "?" + query : "";
-            String refString = (ref != null && !ref.isEmpty()) ? "#" + ref : "";
-
-            return protocol + "://" + host + portString + path + queryString + refString;
-        } catch (MalformedURLException e) {
-            System.err.println("Invalid URL for normalization: " + originalUrl + " - " + e.getMessage());
-            return originalUrl; // 不正なURLの場合は元のURLを返す
-        }
+        });
     }
 
-    private Set<Tag> parseTags(String tagsInput) {
+    // 未登録のタグを別のトランザクションで一括作成し、タグ名を返す（保存のトランザクションを開始する前に呼び出す）
+    private List<String> prepareTags(String tagsInput) {
         if (tagsInput == null || tagsInput.trim().isEmpty()) {
-            return new HashSet<>();
+            return List.of();
         }
-        return Arrays.stream(tagsInput.split(","))
+        List<String> tagNames = Arrays.stream(tagsInput.split(","))
                 .map(String::trim)
                 .filter(tagName -> !tagName.isEmpty())
-                .map(tagName -> tagRepository.findByName(tagName).orElseGet(() -> tagRepository.save(new Tag(tagName))))
-                .collect(Collectors.toSet());
+                .toList();
+        if (!tagNames.isEmpty()) {
+            tagResolver.prepare(tagNames);
+        }
+        return tagNames;
+    }
+
+    // 保存のトランザクション内で呼び出し、このトランザクションで扱うタグを取得する
+    // （prepareTagsで作成済みのため、作成は行わずに検索・参照する）
+    private Set<Tag> resolveTags(List<String> tagNames) {
+        return tagNames.isEmpty() ? new HashSet<>() : tagResolver.resolve(tagNames);
     }
 
     public String tagsSetToString(Set<Tag> tags) {
@@ -315,73 +373,51 @@ public class BookmarkService {
                 .collect(Collectors.joining(", "));
     }
 
+    // ランキングはメモリ上のスナップショットから返す（DBは参照しない）
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
     public List<RankingItem> getTopBookmarks(Pageable pageable) {
-        return rankingCacheRepository.findAll(pageable.getSort()).stream()
-                .filter(item -> item.getUniqueUserCount() != null)
-                .sorted(Comparator.comparing(RankingCache::getUniqueUserCount).reversed())
-                .skip(pageable.getOffset())
-                .limit(pageable.getPageSize())
-                .map(item -> new RankingItem(item.getUrl(), item.getTitle(), item.getFaviconPath(), item.getUniqueUserCount()))
-                .collect(Collectors.toList());
+        return rankingSnapshotService.getTopBookmarks(pageable);
     }
 
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
     public List<RankingItem> getTopBookmarksByTotalClickCount(Pageable pageable) {
-        return rankingCacheRepository.findAll(pageable.getSort()).stream()
-                .filter(item -> item.getTotalClickCount() != null)
-                .sorted(Comparator.comparing(RankingCache::getTotalClickCount).reversed())
-                .skip(pageable.getOffset())
-                .limit(pageable.getPageSize())
-                .map(item -> new RankingItem(item.getUrl(), item.getTitle(), item.getFaviconPath(), item.getTotalClickCount()))
-                .collect(Collectors.toList());
+        return rankingSnapshotService.getTopBookmarksByTotalClickCount(pageable);
     }
 
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
     public List<RankingItem> getTopBookmarksByRecentClickCount(Pageable pageable) {
-        return rankingCacheRepository.findAll(pageable.getSort()).stream()
-                .filter(item -> item.getRecentClickCount() != null)
-                .sorted(Comparator.comparing(RankingCache::getRecentClickCount).reversed())
-                .skip(pageable.getOffset())
-                .limit(pageable.getPageSize())
-                .map(item -> new RankingItem(item.getUrl(), item.getTitle(), item.getFaviconPath(), item.getRecentClickCount()))
-                .collect(Collectors.toList());
+        return rankingSnapshotService.getTopBookmarksByRecentClickCount(pageable);
     }
 
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
     public List<RankingItem> getTopBookmarksByOverallScore(Pageable pageable) {
-        return rankingCacheRepository.findAll(pageable.getSort()).stream()
-                .filter(item -> item.getOverallScore() != null)
-                .sorted(Comparator.comparing(RankingCache::getOverallScore).reversed())
-                .skip(pageable.getOffset())
-                .limit(pageable.getPageSize())
-                .map(item -> new RankingItem(item.getUrl(), item.getTitle(), item.getFaviconPath(), item.getOverallScore()))
-                .collect(Collectors.toList());
+        return rankingSnapshotService.getTopBookmarksByOverallScore(pageable);
+    }
+
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public List<RankingItem> getTopBookmarksByTrending(Pageable pageable) {
+        return trendingRankingService.getTopBookmarks(pageable);
     }
 
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
     public Optional<RankingItem> getRandomPublicBookmark() {
-        // 全てのRankingCacheを取得
-        List<RankingCache> allRankings = rankingCacheRepository.findAll();
-        
-        // overallScoreがnullでないものにフィルタリング
-        List<RankingCache> filteredRankings = allRankings.stream()
-                                                        .filter(item -> item.getOverallScore() != null)
-                                                        .collect(Collectors.toList());
-
-        if (filteredRankings.isEmpty()) {
-            return Optional.empty();
-        }
+        return rankingSnapshotService.getRandomPublicBookmark();
+    }
 
-        // フィルタリングされたリストからランダムに1件選択
-        int randomIndex = new java.util.Random().nextInt(filteredRankings.size());
-        RankingCache randomItem = filteredRankings.get(randomIndex);
-        
-        return Optional.of(new RankingItem(randomItem.getUrl(), randomItem.getTitle(), randomItem.getFaviconPath(), randomItem.getOverallScore()));
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public Optional<RankingItem> drawPublicBookmark(BroadenDeck deck) {
+        return rankingSnapshotService.drawPublicBookmark(deck);
     }
 
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
     public Optional<RankingItem> getPublicBookmarkByUrl(String url) {
-        Optional<RankingCache> cachedItem = rankingCacheRepository.findByUrl(url);
-        if (cachedItem.isPresent()) {
-            return Optional.of(new RankingItem(cachedItem.get().getUrl(), cachedItem.get().getTitle(), cachedItem.get().getFaviconPath(), cachedItem.get().getOverallScore()));
-        } else {
-            return Optional.empty();
-        }
+        return rankingSnapshotService.getPublicBookmarkByUrl(url);
+    }
+
+    // 公開ブックマーク数は書き込み時に更新しているURLごとの集計値から数える
+    @Transactional(readOnly = true)
+    public long getPublicBookmarkCount() {
+        return urlStatsService.countPublicUrls();
     }
 
     public List<String> getSimilarUrls(AppUser appUser, String inputUrl) {
@@ -389,11 +425,11 @@ public class BookmarkService {
         Set<String> suggestedUrls = new LinkedHashSet<>();
 
         // 1. 入力URLの完全一致検索
-        List<String> exactMatchUrls = bookmarkRepository.findByUrlAndUniqueUserCountGreaterThanEqual(inputUrl);
+        List<String> exactMatchUrls = findPublicUrls(inputUrl);
         suggestedUrls.addAll(exactMatchUrls);
 
         // 2. 入力URLから親パスを生成し、それらの完全一致検索
-        String normalizedInputUrl = normalizeUrl(inputUrl); // 既存のnormalizeUrlを使用
+        String normalizedInputUrl = UrlNormalizer.normalize(inputUrl);
         try {
             URL urlObj = new URL(normalizedInputUrl);
             String protocol = urlObj.getProtocol();
@@ -413,12 +449,12 @@ public class BookmarkService {
             while (tempPath.lastIndexOf('/') > 0) {
                 tempPath = tempPath.substring(0, tempPath.lastIndexOf('/'));
                 String parentUrl = baseHostUrl + tempPath;
-                List<String> parentMatchUrls = bookmarkRepository.findByUrlAndUniqueUserCountGreaterThanEqual(parentUrl);
+                List<String> parentMatchUrls = findPublicUrls(parentUrl);
                 suggestedUrls.addAll(parentMatchUrls);
 
             }
             // ルートパス自体も追加
-            List<String> bareHostMatchUrls = bookmarkRepository.findByUrlAndUniqueUserCountGreaterThanEqual(baseHostUrl);
+            List<String> bareHostMatchUrls = findPublicUrls(baseHostUrl);
             suggestedUrls.addAll(bareHostMatchUrls);
 
         } catch (MalformedURLException e) {
@@ -426,15 +462,25 @@ public class BookmarkService {
         }
 
         // 3. 入力URLでの前方一致検索
-        List<String> startsWithUrls = bookmarkRepository.findByUrlStartingWithAndUniqueUserCountGreaterThanEqual(inputUrl);
+        List<String> startsWithUrls = urlStatsService.findPublicUrlsStartingWith(inputUrl);
         startsWithUrls.sort(Comparator.comparingInt(String::length)); // 長さでソート
         suggestedUrls.addAll(startsWithUrls);
 
         return suggestedUrls.stream().limit(5).collect(Collectors.toCollection(ArrayList::new));
     }
 
+    // 2人以上が登録したURLであれば、そのURLを返す（URLごとの集計値の公開フラグで判定する）
+    private List<String> findPublicUrls(String url) {
+        return urlStatsService.findPublicUrls(url);
+    }
+
     public boolean isBookmarkedByUser(AppUser appUser, String url) {
-        return !bookmarkRepository.findByAppUserAndUrl(appUser, url).isEmpty();
+        return bookmarkedUrlCache.isBookmarked(appUser, url);
+    }
+
+    // 指定したURLのうち、ユーザーが登録済みのものを返す（URLの数によらずDBの参照は最大1回）
+    public Set<String> findBookmarkedUrls(AppUser appUser, Collection<String> urls) {
+        return bookmarkedUrlCache.findBookmarked(appUser, urls);
     }
 
     public void toggleFavorite(Long bookmarkId, AppUser appUser) {
@@ -447,215 +493,39 @@ public class BookmarkService {
         });
     }
 
-    private void deleteOrphanedTags(Set<Tag> tags) {
-        tags.forEach(tag -> {
-            if (tagRepository.countBookmarksByTag(tag) == 0) {
-                tagRepository.delete(tag);
-            }
-        });
-    }
-
+    // クリックはキューに積むだけで、DBへの書き込みはClickIngestionServiceがまとめて行う
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
     public void recordBookmarkClick(Long bookmarkId, AppUser appUser) {
-        Optional<Bookmark> bookmarkOptional = bookmarkRepository.findById(bookmarkId);
-        bookmarkOptional.ifPresent(bookmark -> {
-            bookmark.setTotalClickCount(bookmark.getTotalClickCount() + 1);
-            bookmarkRepository.save(bookmark);
-
-            // 1分以内の重複クリックを制限
-            LocalDateTime oneMinuteAgo = LocalDateTime.now().minusMinutes(1);
-            Optional<BookmarkClickLog> recentClick = bookmarkClickLogRepository.findTopByBookmarkAndAppUserAndClickedAtAfterOrderByClickedAtDesc(bookmark, appUser, oneMinuteAgo);
-
-            if (recentClick.isEmpty()) {
-                // BookmarkClickLogにも記録
-                BookmarkClickLog clickLog = new BookmarkClickLog(bookmark, appUser, LocalDateTime.now());
-                bookmarkClickLogRepository.save(clickLog);
-            } else {
-                logger.info("Duplicate click from user {} for bookmark {} within 1 minute. Skipping log and totalClickCount update.", appUser.getCognitoSub(), bookmark.getTitle());
-            }
-        });
+        clickIngestionService.record(bookmarkId, appUser.getId());
     }
 
     @Scheduled(cron = "0 0 3 * * *") // 毎日午前3時に実行
     public void cleanupOldClickLogs() {
         logger.info("Cleaning up old click logs...");
         LocalDateTime threshold = LocalDateTime.now().minusMonths(1);
-        List<BookmarkClickLog> oldLogs = bookmarkClickLogRepository.findByClickedAtBefore(threshold);
-        bookmarkClickLogRepository.deleteAll(oldLogs);
-        logger.info("Cleaned up {} old click logs.", oldLogs.size());
+        int deleted = bookmarkClickLogRepository.deleteByClickedAtBefore(threshold);
+        logger.info("Cleaned up {} old click logs.", deleted);
     }
 
+    // 外部サイトへの通信中にDBコネクションを保持しないよう、トランザクション外で実行する
+    // 取得済みのURLは共有キャッシュから返す
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
     public String fetchTitleFromUrl(String url) {
+        UrlMetadataService.TitleLookup lookup;
         try {
-            Document doc = Jsoup.connect(url)
-                                .userAgent("Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/58.0.3029.110 Safari/537.36")
-                                .timeout(5000).get();
-            String title = doc.title();
-            if (title == null || title.trim().isEmpty()) {
-                return "Error: No Title Found"; // タイトルタグがない、または空の場合
-            }
-            return title;
-        } catch (Exception e) {
+            lookup = urlMetadataService.lookupTitle(url);
+        } catch (RuntimeException e) {
             logger.warn("Could not fetch title from " + url + ". Error: " + e.getMessage());
-            return "Error: Failed to Fetch Title"; // ネットワークエラーなど、取得自体が失敗した場合
+            return "Error: Failed to Fetch Title";
         }
-    }
-
-    private String extractFaviconUrl(String pageUrl) {
-        String faviconPath = null;
-        try {
-            org.jsoup.nodes.Document doc = org.jsoup.Jsoup.connect(pageUrl)
-                                                    .userAgent("Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/58.0.3029.110 Safari/537.36")
-                                                    .timeout(5000).get(); // タイムアウトを5秒に設定
-            
-            // <link rel="icon">, <link rel="shortcut icon">, <link rel="apple-touch-icon">などを探す
-            org.jsoup.select.Elements iconLinks = doc.select("link[rel~=(?i)^(shortcut|icon|apple-touch-icon)]");
-            for (org.jsoup.nodes.Element link : iconLinks) {
-                String href = link.attr("abs:href"); // 絶対URLを取得
-                if (!href.isEmpty()) {
-                    faviconPath = href;
-                    break;
-                }
-            }
-
-            // 見つからない場合、/favicon.icoを試す
-            if (faviconPath == null || faviconPath.isEmpty()) {
-                URL urlObj = new URL(pageUrl);
-                faviconPath = urlObj.getProtocol() + "://" + urlObj.getHost() + "/favicon.ico";
-            }
-
-        } catch (Exception e) {
-            logger.warn("Could not extract favicon from " + pageUrl + ". Error: " + e.getMessage());
-            // エラー時はデフォルトのfavicon.icoを試す
-            try {
-                URL urlObj = new URL(pageUrl);
-                faviconPath = urlObj.getProtocol() + "://" + urlObj.getHost() + "/favicon.ico";
-            } catch (MalformedURLException ex) {
-                logger.error("Malformed URL when trying default favicon: " + pageUrl, ex);
-                faviconPath = null;
-            }
-        }
-        return faviconPath;
-    }
-
-    private byte[] downloadFavicon(String faviconPath) {
-        logger.info("Attempting to download favicon from: {}", faviconPath);
-        if (faviconPath == null || faviconPath.isEmpty()) {
-            logger.warn("Favicon URL is null or empty. Skipping download.");
-            return null;
-        }
-
-        try {
-            URL url = new URL(faviconPath);
-            URLConnection connection = url.openConnection();
-            connection.setConnectTimeout(5000); // 5 seconds
-            connection.setReadTimeout(5000);    // 5 seconds
-
-            try (InputStream in = connection.getInputStream()) {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                while ((bytesRead = in.read(buffer)) != -1) {
-                    baos.write(buffer, 0, bytesRead);
-                }
-                byte[] faviconBytes = baos.toByteArray();
-
-                if (faviconPath.toLowerCase().endsWith(".svg")) {
-                    PNGTranscoder transcoder = new PNGTranscoder();
-                    TranscoderInput input = new TranscoderInput(new ByteArrayInputStream(faviconBytes));
-                    try (ByteArrayOutputStream pngOutputStream = new ByteArrayOutputStream()) {
-                        TranscoderOutput output = new TranscoderOutput(pngOutputStream);
-                        transcoder.transcode(input, output);
-                        return pngOutputStream.toByteArray();
-                    }
-                } else {
-                    try (InputStream imageCheckStream = new ByteArrayInputStream(faviconBytes)) {
-                        if (ImageIO.read(imageCheckStream) == null) {
-                            logger.warn("Downloaded data from {} is not a valid image.", faviconPath);
-                            return null;
-                        }
-                    }
-                    return faviconBytes;
-                }
-            }
-        } catch (Exception e) {
-            logger.error("Failed to download and process favicon from " + faviconPath, e);
-            return null;
+        if (lookup.title() != null) {
+            return lookup.title();
         }
+        // タイトルタグがない場合と、ネットワークエラーなどで取得自体が失敗した場合を区別する
+        return lookup.failed() ? "Error: Failed to Fetch Title" : "Error: No Title Found";
     }
 
     public String getFaviconUrl(String fileName) {
         return storageService.getFileUrl(fileName);
     }
-
-    private String getMd5Hash(String input) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            byte[] messageDigest = md.digest(input.getBytes());
-            StringBuilder sb = new StringBuilder();
-            for (byte b : messageDigest) {
-                sb.append(String.format("%02x", b));
-            }
-            return sb.toString();
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("MD5 algorithm not found", e);
-        }
-    }
-
-    private byte[] downloadFaviconFromExternalApis(String pageUrl) {
-        String domain;
-        try {
-            domain = getDomainName(pageUrl);
-        } catch (MalformedURLException e) {
-            logger.error("Invalid URL for external API favicon fetching: {}", pageUrl, e);
-            return null;
-        }
-
-        // 1. Google Favicon API
-        byte[] favicon = tryDownloadFavicon("https://www.google.com/s2/favicons?domain=" + domain + "&sz=128");
-        if (favicon != null) {
-            logger.info("Successfully downloaded favicon from Google API for {}", pageUrl);
-            return favicon;
-        }
-        
-        logger.warn("Failed to download favicon from all external APIs for {}", pageUrl);
-        return null;
-    }
-
-    private byte[] tryDownloadFavicon(String apiUrl) {
-        try {
-            logger.info("Trying to download favicon from API: {}", apiUrl);
-            URL url = new URL(apiUrl);
-            URLConnection connection = url.openConnection();
-            connection.setConnectTimeout(3000); // 3 seconds
-            connection.setReadTimeout(3000);    // 3 seconds
-            connection.setRequestProperty("User-Agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/58.0.3029.110 Safari/537.36");
-
-            try (InputStream in = connection.getInputStream()) {
-                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                while ((bytesRead = in.read(buffer)) != -1) {
-                    baos.write(buffer, 0, bytesRead);
-                }
-                byte[] faviconBytes = baos.toByteArray();
-
-                // Check if the downloaded content is a valid image
-                try (InputStream imageCheckStream = new ByteArrayInputStream(faviconBytes)) {
-                    if (ImageIO.read(imageCheckStream) == null) {
-                        logger.warn("Downloaded data from {} is not a valid image.", apiUrl);
-                        return null;
-                    }
-                }
-                return faviconBytes;
-            }
-        } catch (Exception e) {
-            logger.warn("Failed to download favicon from API: {}. Error: {}", apiUrl, e.getMessage());
-            return null;
-        }
-    }
-
-    private String getDomainName(String pageUrl) throws MalformedURLException {
-        URL url = new URL(pageUrl);
-        return url.getHost();
-    }
 }
@@ -0,0 +1,89 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// url_idの追加前に登録したブックマークに、正規化済みURLの行（url_metadata）を作成して設定する
+// ランキングの集計前に呼び出す（起動時の集計でも実行されるため、デプロイ後の最初の集計までに埋まる）
+@Service
+public class BookmarkUrlBackfillService {
+
+    private static final Logger logger = LoggerFactory.getLogger(BookmarkUrlBackfillService.class);
+
+    private static final int BATCH_SIZE = 500;
+
+    private static final String FIND_URLS_SQL =
+            "SELECT DISTINCT url FROM bookmark WHERE url_id IS NULL AND url IS NOT NULL LIMIT " + BATCH_SIZE;
+
+    // 他のノードや追加中のブックマークが作成済みの行は作成しない
+    private static final String INSERT_URL_SQL =
+            "INSERT INTO url_metadata (url_hash, url) SELECT ?, ? WHERE NOT EXISTS (SELECT 1 FROM url_metadata WHERE url_hash = ?)";
+
+    private static final String UPDATE_BOOKMARK_SQL =
+            "UPDATE bookmark SET url_id = (SELECT id FROM url_metadata WHERE url_hash = ?) WHERE url = ? AND url_id IS NULL";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+
+    public BookmarkUrlBackfillService(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    // url_idを設定したブックマークの件数を返す
+    public int backfill() {
+        int total = 0;
+        boolean retried = false;
+        while (true) {
+            List<String> urls = jdbcTemplate.queryForList(FIND_URLS_SQL, String.class);
+            if (urls.isEmpty()) {
+                break;
+            }
+            int updated;
+            try {
+                updated = transactionTemplate.execute(status -> fill(urls));
+            } catch (DataIntegrityViolationException e) {
+                // 他のノードが同時に同じURLの行を作成した場合は、作成済みの行を使ってやり直す
+                if (retried) {
+                    throw e;
+                }
+                retried = true;
+                continue;
+            }
+            if (updated == 0) {
+                logger.warn("Could not backfill url_id of {} urls.", urls.size());
+                break;
+            }
+            total += updated;
+            retried = false;
+        }
+        if (total > 0) {
+            logger.info("Backfilled url_id of {} bookmarks.", total);
+        }
+        return total;
+    }
+
+    private int fill(List<String> urls) {
+        List<Object[]> insertArgs = new ArrayList<>(urls.size());
+        List<Object[]> updateArgs = new ArrayList<>(urls.size());
+        for (String url : urls) {
+            String urlHash = StorageService.sha256(url);
+            insertArgs.add(new Object[] {urlHash, url, urlHash});
+            updateArgs.add(new Object[] {urlHash, url});
+        }
+        jdbcTemplate.batchUpdate(INSERT_URL_SQL, insertArgs);
+        int updated = 0;
+        for (int count : jdbcTemplate.batchUpdate(UPDATE_BOOKMARK_SQL, updateArgs)) {
+            updated += Math.max(count, 0);
+        }
+        return updated;
+    }
+}
@@ -0,0 +1,67 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hukisanagi.springboot_bookmark_manager.model.AppUser;
+import com.hukisanagi.springboot_bookmark_manager.repository.BookmarkRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+// ユーザーごとに登録済みURLの集合を保持し、ランキング・broaden画面の「登録済み」表示を1回の参照で判定する
+// 保持するURLの総数に上限を設け、ブックマークの追加・削除時に破棄する
+@Component
+public class BookmarkedUrlCache {
+
+    private final BookmarkRepository bookmarkRepository;
+    private final Cache<Long, Set<String>> cache;
+
+    public BookmarkedUrlCache(BookmarkRepository bookmarkRepository,
+                              @Value("${bookmark.url-cache.max-urls:1000000}") long maxUrls,
+                              @Value("${bookmark.url-cache.expire-minutes:10}") long expireMinutes) {
+        this.bookmarkRepository = bookmarkRepository;
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxUrls)
+                .weigher((Long appUserId, Set<String> urls) -> Math.max(1, urls.size()))
+                // 他のノードでの追加・削除は破棄されないため、一定時間で読み込み直す
+                .expireAfterWrite(Duration.ofMinutes(expireMinutes))
+                .build();
+    }
+
+    // 指定したURLのうち、ユーザーが登録済みのものを返す
+    public Set<String> findBookmarked(AppUser appUser, Collection<String> urls) {
+        if (urls.isEmpty()) {
+            return Set.of();
+        }
+        Set<String> bookmarkedUrls = cache.get(appUser.getId(), id -> Set.copyOf(bookmarkRepository.findUrlsByAppUser(appUser)));
+        return urls.stream().filter(bookmarkedUrls::contains).collect(Collectors.toSet());
+    }
+
+    public boolean isBookmarked(AppUser appUser, String url) {
+        return !findBookmarked(appUser, Set.of(url)).isEmpty();
+    }
+
+    // ブックマークの追加・削除時に呼び出す
+    // コミット前に他のリクエストが古い内容を読み込む場合があるため、コミット後にも破棄する
+    public void invalidate(AppUser appUser) {
+        Long appUserId = appUser.getId();
+        if (appUserId == null) {
+            return;
+        }
+        cache.invalidate(appUserId);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    cache.invalidate(appUserId);
+                }
+            });
+        }
+    }
+}
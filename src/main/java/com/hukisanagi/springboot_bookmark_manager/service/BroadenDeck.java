@@ -0,0 +1,57 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import java.io.Serializable;
+import java.util.Objects;
+import java.util.random.RandomGenerator;
+
+// broaden画面で同じブックマークが続けて出ないよう、公開ブックマークを1周するまで重複なく順番に返すための状態
+// 並び順はリストとして保持せず、index = (multiplier * position + offset) mod size の並べ替えで求める
+// （multiplierとsizeが互いに素であれば0〜size-1を1回ずつ返す）。セッションには数値4つだけを保存する
+public class BroadenDeck implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private Long generation;
+    private int size;
+    private long multiplier;
+    private long offset;
+    private int position;
+
+    // 次に表示するブックマークの位置を返す。ランキングの世代か件数が変わった場合は並べ直す
+    public int nextIndex(Long generation, int size, RandomGenerator random) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive");
+        }
+        if (this.size != size || !Objects.equals(this.generation, generation) || position >= size) {
+            shuffle(generation, size, random);
+        }
+        int index = (int) ((multiplier * position + offset) % size);
+        position++;
+        return index;
+    }
+
+    private void shuffle(Long generation, int size, RandomGenerator random) {
+        this.generation = generation;
+        this.size = size;
+        this.position = 0;
+        this.offset = random.nextInt(size);
+        if (size == 1) {
+            this.multiplier = 1;
+            return;
+        }
+        long candidate;
+        do {
+            candidate = 1 + random.nextInt(size - 1);
+        } while (gcd(candidate, size) != 1);
+        this.multiplier = candidate;
+    }
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
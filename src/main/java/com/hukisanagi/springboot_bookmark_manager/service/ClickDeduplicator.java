@@ -0,0 +1,42 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Ticker;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+// 同じユーザーが同じブックマークを短時間に繰り返しクリックしたかをメモリ上で判定する
+// 件数の上限と有効期限のあるキャッシュで保持し、クリックのたびにDBを参照しない
+@Component
+public class ClickDeduplicator {
+
+    private final Cache<ClickKey, Boolean> recentClicks;
+
+    @Autowired
+    public ClickDeduplicator(@Value("${click.dedup.window-seconds:60}") long windowSeconds,
+                             @Value("${click.dedup.max-entries:100000}") long maxEntries) {
+        this(Duration.ofSeconds(windowSeconds), maxEntries, Ticker.systemTicker());
+    }
+
+    ClickDeduplicator(Duration window, long maxEntries, Ticker ticker) {
+        // 期限はクリックの受付時刻から数える（期間中に再度クリックされても延長しない）
+        this.recentClicks = Caffeine.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(window)
+                .ticker(ticker)
+                .build();
+    }
+
+    private record ClickKey(Long appUserId, Long bookmarkId) {
+    }
+
+    // 期間内で最初のクリックであればtrue（ログに記録する）
+    // putIfAbsentはキーごとに原子的に判定されるため、同時にクリックされても1件だけがtrueになる
+    public boolean isFirstClick(Long appUserId, Long bookmarkId) {
+        return recentClicks.asMap().putIfAbsent(new ClickKey(appUserId, bookmarkId), Boolean.TRUE) == null;
+    }
+}
@@ -0,0 +1,190 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+// ブックマークのクリックをメモリ上のキューで受け付け、バックグラウンドでまとめてDBに書き込むサービス
+// リクエストはキューに積むだけで即座に応答し、クリック数はUPDATE文の加算で反映するため同時クリックでも失われない
+// URLごとの集計値（UrlStatsService）も同じトランザクションで加算し、書き込み後に急上昇ランキング（TrendingRankingService）に数える
+@Service
+public class ClickIngestionService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ClickIngestionService.class);
+
+    private static final String INCREMENT_CLICK_COUNT_SQL =
+            "UPDATE bookmark SET total_click_count = total_click_count + ? WHERE id = ?";
+
+    // ブックマークが削除済みの場合は挿入しない
+    private static final String INSERT_CLICK_LOG_SQL =
+            "INSERT INTO bookmark_click_log (bookmark_id, app_user_id, clicked_at) " +
+            "SELECT ?, ?, ? WHERE EXISTS (SELECT 1 FROM bookmark WHERE id = ?)";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ClickDeduplicator clickDeduplicator;
+    private final UrlStatsService urlStatsService;
+    private final TrendingRankingService trendingRankingService;
+    private final TransactionTemplate transactionTemplate;
+    private final BlockingQueue<ClickEvent> queue;
+    private final int batchSize;
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    private final Counter acceptedCounter;
+    private final Counter droppedCounter;
+    private final Counter loggedCounter;
+    private final Timer flushTimer;
+
+    public ClickIngestionService(JdbcTemplate jdbcTemplate, ClickDeduplicator clickDeduplicator, UrlStatsService urlStatsService,
+                                 TrendingRankingService trendingRankingService, PlatformTransactionManager transactionManager, MeterRegistry meterRegistry,
+                                 @Value("${click.ingestion.queue-capacity:10000}") int queueCapacity,
+                                 @Value("${click.ingestion.batch-size:500}") int batchSize) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.clickDeduplicator = clickDeduplicator;
+        this.urlStatsService = urlStatsService;
+        this.trendingRankingService = trendingRankingService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.batchSize = batchSize;
+        this.acceptedCounter = meterRegistry.counter("bookmark.clicks.accepted");
+        this.droppedCounter = meterRegistry.counter("bookmark.clicks.dropped");
+        this.loggedCounter = meterRegistry.counter("bookmark.clicks.logged");
+        this.flushTimer = meterRegistry.timer("bookmark.clicks.flush");
+        meterRegistry.gauge("bookmark.clicks.queued", queue, BlockingQueue::size);
+    }
+
+    // logged: 重複クリックの期間内で最初のクリックであればtrue（クリックログに記録する）
+    record ClickEvent(Long bookmarkId, Long appUserId, LocalDateTime clickedAt, boolean logged) {
+    }
+
+    // クリックを受け付ける。キューが満杯の場合は記録せずに破棄する（応答は遅らせない）
+    public boolean record(Long bookmarkId, Long appUserId) {
+        boolean logged = clickDeduplicator.isFirstClick(appUserId, bookmarkId);
+        boolean accepted = queue.offer(new ClickEvent(bookmarkId, appUserId, LocalDateTime.now(), logged));
+        if (accepted) {
+            acceptedCounter.increment();
+        } else {
+            droppedCounter.increment();
+            logger.warn("Click queue is full. Dropping click for bookmark {}.", bookmarkId);
+        }
+        return accepted;
+    }
+
+    @Scheduled(fixedDelayString = "${click.ingestion.flush-interval:1000}")
+    public void flush() {
+        // スケジューラーとシャットダウン処理が同時に書き込まないようにする
+        flushLock.lock();
+        try {
+            List<ClickEvent> batch = new ArrayList<>(batchSize);
+            while (queue.drainTo(batch, batchSize) > 0) {
+                List<ClickEvent> events = batch;
+                flushTimer.record(() -> writeBatch(events));
+                batch = new ArrayList<>(batchSize);
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void writeBatch(List<ClickEvent> events) {
+        try {
+            writeWithRetry(events);
+        } catch (DataAccessException e) {
+            if (events.size() > 1 && !(e instanceof DataAccessResourceFailureException)) {
+                // 一部のクリックが原因の場合（処理中にブックマークが削除されたなど）は、分割して書き込めるものを書き込む
+                logger.warn("Failed to write {} click events. Retrying in smaller batches.", events.size(), e);
+                int half = events.size() / 2;
+                writeBatch(events.subList(0, half));
+                writeBatch(events.subList(half, events.size()));
+                return;
+            }
+            drop(events, e);
+            return;
+        } catch (RuntimeException e) {
+            drop(events, e);
+            return;
+        }
+        trendingRankingService.record(events);
+    }
+
+    // デッドロックなどの一時的な失敗は1回だけやり直す
+    private void writeWithRetry(List<ClickEvent> events) {
+        try {
+            write(events);
+        } catch (TransientDataAccessException | RecoverableDataAccessException e) {
+            logger.debug("Retrying {} click events after a transient failure.", events.size(), e);
+            write(events);
+        }
+    }
+
+    // DBの障害時は諦める（クリックの記録でリクエストを失敗させない）
+    private void drop(List<ClickEvent> events, RuntimeException e) {
+        droppedCounter.increment(events.size());
+        logger.error("Failed to write {} click events.", events.size(), e);
+    }
+
+    private void write(List<ClickEvent> events) {
+        // 他のノードの書き込みとデッドロックしないよう、行のロックはブックマークIDの順に取得する
+        List<ClickEvent> sorted = new ArrayList<>(events);
+        sorted.sort(Comparator.comparing(ClickEvent::bookmarkId));
+
+        // クリック数はブックマークごとに合算して1回のUPDATEで加算する
+        Map<Long, Long> increments = new TreeMap<>();
+        for (ClickEvent event : sorted) {
+            increments.merge(event.bookmarkId(), 1L, Long::sum);
+        }
+        List<Object[]> incrementArgs = new ArrayList<>(increments.size());
+        increments.forEach((bookmarkId, count) -> incrementArgs.add(new Object[] {count, bookmarkId}));
+
+        List<Object[]> logArgs = new ArrayList<>();
+        for (ClickEvent event : sorted) {
+            if (event.logged()) {
+                logArgs.add(new Object[] {event.bookmarkId(), event.appUserId(), Timestamp.valueOf(event.clickedAt()), event.bookmarkId()});
+            }
+        }
+
+        List<UrlStatsService.LoggedClicks> loggedClicks = UrlStatsService.groupLoggedClicks(sorted);
+
+        urlStatsService.prepareClickBuckets(loggedClicks);
+        Integer logged = transactionTemplate.execute(status -> {
+            jdbcTemplate.batchUpdate(INCREMENT_CLICK_COUNT_SQL, incrementArgs);
+            urlStatsService.recordClicks(incrementArgs, loggedClicks);
+            int total = 0;
+            for (int count : jdbcTemplate.batchUpdate(INSERT_CLICK_LOG_SQL, logArgs)) {
+                total += Math.max(count, 0);
+            }
+            return total;
+        });
+        // やり直した場合に二重に数えないよう、コミット後に数える
+        loggedCounter.increment(logged != null ? logged : 0);
+    }
+
+    // 終了時にキューに残っているクリックを書き込む
+    @PreDestroy
+    public void shutdown() {
+        flush();
+    }
+}
@@ -0,0 +1,72 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import com.hukisanagi.springboot_bookmark_manager.model.AppUser;
+import com.hukisanagi.springboot_bookmark_manager.repository.BookmarkRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Optional;
+
+// キーワード検索をDBのインデックスで行う（docker・rdsプロファイルでpg_trgmのGINインデックスを作成して使う）
+// 部分一致のまま、タイトル・URL・タグ名の列ごとにインデックスで一致するIDを求める
+@Component
+public class DatabaseKeywordSearch {
+
+    private static final Logger logger = LoggerFactory.getLogger(DatabaseKeywordSearch.class);
+
+    // pg_trgmは3文字単位で索引するため、短いキーワードはインデックスで絞り込めない
+    private static final int MIN_KEYWORD_LENGTH = 3;
+
+    private static final String COUNT_EXTENSION_SQL = "SELECT COUNT(*) FROM pg_extension WHERE extname = 'pg_trgm'";
+
+    private final BookmarkRepository bookmarkRepository;
+    private final JdbcTemplate jdbcTemplate;
+    private volatile boolean enabled;
+    private final int maxHits;
+
+    public DatabaseKeywordSearch(BookmarkRepository bookmarkRepository, JdbcTemplate jdbcTemplate,
+                                 @Value("${search.database.enabled:false}") boolean enabled,
+                                 @Value("${search.database.max-hits:5000}") int maxHits) {
+        this.bookmarkRepository = bookmarkRepository;
+        this.jdbcTemplate = jdbcTemplate;
+        this.enabled = enabled;
+        this.maxHits = maxHits;
+    }
+
+    // 起動時のSQLの実行後に、pg_trgmが使えるかを確認する
+    // 拡張機能の作成にはデータベースの所有者（RDSではrds_superuser）の権限が必要で、権限がなければ作成に失敗する
+    // その場合はインデックスもないため無効にし、LIKEによる検索を行う
+    @EventListener(ApplicationReadyEvent.class)
+    public void verifyExtension() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            Long installed = jdbcTemplate.queryForObject(COUNT_EXTENSION_SQL, Long.class);
+            if (installed != null && installed > 0) {
+                return;
+            }
+            logger.warn("pg_trgm extension is not installed. Keyword search falls back to LIKE.");
+        } catch (DataAccessException e) {
+            logger.warn("Could not check pg_trgm extension. Keyword search falls back to LIKE.", e);
+        }
+        enabled = false;
+    }
+
+    // キーワードを含むブックマークのIDを返す
+    // 無効の場合・キーワードが短い場合・一致件数が多すぎる場合は空を返す（呼び出し側はLIKEによる検索を行う）
+    public Optional<List<Long>> search(AppUser appUser, String keyword) {
+        if (!enabled || keyword.codePointCount(0, keyword.length()) < MIN_KEYWORD_LENGTH) {
+            return Optional.empty();
+        }
+        List<Long> ids = bookmarkRepository.findIdsByKeyword(appUser, keyword, maxHits + 1);
+        return ids.size() > maxHits ? Optional.empty() : Optional.of(ids);
+    }
+}
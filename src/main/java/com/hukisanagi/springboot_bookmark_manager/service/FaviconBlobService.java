@@ -0,0 +1,130 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import com.hukisanagi.springboot_bookmark_manager.model.FaviconBlob;
+import com.hukisanagi.springboot_bookmark_manager.repository.FaviconBlobRepository;
+import com.hukisanagi.springboot_bookmark_manager.repository.UrlMetadataRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+// ファビコンを内容のハッシュ値で重複なく保存し、ブックマークからの参照数を管理するサービス
+// 保存容量と書き込み量はブックマーク数ではなく、異なるアイコンの数に比例する
+@Service
+public class FaviconBlobService {
+
+    private static final Logger logger = LoggerFactory.getLogger(FaviconBlobService.class);
+
+    private static final int PURGE_BATCH_SIZE = 500;
+
+    private final FaviconBlobRepository faviconBlobRepository;
+    private final UrlMetadataRepository urlMetadataRepository;
+    private final StorageService storageService;
+    private final TransactionTemplate transactionTemplate;
+    private final TransactionTemplate newTransactionTemplate;
+    private final long purgeGraceHours;
+
+    public FaviconBlobService(FaviconBlobRepository faviconBlobRepository, UrlMetadataRepository urlMetadataRepository,
+                              StorageService storageService, PlatformTransactionManager transactionManager,
+                              @Value("${favicon.blob.purge-grace-hours:24}") long purgeGraceHours) {
+        this.faviconBlobRepository = faviconBlobRepository;
+        this.urlMetadataRepository = urlMetadataRepository;
+        this.storageService = storageService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.newTransactionTemplate = new TransactionTemplate(transactionManager);
+        this.newTransactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.purgeGraceHours = purgeGraceHours;
+    }
+
+    // 内容のハッシュ値で保存し、保存先を返す（参照数は増やさない。参照する側でretainを呼ぶ）
+    public String store(byte[] content) {
+        String storageKey = storageService.saveContentAddressed(content);
+        try {
+            newTransactionTemplate.executeWithoutResult(status -> registerIfAbsent(storageKey, content.length));
+        } catch (DataIntegrityViolationException e) {
+            // 他のノードが同時に登録した
+            logger.debug("Favicon blob {} was registered concurrently.", storageKey);
+        }
+        return storageKey;
+    }
+
+    private void registerIfAbsent(String storageKey, long size) {
+        if (faviconBlobRepository.findByStorageKey(storageKey).isEmpty()) {
+            faviconBlobRepository.saveAndFlush(new FaviconBlob(storageKey, size, LocalDateTime.now()));
+        }
+    }
+
+    // 参照を1つ増やす。既に削除されていた場合はfalse
+    public boolean retain(String faviconPath) {
+        if (!StorageService.isContentAddressed(faviconPath)) {
+            return true;
+        }
+        Integer updated = transactionTemplate.execute(status -> faviconBlobRepository.retain(faviconPath));
+        return updated != null && updated > 0;
+    }
+
+    // 参照を1つ解放する。旧形式（ユーザーごと）のファイルはその場で削除する
+    public void release(String faviconPath) {
+        if (faviconPath == null || faviconPath.isEmpty()) {
+            return;
+        }
+        if (!StorageService.isContentAddressed(faviconPath)) {
+            storageService.deleteFile(faviconPath);
+            return;
+        }
+        transactionTemplate.executeWithoutResult(status -> faviconBlobRepository.release(faviconPath, 1, LocalDateTime.now()));
+    }
+
+    // アカウント削除時など、まとめて参照を解放する（旧形式のファイルは呼び出し側でフォルダごと削除する）
+    public void releaseAll(Collection<String> faviconPaths) {
+        Map<String, Long> counts = faviconPaths.stream()
+                .filter(StorageService::isContentAddressed)
+                .collect(Collectors.groupingBy(Function.identity(), Collectors.counting()));
+        if (counts.isEmpty()) {
+            return;
+        }
+        LocalDateTime now = LocalDateTime.now();
+        transactionTemplate.executeWithoutResult(status ->
+                counts.forEach((storageKey, count) -> faviconBlobRepository.release(storageKey, count, now)));
+    }
+
+    // 参照されなくなったファビコンを削除する
+    @Scheduled(cron = "${favicon.blob.purge-cron:0 30 4 * * *}")
+    public void purgeUnreferencedBlobs() {
+        LocalDateTime threshold = LocalDateTime.now().minusHours(purgeGraceHours);
+        int purged = 0;
+        List<FaviconBlob> candidates;
+        do {
+            candidates = faviconBlobRepository.findPurgeable(threshold, PageRequest.of(0, PURGE_BATCH_SIZE));
+            for (FaviconBlob blob : candidates) {
+                Integer deleted = transactionTemplate.execute(status -> {
+                    int count = faviconBlobRepository.deleteIfUnreferenced(blob.getId());
+                    if (count > 0) {
+                        urlMetadataRepository.clearFaviconPath(blob.getStorageKey());
+                    }
+                    return count;
+                });
+                if (deleted != null && deleted > 0) {
+                    storageService.deleteFile(blob.getStorageKey());
+                    purged++;
+                }
+            }
+        } while (candidates.size() == PURGE_BATCH_SIZE);
+        if (purged > 0) {
+            logger.info("Purged {} unreferenced favicon blobs.", purged);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import com.hukisanagi.springboot_bookmark_manager.model.Bookmark;
+import com.hukisanagi.springboot_bookmark_manager.model.FaviconJob;
+import com.hukisanagi.springboot_bookmark_manager.model.FaviconStatus;
+import com.hukisanagi.springboot_bookmark_manager.repository.BookmarkRepository;
+import com.hukisanagi.springboot_bookmark_manager.repository.FaviconJobRepository;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// 追加されたブックマークのファビコンを、DBのジョブテーブル経由で非同期に取得するサービス
+// ワーカー数を上限として処理するため、追加が集中しても外部への同時アクセス数は増えない
+@Service
+public class FaviconEnrichmentService {
+
+    private static final Logger logger = LoggerFactory.getLogger(FaviconEnrichmentService.class);
+
+    // ワーカーが処理中のジョブを保持できる時間（異常終了時はこの期限後に再実行される）
+    private static final long LEASE_MINUTES = 5;
+    private static final long BASE_BACKOFF_SECONDS = 30;
+    private static final long MAX_BACKOFF_SECONDS = 60 * 60;
+
+    private final FaviconJobRepository faviconJobRepository;
+    private final BookmarkRepository bookmarkRepository;
+    private final UrlMetadataService urlMetadataService;
+    private final FaviconBlobService faviconBlobService;
+    private final TransactionTemplate transactionTemplate;
+    private final int maxAttempts;
+    private final Semaphore workerPermits;
+    private final ExecutorService workers;
+
+    public FaviconEnrichmentService(FaviconJobRepository faviconJobRepository, BookmarkRepository bookmarkRepository,
+                                    UrlMetadataService urlMetadataService, FaviconBlobService faviconBlobService,
+                                    PlatformTransactionManager transactionManager,
+                                    @Value("${favicon.enrichment.workers:4}") int workerCount,
+                                    @Value("${favicon.enrichment.max-attempts:5}") int maxAttempts) {
+        this.faviconJobRepository = faviconJobRepository;
+        this.bookmarkRepository = bookmarkRepository;
+        this.urlMetadataService = urlMetadataService;
+        this.faviconBlobService = faviconBlobService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.maxAttempts = maxAttempts;
+        this.workerPermits = new Semaphore(workerCount);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+            Thread thread = new Thread(runnable, "favicon-worker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // ブックマークの保存と同じトランザクション内で呼び出し、ジョブを登録する
+    public void enqueue(Bookmark bookmark) {
+        faviconJobRepository.save(new FaviconJob(bookmark.getId(), LocalDateTime.now()));
+    }
+
+    public void cancel(Long bookmarkId) {
+        faviconJobRepository.deleteByBookmarkId(bookmarkId);
+    }
+
+    // 空いているワーカーの数だけジョブを取得して処理する
+    @Scheduled(fixedDelayString = "${favicon.enrichment.poll-interval:2000}")
+    public void pollJobs() {
+        int available = workerPermits.availablePermits();
+        if (available == 0) {
+            return;
+        }
+
+        LocalDateTime now = LocalDateTime.now();
+        List<Long> dueJobIds = faviconJobRepository.findDueJobIds(now, PageRequest.of(0, available));
+        for (Long jobId : dueJobIds) {
+            if (!workerPermits.tryAcquire()) {
+                break;
+            }
+            Integer claimed = transactionTemplate.execute(status -> faviconJobRepository.claim(jobId, now, now.plusMinutes(LEASE_MINUTES)));
+            if (claimed == null || claimed == 0) {
+                workerPermits.release(); // 他のノードが先に取得した
+                continue;
+            }
+            try {
+                workers.execute(() -> {
+                    try {
+                        processJob(jobId);
+                    } finally {
+                        workerPermits.release();
+                    }
+                });
+            } catch (RuntimeException e) {
+                workerPermits.release();
+                logger.warn("Failed to submit favicon job {}: {}", jobId, e.getMessage());
+            }
+        }
+    }
+
+    void processJob(Long jobId) {
+        // ジョブと対象ブックマークの情報を短いトランザクションで読み出す
+        JobTarget target = transactionTemplate.execute(status -> faviconJobRepository.findById(jobId)
+                .map(job -> bookmarkRepository.findById(job.getBookmarkId())
+                        .map(bookmark -> new JobTarget(job, bookmark.getId(), bookmark.getUrl()))
+                        .orElseGet(() -> new JobTarget(job, null, null)))
+                .orElse(null));
+
+        if (target == null) {
+            return; // 既に処理済み
+        }
+        if (target.bookmarkId() == null) {
+            // ブックマークが削除済みの場合はジョブを破棄
+            transactionTemplate.executeWithoutResult(status -> faviconJobRepository.deleteById(jobId));
+            return;
+        }
+
+        // 外部通信とストレージへの保存はトランザクション外で実行（取得済みのURLなら通信しない）
+        String savedFaviconPath = null;
+        String error = null;
+        try {
+            savedFaviconPath = urlMetadataService.acquireFavicon(target.url());
+            if (savedFaviconPath == null) {
+                error = "Favicon not found";
+            }
+        } catch (Exception e) {
+            logger.warn("Failed to fetch favicon for bookmark {}: {}", target.bookmarkId(), e.getMessage());
+            error = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+        }
+
+        if (savedFaviconPath != null) {
+            completeJob(target, savedFaviconPath);
+        } else {
+            retryOrGiveUp(target, error);
+        }
+    }
+
+    // 先にリースを条件にジョブを削除し、削除できた場合だけブックマークに反映する
+    // リースが切れて他のワーカーも処理した場合に、参照を二重に増やしたり結果を上書きしたりしない
+    private void completeJob(JobTarget target, String savedFaviconPath) {
+        FaviconJob job = target.job();
+        transactionTemplate.executeWithoutResult(status -> {
+            boolean leased = faviconJobRepository.deleteLeased(job.getId(), job.getLockedUntil()) == 1;
+            if (!leased) {
+                logger.debug("Favicon job {} was cancelled or claimed by another worker.", job.getId());
+            }
+            if (!leased || bookmarkRepository.updateFavicon(target.bookmarkId(), savedFaviconPath, FaviconStatus.DONE) == 0) {
+                // 反映しなかった（または処理中にブックマークが削除された）場合は取得した参照を戻す
+                faviconBlobService.release(savedFaviconPath);
+            }
+        });
+    }
+
+    private void retryOrGiveUp(JobTarget target, String error) {
+        FaviconJob job = target.job();
+        int attempts = job.getAttempts() + 1;
+        transactionTemplate.executeWithoutResult(status -> {
+            if (attempts >= maxAttempts) {
+                if (faviconJobRepository.deleteLeased(job.getId(), job.getLockedUntil()) == 0) {
+                    logger.debug("Favicon job {} was cancelled or claimed by another worker.", job.getId());
+                    return;
+                }
+                logger.info("Giving up favicon fetch for bookmark {} after {} attempts.", target.bookmarkId(), attempts);
+                bookmarkRepository.updateFavicon(target.bookmarkId(), null, FaviconStatus.FAILED);
+                return;
+            }
+            // 指数バックオフで次回の実行時刻を設定
+            // 読み出したジョブを保存し直すと、処理中に削除されたジョブを作り直してしまうため、取得したリースを条件に更新する
+            long backoffSeconds = Math.min(BASE_BACKOFF_SECONDS << (attempts - 1), MAX_BACKOFF_SECONDS);
+            int updated = faviconJobRepository.reschedule(job.getId(), job.getLockedUntil(), attempts,
+                    LocalDateTime.now().plusSeconds(backoffSeconds),
+                    error != null && error.length() > 512 ? error.substring(0, 512) : error);
+            if (updated == 0) {
+                logger.debug("Favicon job {} was cancelled or claimed by another worker.", job.getId());
+            }
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // 処理中のジョブはリース期限切れ後に再実行されるため、ここでは待機のみ行う
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(10, TimeUnit.SECONDS)) {
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private record JobTarget(FaviconJob job, Long bookmarkId, String url) {
+    }
+}
@@ -0,0 +1,419 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import jakarta.annotation.PreDestroy;
+import org.apache.batik.anim.dom.SAXSVGDocumentFactory;
+import org.apache.batik.transcoder.SVGAbstractTranscoder;
+import org.apache.batik.transcoder.TranscoderException;
+import org.apache.batik.transcoder.TranscoderInput;
+import org.apache.batik.transcoder.TranscoderOutput;
+import org.apache.batik.transcoder.image.ImageTranscoder;
+import org.apache.batik.util.HaltingThread;
+import org.apache.batik.util.XMLResourceDescriptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// ダウンロードしたファビコンを表示用の小さなPNGに変換する
+// 1回だけデコードし、ICOなどの複数解像度の画像からは最適なフレームを選び、固定サイズに縮小して保存する
+// 保存するのは1つのサイズ（最大48px）のみで、表示サイズごとの画像は作らない
+@Service
+public class FaviconImageProcessor {
+
+    private static final Logger logger = LoggerFactory.getLogger(FaviconImageProcessor.class);
+
+    // 保存するサイズの候補（一覧では20px、broaden画面では48pxで表示する）。元画像を超えない最大のものを1つ選ぶ
+    static final int[] TARGET_SIZES = {16, 32, 48};
+    private static final int MAX_TARGET_SIZE = TARGET_SIZES[TARGET_SIZES.length - 1];
+
+    // デコード前に確認する画像サイズの上限（巨大な画像によるメモリ枯渇を防ぐ）
+    // ファビコンとしては十分な大きさで、間引いてデコードしても元の解像度の分だけ読み込みに時間がかかるため小さく抑える
+    private static final int MAX_SOURCE_DIMENSION = 1024;
+    private static final int MAX_SVG_BYTES = 256 * 1024;
+    // SVGの要素の入れ子の深さの上限
+    private static final int MAX_SVG_DEPTH = 256;
+    private static final String XLINK_NAMESPACE = "http://www.w3.org/1999/xlink";
+
+    private final long svgTimeoutMillis;
+    private final long svgMaxElements;
+    private final ThreadPoolExecutor svgExecutor;
+
+    public FaviconImageProcessor(@Value("${favicon.svg.timeout:3000}") long svgTimeoutMillis,
+                                 @Value("${favicon.svg.max-concurrency:2}") int svgConcurrency,
+                                 @Value("${favicon.svg.queue-capacity:16}") int svgQueueCapacity,
+                                 @Value("${favicon.svg.max-elements:10000}") long svgMaxElements) {
+        this.svgTimeoutMillis = svgTimeoutMillis;
+        this.svgMaxElements = svgMaxElements;
+        AtomicInteger threadCount = new AtomicInteger();
+        // BatikはHaltingThreadの停止要求を解析・描画の途中で確認するため、HaltingThreadで実行する
+        // 待ちの数に上限を設け、あふれた場合は待たずに失敗させる
+        this.svgExecutor = new ThreadPoolExecutor(svgConcurrency, svgConcurrency, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(svgQueueCapacity), runnable -> {
+            Thread thread = new HaltingThread(runnable, "favicon-svg-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // 画像として扱えない場合はnull
+    public byte[] normalize(byte[] source, String contentType, String sourceUrl) {
+        try {
+            BufferedImage image = isSvg(source, contentType, sourceUrl) ? rasterizeSvg(source) : decodeBestFrame(source);
+            if (image == null) {
+                logger.warn("Downloaded data from {} is not a valid image.", sourceUrl);
+                return null;
+            }
+            return encodePng(resize(image));
+        } catch (Exception e) {
+            logger.warn("Failed to process favicon from {}: {}", sourceUrl, e.getMessage());
+            return null;
+        }
+    }
+
+    private boolean isSvg(byte[] source, String contentType, String sourceUrl) {
+        if (contentType != null && contentType.toLowerCase(Locale.ROOT).contains("image/svg")) {
+            return true;
+        }
+        if (sourceUrl != null) {
+            String path = sourceUrl.toLowerCase(Locale.ROOT);
+            int queryStart = path.indexOf('?');
+            if ((queryStart >= 0 ? path.substring(0, queryStart) : path).endsWith(".svg")) {
+                return true;
+            }
+        }
+        String head = new String(source, 0, Math.min(source.length, 256), StandardCharsets.ISO_8859_1).trim().toLowerCase(Locale.ROOT);
+        return head.startsWith("<svg") || (head.startsWith("<?xml") && head.contains("<svg"));
+    }
+
+    // ICOなどの複数フレームの画像からは、保存サイズ以上で最も小さいフレーム（なければ最大のフレーム）を選ぶ
+    // 大きい画像は画素を間引いてデコードし、保存サイズに近い大きさの画像だけをメモリに展開する
+    private BufferedImage decodeBestFrame(byte[] source) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(source))) {
+            if (input == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, false, true);
+                int frameCount = Math.max(reader.getNumImages(true), 1);
+                int bestIndex = -1;
+                int bestWidth = 0;
+                for (int i = 0; i < frameCount; i++) {
+                    int width = reader.getWidth(i);
+                    int height = reader.getHeight(i);
+                    if (width <= 0 || height <= 0 || width > MAX_SOURCE_DIMENSION || height > MAX_SOURCE_DIMENSION) {
+                        continue;
+                    }
+                    if (bestIndex < 0 || isBetterFrame(width, bestWidth)) {
+                        bestIndex = i;
+                        bestWidth = width;
+                    }
+                }
+                if (bestIndex < 0) {
+                    return null;
+                }
+                ImageReadParam param = reader.getDefaultReadParam();
+                int factor = subsamplingFactor(reader.getWidth(bestIndex), reader.getHeight(bestIndex));
+                param.setSourceSubsampling(factor, factor, 0, 0);
+                return reader.read(bestIndex, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private boolean isBetterFrame(int width, int bestWidth) {
+        boolean large = width >= MAX_TARGET_SIZE;
+        boolean bestLarge = bestWidth >= MAX_TARGET_SIZE;
+        if (large != bestLarge) {
+            return large;
+        }
+        return large ? width < bestWidth : width > bestWidth;
+    }
+
+    // SVGは保存サイズで直接ラスタライズし、時間とサイズの上限を設ける
+    // 制限時間を超えた場合は実行中のスレッドに停止を要求し、解析・描画を打ち切る
+    private BufferedImage rasterizeSvg(byte[] source) throws IOException {
+        if (source.length > MAX_SVG_BYTES) {
+            throw new IOException("SVG is too large: " + source.length + " bytes");
+        }
+        SvgTask task = new SvgTask(source);
+        Future<BufferedImage> future;
+        try {
+            future = svgExecutor.submit(task);
+        } catch (RejectedExecutionException e) {
+            throw new IOException("Too many SVGs are waiting for rasterization", e);
+        }
+        try {
+            return future.get(svgTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            task.halt();
+            throw new IOException("SVG rasterization timed out", e);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            task.halt();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while rasterizing SVG", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to rasterize SVG: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    // 1件のSVGのラスタライズ。停止の要求は、このタスクを実行している間のスレッドにだけ送る
+    private class SvgTask implements Callable<BufferedImage> {
+
+        private final byte[] source;
+        private HaltingThread runner;
+
+        SvgTask(byte[] source) {
+            this.source = source;
+        }
+
+        @Override
+        public BufferedImage call() throws Exception {
+            synchronized (this) {
+                runner = (HaltingThread) Thread.currentThread();
+                // 前のタスクへの停止の要求が残っていれば取り消す
+                runner.clearHalted();
+            }
+            try {
+                BufferedImage image = transcode(source);
+                if (HaltingThread.hasBeenHalted()) {
+                    // 停止した場合は描画途中の画像が返るため使わない
+                    throw new IOException("SVG rasterization was halted");
+                }
+                return image;
+            } finally {
+                synchronized (this) {
+                    runner = null;
+                }
+            }
+        }
+
+        synchronized void halt() {
+            if (runner != null) {
+                runner.halt();
+            }
+        }
+    }
+
+    private BufferedImage transcode(byte[] source) throws IOException, TranscoderException {
+        SAXSVGDocumentFactory factory = new SAXSVGDocumentFactory(XMLResourceDescriptor.getXMLParserClassName());
+        Document document = factory.createSVGDocument("about:blank", new ByteArrayInputStream(source));
+        // 描画前に、展開後の要素の数と埋め込み画像の大きさを確認する（描画中のメモリ使用量を抑える）
+        long elements = countExpandedElements(document.getDocumentElement(), 0, new HashMap<>(), new HashSet<>());
+        if (elements > svgMaxElements) {
+            throw new IOException("SVG has too many elements: " + elements);
+        }
+
+        BufferedImageTranscoder transcoder = new BufferedImageTranscoder();
+        transcoder.addTranscodingHint(SVGAbstractTranscoder.KEY_WIDTH, (float) MAX_TARGET_SIZE);
+        transcoder.addTranscodingHint(SVGAbstractTranscoder.KEY_HEIGHT, (float) MAX_TARGET_SIZE);
+        transcoder.addTranscodingHint(SVGAbstractTranscoder.KEY_ALLOW_EXTERNAL_RESOURCES, Boolean.FALSE);
+        transcoder.addTranscodingHint(SVGAbstractTranscoder.KEY_EXECUTE_ONLOAD, Boolean.FALSE);
+        transcoder.transcode(new TranscoderInput(document), null);
+        return transcoder.image;
+    }
+
+    // <use>による参照を展開した要素の数（描画時に作られるノードの数の目安）
+    // 上限を超えた時点で数えるのをやめる。参照の循環や深すぎる入れ子、大きすぎる埋め込み画像は受け付けない
+    private long countExpandedElements(Element element, int depth, Map<Element, Long> counted, Set<Element> visiting) throws IOException {
+        Long known = counted.get(element);
+        if (known != null) {
+            return known;
+        }
+        if (depth > MAX_SVG_DEPTH) {
+            throw new IOException("SVG is nested too deeply");
+        }
+        if (!visiting.add(element)) {
+            throw new IOException("SVG has circular references");
+        }
+        String localName = element.getLocalName() != null ? element.getLocalName() : element.getTagName();
+        if (element.hasAttribute("filterRes")) {
+            // フィルターの解像度は描画サイズと無関係に中間画像の大きさを決めるため受け付けない
+            throw new IOException("SVG filterRes is not supported");
+        }
+        String href = element.hasAttributeNS(XLINK_NAMESPACE, "href") ? element.getAttributeNS(XLINK_NAMESPACE, "href") : element.getAttribute("href");
+        if ("image".equals(localName)) {
+            checkEmbeddedImage(href);
+        }
+        long count = 1;
+        if ("use".equals(localName) && href.startsWith("#")) {
+            Element referenced = element.getOwnerDocument().getElementById(href.substring(1));
+            if (referenced != null) {
+                count += countExpandedElements(referenced, depth + 1, counted, visiting);
+            }
+        }
+        for (Node child = element.getFirstChild(); child != null && count <= svgMaxElements; child = child.getNextSibling()) {
+            if (child instanceof Element childElement) {
+                count += countExpandedElements(childElement, depth + 1, counted, visiting);
+            }
+        }
+        visiting.remove(element);
+        counted.put(element, count);
+        return count;
+    }
+
+    // 埋め込み画像（data URI）はデコード前に大きさを確認する。外部の画像は読み込まない設定のため対象外
+    private void checkEmbeddedImage(String href) throws IOException {
+        if (!href.startsWith("data:")) {
+            return;
+        }
+        int comma = href.indexOf(',');
+        if (comma < 0 || !href.substring(0, comma).endsWith(";base64")) {
+            throw new IOException("SVG has an unsupported embedded image");
+        }
+        byte[] data;
+        try {
+            data = Base64.getMimeDecoder().decode(href.substring(comma + 1));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("SVG has an invalid embedded image", e);
+        }
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(data))) {
+            Iterator<ImageReader> readers = input != null ? ImageIO.getImageReaders(input) : null;
+            if (readers == null || !readers.hasNext()) {
+                // SVGの入れ子などは大きさを確認できないため受け付けない
+                throw new IOException("SVG has an unsupported embedded image");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                if (reader.getWidth(0) > MAX_SOURCE_DIMENSION || reader.getHeight(0) > MAX_SOURCE_DIMENSION) {
+                    throw new IOException("SVG has an embedded image that is too large");
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // 縦横比を保ったまま、長い辺が保存サイズを下回らない範囲で間引く間隔
+    static int subsamplingFactor(int width, int height) {
+        return Math.max(1, Math.max(width, height) / MAX_TARGET_SIZE);
+    }
+
+    static int targetSize(int width, int height) {
+        int longest = Math.max(width, height);
+        int target = 0;
+        for (int size : TARGET_SIZES) {
+            if (size <= longest) {
+                target = size;
+            }
+        }
+        return target == 0 ? longest : target; // 最小サイズより小さい画像はそのまま
+    }
+
+    private BufferedImage resize(BufferedImage source) {
+        int size = targetSize(source.getWidth(), source.getHeight());
+        // 縦横比を保ったまま、正方形のキャンバスの中央に配置する
+        double scale = (double) size / Math.max(source.getWidth(), source.getHeight());
+        int width = Math.max(1, (int) Math.round(source.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(source.getHeight() * scale));
+
+        BufferedImage current = toArgb(source);
+        // 大きく縮小する場合は半分ずつ縮小して画質の劣化を抑える
+        while (current.getWidth() / 2 >= width && current.getHeight() / 2 >= height) {
+            current = draw(current, current.getWidth() / 2, current.getHeight() / 2, current.getWidth() / 2, current.getHeight() / 2, 0, 0);
+        }
+        return draw(current, size, size, width, height, (size - width) / 2, (size - height) / 2);
+    }
+
+    private BufferedImage toArgb(BufferedImage source) {
+        if (source.getType() == BufferedImage.TYPE_INT_ARGB) {
+            return source;
+        }
+        return draw(source, source.getWidth(), source.getHeight(), source.getWidth(), source.getHeight(), 0, 0);
+    }
+
+    private BufferedImage draw(BufferedImage source, int canvasWidth, int canvasHeight, int width, int height, int x, int y) {
+        BufferedImage target = new BufferedImage(canvasWidth, canvasHeight, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = target.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(source, x, y, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return target;
+    }
+
+    // WebPのエンコーダーは標準のImageIOにないため、最大圧縮のPNGで保存する
+    private byte[] encodePng(BufferedImage image) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (ImageOutputStream imageOutput = ImageIO.createImageOutputStream(output)) {
+            writer.setOutput(imageOutput);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(0.0f);
+            }
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return output.toByteArray();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        svgExecutor.shutdownNow();
+    }
+
+    // PNGに書き出さず、ラスタライズした画像をそのまま受け取るトランスコーダー
+    private static class BufferedImageTranscoder extends ImageTranscoder {
+
+        private BufferedImage image;
+
+        @Override
+        public BufferedImage createImage(int width, int height) {
+            return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        }
+
+        @Override
+        public void writeImage(BufferedImage image, TranscoderOutput output) {
+            this.image = image;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import com.hukisanagi.springboot_bookmark_manager.repository.FaviconBlobRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+import java.util.Optional;
+
+// 旧形式（ユーザーごと）のファビコンを内容のハッシュ値で保存し直し、ブックマークの参照先を書き換える
+// 旧形式のファイルはブックマークの削除時にすぐ消えるため、ランキングからは参照できない
+// ランキングの集計前に呼び出す（移行済みのファイルがなくなれば何もしない）
+@Service
+public class FaviconMigrationService {
+
+    private static final Logger logger = LoggerFactory.getLogger(FaviconMigrationService.class);
+
+    private static final int BATCH_SIZE = 500;
+
+    private static final String FIND_LEGACY_PATHS_SQL =
+            "SELECT DISTINCT favicon_path FROM bookmark WHERE favicon_path IS NOT NULL AND favicon_path <> '' " +
+            "AND favicon_path NOT LIKE ? AND favicon_path > ? ORDER BY favicon_path LIMIT " + BATCH_SIZE;
+
+    private static final String REPLACE_PATH_SQL = "UPDATE bookmark SET favicon_path = ? WHERE favicon_path = ?";
+
+    private static final String CLEAR_PATH_SQL = "UPDATE bookmark SET favicon_path = NULL WHERE favicon_path = ?";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final StorageService storageService;
+    private final FaviconBlobService faviconBlobService;
+    private final FaviconBlobRepository faviconBlobRepository;
+    private final TransactionTemplate transactionTemplate;
+
+    public FaviconMigrationService(JdbcTemplate jdbcTemplate, StorageService storageService, FaviconBlobService faviconBlobService,
+                                   FaviconBlobRepository faviconBlobRepository, PlatformTransactionManager transactionManager) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.storageService = storageService;
+        this.faviconBlobService = faviconBlobService;
+        this.faviconBlobRepository = faviconBlobRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    // 参照先を書き換えたブックマークの件数を返す
+    public int migrate() {
+        int total = 0;
+        String lastPath = "";
+        List<String> paths;
+        do {
+            // 失敗したファイルで止まらないよう、パスの順に進める
+            paths = jdbcTemplate.queryForList(FIND_LEGACY_PATHS_SQL, String.class, StorageService.BLOB_PREFIX + "%", lastPath);
+            for (String path : paths) {
+                try {
+                    total += migrate(path);
+                } catch (RuntimeException e) {
+                    logger.warn("Failed to migrate favicon {}: {}", path, e.getMessage());
+                }
+            }
+            if (!paths.isEmpty()) {
+                lastPath = paths.get(paths.size() - 1);
+            }
+        } while (paths.size() == BATCH_SIZE);
+        if (total > 0) {
+            logger.info("Migrated favicons of {} bookmarks to content-addressed storage.", total);
+        }
+        return total;
+    }
+
+    private int migrate(String legacyPath) {
+        Optional<byte[]> content = storageService.readFile(legacyPath);
+        if (content.isEmpty()) {
+            // ファイルが既に削除されている
+            Integer cleared = transactionTemplate.execute(status -> jdbcTemplate.update(CLEAR_PATH_SQL, legacyPath));
+            return cleared != null ? cleared : 0;
+        }
+        String storageKey = faviconBlobService.store(content.get());
+        Integer replaced = transactionTemplate.execute(status -> {
+            int count = jdbcTemplate.update(REPLACE_PATH_SQL, storageKey, legacyPath);
+            if (count > 0 && faviconBlobRepository.retain(storageKey, count) == 0) {
+                // 保存した直後に削除された。次回の実行でやり直す
+                status.setRollbackOnly();
+                return 0;
+            }
+            return count;
+        });
+        if (replaced == null || replaced == 0) {
+            return 0;
+        }
+        // 参照先を書き換えた後は旧形式のファイルを参照するブックマークはない
+        storageService.deleteFile(legacyPath);
+        return replaced;
+    }
+}
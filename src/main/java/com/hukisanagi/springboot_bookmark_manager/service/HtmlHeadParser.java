@@ -0,0 +1,231 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import org.jsoup.parser.Parser;
+
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// HTMLの<head>部分だけを1回の走査で解析し、タイトル・アイコン・OpenGraph情報を取り出す
+// 文書全体のDOMを構築しないため、巨大なページでもメモリとCPUをほとんど使わない
+public final class HtmlHeadParser {
+
+    // </head>の終了タグ。HttpFetchServiceはこれを受信した時点で読み込みを打ち切る
+    public static final byte[] HEAD_END_MARKER = "</head>".getBytes(StandardCharsets.US_ASCII);
+
+    // <meta charset>を探す範囲（HTML仕様では先頭1024バイト以内）
+    private static final int CHARSET_SNIFF_BYTES = 1024;
+
+    private static final Pattern ATTRIBUTE_PATTERN = Pattern.compile(
+            "([^\\s=/>\"']+)(?:\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s>]+)))?");
+    private static final Pattern META_CHARSET_PATTERN = Pattern.compile(
+            "<meta[^>]+charset\\s*=\\s*[\"']?([A-Za-z0-9_\\-:.]+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern ICON_REL_PATTERN = Pattern.compile("(?i)^(shortcut|icon|apple-touch-icon).*");
+
+    private HtmlHeadParser() {
+    }
+
+    // 解析結果。iconUrlsは文書内の出現順で、絶対URLに変換済み
+    public record HeadMetadata(String title, List<String> iconUrls, Map<String, String> openGraph) {
+
+        public String ogTitle() {
+            return openGraph.get("og:title");
+        }
+
+        public String ogImage() {
+            return openGraph.get("og:image");
+        }
+
+        public String ogSiteName() {
+            return openGraph.get("og:site_name");
+        }
+    }
+
+    public static HeadMetadata parse(byte[] bytes, String charsetName, String baseUri) {
+        return parse(decode(bytes, charsetName), baseUri);
+    }
+
+    public static HeadMetadata parse(String html, String baseUri) {
+        String title = null;
+        List<String> iconUrls = new ArrayList<>();
+        Map<String, String> openGraph = new HashMap<>();
+        String base = baseUri;
+
+        int length = html.length();
+        int pos = 0;
+        while (pos < length) {
+            int tagStart = html.indexOf('<', pos);
+            if (tagStart < 0 || tagStart + 1 >= length) {
+                break;
+            }
+
+            // コメントは読み飛ばす
+            if (html.startsWith("<!--", tagStart)) {
+                int commentEnd = html.indexOf("-->", tagStart + 4);
+                if (commentEnd < 0) {
+                    break;
+                }
+                pos = commentEnd + 3;
+                continue;
+            }
+
+            boolean closing = html.charAt(tagStart + 1) == '/';
+            int nameStart = closing ? tagStart + 2 : tagStart + 1;
+            int nameEnd = nameStart;
+            while (nameEnd < length && isTagNameChar(html.charAt(nameEnd))) {
+                nameEnd++;
+            }
+            int tagEnd = findTagEnd(html, nameEnd);
+            if (tagEnd < 0) {
+                break; // 途中で切れたタグは無視
+            }
+            String tagName = html.substring(nameStart, nameEnd).toLowerCase(Locale.ROOT);
+            pos = tagEnd + 1;
+
+            if (closing) {
+                if (tagName.equals("head")) {
+                    break;
+                }
+                continue;
+            }
+
+            switch (tagName) {
+                case "body" -> pos = length; // <head>が閉じられていない場合も<body>で終了
+                case "title" -> {
+                    int closeTag = indexOfIgnoreCase(html, "</title", pos);
+                    int textEnd = closeTag < 0 ? length : closeTag;
+                    if (title == null) {
+                        title = Parser.unescapeEntities(html.substring(pos, textEnd), false).trim();
+                    }
+                    pos = closeTag < 0 ? length : closeTag;
+                }
+                case "script", "style", "noscript" -> {
+                    // 中身にタグのような文字列が含まれても誤認識しないよう、終了タグまで読み飛ばす
+                    int closeTag = indexOfIgnoreCase(html, "</" + tagName, pos);
+                    pos = closeTag < 0 ? length : closeTag;
+                }
+                case "base" -> {
+                    String href = parseAttributes(html, nameEnd, tagEnd).get("href");
+                    if (href != null && !href.isBlank()) {
+                        base = resolve(baseUri, href);
+                    }
+                }
+                case "link" -> {
+                    Map<String, String> attributes = parseAttributes(html, nameEnd, tagEnd);
+                    String rel = attributes.get("rel");
+                    String href = attributes.get("href");
+                    if (rel != null && href != null && !href.isBlank() && ICON_REL_PATTERN.matcher(rel.trim()).matches()) {
+                        String absolute = resolve(base, href);
+                        if (absolute != null) {
+                            iconUrls.add(absolute);
+                        }
+                    }
+                }
+                case "meta" -> {
+                    Map<String, String> attributes = parseAttributes(html, nameEnd, tagEnd);
+                    String property = attributes.getOrDefault("property", attributes.get("name"));
+                    String content = attributes.get("content");
+                    if (property != null && content != null && property.toLowerCase(Locale.ROOT).startsWith("og:")) {
+                        openGraph.putIfAbsent(property.toLowerCase(Locale.ROOT), content.trim());
+                    }
+                }
+                default -> {
+                }
+            }
+        }
+
+        String ogImage = openGraph.get("og:image");
+        if (ogImage != null) {
+            openGraph.put("og:image", resolve(base, ogImage));
+        }
+        return new HeadMetadata(title, iconUrls, openGraph);
+    }
+
+    // Content-Typeのcharset → <meta charset> → UTF-8 の順に文字コードを決めてデコードする
+    static String decode(byte[] bytes, String charsetName) {
+        Charset charset = toCharset(charsetName);
+        if (charset == null) {
+            String prefix = new String(bytes, 0, Math.min(bytes.length, CHARSET_SNIFF_BYTES), StandardCharsets.ISO_8859_1);
+            Matcher matcher = META_CHARSET_PATTERN.matcher(prefix);
+            if (matcher.find()) {
+                charset = toCharset(matcher.group(1));
+            }
+        }
+        return new String(bytes, charset != null ? charset : StandardCharsets.UTF_8);
+    }
+
+    private static Charset toCharset(String charsetName) {
+        if (charsetName == null || charsetName.isBlank()) {
+            return null;
+        }
+        try {
+            return Charset.forName(charsetName.trim());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static boolean isTagNameChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '-' || c == ':';
+    }
+
+    // 属性値の引用符内にある'>'を終端と誤認しないようにタグの終わりを探す
+    private static int findTagEnd(String html, int from) {
+        char quote = 0;
+        for (int i = from; i < html.length(); i++) {
+            char c = html.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '>') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Map<String, String> parseAttributes(String html, int from, int to) {
+        Map<String, String> attributes = new HashMap<>();
+        Matcher matcher = ATTRIBUTE_PATTERN.matcher(html).region(from, to);
+        while (matcher.find()) {
+            String name = matcher.group(1).toLowerCase(Locale.ROOT);
+            String value = matcher.group(2) != null ? matcher.group(2)
+                    : matcher.group(3) != null ? matcher.group(3)
+                    : matcher.group(4);
+            attributes.putIfAbsent(name, value != null ? Parser.unescapeEntities(value, true) : "");
+        }
+        return attributes;
+    }
+
+    private static int indexOfIgnoreCase(String html, String target, int from) {
+        int max = html.length() - target.length();
+        for (int i = from; i <= max; i++) {
+            if (html.regionMatches(true, i, target, 0, target.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String resolve(String base, String href) {
+        try {
+            String trimmed = href.trim();
+            if (base == null) {
+                return URI.create(trimmed).isAbsolute() ? trimmed : null;
+            }
+            return URI.create(base).resolve(trimmed.replace(" ", "%20")).toString();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
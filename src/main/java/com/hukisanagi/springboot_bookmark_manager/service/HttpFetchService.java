@@ -0,0 +1,350 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+// 外部サイトへのページ・ファビコン取得を一元的に行うHTTPクライアント
+// 共有のHttpClient(HTTP/2対応・コネクション再利用)を使い、全体とホスト単位の同時接続数、レスポンスサイズを制限する
+// 枠が空いていない取得は待機列に入れ、呼び出し元のスレッドを止めずに、枠が空いた時点で開始する
+@Service
+public class HttpFetchService {
+
+    public static final String USER_AGENT = "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/58.0.3029.110 Safari/537.36";
+
+    private final HttpClient httpClient;
+    private final int maxConcurrency;
+    private final int maxConnectionsPerHost;
+    // 以下の3つはpermitLockで保護する
+    private final Object permitLock = new Object();
+    private int activeFetches;
+    // 取得中のホストごとの件数（取得中のものがないホストは保持しない）
+    private final Map<String, Integer> activeFetchesByHost = new HashMap<>();
+    private final Deque<PendingFetch> pendingFetches = new ArrayDeque<>();
+    private final long defaultMaxBytes;
+    private final Duration requestTimeout;
+    private final Duration acquireTimeout;
+
+    public HttpFetchService(@Value("${fetch.max-concurrency:16}") int maxConcurrency,
+                            @Value("${fetch.max-connections-per-host:2}") int maxConnectionsPerHost,
+                            @Value("${fetch.max-response-bytes:1048576}") long defaultMaxBytes,
+                            @Value("${fetch.connect-timeout:5000}") long connectTimeoutMillis,
+                            @Value("${fetch.request-timeout:5000}") long requestTimeoutMillis) {
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2) // 非対応のサーバーではHTTP/1.1にフォールバックする
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofMillis(connectTimeoutMillis))
+                .build();
+        this.maxConcurrency = maxConcurrency;
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.defaultMaxBytes = defaultMaxBytes;
+        this.requestTimeout = Duration.ofMillis(requestTimeoutMillis);
+        this.acquireTimeout = Duration.ofMillis(requestTimeoutMillis);
+    }
+
+    public FetchResponse fetch(String url) throws IOException {
+        return fetch(url, defaultMaxBytes, Map.of());
+    }
+
+    public FetchResponse fetch(String url, long maxBytes) throws IOException {
+        return fetch(url, maxBytes, Map.of());
+    }
+
+    // stopMarker（ASCII、大文字小文字を区別しない）を受信した時点で読み込みを打ち切る
+    public FetchResponse fetchUntil(String url, long maxBytes, byte[] stopMarker) throws IOException {
+        return fetchUntil(url, maxBytes, Map.of(), stopMarker);
+    }
+
+    public FetchResponse fetchUntil(String url, long maxBytes, Map<String, String> headers, byte[] stopMarker) throws IOException {
+        return join(url, fetchAsync(url, maxBytes, headers, stopMarker));
+    }
+
+    // 同期版。非同期版の結果を待ち合わせ、失敗時はIOExceptionとして返す
+    public FetchResponse fetch(String url, long maxBytes, Map<String, String> headers) throws IOException {
+        return join(url, fetchAsync(url, maxBytes, headers));
+    }
+
+    private FetchResponse join(String url, CompletableFuture<FetchResponse> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException("Failed to fetch " + url + ": " + cause.getMessage(), cause);
+        }
+    }
+
+    public CompletableFuture<FetchResponse> fetchAsync(String url, long maxBytes, Map<String, String> headers) {
+        return fetchAsync(url, maxBytes, headers, null);
+    }
+
+    private CompletableFuture<FetchResponse> fetchAsync(String url, long maxBytes, Map<String, String> headers, byte[] stopMarker) {
+        URI uri;
+        try {
+            uri = toUri(url);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        String host = uri.getHost();
+        if (host == null || !("http".equalsIgnoreCase(uri.getScheme()) || "https".equalsIgnoreCase(uri.getScheme()))) {
+            return CompletableFuture.failedFuture(new IOException("Unsupported URL: " + url));
+        }
+
+        HttpRequest.Builder requestBuilder = HttpRequest.newBuilder(uri)
+                .timeout(requestTimeout)
+                .header("User-Agent", USER_AGENT)
+                .GET();
+        headers.forEach(requestBuilder::header);
+
+        CompletableFuture<FetchResponse> result = new CompletableFuture<>();
+        PendingFetch fetch = new PendingFetch(url, host.toLowerCase(), requestBuilder.build(), maxBytes, stopMarker, result);
+        if (reserve(fetch)) {
+            start(fetch);
+            return result;
+        }
+        // 枠が空くのを待つ間は呼び出し元のスレッドを止めず、待ち時間を過ぎたら失敗させる
+        CompletableFuture.delayedExecutor(acquireTimeout.toMillis(), TimeUnit.MILLISECONDS).execute(() -> {
+            boolean expired;
+            synchronized (permitLock) {
+                expired = pendingFetches.remove(fetch);
+            }
+            if (expired) {
+                result.completeExceptionally(new IOException("Too many concurrent fetches for host " + host));
+            }
+        });
+        return result;
+    }
+
+    // 枠の空きを待つ取得
+    private record PendingFetch(String url, String hostKey, HttpRequest request, long maxBytes, byte[] stopMarker,
+                                CompletableFuture<FetchResponse> result) {
+    }
+
+    // 全体とホスト単位の枠が空いていれば確保し、空いていなければ待機列に入れる
+    private boolean reserve(PendingFetch fetch) {
+        synchronized (permitLock) {
+            if (tryReserve(fetch.hostKey())) {
+                return true;
+            }
+            pendingFetches.addLast(fetch);
+            return false;
+        }
+    }
+
+    private boolean tryReserve(String hostKey) {
+        if (activeFetches >= maxConcurrency || activeFetchesByHost.getOrDefault(hostKey, 0) >= maxConnectionsPerHost) {
+            return false;
+        }
+        activeFetches++;
+        activeFetchesByHost.merge(hostKey, 1, Integer::sum);
+        return true;
+    }
+
+    private void start(PendingFetch fetch) {
+        CompletableFuture<HttpResponse<LimitedBody>> exchange;
+        try {
+            exchange = httpClient.sendAsync(fetch.request(), responseInfo -> new LimitedBodySubscriber(fetch.maxBytes(), fetch.stopMarker()));
+        } catch (RuntimeException e) {
+            release(fetch.hostKey());
+            fetch.result().completeExceptionally(new IOException("Failed to fetch " + fetch.url(), e));
+            return;
+        }
+        // ヘッダー受信後のボディ読み込みも含めて打ち切る
+        // 結果を失敗にするだけでは通信が続くため、送信の結果をキャンセルして通信自体を中断する（JDK 16以降）
+        CompletableFuture.delayedExecutor(requestTimeout.toMillis() * 2, TimeUnit.MILLISECONDS)
+                .execute(() -> exchange.cancel(true));
+        // 通信が終わってから（キャンセルした場合は中断してから）枠を返す
+        exchange.whenComplete((response, error) -> {
+            release(fetch.hostKey());
+            if (error == null) {
+                fetch.result().complete(new FetchResponse(response.uri(), response.statusCode(), response.headers(),
+                        response.body().bytes(), response.body().truncated()));
+            } else if (error instanceof CancellationException) {
+                fetch.result().completeExceptionally(new HttpTimeoutException("Timed out fetching " + fetch.url()));
+            } else {
+                fetch.result().completeExceptionally(error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error);
+            }
+        });
+    }
+
+    // 枠を返し、待機列の取得を先頭から順に、枠の空いたものだけ開始する
+    // 枠の空かないホストの取得は飛ばすため、遅いホストへの取得が他のホストへの取得を止めない
+    private void release(String hostKey) {
+        List<PendingFetch> startable = new ArrayList<>();
+        synchronized (permitLock) {
+            activeFetches--;
+            activeFetchesByHost.computeIfPresent(hostKey, (key, count) -> count > 1 ? count - 1 : null);
+            Iterator<PendingFetch> iterator = pendingFetches.iterator();
+            while (activeFetches < maxConcurrency && iterator.hasNext()) {
+                PendingFetch next = iterator.next();
+                if (tryReserve(next.hostKey())) {
+                    iterator.remove();
+                    startable.add(next);
+                }
+            }
+        }
+        startable.forEach(this::start);
+    }
+
+    // 日本語やスペースを含むURLも扱えるよう、ASCII形式のURIに変換する
+    private URI toUri(String url) throws IOException {
+        try {
+            return URI.create(URI.create(url).toASCIIString());
+        } catch (IllegalArgumentException e) {
+            // エンコードされていない文字を含む場合は、構成要素ごとにエンコードし直す
+            try {
+                URL parsed = new URL(url);
+                URI uri = new URI(parsed.getProtocol(), parsed.getUserInfo(), parsed.getHost(), parsed.getPort(),
+                        parsed.getPath(), parsed.getQuery(), parsed.getRef());
+                return URI.create(uri.toASCIIString());
+            } catch (MalformedURLException | URISyntaxException | IllegalArgumentException ex) {
+                throw new IOException("Invalid URL: " + url, ex);
+            }
+        }
+    }
+
+    // 取得結果
+    public record FetchResponse(URI uri, int statusCode, HttpHeaders headers, byte[] body, boolean truncated) {
+
+        public boolean isSuccessful() {
+            return statusCode >= 200 && statusCode < 300;
+        }
+
+        public Optional<String> contentType() {
+            return headers.firstValue("Content-Type");
+        }
+
+        // Content-Typeヘッダーのcharset指定（なければnull）
+        public String charset() {
+            return contentType()
+                    .map(value -> {
+                        for (String part : value.split(";")) {
+                            String trimmed = part.trim();
+                            if (trimmed.toLowerCase().startsWith("charset=")) {
+                                return trimmed.substring("charset=".length()).replace("\"", "").trim();
+                            }
+                        }
+                        return null;
+                    })
+                    .orElse(null);
+        }
+    }
+
+    private record LimitedBody(byte[] bytes, boolean truncated) {
+    }
+
+    // 上限バイト数に達したら（または終了マーカーを受信したら）読み込みを中断するBodySubscriber
+    private static class LimitedBodySubscriber implements HttpResponse.BodySubscriber<LimitedBody> {
+
+        private final long maxBytes;
+        private final byte[] stopMarker;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final CompletableFuture<LimitedBody> result = new CompletableFuture<>();
+        private Flow.Subscription subscription;
+        private int matchedMarkerBytes;
+
+        LimitedBodySubscriber(long maxBytes, byte[] stopMarker) {
+            this.maxBytes = maxBytes;
+            this.stopMarker = stopMarker;
+        }
+
+        @Override
+        public CompletionStage<LimitedBody> getBody() {
+            return result;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> items) {
+            if (result.isDone()) {
+                return;
+            }
+            for (ByteBuffer item : items) {
+                long room = maxBytes - buffer.size();
+                if (item.remaining() > room) {
+                    // 上限を超える分は読み捨てて接続を打ち切る
+                    byte[] chunk = new byte[(int) room];
+                    item.get(chunk);
+                    buffer.write(chunk, 0, chunk.length);
+                    subscription.cancel();
+                    result.complete(new LimitedBody(buffer.toByteArray(), true));
+                    return;
+                }
+                byte[] chunk = new byte[item.remaining()];
+                item.get(chunk);
+                int markerEnd = findStopMarkerEnd(chunk);
+                buffer.write(chunk, 0, markerEnd < 0 ? chunk.length : markerEnd);
+                if (markerEnd >= 0) {
+                    subscription.cancel();
+                    result.complete(new LimitedBody(buffer.toByteArray(), true));
+                    return;
+                }
+            }
+        }
+
+        // マーカー末尾の直後の位置を返す（見つからなければ-1）
+        // チャンクの境界をまたいだマーカーも検出できるよう、一致済みのバイト数を保持して照合する
+        private int findStopMarkerEnd(byte[] chunk) {
+            if (stopMarker == null) {
+                return -1;
+            }
+            for (int i = 0; i < chunk.length; i++) {
+                int lower = Character.toLowerCase(chunk[i] & 0xff);
+                if (lower == stopMarker[matchedMarkerBytes]) {
+                    matchedMarkerBytes++;
+                    if (matchedMarkerBytes == stopMarker.length) {
+                        return i + 1;
+                    }
+                } else {
+                    matchedMarkerBytes = lower == stopMarker[0] ? 1 : 0;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            result.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            result.complete(new LimitedBody(buffer.toByteArray(), false));
+        }
+    }
+}
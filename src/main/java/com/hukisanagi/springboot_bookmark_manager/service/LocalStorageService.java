@@ -6,9 +6,11 @@ import org.springframework.stereotype.Service;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Comparator;
+import java.util.Optional;
 import java.io.File;
 
 @Service
@@ -49,29 +51,19 @@ public class LocalStorageService implements StorageService {
     }
 
     @Override
-    public String copyFile(String sourceFileName, String destinationFileName) {
-        try {
-            Path sourcePath = this.rootLocation.resolve(Paths.get(sourceFileName)).normalize().toAbsolutePath();
-            Path destinationPath = this.rootLocation.resolve(Paths.get(destinationFileName)).normalize().toAbsolutePath();
-            Files.createDirectories(destinationPath.getParent());
-            Files.copy(sourcePath, destinationPath, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
-            return destinationFileName;
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to copy file.", e);
-        }
+    public boolean exists(String fileName) {
+        return Files.exists(this.rootLocation.resolve(Paths.get(fileName)).normalize().toAbsolutePath());
     }
 
     @Override
-    public void clearRankingFavicons() {
-        Path rankingLocation = this.rootLocation.resolve("ranking").normalize().toAbsolutePath();
-        if (Files.exists(rankingLocation) && Files.isDirectory(rankingLocation)) {
-            try (var stream = Files.walk(rankingLocation)) {
-                stream.sorted(Comparator.reverseOrder())
-                      .map(Path::toFile)
-                      .forEach(File::delete);
-            } catch (IOException e) {
-                throw new RuntimeException("Failed to clear ranking favicons.", e);
-            }
+    public Optional<byte[]> readFile(String fileName) {
+        Path filePath = this.rootLocation.resolve(Paths.get(fileName)).normalize().toAbsolutePath();
+        try {
+            return Optional.of(Files.readAllBytes(filePath));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read file: " + fileName, e);
         }
     }
 
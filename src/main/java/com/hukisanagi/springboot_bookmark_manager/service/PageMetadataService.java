@@ -0,0 +1,179 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// 外部サイトへのHTTPアクセス（タイトル・ファビコン取得）を担当するサービス
+// DBコネクションを保持したまま通信しないよう、このクラスはトランザクションを持たない
+// 通信は全てHttpFetchServiceを経由し、同時接続数とレスポンスサイズの上限を適用する
+@Service
+public class PageMetadataService {
+
+    private static final Logger logger = LoggerFactory.getLogger(PageMetadataService.class);
+
+    // ファビコンとして受け付ける最大サイズ
+    private static final long MAX_FAVICON_BYTES = 512 * 1024;
+
+    private final HttpFetchService httpFetchService;
+    private final FaviconImageProcessor faviconImageProcessor;
+    private final long maxHeadBytes;
+
+    public PageMetadataService(HttpFetchService httpFetchService, FaviconImageProcessor faviconImageProcessor,
+                               @Value("${fetch.max-head-bytes:262144}") long maxHeadBytes) {
+        this.httpFetchService = httpFetchService;
+        this.faviconImageProcessor = faviconImageProcessor;
+        this.maxHeadBytes = maxHeadBytes;
+    }
+
+    // ページの<head>の取得結果。notModifiedの場合はタイトル等は空
+    public record PageHead(boolean notModified, String title, List<String> iconUrls, String etag, String lastModified) {
+    }
+
+    // ページの<head>部分だけを受信して解析する（</head>または上限バイト数で受信を打ち切る）
+    // etag/lastModifiedを渡すと条件付きリクエストになり、変更がなければnotModifiedを返す
+    public PageHead fetchPageHead(String url, String etag, String lastModified) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        if (etag != null) {
+            headers.put("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            headers.put("If-Modified-Since", lastModified);
+        }
+        HttpFetchService.FetchResponse response = httpFetchService.fetchUntil(url, maxHeadBytes, headers, HtmlHeadParser.HEAD_END_MARKER);
+        if (response.statusCode() == 304) {
+            return new PageHead(true, null, List.of(), etag, lastModified);
+        }
+        if (!response.isSuccessful()) {
+            throw new IOException("HTTP status " + response.statusCode());
+        }
+        HtmlHeadParser.HeadMetadata head = HtmlHeadParser.parse(response.body(), response.charset(), response.uri().toString());
+        String title = head.title();
+        if (title == null || title.isEmpty()) {
+            title = head.ogTitle();
+        }
+        return new PageHead(false, title, head.iconUrls(), response.headers().firstValue("ETag").orElse(null),
+                response.headers().firstValue("Last-Modified").orElse(null));
+    }
+
+    // ページからファビコンを探してダウンロードし、表示用に縮小したPNGのバイト列を返す（取得できなければnull）
+    // knownFaviconUrlにタイトルの取得時に求めたURLを渡すと、ページを取得し直さずに使う（nullならページを取得して探す）
+    public byte[] fetchFavicon(String pageUrl, String knownFaviconUrl) {
+        String faviconUrl = knownFaviconUrl != null ? knownFaviconUrl : extractFaviconUrl(pageUrl);
+        byte[] faviconBytes = null;
+
+        if (faviconUrl != null) {
+            faviconBytes = downloadFavicon(faviconUrl);
+        }
+
+        // ページからの取得に失敗した場合、外部APIを試す
+        if (faviconBytes == null) {
+            logger.info("Favicon not found in page, trying external APIs for {}", pageUrl);
+            faviconBytes = downloadFaviconFromExternalApis(pageUrl);
+        }
+        return faviconBytes;
+    }
+
+    // 取得した<head>のアイコンのURLから、ファビコンとしてダウンロードするURLを求める
+    // <link rel="icon">, <link rel="shortcut icon">, <link rel="apple-touch-icon">などの最初のもの（絶対URL）
+    // 見つからない場合は/favicon.ico（ページのURLが不正な場合はnull）
+    static String selectFaviconUrl(String pageUrl, List<String> iconUrls) {
+        if (!iconUrls.isEmpty() && !iconUrls.get(0).isEmpty()) {
+            return iconUrls.get(0);
+        }
+        try {
+            URL urlObj = new URL(pageUrl);
+            return urlObj.getProtocol() + "://" + urlObj.getHost() + "/favicon.ico";
+        } catch (MalformedURLException e) {
+            logger.error("Malformed URL when trying default favicon: " + pageUrl, e);
+            return null;
+        }
+    }
+
+    private String extractFaviconUrl(String pageUrl) {
+        String faviconPath = null;
+        try {
+            faviconPath = selectFaviconUrl(pageUrl, fetchPageHead(pageUrl, null, null).iconUrls());
+        } catch (Exception e) {
+            logger.warn("Could not extract favicon from " + pageUrl + ". Error: " + e.getMessage());
+            // エラー時はデフォルトのfavicon.icoを試す
+            faviconPath = selectFaviconUrl(pageUrl, List.of());
+        }
+        return faviconPath;
+    }
+
+    private byte[] downloadFavicon(String faviconPath) {
+        logger.info("Attempting to download favicon from: {}", faviconPath);
+        if (faviconPath == null || faviconPath.isEmpty()) {
+            logger.warn("Favicon URL is null or empty. Skipping download.");
+            return null;
+        }
+
+        try {
+            HttpFetchService.FetchResponse response = downloadImage(faviconPath);
+            if (response == null) {
+                return null;
+            }
+            return faviconImageProcessor.normalize(response.body(), response.contentType().orElse(null), faviconPath);
+        } catch (Exception e) {
+            logger.error("Failed to download and process favicon from " + faviconPath, e);
+            return null;
+        }
+    }
+
+    // 画像を取得する。エラーレスポンスやサイズ上限を超えた場合はnull
+    private HttpFetchService.FetchResponse downloadImage(String imageUrl) throws IOException {
+        HttpFetchService.FetchResponse response = httpFetchService.fetch(imageUrl, MAX_FAVICON_BYTES);
+        if (!response.isSuccessful()) {
+            logger.warn("Favicon request to {} returned HTTP status {}.", imageUrl, response.statusCode());
+            return null;
+        }
+        if (response.truncated()) {
+            logger.warn("Favicon from {} exceeds {} bytes. Skipping.", imageUrl, MAX_FAVICON_BYTES);
+            return null;
+        }
+        return response;
+    }
+
+    private byte[] downloadFaviconFromExternalApis(String pageUrl) {
+        String domain;
+        try {
+            domain = new URL(pageUrl).getHost();
+        } catch (MalformedURLException e) {
+            logger.error("Invalid URL for external API favicon fetching: {}", pageUrl, e);
+            return null;
+        }
+
+        // 1. Google Favicon API
+        byte[] favicon = tryDownloadFavicon("https://www.google.com/s2/favicons?domain=" + domain + "&sz=64");
+        if (favicon != null) {
+            logger.info("Successfully downloaded favicon from Google API for {}", pageUrl);
+            return favicon;
+        }
+
+        logger.warn("Failed to download favicon from all external APIs for {}", pageUrl);
+        return null;
+    }
+
+    private byte[] tryDownloadFavicon(String apiUrl) {
+        try {
+            logger.info("Trying to download favicon from API: {}", apiUrl);
+            HttpFetchService.FetchResponse response = downloadImage(apiUrl);
+            if (response == null) {
+                return null;
+            }
+            return faviconImageProcessor.normalize(response.body(), response.contentType().orElse(null), apiUrl);
+        } catch (Exception e) {
+            logger.warn("Failed to download favicon from API: {}. Error: {}", apiUrl, e.getMessage());
+            return null;
+        }
+    }
+}
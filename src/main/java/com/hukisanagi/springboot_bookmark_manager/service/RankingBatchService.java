@@ -1,31 +1,35 @@
 package com.hukisanagi.springboot_bookmark_manager.service;
 
-import com.hukisanagi.springboot_bookmark_manager.model.Bookmark;
-import com.hukisanagi.springboot_bookmark_manager.model.BookmarkClickLog;
-import com.hukisanagi.springboot_bookmark_manager.model.RankingCache;
-import com.hukisanagi.springboot_bookmark_manager.model.RankingItem;
-import com.hukisanagi.springboot_bookmark_manager.repository.BookmarkClickLogRepository;
-import com.hukisanagi.springboot_bookmark_manager.repository.BookmarkRepository;
+import com.hukisanagi.springboot_bookmark_manager.model.RankingGeneration;
 import com.hukisanagi.springboot_bookmark_manager.repository.RankingCacheRepository;
+import com.hukisanagi.springboot_bookmark_manager.repository.RankingGenerationRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Pageable;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.context.event.EventListener;
 import org.springframework.boot.context.event.ApplicationReadyEvent;
 
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Optional;
+import java.util.PriorityQueue;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.Map;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
 import de.malkusch.whoisServerList.publicSuffixList.PublicSuffixList;
 import de.malkusch.whoisServerList.publicSuffixList.PublicSuffixListFactory;
 
@@ -34,18 +38,67 @@ public class RankingBatchService {
 
     private static final Logger logger = LoggerFactory.getLogger(RankingBatchService.class);
 
-    private final BookmarkRepository bookmarkRepository;
+    // 総合スコア以外のランキングでキャッシュする件数
+    static final int RANKING_SIZE = 100;
+    private static final int WRITE_BATCH_SIZE = 500;
+
+    // 公開ブックマーク（2人以上が登録したURL）ごとに、ユニークユーザー数・合計クリック数・直近クリック数を1回で取得する
+    // 書き込み時に更新しているURLごとの集計値（url_stats）と日ごとのクリック数（url_click_bucket）を読み、ブックマークとクリックログは走査しない
+    // 直近クリック数は2人以上がクリックしたURLのみ数える（いずれかの日に複数のユーザーがクリックしたか、日ごとの最初のユーザーが複数いる）
+    private static final String AGGREGATE_RANKING_SQL =
+            "SELECT s.url_id AS url_id, m.url AS url, s.unique_user_count AS unique_user_count, " +
+            "s.total_click_count AS total_click_count, COALESCE(r.recent_click_count, 0) AS recent_click_count " +
+            "FROM url_stats s JOIN url_metadata m ON m.id = s.url_id LEFT JOIN (" +
+            "SELECT k.url_id AS url_id, SUM(k.click_count) AS recent_click_count FROM url_click_bucket k " +
+            "WHERE k.bucket_date >= ? GROUP BY k.url_id " +
+            "HAVING MAX(CASE WHEN k.multiple_clickers THEN 1 ELSE 0 END) = 1 OR COUNT(DISTINCT k.first_clicker_id) > 1" +
+            ") r ON r.url_id = s.url_id WHERE s.public_url = TRUE";
+
+    private static final String INSERT_RANKING_SQL =
+            "INSERT INTO ranking_cache_entry (generation, url_id, url, title, overall_score, last_updated) VALUES (?, ?, ?, ?, ?, ?)";
+
+    // タイトルとファビコンを設定する行を、保存済みのタイトルとその取得日時が期限切れかどうかとともに一定件数ずつ取得する
+    private static final String FIND_ENTRIES_TO_ENRICH_SQL =
+            "SELECT e.id AS id, e.url_id AS url_id, e.url AS url, m.title AS stored_title, " +
+            "(m.fetched_at IS NULL OR m.fetched_at < ?) AS title_stale " +
+            "FROM ranking_cache_entry e LEFT JOIN url_metadata m ON m.id = e.url_id " +
+            "WHERE e.generation = ? AND e.id > ? ORDER BY e.id LIMIT " + WRITE_BATCH_SIZE;
+
+    // URLごとのタイトルの使用数（2人以上が使っているもののみ）
+    private static final String FIND_FREQUENT_TITLES_SQL =
+            "SELECT url_id, title, COUNT(*) AS title_count FROM bookmark " +
+            "WHERE url_id IN (%s) AND title IS NOT NULL AND TRIM(title) <> '' " +
+            "GROUP BY url_id, title HAVING COUNT(*) > 1";
+
+    // URLごとのファビコン（内容のハッシュ値で保存されたもののみ）
+    private static final String FIND_FAVICON_PATHS_SQL =
+            "SELECT url_id, MIN(favicon_path) AS favicon_path FROM bookmark WHERE url_id IN (%s) AND favicon_path LIKE ? GROUP BY url_id";
+
+    // 書き込みに失敗して公開されなかった世代を削除するまでの時間
+    private static final long ABANDONED_GENERATION_HOURS = 24;
+
     private final RankingCacheRepository rankingCacheRepository;
-    private final BookmarkClickLogRepository bookmarkClickLogRepository;
+    private final RankingGenerationRepository rankingGenerationRepository;
     private final PublicSuffixList publicSuffixList;
-    private final StorageService storageService;
-
-    public RankingBatchService(BookmarkRepository bookmarkRepository, RankingCacheRepository rankingCacheRepository, BookmarkClickLogRepository bookmarkClickLogRepository, StorageService storageService) {
-        this.bookmarkRepository = bookmarkRepository;
+    private final TitleRefreshService titleRefreshService;
+    private final RankingSnapshotService rankingSnapshotService;
+    private final BookmarkUrlBackfillService bookmarkUrlBackfillService;
+    private final FaviconMigrationService faviconMigrationService;
+    private final UrlStatsService urlStatsService;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+
+    public RankingBatchService(RankingCacheRepository rankingCacheRepository, RankingGenerationRepository rankingGenerationRepository, TitleRefreshService titleRefreshService, RankingSnapshotService rankingSnapshotService, BookmarkUrlBackfillService bookmarkUrlBackfillService, FaviconMigrationService faviconMigrationService, UrlStatsService urlStatsService, JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager) {
         this.rankingCacheRepository = rankingCacheRepository;
-        this.bookmarkClickLogRepository = bookmarkClickLogRepository;
+        this.rankingGenerationRepository = rankingGenerationRepository;
         this.publicSuffixList = new PublicSuffixListFactory().build();
-        this.storageService = storageService;
+        this.titleRefreshService = titleRefreshService;
+        this.rankingSnapshotService = rankingSnapshotService;
+        this.bookmarkUrlBackfillService = bookmarkUrlBackfillService;
+        this.faviconMigrationService = faviconMigrationService;
+        this.urlStatsService = urlStatsService;
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
     }
 
     @EventListener(ApplicationReadyEvent.class)
@@ -55,193 +108,250 @@ public class RankingBatchService {
     }
 
     // 毎日午前4時にランキングを再集計
+    // 新しい世代に書き込み、すべて書き終えてから公開する。表示中のランキングは公開まで変わらない
     @Scheduled(cron = "0 0 4 * * *")
-    @Transactional
     public void updateRankingCache() {
         logger.info("Starting ranking cache update...");
         long startTime = System.currentTimeMillis();
 
-        // 既存のキャッシュをクリア
-        rankingCacheRepository.deleteAll();
+        // url_idが未設定のブックマークは集計に含まれないため、先に設定する
+        bookmarkUrlBackfillService.backfill();
+        // 旧形式のファビコンはランキングから参照できないため、先に内容のハッシュ値で保存し直す
+        faviconMigrationService.migrate();
+
+        // URLごとの集計値をブックマークとクリックログから数え直して突き合わせる（設定で無効にできる）
+        LocalDateTime recentSince = LocalDateTime.now().minusMonths(1); // 過去1ヶ月以内のクリックを対象とする
+        urlStatsService.prepareForRanking(recentSince);
 
-        // ランキングファビコンをクリア
-        storageService.clearRankingFavicons();
+        Long generation = rankingGenerationRepository.saveAndFlush(new RankingGeneration(LocalDateTime.now())).getId();
 
-        // 各ランキングタイプごとにデータを集計し、キャッシュに保存
-        updateRankingTypeCache("overallScore");
-        updateRankingTypeCache("uniqueUserCount");
-        updateRankingTypeCache("totalClickCount");
-        updateRankingTypeCache("recentClickCount");
+        // 1回の集計クエリでURLごとの全指標を求め、総合スコアは全件、その他は上位100件をキャッシュに保存
+        Date threshold = Date.valueOf(recentSince.toLocalDate());
+        transactionTemplate.executeWithoutResult(status -> {
+            RankingAggregation aggregation = new RankingAggregation(generation, LocalDateTime.now());
+            jdbcTemplate.query(connection -> {
+                PreparedStatement statement = connection.prepareStatement(AGGREGATE_RANKING_SQL);
+                statement.setDate(1, threshold);
+                statement.setFetchSize(WRITE_BATCH_SIZE); // 結果を一度に読み込まず少しずつ取得する
+                return statement;
+            }, aggregation);
+            aggregation.finish();
+        });
 
-        // 最後にタイトルとファビコンを設定
-        enrichAllRankingCacheItems();
+        // タイトルとファビコンを設定
+        enrichGeneration(generation);
+
+        // 公開日時を設定して表示中の世代を切り替える
+        transactionTemplate.executeWithoutResult(status -> rankingGenerationRepository.publish(generation, LocalDateTime.now()));
+        rankingSnapshotService.refresh();
+
+        purgeOldGenerations(generation);
 
         long endTime = System.currentTimeMillis();
-        logger.info("Ranking cache update finished in {} ms.", (endTime - startTime));
+        logger.info("Ranking cache update finished in {} ms. (generation {})", (endTime - startTime), generation);
     }
 
-    private void updateRankingTypeCache(String type) {
-        List<RankingItem> rankingItems;
-        Pageable pageable = PageRequest.of(0, 100); // 上位100件をキャッシュ
+    // 公開した世代と、その直前の世代（切り替え時に表示中だったリクエストが参照している可能性がある）を残して削除する
+    private void purgeOldGenerations(Long generation) {
+        Optional<Long> previous = rankingGenerationRepository.findPreviousGenerationId(generation);
+        if (previous.isEmpty()) {
+            return;
+        }
+        LocalDateTime abandonedBefore = LocalDateTime.now().minusHours(ABANDONED_GENERATION_HOURS);
+        Integer deleted = transactionTemplate.execute(status -> {
+            int count = rankingCacheRepository.deleteGenerationsBefore(previous.get(), abandonedBefore);
+            rankingGenerationRepository.deleteGenerationsBefore(previous.get(), abandonedBefore);
+            return count;
+        });
+        logger.info("Purged {} ranking cache items of old generations.", deleted);
+    }
 
-        switch (type) {
-            case "totalClickCount":
-                rankingItems = bookmarkRepository.findTopBookmarksByTotalClickCount(pageable);
-                break;
-            case "recentClickCount":
-                // 過去1ヶ月以内のクリックを対象とする
-                LocalDateTime thresholdTimeRecent = LocalDateTime.now().minusMonths(1);
-                rankingItems = bookmarkClickLogRepository.findRecentClicksByTotalClickCount(thresholdTimeRecent, pageable);
-                break;
-            case "overallScore":
-                // 各ランキングデータを取得
-                List<RankingItem> uniqueUserRanking = bookmarkRepository.findTopBookmarksByUniqueUserCount(Pageable.unpaged());
-                List<RankingItem> totalClickRanking = bookmarkRepository.findTopBookmarksByTotalClickCount(Pageable.unpaged());
-                LocalDateTime thresholdTimeOverall = LocalDateTime.now().minusMonths(1);
-                List<RankingItem> recentClickRanking = bookmarkClickLogRepository.findRecentClicksByTotalClickCount(thresholdTimeOverall, Pageable.unpaged());
-
-                // URLをキーとして各スコアをマッピング
-                Map<String, OverallScoreItem> overallScores = new HashMap<>();
-
-                // ユニークユーザー数スコア (重み: 2)
-                uniqueUserRanking.forEach(item -> {
-                    overallScores.computeIfAbsent(item.getUrl(), url -> new OverallScoreItem(item.getUrl(), item.getTitle(), item.getFaviconPath()))
-                                 .addUniqueUserCount(item.getCountValue() * 2);
-                });
-
-                // 合計クリック数スコア (重み: 1)
-                totalClickRanking.forEach(item -> {
-                    overallScores.computeIfAbsent(item.getUrl(), url -> new OverallScoreItem(item.getUrl(), item.getTitle(), item.getFaviconPath()))
-                                 .addTotalClickCount(item.getCountValue() * 1); // RankingItemのcountValueにSUM(totalClickCount)がマッピングされている
-                });
-
-                // 直近クリック数スコア (重み: 3)
-                recentClickRanking.forEach(item -> {
-                    overallScores.computeIfAbsent(item.getUrl(), url -> new OverallScoreItem(item.getUrl(), item.getTitle(), item.getFaviconPath()))
-                                 .addRecentClickCount(item.getCountValue() * 3); // RankingItemのcountValueにCOUNT(bcl)がマッピングされている
-                });
-
-                // 総合スコアでソートし、RankingItemに変換
-                rankingItems = overallScores.values().stream()
-                        .sorted(Comparator.comparing(OverallScoreItem::getOverallScore).reversed())
-                        .map(OverallScoreItem::toRankingItem)
-                        .collect(Collectors.toList());
-                break;
-            case "uniqueUserCount":
-            default:
-                rankingItems = bookmarkRepository.findTopBookmarksByUniqueUserCount(pageable);
-                break;
+    // 集計結果を1行ずつ受け取り、総合スコアの行をまとめて書き込みながら、各ランキングの上位を固定サイズのヒープで選ぶ
+    private class RankingAggregation implements RowCallbackHandler {
+
+        private final Long generation;
+        private final Timestamp lastUpdated;
+        private final List<Object[]> pendingInserts = new ArrayList<>(WRITE_BATCH_SIZE);
+        private final TopN uniqueUserTop = new TopN(RANKING_SIZE);
+        private final TopN totalClickTop = new TopN(RANKING_SIZE);
+        private final TopN recentClickTop = new TopN(RANKING_SIZE);
+        private int count = 0;
+
+        RankingAggregation(Long generation, LocalDateTime lastUpdated) {
+            this.generation = generation;
+            this.lastUpdated = Timestamp.valueOf(lastUpdated);
         }
 
-        for (RankingItem item : rankingItems) {
-            RankingCache rankingCache = rankingCacheRepository.findByUrl(item.getUrl())
-                    .orElse(new RankingCache());
-
-            rankingCache.setUrl(item.getUrl());
-            rankingCache.setTitle(item.getUrl()); // 仮のタイトルとしてURLを設定
-            rankingCache.setLastUpdated(LocalDateTime.now());
-
-            // 各ランキングタイプに応じた値を設定
-            switch (type) {
-                case "uniqueUserCount":
-                    rankingCache.setUniqueUserCount(item.getCountValue());
-                    break;
-                case "totalClickCount":
-                    rankingCache.setTotalClickCount(item.getCountValue());
-                    break;
-                case "recentClickCount":
-                    rankingCache.setRecentClickCount(item.getCountValue());
-                    break;
-                case "overallScore":
-                    rankingCache.setOverallScore(item.getCountValue());
-                    break;
+        @Override
+        public void processRow(ResultSet rs) throws SQLException {
+            long urlId = rs.getLong("url_id");
+            String url = rs.getString("url");
+            long uniqueUserCount = rs.getLong("unique_user_count");
+            long totalClickCount = rs.getLong("total_click_count");
+            long recentClickCount = rs.getLong("recent_click_count");
+
+            uniqueUserTop.offer(url, uniqueUserCount);
+            totalClickTop.offer(url, totalClickCount);
+            if (recentClickCount > 0) {
+                recentClickTop.offer(url, recentClickCount);
+            }
+
+            // 仮のタイトルとしてURLを設定
+            pendingInserts.add(new Object[] {generation, urlId, url, truncate(url, 512), overallScore(uniqueUserCount, totalClickCount, recentClickCount), lastUpdated});
+            count++;
+            if (pendingInserts.size() >= WRITE_BATCH_SIZE) {
+                flushInserts();
             }
-            rankingCacheRepository.save(rankingCache);
         }
-        logger.info("Cached {} items for ranking type: {}", rankingItems.size(), type);
-    }
 
-    private void enrichAllRankingCacheItems() {
-        logger.info("Starting to enrich all ranking cache items with titles and favicons...");
-        List<RankingCache> allCachedItems = rankingCacheRepository.findAll();
-    
-        if (allCachedItems.isEmpty()) {
-            logger.info("No cached items to enrich.");
-            return;
+        void finish() {
+            flushInserts();
+            jdbcTemplate.batchUpdate("UPDATE ranking_cache_entry SET unique_user_count = ? WHERE generation = ? AND url = ?",
+                    uniqueUserTop.toUpdateArgs(generation));
+            jdbcTemplate.batchUpdate("UPDATE ranking_cache_entry SET total_click_count = ? WHERE generation = ? AND url = ?",
+                    totalClickTop.toUpdateArgs(generation));
+            jdbcTemplate.batchUpdate("UPDATE ranking_cache_entry SET recent_click_count = ? WHERE generation = ? AND url = ?",
+                    recentClickTop.toUpdateArgs(generation));
+            logger.info("Cached {} items for ranking type: overallScore", count);
+            logger.info("Cached {} items for ranking type: uniqueUserCount", uniqueUserTop.size());
+            logger.info("Cached {} items for ranking type: totalClickCount", totalClickTop.size());
+            logger.info("Cached {} items for ranking type: recentClickCount", recentClickTop.size());
         }
-    
-        List<String> urls = allCachedItems.stream().map(RankingCache::getUrl).collect(Collectors.toList());
-        List<Bookmark> allBookmarksForUrls = bookmarkRepository.findByUrlIn(urls);
-        Map<String, List<Bookmark>> bookmarksByUrl = allBookmarksForUrls.stream()
-                .collect(Collectors.groupingBy(Bookmark::getUrl));
-    
-        for (RankingCache cacheItem : allCachedItems) {
-            List<Bookmark> relatedBookmarks = bookmarksByUrl.get(cacheItem.getUrl());
-    
-            // タイトルを準備
-            String title = prepareRepresentativeTitle(cacheItem.getUrl(), relatedBookmarks);
-            cacheItem.setTitle(title);
-    
-            // ファビコンを準備
-            String faviconPath = prepareRepresentativeFaviconPath(relatedBookmarks);
-            cacheItem.setFaviconPath(faviconPath);
-            
-            rankingCacheRepository.save(cacheItem);
+
+        private void flushInserts() {
+            if (!pendingInserts.isEmpty()) {
+                jdbcTemplate.batchUpdate(INSERT_RANKING_SQL, pendingInserts);
+                pendingInserts.clear();
+            }
         }
-        logger.info("Finished enriching {} cache items.", allCachedItems.size());
     }
 
-    private String prepareRepresentativeFaviconPath(List<Bookmark> relatedBookmarks) {
-        if (relatedBookmarks == null || relatedBookmarks.isEmpty()) {
-            return null;
+    // 総合スコア = ユニークユーザー数×2 + 合計クリック数×1 + 直近クリック数×3
+    static long overallScore(long uniqueUserCount, long totalClickCount, long recentClickCount) {
+        return uniqueUserCount * 2 + totalClickCount + recentClickCount * 3;
+    }
+
+    // 値の大きい上位n件だけを保持する（最小ヒープの先頭を入れ替える）
+    static class TopN {
+
+        private record Entry(String url, long value) {
         }
-    
-        // faviconPathがnullでないブックマークを探す
-        Optional<String> targetFaviconPathOpt = relatedBookmarks.stream()
-                .map(Bookmark::getFaviconPath)
-                .filter(path -> path != null && !path.isEmpty())
-                .findFirst();
-
-        if (targetFaviconPathOpt.isEmpty()) {
-            return null;
+
+        private static final Comparator<Entry> ORDER = Comparator.comparingLong(Entry::value)
+                .thenComparing(Entry::url, Comparator.reverseOrder());
+
+        private final int limit;
+        private final PriorityQueue<Entry> heap;
+
+        TopN(int limit) {
+            this.limit = limit;
+            this.heap = new PriorityQueue<>(limit + 1, ORDER);
         }
-        String targetFaviconPath = targetFaviconPathOpt.get();
 
-        String fileNameOnly = targetFaviconPath.substring(targetFaviconPath.lastIndexOf('/') + 1);
-        String destinationFileName = "ranking/" + fileNameOnly;
-        try {
-            String copiedPath = storageService.copyFile(targetFaviconPath, destinationFileName);
-            logger.info("Favicon copied successfully from {} to {}", targetFaviconPath, copiedPath);
-            return copiedPath;
-        } catch (Exception e) {
-            logger.warn("Failed to copy favicon for ranking item {}. Error: {}", targetFaviconPath, e.getMessage());
-            return null; // コピー失敗時はファビコンをnullにする
+        void offer(String url, long value) {
+            Entry entry = new Entry(url, value);
+            if (heap.size() < limit) {
+                heap.add(entry);
+            } else if (ORDER.compare(entry, heap.peek()) > 0) {
+                heap.poll();
+                heap.add(entry);
+            }
         }
-    }
 
-    private String prepareRepresentativeTitle(String targetUrl, List<Bookmark> relatedBookmarks) {
-        // 1. 最も多く使われているタイトルを探す
-        if (relatedBookmarks != null && !relatedBookmarks.isEmpty()) {
-            Map<String, Long> titleCounts = relatedBookmarks.stream()
-                    .filter(b -> b.getTitle() != null && !b.getTitle().trim().isEmpty())
-                    .collect(Collectors.groupingBy(Bookmark::getTitle, Collectors.counting()));
+        int size() {
+            return heap.size();
+        }
 
-            Optional<Map.Entry<String, Long>> mostFrequentTitle = titleCounts.entrySet().stream()
-                    .max(Map.Entry.comparingByValue());
+        List<Object[]> toUpdateArgs(Long generation) {
+            return heap.stream().map(entry -> new Object[] {entry.value(), generation, entry.url()}).collect(Collectors.toList());
+        }
+    }
 
-            if (mostFrequentTitle.isPresent() && mostFrequentTitle.get().getValue() > 1) {
-                return mostFrequentTitle.get().getKey();
+    private void enrichGeneration(Long generation) {
+        logger.info("Starting to enrich ranking cache items with titles and favicons...");
+        int enriched = 0;
+        long lastId = 0;
+        Timestamp staleBefore = Timestamp.valueOf(titleRefreshService.staleBefore());
+        List<Map<String, Object>> rows;
+        do {
+            // 件数が多くても一度に読み込まないよう、IDの順に一定件数ずつ処理する
+            rows = jdbcTemplate.queryForList(FIND_ENTRIES_TO_ENRICH_SQL, staleBefore, generation, lastId);
+            if (rows.isEmpty()) {
+                break;
             }
-        }
+            List<Long> urlIds = rows.stream().map(row -> ((Number) row.get("url_id")).longValue()).collect(Collectors.toList());
+            Map<Long, String> frequentTitles = findMostFrequentTitles(urlIds);
+            Map<Long, String> faviconPaths = findFaviconPaths(urlIds);
+
+            List<Object[]> updates = new ArrayList<>(rows.size());
+            List<String> staleUrls = new ArrayList<>();
+            for (Map<String, Object> row : rows) {
+                String url = (String) row.get("url");
+                Long urlId = ((Number) row.get("url_id")).longValue();
+                // 1. 最も多く使われているタイトル 2. 取得済みのタイトル 3. ドメイン名を整形したタイトル
+                String title = frequentTitles.get(urlId);
+                if (title == null) {
+                    title = (String) row.get("stored_title");
+                    if (Boolean.TRUE.equals(row.get("title_stale"))) {
+                        // 外部サイトへの問い合わせは集計を待たせずに行い、次回の集計から使う
+                        staleUrls.add(url);
+                    }
+                }
+                if (title == null || title.isBlank()) {
+                    title = getDomainAsTitle(url);
+                }
+                updates.add(new Object[] {truncate(title, 512), faviconPaths.get(urlId), row.get("id")});
+            }
+            jdbcTemplate.batchUpdate("UPDATE ranking_cache_entry SET title = ?, favicon_path = ? WHERE id = ?", updates);
+            titleRefreshService.submit(staleUrls);
+            enriched += rows.size();
+            lastId = ((Number) rows.get(rows.size() - 1).get("id")).longValue();
+        } while (rows.size() == WRITE_BATCH_SIZE);
 
-        // 2. URLからスクレイピングしたタイトルを試す
-        String fetchedTitle = fetchTitleFromUrl(targetUrl);
-        if (!fetchedTitle.startsWith("Error:")) {
-            return fetchedTitle;
+        if (enriched == 0) {
+            logger.info("No cached items to enrich.");
+            return;
         }
+        logger.info("Finished enriching {} cache items.", enriched);
+    }
 
-        // 3. ドメイン名を整形したタイトル
-        return getDomainAsTitle(targetUrl);
+    // 2人以上が使っているタイトルのうち、URLごとに最も多いものを返す（同数の場合は文字列の順で先のもの）
+    private Map<Long, String> findMostFrequentTitles(List<Long> urlIds) {
+        Map<Long, String> titles = new HashMap<>();
+        Map<Long, Long> counts = new HashMap<>();
+        jdbcTemplate.query(String.format(FIND_FREQUENT_TITLES_SQL, placeholders(urlIds.size())), (RowCallbackHandler) rs -> {
+            Long urlId = rs.getLong("url_id");
+            String title = rs.getString("title");
+            long count = rs.getLong("title_count");
+            Long best = counts.get(urlId);
+            if (best == null || count > best || (count == best && title.compareTo(titles.get(urlId)) < 0)) {
+                titles.put(urlId, title);
+                counts.put(urlId, count);
+            }
+        }, urlIds.toArray());
+        return titles;
+    }
+
+    // URLごとにブックマークのファビコンを1つ返す
+    // ファビコンは内容のハッシュ値で共有されているため、コピーせずにそのまま参照する
+    // （旧形式のユーザーごとのファイルは、そのユーザーがブックマークを削除すると消えるため使わない。移行後に使われる）
+    private Map<Long, String> findFaviconPaths(List<Long> urlIds) {
+        Map<Long, String> faviconPaths = new HashMap<>();
+        jdbcTemplate.query(String.format(FIND_FAVICON_PATHS_SQL, placeholders(urlIds.size())), (RowCallbackHandler) rs -> {
+            String faviconPath = rs.getString("favicon_path");
+            if (faviconPath != null) {
+                faviconPaths.put(rs.getLong("url_id"), faviconPath);
+            }
+        }, Stream.concat(urlIds.stream(), Stream.of(StorageService.BLOB_PREFIX + "%")).toArray());
+        return faviconPaths;
+    }
+
+    private static String placeholders(int count) {
+        return String.join(", ", Collections.nCopies(count, "?"));
+    }
+
+    private static String truncate(String value, int maxLength) {
+        return value != null && value.length() > maxLength ? value.substring(0, maxLength) : value;
     }
 
     private String getDomainAsTitle(String url) {
@@ -290,66 +400,4 @@ public class RankingBatchService {
         }
         return str.substring(0, 1).toUpperCase() + str.substring(1);
     }
-
-    private static class OverallScoreItem {
-        private String url;
-        private String title;
-        private String faviconPath;
-        private long uniqueUserScore = 0;
-        private long totalClickScore = 0;
-        private long recentClickScore = 0;
-
-        public OverallScoreItem(String url, String title, String faviconPath) {
-            this.url = url;
-            this.title = title;
-            this.faviconPath = faviconPath;
-        }
-
-        public void addUniqueUserCount(long count) {
-            this.uniqueUserScore += count;
-        }
-
-        public void addTotalClickCount(long count) {
-            this.totalClickScore += count;
-        }
-
-        public void addRecentClickCount(long count) {
-            this.recentClickScore += count;
-        }
-
-        public long getOverallScore() {
-            return uniqueUserScore + totalClickScore + recentClickScore;
-        }
-
-        public String getUrl() {
-            return url;
-        }
-
-        public String getTitle() {
-            return title;
-        }
-
-        public String getFaviconPath() {
-            return faviconPath;
-        }
-
-        public RankingItem toRankingItem() {
-            // 総合スコアをRankingItemのcountValueにマッピングして表示に利用
-            return new RankingItem(url, title, faviconPath, getOverallScore());
-        }
-    }
-
-    public String fetchTitleFromUrl(String url) {
-        try {
-            Document doc = Jsoup.connect(url).userAgent("Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/58.0.3029.110 Safari/537.36").timeout(5000).get();
-            String title = doc.title();
-            if (title == null || title.trim().isEmpty()) {
-                return "Error: No Title Found"; // タイトルタグがない、または空の場合
-            }
-            return title;
-        } catch (Exception e) {
-            logger.warn("Could not fetch title from " + url + ". Error: " + e.getMessage());
-            return "Error: Failed to Fetch Title"; // ネットワークエラーなど、取得自体が失敗した場合
-        }
-    }
 }
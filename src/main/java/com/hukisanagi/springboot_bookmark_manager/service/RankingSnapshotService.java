@@ -0,0 +1,159 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import com.hukisanagi.springboot_bookmark_manager.model.RankingCache;
+import com.hukisanagi.springboot_bookmark_manager.model.RankingItem;
+import com.hukisanagi.springboot_bookmark_manager.repository.RankingCacheRepository;
+import com.hukisanagi.springboot_bookmark_manager.repository.RankingGenerationRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.domain.Pageable;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+// 公開中のランキングの世代をメモリ上に読み込み、ランキング画面・broaden画面に提供する
+// 世代が変わったときだけDBから読み込み、参照は切り替え済みの不変のスナップショットに対して行う
+@Service
+public class RankingSnapshotService {
+
+    private static final Logger logger = LoggerFactory.getLogger(RankingSnapshotService.class);
+
+    private final RankingCacheRepository rankingCacheRepository;
+    private final RankingGenerationRepository rankingGenerationRepository;
+    private final AtomicReference<RankingSnapshot> current = new AtomicReference<>();
+
+    public RankingSnapshotService(RankingCacheRepository rankingCacheRepository, RankingGenerationRepository rankingGenerationRepository) {
+        this.rankingCacheRepository = rankingCacheRepository;
+        this.rankingGenerationRepository = rankingGenerationRepository;
+    }
+
+    // ランキングの1行（RankingItemは表示時に書き換えられるため、参照のたびにコピーを返す）
+    private record Entry(Long urlId, String url, String title, String faviconPath, long value) {
+
+        RankingItem toRankingItem() {
+            return toRankingItem(value);
+        }
+
+        RankingItem toRankingItem(long value) {
+            return new RankingItem(url, title, faviconPath, value);
+        }
+    }
+
+    // 1つの世代のランキング。ランキングの種類ごとに並べ替え済みの配列を持つ
+    private record RankingSnapshot(Long generation, Entry[] uniqueUserCount, Entry[] totalClickCount,
+                                   Entry[] recentClickCount, Entry[] overallScore, Map<String, Entry> overallScoreByUrl,
+                                   Map<Long, Entry> overallScoreByUrlId) {
+
+        static final RankingSnapshot EMPTY = new RankingSnapshot(null, new Entry[0], new Entry[0], new Entry[0], new Entry[0], Map.of(), Map.of());
+
+        static RankingSnapshot of(Long generation, List<RankingCache> rows) {
+            Entry[] overallScore = sorted(rows, RankingCache::getOverallScore);
+            return new RankingSnapshot(generation,
+                    sorted(rows, RankingCache::getUniqueUserCount),
+                    sorted(rows, RankingCache::getTotalClickCount),
+                    sorted(rows, RankingCache::getRecentClickCount),
+                    overallScore,
+                    Arrays.stream(overallScore).collect(Collectors.toUnmodifiableMap(Entry::url, Function.identity(), (a, b) -> a)),
+                    Arrays.stream(overallScore).filter(entry -> entry.urlId() != null)
+                            .collect(Collectors.toUnmodifiableMap(Entry::urlId, Function.identity(), (a, b) -> a)));
+        }
+
+        // 値のある行だけを値の大きい順に並べる
+        private static Entry[] sorted(List<RankingCache> rows, Function<RankingCache, Long> value) {
+            return rows.stream()
+                    .filter(row -> value.apply(row) != null)
+                    .map(row -> new Entry(row.getUrlId(), row.getUrl(), row.getTitle(), row.getFaviconPath(), value.apply(row)))
+                    .sorted(Comparator.comparingLong(Entry::value).reversed())
+                    .toArray(Entry[]::new);
+        }
+    }
+
+    public List<RankingItem> getTopBookmarks(Pageable pageable) {
+        return page(snapshot().uniqueUserCount(), pageable);
+    }
+
+    public List<RankingItem> getTopBookmarksByTotalClickCount(Pageable pageable) {
+        return page(snapshot().totalClickCount(), pageable);
+    }
+
+    public List<RankingItem> getTopBookmarksByRecentClickCount(Pageable pageable) {
+        return page(snapshot().recentClickCount(), pageable);
+    }
+
+    public List<RankingItem> getTopBookmarksByOverallScore(Pageable pageable) {
+        return page(snapshot().overallScore(), pageable);
+    }
+
+    public Optional<RankingItem> getRandomPublicBookmark() {
+        Entry[] entries = snapshot().overallScore();
+        if (entries.length == 0) {
+            return Optional.empty();
+        }
+        return Optional.of(entries[ThreadLocalRandom.current().nextInt(entries.length)].toRankingItem());
+    }
+
+    // 重複なく1周するまで順番に返す（デッキの状態は呼び出し側がセッションに保持する）
+    public Optional<RankingItem> drawPublicBookmark(BroadenDeck deck) {
+        RankingSnapshot snapshot = snapshot();
+        Entry[] entries = snapshot.overallScore();
+        if (entries.length == 0) {
+            return Optional.empty();
+        }
+        return Optional.of(entries[deck.nextIndex(snapshot.generation(), entries.length, ThreadLocalRandom.current())].toRankingItem());
+    }
+
+    public Optional<RankingItem> getPublicBookmarkByUrl(String url) {
+        return Optional.ofNullable(snapshot().overallScoreByUrl().get(url)).map(Entry::toRankingItem);
+    }
+
+    // 正規化済みURLの行のIDが公開ブックマークであれば、表示用の項目を返す（値は呼び出し側の集計値にする）
+    public Optional<RankingItem> getPublicBookmarkByUrlId(Long urlId, long value) {
+        return Optional.ofNullable(snapshot().overallScoreByUrlId().get(urlId)).map(entry -> entry.toRankingItem(value));
+    }
+
+    private static List<RankingItem> page(Entry[] entries, Pageable pageable) {
+        if (pageable.isUnpaged()) {
+            return Arrays.stream(entries).map(Entry::toRankingItem).collect(Collectors.toList());
+        }
+        int from = (int) Math.min(pageable.getOffset(), entries.length);
+        int to = Math.min(from + pageable.getPageSize(), entries.length);
+        return Arrays.stream(entries, from, to).map(Entry::toRankingItem).collect(Collectors.toList());
+    }
+
+    private RankingSnapshot snapshot() {
+        RankingSnapshot snapshot = current.get();
+        if (snapshot == null) {
+            // 起動直後は初回の参照時に読み込む
+            refresh();
+            snapshot = current.get();
+        }
+        return snapshot != null ? snapshot : RankingSnapshot.EMPTY;
+    }
+
+    // 公開中の世代が変わっていれば読み込み直す
+    // 集計したノードでは公開直後に呼び出し、他のノードでは定期的な確認で新しい世代を取り込む
+    @Scheduled(fixedDelayString = "${ranking.snapshot.refresh-interval:60000}")
+    public synchronized void refresh() {
+        Long generation = rankingGenerationRepository.findCurrentGenerationId().orElse(null);
+        RankingSnapshot snapshot = current.get();
+        if (snapshot != null && Objects.equals(snapshot.generation(), generation)) {
+            return;
+        }
+        if (generation == null) {
+            current.set(RankingSnapshot.EMPTY);
+            return;
+        }
+        current.set(RankingSnapshot.of(generation, rankingCacheRepository.findByGeneration(generation)));
+        logger.info("Loaded ranking snapshot of generation {}.", generation);
+    }
+}
@@ -4,17 +4,19 @@ import io.awspring.cloud.s3.S3Template;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
 import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
 import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
 import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
 import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
 import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
-import software.amazon.awssdk.services.s3.model.S3Object;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.time.Duration;
 import java.util.List;
+import java.util.Optional;
 import java.util.stream.Collectors;
 
 @Service
@@ -49,47 +51,31 @@ public class S3StorageService implements StorageService {
     }
 
     @Override
-    public String copyFile(String sourceFileName, String destinationFileName) {
+    public boolean exists(String fileName) {
         try {
-            CopyObjectRequest copyObjectRequest = CopyObjectRequest.builder()
-                    .sourceBucket(bucketName)
-                    .sourceKey(sourceFileName)
-                    .destinationBucket(bucketName)
-                    .destinationKey(destinationFileName)
-                    .build();
-            s3Client.copyObject(copyObjectRequest);
-            return destinationFileName;
+            s3Client.headObject(HeadObjectRequest.builder().bucket(bucketName).key(fileName).build());
+            return true;
+        } catch (NoSuchKeyException e) {
+            return false;
         } catch (S3Exception e) {
-            throw new RuntimeException("Failed to copy file in S3: " + e.awsErrorDetails().errorMessage(), e);
+            if (e.statusCode() == 404) {
+                return false;
+            }
+            throw new RuntimeException("Failed to check file in S3: " + e.awsErrorDetails().errorMessage(), e);
         }
     }
 
     @Override
-    public void clearRankingFavicons() {
-        String prefix = "ranking/";
-        ListObjectsV2Request listObjectsV2Request = ListObjectsV2Request.builder()
-                .bucket(bucketName)
-                .prefix(prefix)
-                .build();
-
+    public Optional<byte[]> readFile(String fileName) {
         try {
-            List<ObjectIdentifier> objectsToDelete = s3Client.listObjectsV2Paginator(listObjectsV2Request).stream()
-                    .flatMap(r -> r.contents().stream())
-                    .map(S3Object::key)
-                    .map(key -> ObjectIdentifier.builder().key(key).build())
-                    .collect(Collectors.toList());
-
-            if (!objectsToDelete.isEmpty()) {
-                DeleteObjectsRequest deleteObjectsRequest = DeleteObjectsRequest.builder()
-                        .bucket(bucketName)
-                        .delete(d -> d.objects(objectsToDelete))
-                        .build();
-                s3Client.deleteObjects(deleteObjectsRequest);
-            }
+            return Optional.of(s3Client.getObjectAsBytes(GetObjectRequest.builder().bucket(bucketName).key(fileName).build()).asByteArray());
+        } catch (NoSuchKeyException e) {
+            return Optional.empty();
         } catch (S3Exception e) {
-            throw new RuntimeException("Failed to clear ranking favicons in S3: " + e.awsErrorDetails().errorMessage(), e);
-        } catch (Exception e) {
-            throw new RuntimeException("An unexpected error occurred while clearing ranking favicons in S3.", e);
+            if (e.statusCode() == 404) {
+                return Optional.empty();
+            }
+            throw new RuntimeException("Failed to read file from S3: " + e.awsErrorDetails().errorMessage(), e);
         }
     }
 
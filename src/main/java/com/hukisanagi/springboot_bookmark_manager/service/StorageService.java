@@ -1,10 +1,55 @@
 package com.hukisanagi.springboot_bookmark_manager.service;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Optional;
+
 public interface StorageService {
+
+    // 内容のハッシュ値で保存するファイルの格納先（blobs/ab/cd/<sha256>.png のように分散させる）
+    String BLOB_PREFIX = "blobs/";
+
     String saveFile(byte[] fileContent, String fileName);
     void deleteFile(String fileName);
     String getFileUrl(String fileName);
-    String copyFile(String sourceFileName, String destinationFileName);
-    void clearRankingFavicons();
+    boolean exists(String fileName);
+    // ファイルがなければ空
+    Optional<byte[]> readFile(String fileName);
     void deleteFolder(String folderName);
+
+    // 内容のハッシュ値をキーとして保存する。同じ内容のファイルが既にあれば書き込まない
+    default String saveContentAddressed(byte[] fileContent) {
+        String fileName = contentAddressedKey(fileContent);
+        if (!exists(fileName)) {
+            saveFile(fileContent, fileName);
+        }
+        return fileName;
+    }
+
+    static boolean isContentAddressed(String fileName) {
+        return fileName != null && fileName.startsWith(BLOB_PREFIX);
+    }
+
+    static String contentAddressedKey(byte[] fileContent) {
+        String hash = sha256(fileContent);
+        return BLOB_PREFIX + hash.substring(0, 2) + "/" + hash.substring(2, 4) + "/" + hash + ".png";
+    }
+
+    static String sha256(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 algorithm not found", e);
+        }
+    }
+
+    static String sha256(String content) {
+        return sha256(content.getBytes(StandardCharsets.UTF_8));
+    }
 }
@@ -0,0 +1,168 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.hukisanagi.springboot_bookmark_manager.model.AppUser;
+import com.hukisanagi.springboot_bookmark_manager.model.Bookmark;
+import com.hukisanagi.springboot_bookmark_manager.model.Tag;
+import com.hukisanagi.springboot_bookmark_manager.repository.BookmarkRepository;
+import org.roaringbitmap.longlong.Roaring64Bitmap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+// タグの完全一致（#タグ名・tagsパラメータ）による絞り込みを、ユーザーごとのメモリ上のビットマップで行う
+// タグ名ごとにブックマークIDの圧縮ビットマップを持ち、複数タグの絞り込みはビットマップの積で求める
+// ユーザーごとに初回の絞り込み時にDBから作成し、以降はブックマークの追加・更新・削除のコミット後に反映する
+// 保持するID数に上限を設け、使われていないユーザーから破棄する。他のノードでの書き込みは一定時間で作成し直して反映する
+@Component
+public class TagBitmapIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(TagBitmapIndex.class);
+
+    private final BookmarkRepository bookmarkRepository;
+    private final boolean enabled;
+    private final int maxHits;
+    // ビットマップは参照中に書き換えないよう、反映のたびに変更したタグの分だけ複製して差し替える
+    private final Cache<Long, Map<String, Roaring64Bitmap>> cache;
+
+    public TagBitmapIndex(BookmarkRepository bookmarkRepository,
+                          @Value("${tag.index.enabled:true}") boolean enabled,
+                          @Value("${tag.index.max-entries:1000000}") long maxEntries,
+                          @Value("${tag.index.expire-minutes:10}") long expireMinutes,
+                          @Value("${tag.index.max-hits:5000}") int maxHits) {
+        this.bookmarkRepository = bookmarkRepository;
+        this.enabled = enabled;
+        this.maxHits = maxHits;
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxEntries)
+                .weigher((Long appUserId, Map<String, Roaring64Bitmap> bitmaps) -> Math.max(1, (int) Math.min(Integer.MAX_VALUE,
+                        bitmaps.values().stream().mapToLong(Roaring64Bitmap::getLongCardinality).sum())))
+                // 期限は作成時から数える（コミット後の反映では延長しない）
+                .expireAfter(Expiry.creating((Long appUserId, Map<String, Roaring64Bitmap> bitmaps) -> Duration.ofMinutes(expireMinutes)))
+                .build();
+    }
+
+    // 指定したタグを全て持つブックマークのIDを返す
+    // 無効の場合・一致件数が多すぎる場合は空を返す（呼び出し側はSQLの副問い合わせで絞り込む）
+    public Optional<List<Long>> findByAllTags(AppUser appUser, Collection<String> tagNames) {
+        if (!enabled || tagNames.isEmpty()) {
+            return Optional.empty();
+        }
+        Map<String, Roaring64Bitmap> bitmaps = load(appUser);
+        List<Roaring64Bitmap> selected = new ArrayList<>();
+        for (String tagName : new HashSet<>(tagNames)) {
+            Roaring64Bitmap bitmap = bitmaps.get(tagName);
+            if (bitmap == null) {
+                return Optional.of(List.of());
+            }
+            selected.add(bitmap);
+        }
+        // 件数の少ないタグから順に積をとる
+        selected.sort(Comparator.comparingLong(Roaring64Bitmap::getLongCardinality));
+        Roaring64Bitmap result = selected.get(0);
+        for (int i = 1; i < selected.size() && !result.isEmpty(); i++) {
+            result = Roaring64Bitmap.and(result, selected.get(i));
+        }
+        if (result.getLongCardinality() > maxHits) {
+            return Optional.empty();
+        }
+        return Optional.of(Arrays.stream(result.toArray()).boxed().toList());
+    }
+
+    private Map<String, Roaring64Bitmap> load(AppUser appUser) {
+        return cache.get(appUser.getId(), appUserId -> {
+            Map<String, Roaring64Bitmap> bitmaps = new HashMap<>();
+            for (Object[] row : bookmarkRepository.findIdAndTagNameByAppUser(appUser)) {
+                bitmaps.computeIfAbsent((String) row[1], tagName -> new Roaring64Bitmap()).addLong((Long) row[0]);
+            }
+            bitmaps.values().forEach(Roaring64Bitmap::runOptimize);
+            logger.debug("Loaded tag bitmaps of user {} ({} tags).", appUserId, bitmaps.size());
+            return Map.copyOf(bitmaps);
+        });
+    }
+
+    // ブックマークの追加・更新時に呼び出す（コミット後に反映する）
+    public void indexBookmark(AppUser appUser, Bookmark bookmark) {
+        Long bookmarkId = bookmark.getId();
+        Set<String> tagNames = new HashSet<>();
+        for (Tag tag : bookmark.getTags()) {
+            tagNames.add(tag.getName());
+        }
+        afterCommit(appUser.getId(), bitmaps -> replace(bitmaps, bookmarkId, tagNames));
+    }
+
+    // ブックマークの削除時に呼び出す（コミット後に反映する）
+    public void removeBookmark(AppUser appUser, Long bookmarkId) {
+        afterCommit(appUser.getId(), bitmaps -> replace(bitmaps, bookmarkId, Set.of()));
+    }
+
+    // ブックマークのタグをtagNamesに置き換えた内容を返す（変更のないビットマップは共有する）
+    private static Map<String, Roaring64Bitmap> replace(Map<String, Roaring64Bitmap> bitmaps, Long bookmarkId, Set<String> tagNames) {
+        Map<String, Roaring64Bitmap> updated = new HashMap<>(bitmaps);
+        bitmaps.forEach((tagName, bitmap) -> {
+            if (bitmap.contains(bookmarkId) && !tagNames.contains(tagName)) {
+                Roaring64Bitmap copy = bitmap.clone();
+                copy.removeLong(bookmarkId);
+                if (copy.isEmpty()) {
+                    updated.remove(tagName);
+                } else {
+                    updated.put(tagName, copy);
+                }
+            }
+        });
+        for (String tagName : tagNames) {
+            Roaring64Bitmap bitmap = bitmaps.get(tagName);
+            if (bitmap == null || !bitmap.contains(bookmarkId)) {
+                Roaring64Bitmap copy = bitmap != null ? bitmap.clone() : new Roaring64Bitmap();
+                copy.addLong(bookmarkId);
+                updated.put(tagName, copy);
+            }
+        }
+        return Map.copyOf(updated);
+    }
+
+    private void afterCommit(Long appUserId, UnaryOperator<Map<String, Roaring64Bitmap>> update) {
+        if (!enabled) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    apply(appUserId, update);
+                }
+            });
+        } else {
+            apply(appUserId, update);
+        }
+    }
+
+    // 読み込んでいないユーザーは、次の絞り込み時にDBから作成するため何もしない
+    private void apply(Long appUserId, UnaryOperator<Map<String, Roaring64Bitmap>> update) {
+        try {
+            cache.asMap().computeIfPresent(appUserId, (id, bitmaps) -> update.apply(bitmaps));
+        } catch (RuntimeException e) {
+            // 反映に失敗した場合は作成し直す（書き込み自体は失敗させない）
+            logger.warn("Failed to update tag bitmaps of user {}.", appUserId, e);
+            cache.invalidate(appUserId);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hukisanagi.springboot_bookmark_manager.model.Tag;
+import com.hukisanagi.springboot_bookmark_manager.repository.TagRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+// タグ名の集合をタグに変換する。未登録のタグはまとめて作成する
+// よく使われるタグはタグ名からIDをキャッシュし、DBへの問い合わせは未キャッシュのタグ名の分を1回のIN検索で行う
+@Component
+public class TagResolver {
+
+    // 同じ名前のタグが作成済みの場合は挿入しない（同時に作成された場合は一意制約で検出する）
+    // ブックマークの保存に失敗して使われなかったタグも定期処理で削除されるよう、作成日時を未使用の日時として記録する
+    private static final String INSERT_TAG_SQL =
+            "INSERT INTO tag (name, unused_since) SELECT ?, ? WHERE NOT EXISTS (SELECT 1 FROM tag WHERE name = ?)";
+
+    private final TagRepository tagRepository;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate newTransactionTemplate;
+    private final Cache<String, Long> tagIds;
+
+    public TagResolver(TagRepository tagRepository, JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+                       @Value("${tag.cache.max-entries:10000}") long maxEntries,
+                       @Value("${tag.cache.expire-minutes:10}") long expireMinutes) {
+        this.tagRepository = tagRepository;
+        this.jdbcTemplate = jdbcTemplate;
+        this.newTransactionTemplate = new TransactionTemplate(transactionManager);
+        this.newTransactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.tagIds = Caffeine.newBuilder()
+                .maximumSize(maxEntries)
+                // 他のノードで削除されたタグは破棄されないため、一定時間で読み込み直す
+                // （タグは使われなくなってからこの時間より長い猶予期間を置いて削除する）
+                .expireAfterWrite(Duration.ofMinutes(expireMinutes))
+                .build();
+    }
+
+    // 問い合わせは多くても「IN検索・一括作成・作成分のIN検索」の3回で、タグの数によらない
+    public Set<Tag> resolve(Collection<String> names) {
+        Set<String> remaining = new LinkedHashSet<>(names);
+        Set<Tag> tags = new HashSet<>();
+
+        // キャッシュ済みのタグは参照のみ取得する（DBへの問い合わせは行わない）
+        remaining.removeIf(name -> {
+            Long id = tagIds.getIfPresent(name);
+            if (id == null) {
+                return false;
+            }
+            tags.add(tagRepository.getReferenceById(id));
+            return true;
+        });
+        if (remaining.isEmpty()) {
+            return tags;
+        }
+
+        tags.addAll(findAndCache(remaining));
+        if (remaining.isEmpty()) {
+            return tags;
+        }
+
+        createTags(remaining);
+        tags.addAll(findAndCache(remaining));
+        if (!remaining.isEmpty()) {
+            throw new IllegalStateException("Failed to create tags: " + remaining);
+        }
+        return tags;
+    }
+
+    // 保存のトランザクションを開始する前に呼び出し、未登録のタグを作成しておく
+    // トランザクション内のresolveでは作成済みのタグを参照するだけになり、作成のために接続を同時に2つ使わない
+    public void prepare(Collection<String> names) {
+        Set<String> remaining = new LinkedHashSet<>(names);
+        remaining.removeIf(name -> tagIds.getIfPresent(name) != null);
+        if (remaining.isEmpty()) {
+            return;
+        }
+        findAndCache(remaining);
+        if (!remaining.isEmpty()) {
+            createTags(remaining);
+        }
+    }
+
+    // 見つかったタグのIDをキャッシュし、remainingから取り除く
+    private List<Tag> findAndCache(Set<String> remaining) {
+        List<Tag> found = tagRepository.findByNameIn(remaining);
+        for (Tag tag : found) {
+            tagIds.put(tag.getName(), tag.getId());
+            remaining.remove(tag.getName());
+        }
+        return found;
+    }
+
+    // 別のトランザクションで作成してコミットし、ブックマークの保存に失敗しても他のリクエストから使えるようにする
+    private void createTags(Collection<String> names) {
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        List<Object[]> args = names.stream().map(name -> new Object[] {name, now, name}).toList();
+        try {
+            newTransactionTemplate.executeWithoutResult(status -> jdbcTemplate.batchUpdate(INSERT_TAG_SQL, args));
+        } catch (DataIntegrityViolationException e) {
+            // 同じ名前のタグが同時に作成された。まとめての挿入は取り消されるため、1件ずつ作成し直す
+            for (Object[] arg : args) {
+                try {
+                    newTransactionTemplate.executeWithoutResult(status -> jdbcTemplate.update(INSERT_TAG_SQL, arg));
+                } catch (DataIntegrityViolationException ignored) {
+                    // 他のリクエストが作成済み
+                }
+            }
+        }
+    }
+
+    // タグの削除時に呼び出す。コミット前に他のリクエストがキャッシュし直す場合があるため、コミット後にも破棄する
+    public void evict(String name) {
+        tagIds.invalidate(name);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    tagIds.invalidate(name);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// 未取得・期限切れのタイトルを、呼び出し元を待たせずに外部サイトから取得し直すサービス
+// ランキング集計などのバッチは保存済みのタイトルだけを使い、取得はここに任せる
+// 待機列があふれた分は捨てる（次回の集計で再び登録される）
+@Service
+public class TitleRefreshService {
+
+    private static final Logger logger = LoggerFactory.getLogger(TitleRefreshService.class);
+
+    private final UrlMetadataService urlMetadataService;
+    private final ThreadPoolExecutor workers;
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    public TitleRefreshService(UrlMetadataService urlMetadataService,
+                               @Value("${url-metadata.refresh-workers:2}") int workerCount,
+                               @Value("${url-metadata.refresh-queue-size:1000}") int queueSize) {
+        this.urlMetadataService = urlMetadataService;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(queueSize), runnable -> {
+                    Thread thread = new Thread(runnable, "title-refresh-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    // この日時より前に取得したタイトルは期限切れとして扱う
+    public LocalDateTime staleBefore() {
+        return urlMetadataService.titleStaleBefore();
+    }
+
+    // タイトルの再取得を登録する。同じURLが待機中・取得中であれば登録しない
+    public void submit(Collection<String> urls) {
+        int rejected = 0;
+        for (String url : urls) {
+            if (!pending.add(url)) {
+                continue;
+            }
+            try {
+                workers.execute(() -> {
+                    try {
+                        urlMetadataService.lookupTitle(url);
+                    } catch (RuntimeException e) {
+                        logger.warn("Failed to refresh title of {}: {}", url, e.getMessage());
+                    } finally {
+                        pending.remove(url);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                pending.remove(url);
+                rejected++;
+            }
+        }
+        if (rejected > 0) {
+            logger.info("Title refresh queue is full. Skipped {} urls until the next run.", rejected);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+}
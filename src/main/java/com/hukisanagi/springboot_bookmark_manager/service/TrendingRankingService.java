@@ -0,0 +1,340 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hukisanagi.springboot_bookmark_manager.model.RankingItem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.Pageable;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+// 直近のクリック数による急上昇ランキング（既定では直近1時間）
+// クリックをメモリ上の時間ごとのバケットで数え、1日1回の集計を待たずにランキングに反映する
+// バケットごとに数えるURLの数に上限を設け、上限を超えた場合は最も少ないURLを入れ替える（Space-Saving方式）
+// そのためURLの種類がいくら増えてもメモリ使用量は一定で、クリックの多いURLの数は失われない
+// 書き込みはClickIngestionServiceのバッチ書き込みの後に行い、参照は書き込みのたびに作り直す並べ替え済みの配列に対して行う
+// 表示するURLは日次のスナップショットではなくURLごとの集計値（url_stats）で公開中のものに絞り、前日以降に公開されたURLも表示する
+// 状態はクリックログから読み直す（再起動後の復元と、他のノードが受け付けたクリックの取り込みを兼ねる）
+@Service
+public class TrendingRankingService {
+
+    private static final Logger logger = LoggerFactory.getLogger(TrendingRankingService.class);
+
+    private static final String FIND_URL_IDS_SQL = "SELECT id, url_id FROM bookmark WHERE url_id IS NOT NULL AND id IN (%s)";
+
+    private static final String FIND_RECENT_CLICKS_SQL =
+            "SELECT b.url_id, l.clicked_at FROM bookmark_click_log l JOIN bookmark b ON b.id = l.bookmark_id " +
+            "WHERE b.url_id IS NOT NULL AND l.clicked_at >= ?";
+
+    private static final String FIND_PUBLIC_URLS_SQL =
+            "SELECT m.id, m.url, m.title, m.favicon_path FROM url_stats s JOIN url_metadata m ON m.id = s.url_id " +
+            "WHERE s.public_url = TRUE AND s.url_id IN (%s)";
+
+    // 表示用の項目は上位から順にこの件数ずつ読み込む
+    private static final int RESOLVE_BATCH_SIZE = 100;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final RankingSnapshotService rankingSnapshotService;
+    private final LongSupplier currentTimeMillis;
+    private final long bucketMillis;
+    private final int bucketCount;
+    private final int maxUrlsPerBucket;
+
+    // 書き込みはこのオブジェクトで同期して1スレッドずつ行う
+    private SlidingWindowCounter counter;
+    private volatile TopUrls top;
+    // URLのIDごとの表示用の項目（公開中でなければ空）。上位のURLは参照のたびに同じものが並ぶため、短い時間だけ保持する
+    private final Cache<Long, Optional<PublicUrl>> publicUrls = Caffeine.newBuilder()
+            .maximumSize(10_000)
+            .expireAfterWrite(Duration.ofMinutes(1))
+            .build();
+
+    @Autowired
+    public TrendingRankingService(JdbcTemplate jdbcTemplate, RankingSnapshotService rankingSnapshotService,
+                                  @Value("${trending.bucket-minutes:5}") long bucketMinutes,
+                                  @Value("${trending.buckets:12}") int bucketCount,
+                                  @Value("${trending.max-urls-per-bucket:1000}") int maxUrlsPerBucket) {
+        this(jdbcTemplate, rankingSnapshotService, bucketMinutes * 60_000, bucketCount, maxUrlsPerBucket, System::currentTimeMillis);
+    }
+
+    TrendingRankingService(JdbcTemplate jdbcTemplate, RankingSnapshotService rankingSnapshotService,
+                           long bucketMillis, int bucketCount, int maxUrlsPerBucket, LongSupplier currentTimeMillis) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.rankingSnapshotService = rankingSnapshotService;
+        this.bucketMillis = bucketMillis;
+        this.bucketCount = bucketCount;
+        this.maxUrlsPerBucket = maxUrlsPerBucket;
+        this.currentTimeMillis = currentTimeMillis;
+        this.counter = new SlidingWindowCounter(bucketCount, maxUrlsPerBucket);
+        this.top = new TopUrls(currentBucket(), new long[0], new long[0]);
+    }
+
+    // 並べ替え済みのURLのIDとクリック数（bucketはこの結果を作った時点のバケット）
+    private record TopUrls(long bucket, long[] urlIds, long[] counts) {
+    }
+
+    // 公開中のURLの表示用の項目
+    private record PublicUrl(String url, String title, String faviconPath) {
+    }
+
+    // 公開ブックマークだけを、クリック数の多い順に返す
+    // タイトルとファビコンは、スナップショットにあるURLは集計時に選んだものを、ないURLは正規化済みURLの行のものを使う
+    public List<RankingItem> getTopBookmarks(Pageable pageable) {
+        TopUrls current = top;
+        if (current.bucket() != currentBucket()) {
+            // クリックがなくても、古いバケットを期間から外す
+            current = advance();
+        }
+        long offset = pageable.isUnpaged() ? 0 : pageable.getOffset();
+        int limit = pageable.isUnpaged() ? Integer.MAX_VALUE : pageable.getPageSize();
+        List<RankingItem> items = new ArrayList<>();
+        long skipped = 0;
+        for (int from = 0; from < current.urlIds().length && items.size() < limit; from += RESOLVE_BATCH_SIZE) {
+            int to = Math.min(from + RESOLVE_BATCH_SIZE, current.urlIds().length);
+            Map<Long, Optional<PublicUrl>> resolved = publicUrls.getAll(
+                    Arrays.stream(current.urlIds(), from, to).boxed().toList(), this::findPublicUrls);
+            for (int i = from; i < to && items.size() < limit; i++) {
+                long urlId = current.urlIds()[i];
+                long count = current.counts()[i];
+                Optional<PublicUrl> publicUrl = resolved.getOrDefault(urlId, Optional.empty());
+                if (publicUrl.isEmpty()) {
+                    continue;
+                }
+                if (skipped < offset) {
+                    skipped++;
+                    continue;
+                }
+                items.add(rankingSnapshotService.getPublicBookmarkByUrlId(urlId, count)
+                        .orElseGet(() -> new RankingItem(publicUrl.get().url(), publicUrl.get().title(), publicUrl.get().faviconPath(), count)));
+            }
+        }
+        return items;
+    }
+
+    // 公開中でないURLも空として返し、次の参照で問い合わせ直さないようにする
+    private Map<Long, Optional<PublicUrl>> findPublicUrls(Set<? extends Long> urlIds) {
+        Map<Long, Optional<PublicUrl>> found = new HashMap<>();
+        urlIds.forEach(urlId -> found.put(urlId, Optional.empty()));
+        String placeholders = String.join(", ", Collections.nCopies(urlIds.size(), "?"));
+        jdbcTemplate.query(String.format(FIND_PUBLIC_URLS_SQL, placeholders),
+                rs -> {
+                    found.put(rs.getLong("id"), Optional.of(new PublicUrl(rs.getString("url"), rs.getString("title"), rs.getString("favicon_path"))));
+                }, urlIds.toArray());
+        return found;
+    }
+
+    // クリックログに記録したクリックを数える（書き込みのトランザクションが成功した後に呼び出す）
+    public void record(List<ClickIngestionService.ClickEvent> events) {
+        List<ClickIngestionService.ClickEvent> logged = events.stream().filter(ClickIngestionService.ClickEvent::logged).toList();
+        if (logged.isEmpty()) {
+            return;
+        }
+        Map<Long, Long> urlIds;
+        try {
+            urlIds = findUrlIds(logged.stream().map(ClickIngestionService.ClickEvent::bookmarkId).collect(Collectors.toCollection(LinkedHashSet::new)));
+        } catch (DataAccessException e) {
+            // 次回の読み直しで取り込まれるため、ここでは数えない
+            logger.warn("Failed to resolve url ids of {} clicks for trending ranking.", logged.size(), e);
+            return;
+        }
+        synchronized (this) {
+            counter.expire(currentBucket());
+            for (ClickIngestionService.ClickEvent event : logged) {
+                Long urlId = urlIds.get(event.bookmarkId());
+                if (urlId != null) {
+                    counter.add(bucketOf(event.clickedAt()), urlId, 1);
+                }
+            }
+            publish();
+        }
+    }
+
+    private Map<Long, Long> findUrlIds(Set<Long> bookmarkIds) {
+        String placeholders = String.join(", ", Collections.nCopies(bookmarkIds.size(), "?"));
+        Map<Long, Long> urlIds = new HashMap<>();
+        jdbcTemplate.query(String.format(FIND_URL_IDS_SQL, placeholders),
+                rs -> {
+                    urlIds.put(rs.getLong("id"), rs.getLong("url_id"));
+                }, bookmarkIds.toArray());
+        return urlIds;
+    }
+
+    // 期間内のクリックログから数え直して入れ替える（起動直後にも実行される）
+    // 読み込み中にメモリ上で数えたクリックは入れ替えで失われるが、クリックログには書き込み済みのため次回の読み直しで戻る
+    @Scheduled(fixedDelayString = "${trending.reload-interval:300000}")
+    public void reload() {
+        long bucket = currentBucket();
+        SlidingWindowCounter restored = new SlidingWindowCounter(bucketCount, maxUrlsPerBucket);
+        restored.expire(bucket);
+        LocalDateTime since = LocalDateTime.ofInstant(Instant.ofEpochMilli((bucket - bucketCount + 1) * bucketMillis), ZoneId.systemDefault());
+        jdbcTemplate.query(FIND_RECENT_CLICKS_SQL, rs -> {
+            restored.add(bucketOf(rs.getTimestamp("clicked_at").toLocalDateTime()), rs.getLong("url_id"), 1);
+        }, Timestamp.valueOf(since));
+        synchronized (this) {
+            counter = restored;
+            publish();
+        }
+        logger.debug("Reloaded trending counters of {} urls.", top.urlIds().length);
+    }
+
+    private synchronized TopUrls advance() {
+        counter.expire(currentBucket());
+        publish();
+        return top;
+    }
+
+    private void publish() {
+        long[][] sorted = counter.top(maxUrlsPerBucket);
+        top = new TopUrls(currentBucket(), sorted[0], sorted[1]);
+    }
+
+    private long currentBucket() {
+        return currentTimeMillis.getAsLong() / bucketMillis;
+    }
+
+    private long bucketOf(LocalDateTime clickedAt) {
+        return clickedAt.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli() / bucketMillis;
+    }
+
+    // 直近bucketCount個のバケットの、URLごとのクリック数
+    // バケットごとのURLの数はcapacity以下に保ち、期間内の合計（totals）はバケットの加減算に合わせて更新する
+    static class SlidingWindowCounter {
+
+        private final int bucketCount;
+        private final int capacity;
+        private final TreeMap<Long, BucketCounts> buckets = new TreeMap<>();
+        private final Map<Long, Long> totals = new HashMap<>();
+        private long latestBucket = Long.MIN_VALUE;
+
+        SlidingWindowCounter(int bucketCount, int capacity) {
+            this.bucketCount = bucketCount;
+            this.capacity = capacity;
+        }
+
+        void add(long bucket, long urlId, long count) {
+            expire(bucket);
+            if (bucket <= latestBucket - bucketCount) {
+                return; // 期間外
+            }
+            BucketCounts counts = buckets.computeIfAbsent(bucket, key -> new BucketCounts());
+            Long current = counts.get(urlId);
+            if (current == null && counts.size() >= capacity) {
+                // 最も少ないURLと入れ替え、その数を引き継ぐ（多めに数える方向の誤差になる）
+                UrlCount min = counts.removeMin();
+                addTotal(min.urlId(), -min.count());
+                addTotal(urlId, min.count());
+                current = min.count();
+            }
+            counts.put(urlId, (current != null ? current : 0) + count);
+            addTotal(urlId, count);
+        }
+
+        // currentBucketを最新として、期間外になったバケットを合計から引く
+        void expire(long currentBucket) {
+            if (currentBucket <= latestBucket) {
+                return;
+            }
+            latestBucket = currentBucket;
+            Map<Long, BucketCounts> expired = buckets.headMap(currentBucket - bucketCount, true);
+            expired.values().forEach(counts -> counts.forEach((urlId, count) -> addTotal(urlId, -count)));
+            expired.clear();
+        }
+
+        private void addTotal(long urlId, long delta) {
+            totals.compute(urlId, (key, total) -> {
+                long next = (total != null ? total : 0) + delta;
+                return next > 0 ? next : null;
+            });
+        }
+
+        // 合計の多い順に最大n件を返す（[0]がURLのID、[1]がクリック数）
+        long[][] top(int n) {
+            PriorityQueue<Map.Entry<Long, Long>> heap = new PriorityQueue<>(Map.Entry.comparingByValue());
+            for (Map.Entry<Long, Long> entry : totals.entrySet()) {
+                if (heap.size() < n) {
+                    heap.add(entry);
+                } else if (entry.getValue() > heap.peek().getValue()) {
+                    heap.poll();
+                    heap.add(entry);
+                }
+            }
+            long[] urlIds = new long[heap.size()];
+            long[] counts = new long[heap.size()];
+            for (int i = heap.size() - 1; i >= 0; i--) {
+                Map.Entry<Long, Long> entry = heap.poll();
+                urlIds[i] = entry.getKey();
+                counts[i] = entry.getValue();
+            }
+            return new long[][] {urlIds, counts};
+        }
+
+        int size() {
+            return buckets.values().stream().mapToInt(BucketCounts::size).sum();
+        }
+    }
+
+    private record UrlCount(long urlId, long count) {
+    }
+
+    // 1つのバケットのURLごとのクリック数
+    // 入れ替えのたびに全URLを走査しないよう、クリック数の順にも並べて保持する（加算・入れ替えはURLの数の対数時間）
+    private static class BucketCounts {
+
+        private final Map<Long, Long> counts = new HashMap<>();
+        private final TreeSet<UrlCount> byCount = new TreeSet<>(
+                Comparator.comparingLong(UrlCount::count).thenComparingLong(UrlCount::urlId));
+
+        Long get(long urlId) {
+            return counts.get(urlId);
+        }
+
+        void put(long urlId, long count) {
+            Long previous = counts.put(urlId, count);
+            if (previous != null) {
+                byCount.remove(new UrlCount(urlId, previous));
+            }
+            byCount.add(new UrlCount(urlId, count));
+        }
+
+        UrlCount removeMin() {
+            UrlCount min = byCount.pollFirst();
+            counts.remove(min.urlId());
+            return min;
+        }
+
+        void forEach(BiConsumer<Long, Long> action) {
+            counts.forEach(action);
+        }
+
+        int size() {
+            return counts.size();
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hukisanagi.springboot_bookmark_manager.model.UrlMetadata;
+import com.hukisanagi.springboot_bookmark_manager.repository.UrlMetadataRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+// URLごとのタイトル・ファビコンを全ユーザーで共有するキャッシュ
+// メモリ上のLRU → DB(url_metadata) → 外部サイト の順に参照し、同じURLへの同時取得は1回にまとめる
+@Service
+public class UrlMetadataService {
+
+    private static final Logger logger = LoggerFactory.getLogger(UrlMetadataService.class);
+
+    private final UrlMetadataRepository urlMetadataRepository;
+    private final PageMetadataService pageMetadataService;
+    private final FaviconBlobService faviconBlobService;
+    private final TransactionTemplate transactionTemplate;
+    private final long titleTtlHours;
+    private final Cache<String, CachedMetadata> cache;
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    public UrlMetadataService(UrlMetadataRepository urlMetadataRepository, PageMetadataService pageMetadataService,
+                              FaviconBlobService faviconBlobService, PlatformTransactionManager transactionManager,
+                              @Value("${url-metadata.cache-size:10000}") long cacheSize,
+                              @Value("${url-metadata.title-ttl-hours:168}") long titleTtlHours) {
+        this.urlMetadataRepository = urlMetadataRepository;
+        this.pageMetadataService = pageMetadataService;
+        this.faviconBlobService = faviconBlobService;
+        // 呼び出し元のトランザクション（ランキング集計など）に一意制約違反の影響を与えないよう独立させる
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.titleTtlHours = titleTtlHours;
+        this.cache = Caffeine.newBuilder().maximumSize(cacheSize).build();
+    }
+
+    // メモリ上に保持するメタデータ（エンティティは共有せず、不変のコピーを保持する）
+    private record CachedMetadata(Long id, String title, LocalDateTime fetchedAt, String etag, String lastModified, String iconUrl,
+                                  String faviconPath) {
+
+        static CachedMetadata of(UrlMetadata metadata) {
+            return new CachedMetadata(metadata.getId(), metadata.getTitle(), metadata.getFetchedAt(), metadata.getEtag(),
+                    metadata.getLastModified(), metadata.getIconUrl(), metadata.getFaviconPath());
+        }
+    }
+
+    // 正規化済みURLの行への参照を返す。行がなければ作成する（外部への通信は行わない）
+    // ブックマークはこの行のIDでURLを参照し、URLごとの集計・重複チェックを整数のキーで行う
+    // 行の作成は別のトランザクションで行うため、呼び出し側のトランザクションを開始する前に呼び出す
+    // （トランザクション内で呼び出すと、1回の呼び出しで接続を2つ同時に使う）
+    public UrlMetadata getUrlReference(String url) {
+        if (TransactionSynchronizationManager.isActualTransactionActive()) {
+            throw new IllegalStateException("getUrlReference must be called outside of a transaction.");
+        }
+        String normalizedUrl = UrlNormalizer.normalize(url);
+        Optional<CachedMetadata> known = lookup(normalizedUrl);
+        if (known.isEmpty()) {
+            update(normalizedUrl, metadata -> {
+            });
+            known = lookup(normalizedUrl);
+        }
+        return urlMetadataRepository.getReferenceById(known.orElseThrow().id());
+    }
+
+    // 取得済みのファビコンがあれば返す（外部への通信は行わない）
+    public Optional<String> findKnownFaviconPath(String url) {
+        return lookup(UrlNormalizer.normalize(url)).map(CachedMetadata::faviconPath);
+    }
+
+    // 取得済みのファビコンがあれば参照を1つ増やして返す（外部への通信は行わない）
+    public Optional<String> acquireKnownFavicon(String url) {
+        String normalizedUrl = UrlNormalizer.normalize(url);
+        Optional<String> known = findKnownFaviconPath(normalizedUrl);
+        if (known.isPresent() && !faviconBlobService.retain(known.get())) {
+            // 参照されなくなって削除済みだった
+            cache.invalidate(normalizedUrl);
+            return Optional.empty();
+        }
+        return known;
+    }
+
+    // ファビコンを取得して参照を1つ増やす。未取得の場合は外部サイトから取得する
+    // 見つからなかった場合はnull
+    public String acquireFavicon(String url) {
+        Optional<String> known = acquireKnownFavicon(url);
+        if (known.isPresent()) {
+            return known.get();
+        }
+        String faviconPath = resolveFavicon(url);
+        return faviconPath != null && faviconBlobService.retain(faviconPath) ? faviconPath : null;
+    }
+
+    // タイトルの参照結果（titleがnullの場合、failedは外部サイトからの取得自体に失敗したかどうか）
+    public record TitleLookup(String title, boolean failed) {
+    }
+
+    // タイトルを返す。未取得または期限切れの場合のみ外部サイトに問い合わせる
+    // 取得に失敗した場合やタイトルがない場合は空
+    public Optional<String> getTitle(String url) {
+        return Optional.ofNullable(lookupTitle(url).title());
+    }
+
+    // getTitleと同じ順に参照し、タイトルがない場合と取得に失敗した場合を区別して返す
+    public TitleLookup lookupTitle(String url) {
+        String normalizedUrl = UrlNormalizer.normalize(url);
+        Optional<CachedMetadata> known = lookup(normalizedUrl);
+        if (known.isPresent() && isTitleFresh(known.get())) {
+            return new TitleLookup(known.get().title(), false);
+        }
+        return coalesce("title:" + normalizedUrl, () -> fetchTitle(normalizedUrl, known.orElse(null)));
+    }
+
+    // ファビコンの保存先を返す。未取得の場合は外部サイトから取得し、内容のハッシュ値で保存する
+    // 見つからなかった場合はnull
+    private String resolveFavicon(String url) {
+        String normalizedUrl = UrlNormalizer.normalize(url);
+        Optional<String> known = findKnownFaviconPath(normalizedUrl);
+        if (known.isPresent()) {
+            return known.get();
+        }
+        return coalesce("favicon:" + normalizedUrl, () -> fetchFavicon(normalizedUrl));
+    }
+
+    // この日時より前に取得したタイトルは期限切れとして扱う
+    public LocalDateTime titleStaleBefore() {
+        return LocalDateTime.now().minusHours(titleTtlHours);
+    }
+
+    private boolean isTitleFresh(CachedMetadata metadata) {
+        return metadata.fetchedAt() != null && metadata.fetchedAt().isAfter(titleStaleBefore());
+    }
+
+    private TitleLookup fetchTitle(String normalizedUrl, CachedMetadata known) {
+        // 待ち合わせ中に他のスレッドが取得を終えている場合がある
+        Optional<CachedMetadata> latest = lookup(normalizedUrl);
+        if (latest.isPresent() && isTitleFresh(latest.get())) {
+            return new TitleLookup(latest.get().title(), false);
+        }
+
+        String etag = known != null ? known.etag() : null;
+        String lastModified = known != null ? known.lastModified() : null;
+        try {
+            PageMetadataService.PageHead head = pageMetadataService.fetchPageHead(normalizedUrl, etag, lastModified);
+            if (head.notModified()) {
+                // 変更がなければ取得日時だけ更新する
+                update(normalizedUrl, metadata -> metadata.setFetchedAt(LocalDateTime.now()));
+                return new TitleLookup(known != null ? known.title() : null, false);
+            }
+            String title = head.title() != null && !head.title().isBlank() ? truncate(head.title().trim(), 1024) : null;
+            // ファビコンの取得時にページを取得し直さないよう、アイコンのURLもあわせて保存する
+            String iconUrl = PageMetadataService.selectFaviconUrl(normalizedUrl, head.iconUrls());
+            update(normalizedUrl, metadata -> {
+                metadata.setTitle(title);
+                metadata.setIconUrl(iconUrl != null && iconUrl.length() <= 2048 ? iconUrl : null);
+                metadata.setFetchedAt(LocalDateTime.now());
+                metadata.setEtag(truncate(head.etag(), 512));
+                metadata.setLastModified(truncate(head.lastModified(), 128));
+            });
+            return new TitleLookup(title, false);
+        } catch (IOException e) {
+            logger.warn("Could not fetch title from {}. Error: {}", normalizedUrl, e.getMessage());
+            // 期限切れでも以前のタイトルがあればそれを使う
+            String knownTitle = known != null ? known.title() : null;
+            return new TitleLookup(knownTitle, knownTitle == null);
+        }
+    }
+
+    private String fetchFavicon(String normalizedUrl) {
+        Optional<String> known = findKnownFaviconPath(normalizedUrl);
+        if (known.isPresent()) {
+            return known.get();
+        }
+
+        String iconUrl = lookup(normalizedUrl).map(CachedMetadata::iconUrl).orElse(null);
+        byte[] faviconBytes = pageMetadataService.fetchFavicon(normalizedUrl, iconUrl);
+        if (faviconBytes == null) {
+            return null;
+        }
+        String savedPath = faviconBlobService.store(faviconBytes);
+        update(normalizedUrl, metadata -> {
+            metadata.setFaviconPath(savedPath);
+            metadata.setFaviconFetchedAt(LocalDateTime.now());
+        });
+        return savedPath;
+    }
+
+    private Optional<CachedMetadata> lookup(String normalizedUrl) {
+        CachedMetadata cached = cache.getIfPresent(normalizedUrl);
+        if (cached != null) {
+            return Optional.of(cached);
+        }
+        Optional<CachedMetadata> stored = urlMetadataRepository.findByUrlHash(sha256(normalizedUrl)).map(CachedMetadata::of);
+        stored.ifPresent(metadata -> cache.put(normalizedUrl, metadata));
+        return stored;
+    }
+
+    // 行がなければ作成して更新する。他のノードと同時に作成した場合は再読み込みしてやり直す
+    private void update(String normalizedUrl, Consumer<UrlMetadata> updater) {
+        String urlHash = sha256(normalizedUrl);
+        UrlMetadata saved;
+        try {
+            saved = transactionTemplate.execute(status -> save(urlHash, normalizedUrl, updater));
+        } catch (DataIntegrityViolationException e) {
+            saved = transactionTemplate.execute(status -> save(urlHash, normalizedUrl, updater));
+        }
+        if (saved != null) {
+            cache.put(normalizedUrl, CachedMetadata.of(saved));
+        }
+    }
+
+    private UrlMetadata save(String urlHash, String normalizedUrl, Consumer<UrlMetadata> updater) {
+        UrlMetadata metadata = urlMetadataRepository.findByUrlHash(urlHash)
+                .orElseGet(() -> new UrlMetadata(urlHash, normalizedUrl));
+        updater.accept(metadata);
+        return urlMetadataRepository.saveAndFlush(metadata);
+    }
+
+    // 同じキーの取得が進行中であれば、その結果を待って共有する
+    @SuppressWarnings("unchecked")
+    private <T> T coalesce(String key, Supplier<T> loader) {
+        CompletableFuture<Object> mine = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            try {
+                return (T) existing.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException runtimeException) {
+                    throw runtimeException;
+                }
+                throw e;
+            }
+        }
+        try {
+            T value = loader.get();
+            mine.complete(value);
+            return value;
+        } catch (RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    private static String truncate(String value, int maxLength) {
+        return value != null && value.length() > maxLength ? value.substring(0, maxLength) : value;
+    }
+
+    private static String sha256(String input) {
+        return StorageService.sha256(input);
+    }
+}
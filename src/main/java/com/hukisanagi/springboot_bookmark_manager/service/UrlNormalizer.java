@@ -0,0 +1,48 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+// ブックマークとURLメタデータで共通のURL正規化
+public final class UrlNormalizer {
+
+    private static final Logger logger = LoggerFactory.getLogger(UrlNormalizer.class);
+
+    private UrlNormalizer() {
+    }
+
+    public static String normalize(String originalUrl) {
+        try {
+            URL url = new URL(originalUrl);
+            String protocol = url.getProtocol();
+            String host = url.getHost().toLowerCase(); // ホスト名を小文字に変換
+            int port = url.getPort();
+            String path = url.getPath();
+            String query = url.getQuery();
+            String ref = url.getRef();
+
+            // パスの末尾のスラッシュを削除
+            if (path.endsWith("/")) {
+                path = path.substring(0, path.length() - 1);
+            }
+
+            // ポート番号を再構築
+            String portString = "";
+            if (port != -1 && !((protocol.equals("http") && port == 80) || (protocol.equals("https") && port == 443))) {
+                portString = ":" + port;
+            }
+
+            // クエリパラメータとフラグメントはそのまま維持
+            String queryString = (query != null && !query.isEmpty()) ? "?" + query : "";
+            String refString = (ref != null && !ref.isEmpty()) ? "#" + ref : "";
+
+            return protocol + "://" + host + portString + path + queryString + refString;
+        } catch (MalformedURLException e) {
+            logger.warn("Invalid URL for normalization: {} - {}", originalUrl, e.getMessage());
+            return originalUrl; // 不正なURLの場合は元のURLを返す
+        }
+    }
+}
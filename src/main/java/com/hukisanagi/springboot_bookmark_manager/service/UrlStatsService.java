@@ -0,0 +1,339 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hukisanagi.springboot_bookmark_manager.model.AppUser;
+import com.hukisanagi.springboot_bookmark_manager.repository.UrlStatsRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// 正規化済みURLごとの集計値（url_stats）と日ごとのクリック数（url_click_bucket）を書き込み時に加減算する
+// ブックマークの追加・削除は呼び出し側と同じトランザクションで、クリックはClickIngestionServiceの書き込みと同じトランザクションで反映する
+// 行の作成だけは呼び出し側のトランザクションを開始する前に別のトランザクションで行い、他のノードと同時に作成しても呼び出し側のトランザクションを失敗させない
+// 任意で、ランキングの集計前にブックマークとクリックログから数え直し、差のある行だけを直す（表が空であれば常に作成する）
+@Service
+public class UrlStatsService {
+
+    private static final Logger logger = LoggerFactory.getLogger(UrlStatsService.class);
+
+    private static final String INSERT_STATS_SQL =
+            "INSERT INTO url_stats (url_id, unique_user_count, total_click_count, public_url) " +
+            "SELECT ?, 0, 0, FALSE WHERE NOT EXISTS (SELECT 1 FROM url_stats WHERE url_id = ?)";
+
+    // SET句の右辺は更新前の値を参照する
+    private static final String ADD_STATS_SQL =
+            "UPDATE url_stats SET unique_user_count = unique_user_count + ?, total_click_count = total_click_count + ?, " +
+            "public_url = (unique_user_count + ? > 1) WHERE url_id = ?";
+
+    private static final String ADD_STATS_CLICKS_SQL =
+            "UPDATE url_stats SET total_click_count = total_click_count + ? WHERE url_id = (SELECT url_id FROM bookmark WHERE id = ?)";
+
+    // url_idが未設定のブックマーク（次回の突き合わせで数える）と、削除済みのブックマークは作成しない
+    private static final String INSERT_BUCKET_SQL =
+            "INSERT INTO url_click_bucket (url_id, bucket_date, click_count, first_clicker_id, multiple_clickers) " +
+            "SELECT b.url_id, ?, 0, ?, FALSE FROM bookmark b WHERE b.id = ? AND b.url_id IS NOT NULL " +
+            "AND NOT EXISTS (SELECT 1 FROM url_click_bucket k WHERE k.url_id = b.url_id AND k.bucket_date = ?)";
+
+    private static final String ADD_BUCKET_CLICKS_SQL =
+            "UPDATE url_click_bucket SET click_count = click_count + ?, " +
+            "multiple_clickers = (multiple_clickers OR ? OR COALESCE(first_clicker_id <> ?, FALSE)) " +
+            "WHERE bucket_date = ? AND url_id = (SELECT url_id FROM bookmark WHERE id = ?)";
+
+    private static final String SUBTRACT_BUCKET_CLICKS_SQL =
+            "UPDATE url_click_bucket SET click_count = click_count - ? WHERE url_id = ? AND bucket_date = ?";
+
+    private static final String FIND_BOOKMARKS_SQL =
+            "SELECT b.url_id, b.total_click_count FROM bookmark b WHERE b.url_id IS NOT NULL AND ";
+
+    private static final String FIND_CLICKS_SQL =
+            "SELECT b.url_id, l.clicked_at FROM bookmark_click_log l JOIN bookmark b ON b.id = l.bookmark_id " +
+            "WHERE b.url_id IS NOT NULL AND l.clicked_at >= ? AND ";
+
+    // 突き合わせ：数え直した値と異なる行（または行がないURL）だけを読み込む
+    private static final String FIND_STATS_DIFFS_SQL =
+            "SELECT a.url_id, a.unique_user_count, a.total_click_count, s.url_id AS stats_url_id, " +
+            "s.unique_user_count AS stats_unique_user_count, s.total_click_count AS stats_total_click_count FROM (" +
+            "SELECT b.url_id, COUNT(DISTINCT b.app_user_id) AS unique_user_count, COALESCE(SUM(b.total_click_count), 0) AS total_click_count " +
+            "FROM bookmark b WHERE b.url_id IS NOT NULL GROUP BY b.url_id) a LEFT JOIN url_stats s ON s.url_id = a.url_id " +
+            "WHERE s.url_id IS NULL OR s.unique_user_count <> a.unique_user_count OR s.total_click_count <> a.total_click_count " +
+            "OR s.public_url <> (a.unique_user_count > 1)";
+
+    // ブックマークがなくなったURLの行（0にする）
+    private static final String FIND_STALE_STATS_SQL =
+            "SELECT s.url_id, s.unique_user_count AS stats_unique_user_count, s.total_click_count AS stats_total_click_count " +
+            "FROM url_stats s WHERE (s.unique_user_count <> 0 OR s.total_click_count <> 0 OR s.public_url) " +
+            "AND NOT EXISTS (SELECT 1 FROM bookmark b WHERE b.url_id = s.url_id)";
+
+    private static final String INSERT_RECONCILED_STATS_SQL =
+            "INSERT INTO url_stats (url_id, unique_user_count, total_click_count, public_url) " +
+            "SELECT ?, ?, ?, ? WHERE NOT EXISTS (SELECT 1 FROM url_stats WHERE url_id = ?)";
+
+    // 読み込んだ後に他の書き込みで値が変わった行は更新しない（次回の突き合わせで直す）
+    private static final String UPDATE_RECONCILED_STATS_SQL =
+            "UPDATE url_stats SET unique_user_count = ?, total_click_count = ?, public_url = ? " +
+            "WHERE url_id = ? AND unique_user_count = ? AND total_click_count = ?";
+
+    private static final String AGGREGATE_BUCKETS_SQL =
+            "SELECT b.url_id, CAST(l.clicked_at AS DATE) AS bucket_date, COUNT(*) AS click_count, " +
+            "MIN(l.app_user_id) AS first_clicker_id, COUNT(DISTINCT l.app_user_id) > 1 AS multiple_clickers " +
+            "FROM bookmark_click_log l JOIN bookmark b ON b.id = l.bookmark_id " +
+            "WHERE b.url_id IS NOT NULL AND l.clicked_at >= ? GROUP BY b.url_id, CAST(l.clicked_at AS DATE)";
+
+    // 最初にクリックしたユーザーは、1人しかクリックしていない場合だけ比べる
+    private static final String FIND_BUCKET_DIFFS_SQL =
+            "SELECT a.url_id, a.bucket_date, a.click_count, a.first_clicker_id, a.multiple_clickers, k.id AS bucket_id, " +
+            "k.click_count AS bucket_click_count FROM (" + AGGREGATE_BUCKETS_SQL + ") a " +
+            "LEFT JOIN url_click_bucket k ON k.url_id = a.url_id AND k.bucket_date = a.bucket_date " +
+            "WHERE k.id IS NULL OR k.click_count <> a.click_count OR k.multiple_clickers <> a.multiple_clickers " +
+            "OR (NOT a.multiple_clickers AND COALESCE(k.first_clicker_id <> a.first_clicker_id, TRUE))";
+
+    // クリックログがなくなった日の行（0にする）
+    private static final String FIND_STALE_BUCKETS_SQL =
+            "SELECT k.id AS bucket_id, k.click_count AS bucket_click_count FROM url_click_bucket k " +
+            "LEFT JOIN (" + AGGREGATE_BUCKETS_SQL + ") a ON a.url_id = k.url_id AND a.bucket_date = k.bucket_date " +
+            "WHERE k.bucket_date >= ? AND k.click_count <> 0 AND a.url_id IS NULL";
+
+    private static final String INSERT_RECONCILED_BUCKET_SQL =
+            "INSERT INTO url_click_bucket (url_id, bucket_date, click_count, first_clicker_id, multiple_clickers) " +
+            "SELECT ?, ?, ?, ?, ? WHERE NOT EXISTS (SELECT 1 FROM url_click_bucket WHERE url_id = ? AND bucket_date = ?)";
+
+    private static final String UPDATE_RECONCILED_BUCKET_SQL =
+            "UPDATE url_click_bucket SET click_count = ?, first_clicker_id = ?, multiple_clickers = ? WHERE id = ? AND click_count = ?";
+
+    // 突き合わせの修正は、書き込みを長く待たせないよう小さなトランザクションに分ける
+    private static final int RECONCILE_BATCH_SIZE = 500;
+
+    // クリックログの保存期間（BookmarkService.cleanupOldClickLogs）より古い日のクリックは減算しない
+    private static final long CLICK_RETENTION_MONTHS = 1;
+
+    private final UrlStatsRepository urlStatsRepository;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final TransactionTemplate newTransactionTemplate;
+    private final boolean reconcileEnabled;
+    private final Cache<Boolean, Long> publicUrlCount;
+
+    public UrlStatsService(UrlStatsRepository urlStatsRepository, JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+                           @Value("${url-stats.reconcile.enabled:false}") boolean reconcileEnabled,
+                           @Value("${url-stats.public-count.expire-seconds:60}") long publicCountExpireSeconds) {
+        this.urlStatsRepository = urlStatsRepository;
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.newTransactionTemplate = new TransactionTemplate(transactionManager);
+        this.newTransactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.reconcileEnabled = reconcileEnabled;
+        // 画面の表示のたびに数えないよう、一定時間は前回の件数を返す
+        this.publicUrlCount = Caffeine.newBuilder()
+                .expireAfterWrite(Duration.ofSeconds(publicCountExpireSeconds))
+                .build();
+    }
+
+    // 公開ブックマーク（2人以上が登録したURL）の数
+    public long countPublicUrls() {
+        return publicUrlCount.get(Boolean.TRUE, key -> urlStatsRepository.countByPublicUrlTrue());
+    }
+
+    // 2人以上が登録したURLであれば、そのURLを返す
+    public List<String> findPublicUrls(String url) {
+        return urlStatsRepository.findPublicUrlsByUrlHash(StorageService.sha256(url));
+    }
+
+    public List<String> findPublicUrlsStartingWith(String urlPrefix) {
+        return urlStatsRepository.findPublicUrlsByUrlPrefix(urlPrefix);
+    }
+
+    // ブックマークの追加前に、URLごとの集計値の行を作成する
+    // 呼び出し側のトランザクションの外で呼び出す（トランザクション内で呼び出すと接続を2つ同時に使う）
+    public void prepareBookmark(Long urlId) {
+        if (urlId == null) {
+            return;
+        }
+        try {
+            newTransactionTemplate.executeWithoutResult(status -> jdbcTemplate.update(INSERT_STATS_SQL, urlId, urlId));
+        } catch (DataIntegrityViolationException e) {
+            // 他のノードが同時に作成した場合（作成済みの行に加算する）
+            logger.debug("Url stats were created by another node.", e);
+        }
+    }
+
+    // ブックマークの追加時に呼び出す（同じユーザーが同じURLを重複して登録しないことは呼び出し側で確認済み）
+    // 行はprepareBookmarkで作成済みのため、呼び出し側のトランザクションの接続で加算だけを行う
+    public void addBookmark(Long urlId) {
+        if (urlId == null) {
+            return;
+        }
+        jdbcTemplate.update(ADD_STATS_SQL, 1, 0, 1, urlId);
+    }
+
+    // ブックマークとクリックログの削除前に呼び出す
+    public void removeBookmark(Long bookmarkId) {
+        remove("b.id = ?", bookmarkId);
+    }
+
+    // アカウントの削除前に呼び出す
+    public void removeBookmarksOf(AppUser appUser) {
+        remove("b.app_user_id = ?", appUser.getId());
+    }
+
+    private void remove(String condition, Long id) {
+        List<Object[]> statsArgs = jdbcTemplate.query(FIND_BOOKMARKS_SQL + condition,
+                (rs, rowNum) -> new Object[] {-1, -rs.getLong("total_click_count"), -1, rs.getLong("url_id")}, id);
+        if (statsArgs.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate(ADD_STATS_SQL, statsArgs);
+
+        // 削除するクリックログの分を日ごとのクリック数から減算する
+        // 複数のユーザーがクリックしたかどうかは戻せないため、次回の突き合わせまでそのままにする
+        Map<List<Object>, Long> clicks = new LinkedHashMap<>();
+        Timestamp since = Timestamp.valueOf(LocalDate.now().minusMonths(CLICK_RETENTION_MONTHS).atStartOfDay());
+        jdbcTemplate.query(FIND_CLICKS_SQL + condition, rs -> {
+            LocalDate bucketDate = rs.getTimestamp("clicked_at").toLocalDateTime().toLocalDate();
+            clicks.merge(List.of(rs.getLong("url_id"), bucketDate), 1L, Long::sum);
+        }, since, id);
+        List<Object[]> bucketArgs = new ArrayList<>(clicks.size());
+        clicks.forEach((key, count) -> bucketArgs.add(new Object[] {count, key.get(0), Date.valueOf((LocalDate) key.get(1))}));
+        jdbcTemplate.batchUpdate(SUBTRACT_BUCKET_CLICKS_SQL, bucketArgs);
+    }
+
+    // ブックマークごと・日ごとのクリックログに記録したクリック
+    record LoggedClicks(Long bookmarkId, LocalDate bucketDate, long count, Set<Long> clickerIds) {
+    }
+
+    static List<LoggedClicks> groupLoggedClicks(List<ClickIngestionService.ClickEvent> events) {
+        Map<List<Object>, List<Long>> clickers = new LinkedHashMap<>();
+        for (ClickIngestionService.ClickEvent event : events) {
+            if (event.logged()) {
+                clickers.computeIfAbsent(List.of(event.bookmarkId(), event.clickedAt().toLocalDate()), key -> new ArrayList<>())
+                        .add(event.appUserId());
+            }
+        }
+        List<LoggedClicks> result = new ArrayList<>(clickers.size());
+        clickers.forEach((key, appUserIds) ->
+                result.add(new LoggedClicks((Long) key.get(0), (LocalDate) key.get(1), appUserIds.size(), new HashSet<>(appUserIds))));
+        return result;
+    }
+
+    // クリックの書き込み前に、日ごとのクリック数の行を作成する
+    public void prepareClickBuckets(List<LoggedClicks> loggedClicks) {
+        if (loggedClicks.isEmpty()) {
+            return;
+        }
+        List<Object[]> args = new ArrayList<>(loggedClicks.size());
+        for (LoggedClicks clicks : loggedClicks) {
+            Date bucketDate = Date.valueOf(clicks.bucketDate());
+            args.add(new Object[] {bucketDate, clicks.clickerIds().iterator().next(), clicks.bookmarkId(), bucketDate});
+        }
+        try {
+            newTransactionTemplate.executeWithoutResult(status -> jdbcTemplate.batchUpdate(INSERT_BUCKET_SQL, args));
+        } catch (DataIntegrityViolationException e) {
+            // 他のノードが同時に作成した場合（作成済みの行に加算する）
+            logger.debug("Click buckets were created by another node.", e);
+        }
+    }
+
+    // クリックの書き込みと同じトランザクションで呼び出す（incrementArgsは [クリック数, ブックマークID] の配列）
+    public void recordClicks(List<Object[]> incrementArgs, List<LoggedClicks> loggedClicks) {
+        jdbcTemplate.batchUpdate(ADD_STATS_CLICKS_SQL, incrementArgs);
+        List<Object[]> bucketArgs = new ArrayList<>(loggedClicks.size());
+        for (LoggedClicks clicks : loggedClicks) {
+            bucketArgs.add(new Object[] {clicks.count(), clicks.clickerIds().size() > 1, clicks.clickerIds().iterator().next(),
+                    Date.valueOf(clicks.bucketDate()), clicks.bookmarkId()});
+        }
+        jdbcTemplate.batchUpdate(ADD_BUCKET_CLICKS_SQL, bucketArgs);
+    }
+
+    // ランキングの集計前に呼び出す。recentSinceより前の日ごとのクリック数は削除する
+    public void prepareForRanking(LocalDateTime recentSince) {
+        if (reconcileEnabled || urlStatsRepository.count() == 0) {
+            reconcile(recentSince);
+        }
+        LocalDate recentSinceDate = recentSince.toLocalDate();
+        int deleted = jdbcTemplate.update("DELETE FROM url_click_bucket WHERE bucket_date < ?", Date.valueOf(recentSinceDate));
+        logger.info("Purged {} old click buckets.", deleted);
+    }
+
+    // ブックマークとクリックログから数え直し、差のある行だけを直す
+    // 表全体を入れ替えないため、数え直している間もブックマークの追加・削除やクリックの書き込みを待たせない
+    // 数え直している間の書き込みで値が変わった行はそのままにし、次回の突き合わせで直す
+    public void reconcile(LocalDateTime recentSince) {
+        long startTime = System.currentTimeMillis();
+        List<Object[]> insertStats = new ArrayList<>();
+        List<Object[]> updateStats = new ArrayList<>();
+        jdbcTemplate.query(FIND_STATS_DIFFS_SQL, rs -> {
+            long urlId = rs.getLong("url_id");
+            long uniqueUserCount = rs.getLong("unique_user_count");
+            long totalClickCount = rs.getLong("total_click_count");
+            if (rs.getObject("stats_url_id") == null) {
+                insertStats.add(new Object[] {urlId, uniqueUserCount, totalClickCount, uniqueUserCount > 1, urlId});
+            } else {
+                updateStats.add(new Object[] {uniqueUserCount, totalClickCount, uniqueUserCount > 1, urlId,
+                        rs.getLong("stats_unique_user_count"), rs.getLong("stats_total_click_count")});
+            }
+        });
+        jdbcTemplate.query(FIND_STALE_STATS_SQL, rs -> {
+            updateStats.add(new Object[] {0L, 0L, false, rs.getLong("url_id"),
+                    rs.getLong("stats_unique_user_count"), rs.getLong("stats_total_click_count")});
+        });
+        int fixedStats = applyInBatches(INSERT_RECONCILED_STATS_SQL, insertStats) + applyInBatches(UPDATE_RECONCILED_STATS_SQL, updateStats);
+
+        Timestamp since = Timestamp.valueOf(recentSince.toLocalDate().atStartOfDay());
+        List<Object[]> insertBuckets = new ArrayList<>();
+        List<Object[]> updateBuckets = new ArrayList<>();
+        jdbcTemplate.query(FIND_BUCKET_DIFFS_SQL, rs -> {
+            long urlId = rs.getLong("url_id");
+            Date bucketDate = rs.getDate("bucket_date");
+            long clickCount = rs.getLong("click_count");
+            long firstClickerId = rs.getLong("first_clicker_id");
+            boolean multipleClickers = rs.getBoolean("multiple_clickers");
+            if (rs.getObject("bucket_id") == null) {
+                insertBuckets.add(new Object[] {urlId, bucketDate, clickCount, firstClickerId, multipleClickers, urlId, bucketDate});
+            } else {
+                updateBuckets.add(new Object[] {clickCount, firstClickerId, multipleClickers, rs.getLong("bucket_id"), rs.getLong("bucket_click_count")});
+            }
+        }, since);
+        jdbcTemplate.query(FIND_STALE_BUCKETS_SQL, rs -> {
+            updateBuckets.add(new Object[] {0L, null, false, rs.getLong("bucket_id"), rs.getLong("bucket_click_count")});
+        }, since, Date.valueOf(recentSince.toLocalDate()));
+        int fixedBuckets = applyInBatches(INSERT_RECONCILED_BUCKET_SQL, insertBuckets) + applyInBatches(UPDATE_RECONCILED_BUCKET_SQL, updateBuckets);
+
+        // クリックが0件になった前日以前の行を削除する（当日の行は書き込み中の場合があるため残す）
+        int deletedBuckets = jdbcTemplate.update("DELETE FROM url_click_bucket WHERE click_count = 0 AND bucket_date < ?", Date.valueOf(LocalDate.now()));
+        publicUrlCount.invalidateAll();
+        logger.info("Reconciled url stats: fixed {} stats rows and {} click buckets, deleted {} empty buckets in {} ms.",
+                fixedStats, fixedBuckets, deletedBuckets, System.currentTimeMillis() - startTime);
+    }
+
+    private int applyInBatches(String sql, List<Object[]> args) {
+        int applied = 0;
+        for (int from = 0; from < args.size(); from += RECONCILE_BATCH_SIZE) {
+            List<Object[]> batch = args.subList(from, Math.min(from + RECONCILE_BATCH_SIZE, args.size()));
+            int[] counts = transactionTemplate.execute(status -> jdbcTemplate.batchUpdate(sql, batch));
+            for (int count : counts) {
+                if (count > 0) {
+                    applied += count;
+                }
+            }
+        }
+        return applied;
+    }
+}
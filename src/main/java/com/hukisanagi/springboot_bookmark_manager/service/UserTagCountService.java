@@ -0,0 +1,163 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import com.hukisanagi.springboot_bookmark_manager.model.AppUser;
+import com.hukisanagi.springboot_bookmark_manager.model.Tag;
+import com.hukisanagi.springboot_bookmark_manager.model.TagCount;
+import com.hukisanagi.springboot_bookmark_manager.repository.TagRepository;
+import com.hukisanagi.springboot_bookmark_manager.repository.UserTagCountRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// ユーザーごとのタグの使用数を、ブックマークの書き込みと同じトランザクションで加減算する
+// タグ一覧はこの表から1回の問い合わせで作り、未使用のタグの判定も件数の集計ではなく行の有無で行う
+// 行の作成は一意制約違反が書き込みのトランザクションを失敗させないよう、呼び出し側のトランザクションを開始する前に別のトランザクションで行う
+@Service
+@Transactional
+public class UserTagCountService {
+
+    private static final Logger logger = LoggerFactory.getLogger(UserTagCountService.class);
+
+    private static final int PURGE_BATCH_SIZE = 500;
+
+    // 使用数の表を導入する前のブックマークから、ユーザーごとの使用数を作成する
+    private static final String BACKFILL_SQL =
+            "INSERT INTO user_tag_count (app_user_id, tag_id, bookmark_count) " +
+            "SELECT b.app_user_id, bt.tag_id, COUNT(*) FROM bookmark b JOIN bookmark_tag bt ON bt.bookmark_id = b.id " +
+            "WHERE b.app_user_id IS NOT NULL GROUP BY b.app_user_id, bt.tag_id";
+
+    // 使用数0の行を作成する（他のリクエストが作成済みの行は作成しない）
+    private static final String INSERT_COUNT_SQL =
+            "INSERT INTO user_tag_count (app_user_id, tag_id, bookmark_count) SELECT ?, t.id, 0 FROM tag t " +
+            "WHERE t.name = ? AND NOT EXISTS (SELECT 1 FROM user_tag_count c WHERE c.app_user_id = ? AND c.tag_id = t.id)";
+
+    private final UserTagCountRepository userTagCountRepository;
+    private final TagRepository tagRepository;
+    private final JdbcTemplate jdbcTemplate;
+    private final TagResolver tagResolver;
+    private final TransactionTemplate transactionTemplate;
+    private final long purgeGraceHours;
+
+    public UserTagCountService(UserTagCountRepository userTagCountRepository, TagRepository tagRepository, JdbcTemplate jdbcTemplate, TagResolver tagResolver,
+                               PlatformTransactionManager transactionManager,
+                               @Value("${tag.purge-grace-hours:24}") long purgeGraceHours) {
+        this.userTagCountRepository = userTagCountRepository;
+        this.tagRepository = tagRepository;
+        this.jdbcTemplate = jdbcTemplate;
+        this.tagResolver = tagResolver;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.purgeGraceHours = purgeGraceHours;
+    }
+
+    @Transactional(readOnly = true)
+    public List<TagCount> findTagCounts(AppUser appUser) {
+        return userTagCountRepository.findTagCountsByAppUser(appUser);
+    }
+
+    // ブックマークの保存のトランザクションを開始する前に呼び出し、追加するタグの行を作成しておく
+    // タグはTagResolver.prepareで作成済みであること。保存に失敗して残った使用数0の行はタグ一覧に表示せず、次の削除時に消える
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void prepareTagCounts(AppUser appUser, Collection<String> tagNames) {
+        if (tagNames.isEmpty()) {
+            return;
+        }
+        List<Object[]> args = tagNames.stream().distinct()
+                .map(name -> new Object[] {appUser.getId(), name, appUser.getId()})
+                .toList();
+        try {
+            transactionTemplate.executeWithoutResult(status -> jdbcTemplate.batchUpdate(INSERT_COUNT_SQL, args));
+        } catch (DataIntegrityViolationException e) {
+            // 他のリクエストが同時に作成した場合（作成済みの行に加算する）
+            logger.debug("User tag counts were created concurrently.", e);
+        }
+    }
+
+    // 1件のブックマークのタグの変更を反映する（追加時はoldTagsが空、削除時はnewTagsが空）
+    // どのユーザーも使わなくなったタグは、日時を記録して定期処理で削除する
+    public void applyTagChange(AppUser appUser, Collection<Tag> oldTags, Collection<Tag> newTags) {
+        Map<Long, Tag> removed = byId(oldTags);
+        Map<Long, Tag> added = byId(newTags);
+        removed.keySet().removeAll(byId(newTags).keySet());
+        added.keySet().removeAll(byId(oldTags).keySet());
+
+        for (Tag tag : added.values()) {
+            // 行はprepareTagCountsで作成済みのため、通常は加算だけを行う
+            // 作成後に他のリクエストの削除で消えていた場合は、この接続で作成する（先に作成されていれば加算する）
+            if (userTagCountRepository.addBookmarkCount(appUser, tag, 1) == 0
+                    && userTagCountRepository.insertIfAbsent(appUser.getId(), tag.getId(), 1) == 0) {
+                userTagCountRepository.addBookmarkCount(appUser, tag, 1);
+            }
+        }
+
+        if (removed.isEmpty()) {
+            return;
+        }
+        for (Tag tag : removed.values()) {
+            userTagCountRepository.addBookmarkCount(appUser, tag, -1);
+        }
+        userTagCountRepository.deleteUnusedByAppUser(appUser);
+        // 他のリクエストがキャッシュ済みのIDで同じタグを追加している場合があるため、ここでは削除しない
+        tagRepository.markUnused(removed.keySet(), LocalDateTime.now());
+    }
+
+    // 使われなくなってから猶予期間を過ぎたタグを削除する
+    // 猶予期間はタグIDのキャッシュの有効期間より長くし、どのノードのキャッシュにも残っていないタグだけを削除する
+    @Scheduled(cron = "${tag.purge-cron:0 45 4 * * *}")
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void purgeUnusedTags() {
+        LocalDateTime threshold = LocalDateTime.now().minusHours(purgeGraceHours);
+        int purged = 0;
+        List<Tag> candidates;
+        do {
+            candidates = tagRepository.findPurgeable(threshold, PageRequest.of(0, PURGE_BATCH_SIZE));
+            for (Tag tag : candidates) {
+                Integer deleted = transactionTemplate.execute(status -> tagRepository.deleteIfUnused(tag.getId()));
+                if (deleted != null && deleted > 0) {
+                    tagResolver.evict(tag.getName());
+                    purged++;
+                }
+            }
+        } while (candidates.size() == PURGE_BATCH_SIZE);
+        if (purged > 0) {
+            logger.info("Purged {} unused tags.", purged);
+        }
+    }
+
+    private static Map<Long, Tag> byId(Collection<Tag> tags) {
+        Map<Long, Tag> result = new LinkedHashMap<>();
+        tags.forEach(tag -> result.put(tag.getId(), tag));
+        return result;
+    }
+
+    // 起動時に表が空であれば既存のブックマークから作成する（2回目以降の起動では何もしない）
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfillIfEmpty() {
+        if (userTagCountRepository.count() > 0) {
+            return;
+        }
+        try {
+            int inserted = jdbcTemplate.update(BACKFILL_SQL);
+            logger.info("Backfilled {} user tag counts.", inserted);
+        } catch (DataIntegrityViolationException e) {
+            // 他のノードが同時に作成した場合
+            logger.info("User tag counts were already backfilled by another node.");
+        }
+    }
+}
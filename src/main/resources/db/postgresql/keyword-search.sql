@@ -0,0 +1,13 @@
+-- キーワード検索（LOWER(列) LIKE '%キーワード%'）をpg_trgmのGINインデックスで行うためのインデックス
+-- docker・rdsプロファイルで起動時に実行する（Hibernateによる表の作成後。何度実行しても同じ結果になる）
+-- 日本語の3文字単位の索引にはUTF-8のデータベースとC以外のLC_CTYPEが必要
+-- 拡張機能の作成にはデータベースの所有者（RDSではrds_superuser）の権限が必要
+-- 権限がない場合は失敗しても起動を続け、DatabaseKeywordSearchが無効になってLIKEで検索する（管理者が作成すれば次回の起動から有効になる）
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+
+CREATE INDEX IF NOT EXISTS idx_bookmark_title_trgm ON bookmark USING gin (LOWER(title) gin_trgm_ops);
+CREATE INDEX IF NOT EXISTS idx_bookmark_url_trgm ON bookmark USING gin (LOWER(url) gin_trgm_ops);
+CREATE INDEX IF NOT EXISTS idx_tag_name_trgm ON tag USING gin (LOWER(name) gin_trgm_ops);
+
+-- タグ名で一致したタグからブックマークを引くための索引（主キーは (bookmark_id, tag_id) の順）
+CREATE INDEX IF NOT EXISTS idx_bookmark_tag_tag_id ON bookmark_tag (tag_id);
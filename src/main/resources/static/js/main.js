@@ -164,8 +164,9 @@ document.addEventListener('DOMContentLoaded', function () {
         });
     }
 
-    // ブックマークアイテムのクリックイベント
-    document.querySelectorAll('.js-bookmark-item').forEach(item => {
+    // ブックマークアイテムのクリックイベント（続きを読み込んだアイテムにも設定する）
+    document.querySelectorAll('.js-bookmark-item').forEach(bindBookmarkItemClick);
+    function bindBookmarkItemClick(item) {
         item.addEventListener('click', function (event) {
             const editModeToggle = document.getElementById('editModeToggle');
             const isEditMode = editModeToggle && editModeToggle.checked;
@@ -236,17 +237,16 @@ document.addEventListener('DOMContentLoaded', function () {
                 }
             }
         });
-    });
+    }
 
     // 編集モードのトグル
     const editModeToggle = document.getElementById('editModeToggle');
-    const bookmarkCheckboxes = document.querySelectorAll('.bookmark-checkbox-container');
     const editModeControls = document.getElementById('edit-mode-controls');
-    const bookmarkEditButtons = document.querySelectorAll('.bookmark-edit-button-container');
     const batchDeleteButton = document.getElementById('batchDeleteButton'); // 追加
 
     // 各ブックマークのチェックボックスにイベントリスナーを追加
-    document.querySelectorAll('.bookmark-checkbox').forEach(checkbox => {
+    document.querySelectorAll('.bookmark-checkbox').forEach(bindBookmarkCheckbox);
+    function bindBookmarkCheckbox(checkbox) {
         checkbox.addEventListener('change', function() {
             const bookmarkItem = this.closest('.list-group-item');
             if (bookmarkItem) {
@@ -254,7 +254,7 @@ document.addEventListener('DOMContentLoaded', function () {
             }
             updateBatchDeleteButtonState(); // 追加
         });
-    });
+    }
 
     // 一括削除ボタンの状態を更新する関数
     function updateBatchDeleteButtonState() {
@@ -269,7 +269,8 @@ document.addEventListener('DOMContentLoaded', function () {
             const isEditMode = this.checked;
 
             // 各ブックマークのチェックボックスの表示/非表示
-            bookmarkCheckboxes.forEach(container => {
+            // 続きを読み込んだアイテムも対象にするため、切り替えのたびに取得する
+            document.querySelectorAll('.bookmark-checkbox-container').forEach(container => {
                 container.classList.toggle('d-none', !isEditMode);
             });
 
@@ -279,7 +280,7 @@ document.addEventListener('DOMContentLoaded', function () {
             }
 
             // 編集ボタンの表示/非表示
-            bookmarkEditButtons.forEach(container => {
+            document.querySelectorAll('.bookmark-edit-button-container').forEach(container => {
                 container.classList.toggle('d-none', !isEditMode);
             });
 
@@ -322,9 +323,6 @@ document.addEventListener('DOMContentLoaded', function () {
                 currentUrl.searchParams.set('keyword', keywordParam);
             }
 
-            // pageパラメータをリセット
-            currentUrl.searchParams.set('page', '0');
-
             window.location.href = currentUrl.toString();
         });
     });
@@ -339,9 +337,6 @@ document.addEventListener('DOMContentLoaded', function () {
             // sortパラメータを更新
             currentUrl.searchParams.set('sort', selectedSortValue);
             
-            // pageパラメータをリセット
-            currentUrl.searchParams.set('page', '0');
-
             window.location.href = currentUrl.toString(); // URLを更新してページをリロード
         });
     }
@@ -472,7 +467,8 @@ document.addEventListener('DOMContentLoaded', function () {
     }
 
     // お気に入りトグル処理
-    document.querySelectorAll('.js-toggle-favorite').forEach(button => {
+    document.querySelectorAll('.js-toggle-favorite').forEach(bindToggleFavorite);
+    function bindToggleFavorite(button) {
         button.addEventListener('click', function (event) {
             event.preventDefault();
             event.stopPropagation();
@@ -505,7 +501,114 @@ document.addEventListener('DOMContentLoaded', function () {
             })
             .catch(error => {});
         });
-    });
+    }
+
+    // ブックマーク一覧の続きの読み込み（無限スクロール）
+    // 画面の下端に近づくと、表示中と同じ条件で /api/bookmarks から次の分を取得して末尾に追加する
+    const bookmarkListSentinel = document.getElementById('bookmarkListSentinel');
+    const bookmarkItemTemplate = document.getElementById('bookmarkItemTemplate');
+    if (bookmarkListSentinel && bookmarkItemTemplate) {
+        const bookmarkList = document.querySelector('.tab-pane.active .js-bookmark-list');
+        const loadedBookmarkCount = document.getElementById('loadedBookmarkCount');
+        const loadMoreButton = document.getElementById('loadMoreBookmarksButton');
+        let nextCursor = bookmarkListSentinel.dataset.nextCursor;
+        let loading = false;
+
+        const createBookmarkItem = (bookmark) => {
+            const item = bookmarkItemTemplate.content.firstElementChild.cloneNode(true);
+            item.dataset.url = bookmark.url;
+            item.dataset.bookmarkId = bookmark.id;
+            item.querySelector('.bookmark-checkbox').value = bookmark.id;
+
+            const favicon = item.querySelector('.js-item-favicon');
+            if (bookmark.faviconUrl) {
+                favicon.src = bookmark.faviconUrl;
+            }
+
+            const title = item.querySelector('.js-item-title');
+            title.textContent = bookmark.title;
+            title.title = bookmark.title;
+
+            const tagsContainer = item.querySelector('.js-item-tags');
+            bookmark.tags.forEach(tagName => {
+                const tagLink = document.createElement('a');
+                tagLink.href = `/?tag=${encodeURIComponent(tagName)}`;
+                tagLink.className = 'badge rounded-pill bg-secondary-subtle bookmark-tag-small text-dark text-decoration-none ms-1 mb-1';
+                tagLink.textContent = tagName;
+                tagsContainer.appendChild(tagLink);
+            });
+
+            const urlLink = item.querySelector('.js-item-url');
+            urlLink.href = bookmark.url;
+            urlLink.textContent = bookmark.url.length > 80 ? bookmark.url.substring(0, 77) + '...' : bookmark.url;
+            urlLink.title = bookmark.url;
+
+            const favoriteButton = item.querySelector('.js-toggle-favorite');
+            favoriteButton.dataset.bookmarkId = bookmark.id;
+            favoriteButton.dataset.isFavorite = bookmark.favorite;
+            favoriteButton.title = bookmark.favorite ? 'お気に入りから削除' : 'お気に入りに追加';
+            favoriteButton.querySelector('i').className = bookmark.favorite ? 'bi bi-star-fill text-warning' : 'bi bi-star text-secondary';
+
+            item.querySelector('.edit-bookmark-button').dataset.bookmarkId = bookmark.id;
+
+            // 編集モード中であればチェックボックス・編集ボタンを表示した状態で追加する
+            const isEditMode = editModeToggle && editModeToggle.checked;
+            item.querySelector('.bookmark-checkbox-container').classList.toggle('d-none', !isEditMode);
+            item.querySelector('.bookmark-edit-button-container').classList.toggle('d-none', !isEditMode);
+
+            bindBookmarkItemClick(item);
+            bindBookmarkCheckbox(item.querySelector('.bookmark-checkbox'));
+            bindToggleFavorite(favoriteButton);
+            return item;
+        };
+
+        const loadMoreBookmarks = () => {
+            if (loading || !nextCursor || !bookmarkList) {
+                return;
+            }
+            loading = true;
+            loadMoreButton.disabled = true;
+
+            // 検索条件・並び順は表示中のURLのものをそのまま使う
+            const params = new URLSearchParams(window.location.search);
+            params.delete('page');
+            params.set('cursor', nextCursor);
+
+            fetch(`/api/bookmarks?${params.toString()}`)
+                .then(response => {
+                    if (!response.ok) {
+                        throw new Error('Failed to load bookmarks');
+                    }
+                    return response.json();
+                })
+                .then(slice => {
+                    slice.items.forEach(bookmark => bookmarkList.appendChild(createBookmarkItem(bookmark)));
+                    if (loadedBookmarkCount) {
+                        loadedBookmarkCount.textContent = bookmarkList.querySelectorAll('.js-bookmark-item').length;
+                    }
+                    nextCursor = slice.nextCursor;
+                    if (!nextCursor) {
+                        observer.disconnect();
+                        bookmarkListSentinel.remove();
+                    }
+                })
+                .catch(error => {
+                    // 読み込みに失敗した場合はボタンから再試行できるようにする
+                })
+                .finally(() => {
+                    loading = false;
+                    loadMoreButton.disabled = false;
+                });
+        };
+
+        const observer = new IntersectionObserver(entries => {
+            if (entries.some(entry => entry.isIntersecting)) {
+                loadMoreBookmarks();
+            }
+        }, { rootMargin: '300px' });
+        observer.observe(bookmarkListSentinel);
+        loadMoreButton.addEventListener('click', loadMoreBookmarks);
+    }
 
     // タブ切り替え時のURL更新
     const allBookmarksTab = document.getElementById('all-bookmarks-tab');
@@ -515,7 +618,6 @@ document.addEventListener('DOMContentLoaded', function () {
         allBookmarksTab.addEventListener('click', function (event) {
             const currentUrl = new URL(window.location.href);
             currentUrl.searchParams.delete('showFavorites');
-            currentUrl.searchParams.set('page', '0');
             window.location.href = currentUrl.toString();
         });
     }
@@ -524,7 +626,6 @@ document.addEventListener('DOMContentLoaded', function () {
         favoritesTab.addEventListener('click', function (event) {
             const currentUrl = new URL(window.location.href);
             currentUrl.searchParams.set('showFavorites', 'true');
-            currentUrl.searchParams.set('page', '0');
             window.location.href = currentUrl.toString();
         });
     }
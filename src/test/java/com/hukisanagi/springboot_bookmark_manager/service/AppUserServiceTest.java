@@ -0,0 +1,58 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import com.hukisanagi.springboot_bookmark_manager.model.AppUser;
+import com.hukisanagi.springboot_bookmark_manager.repository.AppUserRepository;
+import com.hukisanagi.springboot_bookmark_manager.repository.BookmarkRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataIntegrityViolationException;
+import software.amazon.awssdk.services.cognitoidentityprovider.CognitoIdentityProviderClient;
+
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class AppUserServiceTest {
+
+    private AppUserRepository appUserRepository;
+    private AppUserService appUserService;
+
+    @BeforeEach
+    void setUp() {
+        appUserRepository = mock(AppUserRepository.class);
+        when(appUserRepository.getReferenceById(any())).thenAnswer(invocation -> {
+            AppUser reference = new AppUser();
+            reference.setId(invocation.getArgument(0));
+            return reference;
+        });
+        appUserService = new AppUserService(appUserRepository, mock(CognitoIdentityProviderClient.class), mock(StorageService.class),
+                mock(BookmarkRepository.class), mock(FaviconBlobService.class), mock(BookmarkedUrlCache.class), mock(UrlStatsService.class),
+                new ConnectionTrackingTransactionManager(), 100);
+    }
+
+    @Test
+    void resolvedUserIdIsCached() {
+        AppUser stored = new AppUser("sub");
+        stored.setId(1L);
+        when(appUserRepository.findByCognitoSub("sub")).thenReturn(Optional.of(stored));
+
+        assertThat(appUserService.getOrCreateUser("sub").getId()).isEqualTo(1L);
+        assertThat(appUserService.getOrCreateUser("sub")).isEqualTo(stored);
+        verify(appUserRepository, times(1)).findByCognitoSub("sub");
+    }
+
+    @Test
+    void concurrentFirstLoginUsesUserCreatedByOtherRequest() {
+        AppUser createdByOther = new AppUser("sub");
+        createdByOther.setId(2L);
+        when(appUserRepository.findByCognitoSub("sub")).thenReturn(Optional.empty(), Optional.of(createdByOther));
+        when(appUserRepository.saveAndFlush(any())).thenThrow(new DataIntegrityViolationException("duplicate cognito_sub"));
+
+        assertThat(appUserService.getOrCreateUser("sub").getId()).isEqualTo(2L);
+    }
+}
@@ -0,0 +1,146 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import com.hukisanagi.springboot_bookmark_manager.config.TransactionConfig;
+import com.hukisanagi.springboot_bookmark_manager.model.AppUser;
+import com.hukisanagi.springboot_bookmark_manager.model.Bookmark;
+import com.hukisanagi.springboot_bookmark_manager.model.Tag;
+import com.hukisanagi.springboot_bookmark_manager.repository.AppUserRepository;
+import com.hukisanagi.springboot_bookmark_manager.repository.BookmarkRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.ImportAutoConfiguration;
+import org.springframework.boot.autoconfigure.transaction.TransactionManagerCustomizationAutoConfiguration;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.sql.DataSource;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+// Springのプロキシを通して、ブックマークの追加・更新で接続を同時に1つしか使わないことを確認する
+// （トランザクション内で別のトランザクションを開始すると、1回の追加で接続を2つ使い、接続プールを使い切る）
+@DataJpaTest(properties = {"spring.config.import=optional:file:/nonexistent", "spring.cloud.aws.secretsmanager.enabled=false"})
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+@ImportAutoConfiguration(TransactionManagerCustomizationAutoConfiguration.class)
+@Import({TransactionConfig.class, BookmarkService.class, UrlMetadataService.class, FaviconBlobService.class, TagResolver.class,
+        UserTagCountService.class, UrlStatsService.class, BookmarkedUrlCache.class})
+class BookmarkServiceConnectionTest {
+
+    @Autowired
+    private BookmarkService bookmarkService;
+
+    @Autowired
+    private BookmarkRepository bookmarkRepository;
+
+    @Autowired
+    private AppUserRepository appUserRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private DataSource dataSource;
+
+    @MockitoBean
+    private PageMetadataService pageMetadataService;
+
+    @MockitoBean
+    private StorageService storageService;
+
+    @MockitoBean
+    private FaviconEnrichmentService faviconEnrichmentService;
+
+    @MockitoBean
+    private ClickIngestionService clickIngestionService;
+
+    @MockitoBean
+    private RankingSnapshotService rankingSnapshotService;
+
+    @MockitoBean
+    private TrendingRankingService trendingRankingService;
+
+    @MockitoBean
+    private DatabaseKeywordSearch databaseKeywordSearch;
+
+    @MockitoBean
+    private TagBitmapIndex tagBitmapIndex;
+
+    @TestConfiguration
+    static class Config {
+
+        @Bean
+        static BeanPostProcessor countingDataSourcePostProcessor() {
+            return CountingDataSource.postProcessor();
+        }
+    }
+
+    private CountingDataSource countingDataSource;
+    private AppUser appUser;
+
+    @BeforeEach
+    void setUp() {
+        countingDataSource = (CountingDataSource) dataSource;
+        appUser = appUserRepository.save(new AppUser("connection-" + System.nanoTime()));
+        countingDataSource.maxOpenConnections.set(0);
+    }
+
+    @Test
+    void addBookmarkHoldsAtMostOneConnection() {
+        // URLの行・タグ・集計値の行をすべて新しく作成する場合
+        bookmarkService.addBookmark(new Bookmark(null, "Example", "https://example.com/connection"), "java, web", appUser);
+
+        assertThat(countingDataSource.maxOpenConnections.get()).isEqualTo(1);
+        assertThat(countingDataSource.openConnections.get()).isZero();
+        Bookmark saved = bookmarkRepository.findByAppUserAndUrl(appUser, "https://example.com/connection").get(0);
+        assertThat(jdbcTemplate.queryForObject("SELECT unique_user_count FROM url_stats WHERE url_id = ?", Long.class,
+                saved.getUrlMetadata().getId())).isEqualTo(1);
+
+        assertThatThrownBy(() -> bookmarkService.addBookmark(new Bookmark(null, "Example", "https://EXAMPLE.com/connection"), "", appUser))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThat(countingDataSource.maxOpenConnections.get()).isEqualTo(1);
+    }
+
+    @Test
+    void updateBookmarkHoldsAtMostOneConnection() {
+        bookmarkService.addBookmark(new Bookmark(null, "Example", "https://example.com/update"), "java", appUser);
+        Long id = bookmarkRepository.findByAppUserAndUrl(appUser, "https://example.com/update").get(0).getId();
+        countingDataSource.maxOpenConnections.set(0);
+
+        // 未登録のタグを追加する場合
+        bookmarkService.updateBookmark(id, new Bookmark(null, "Updated", "https://example.com/update"), "java, spring", appUser);
+
+        assertThat(countingDataSource.maxOpenConnections.get()).isEqualTo(1);
+        assertThat(countingDataSource.openConnections.get()).isZero();
+        assertThat(bookmarkService.findBookmarkByIdAndUser(id, appUser).orElseThrow().getTags())
+                .extracting(Tag::getName).containsExactlyInAnyOrder("java", "spring");
+        assertThat(bookmarkService.findAllTags(appUser)).hasSize(2);
+    }
+
+    @Test
+    void fetchTitleFromUrlHoldsNoConnectionWhileFetching() throws Exception {
+        // トランザクション外のメソッドでも、最初の問い合わせの接続をメソッドの終わりまで保持しない
+        AtomicInteger connectionsDuringFetch = new AtomicInteger(-1);
+        when(pageMetadataService.fetchPageHead(anyString(), any(), any())).thenAnswer(invocation -> {
+            connectionsDuringFetch.set(countingDataSource.openConnections.get());
+            return new PageMetadataService.PageHead(false, "Example", List.of(), null, null);
+        });
+
+        assertThat(bookmarkService.fetchTitleFromUrl("https://example.com/title")).isEqualTo("Example");
+
+        assertThat(connectionsDuringFetch.get()).isZero();
+    }
+}
@@ -0,0 +1,188 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import com.hukisanagi.springboot_bookmark_manager.model.AppUser;
+import com.hukisanagi.springboot_bookmark_manager.model.Bookmark;
+import com.hukisanagi.springboot_bookmark_manager.model.BookmarkListItem;
+import com.hukisanagi.springboot_bookmark_manager.model.BookmarkSlice;
+import com.hukisanagi.springboot_bookmark_manager.model.FaviconStatus;
+import com.hukisanagi.springboot_bookmark_manager.model.UrlMetadata;
+import com.hukisanagi.springboot_bookmark_manager.repository.AppUserRepository;
+import com.hukisanagi.springboot_bookmark_manager.repository.BookmarkClickLogRepository;
+import com.hukisanagi.springboot_bookmark_manager.repository.BookmarkRepository;
+import com.hukisanagi.springboot_bookmark_manager.repository.FaviconBlobRepository;
+import com.hukisanagi.springboot_bookmark_manager.repository.UrlMetadataRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+class BookmarkServiceTest {
+
+    private BookmarkRepository bookmarkRepository;
+    private UrlMetadataRepository urlMetadataRepository;
+    private FaviconBlobRepository faviconBlobRepository;
+    private PageMetadataService pageMetadataService;
+    private FaviconEnrichmentService faviconEnrichmentService;
+    private UrlStatsService urlStatsService;
+    private TagResolver tagResolver;
+    private BookmarkService bookmarkService;
+
+    @BeforeEach
+    void setUp() {
+        bookmarkRepository = mock(BookmarkRepository.class);
+        urlMetadataRepository = mock(UrlMetadataRepository.class);
+        when(urlMetadataRepository.saveAndFlush(any())).thenAnswer(invocation -> invocation.getArgument(0));
+        when(urlMetadataRepository.getReferenceById(any())).thenAnswer(invocation -> {
+            UrlMetadata reference = new UrlMetadata();
+            reference.setId(invocation.getArgument(0));
+            return reference;
+        });
+        pageMetadataService = mock(PageMetadataService.class);
+        faviconEnrichmentService = mock(FaviconEnrichmentService.class);
+        faviconBlobRepository = mock(FaviconBlobRepository.class);
+        urlStatsService = mock(UrlStatsService.class);
+        tagResolver = mock(TagResolver.class);
+        ConnectionTrackingTransactionManager transactionManager = new ConnectionTrackingTransactionManager();
+        FaviconBlobService faviconBlobService = new FaviconBlobService(faviconBlobRepository, urlMetadataRepository,
+                mock(StorageService.class), transactionManager, 24);
+        UrlMetadataService urlMetadataService = new UrlMetadataService(urlMetadataRepository, pageMetadataService,
+                faviconBlobService, transactionManager, 100, 168);
+        bookmarkService = new BookmarkService(bookmarkRepository, mock(AppUserRepository.class),
+                mock(BookmarkClickLogRepository.class), mock(RankingSnapshotService.class), mock(StorageService.class),
+                urlMetadataService, faviconBlobService, faviconEnrichmentService, mock(ClickIngestionService.class), mock(BookmarkedUrlCache.class),
+                mock(UserTagCountService.class), tagResolver, mock(DatabaseKeywordSearch.class), mock(TagBitmapIndex.class), urlStatsService,
+                mock(TrendingRankingService.class), transactionManager);
+    }
+
+    @Test
+    void addBookmarkSavesPendingBookmarkWithoutOutboundHttp() {
+        AppUser appUser = new AppUser("sub");
+        appUser.setId(1L);
+        when(bookmarkRepository.save(any(Bookmark.class))).thenAnswer(invocation -> invocation.getArgument(0));
+
+        Bookmark bookmark = new Bookmark(null, "Example", "https://example.com/");
+        bookmarkService.addBookmark(bookmark, "", appUser);
+
+        assertThat(bookmark.getFaviconStatus()).isEqualTo(FaviconStatus.PENDING);
+        assertThat(bookmark.getUrl()).isEqualTo("https://example.com");
+        verify(faviconEnrichmentService).enqueue(bookmark);
+        verifyNoInteractions(pageMetadataService);
+    }
+
+    @Test
+    void addBookmarkReusesKnownFaviconWithoutOutboundHttp() {
+        AppUser appUser = new AppUser("sub");
+        appUser.setId(2L);
+        UrlMetadata metadata = new UrlMetadata("hash", "https://example.com");
+        metadata.setFaviconPath("blobs/ab/cd/abcd.png");
+        when(urlMetadataRepository.findByUrlHash(anyString())).thenReturn(Optional.of(metadata));
+        when(faviconBlobRepository.retain("blobs/ab/cd/abcd.png")).thenReturn(1);
+        when(bookmarkRepository.save(any(Bookmark.class))).thenAnswer(invocation -> invocation.getArgument(0));
+
+        Bookmark bookmark = new Bookmark(null, "Example", "https://example.com/");
+        bookmarkService.addBookmark(bookmark, "", appUser);
+
+        assertThat(bookmark.getFaviconStatus()).isEqualTo(FaviconStatus.DONE);
+        assertThat(bookmark.getFaviconPath()).isEqualTo("blobs/ab/cd/abcd.png");
+        verify(faviconEnrichmentService, never()).enqueue(any());
+        verifyNoInteractions(pageMetadataService);
+    }
+
+    @Test
+    void addBookmarkFetchesAgainWhenKnownFaviconWasPurged() {
+        AppUser appUser = new AppUser("sub");
+        appUser.setId(2L);
+        UrlMetadata metadata = new UrlMetadata("hash", "https://example.com");
+        metadata.setFaviconPath("blobs/ab/cd/abcd.png");
+        when(urlMetadataRepository.findByUrlHash(anyString())).thenReturn(Optional.of(metadata));
+        when(faviconBlobRepository.retain("blobs/ab/cd/abcd.png")).thenReturn(0);
+        when(bookmarkRepository.save(any(Bookmark.class))).thenAnswer(invocation -> invocation.getArgument(0));
+
+        Bookmark bookmark = new Bookmark(null, "Example", "https://example.com/");
+        bookmarkService.addBookmark(bookmark, "", appUser);
+
+        assertThat(bookmark.getFaviconStatus()).isEqualTo(FaviconStatus.PENDING);
+        verify(faviconEnrichmentService).enqueue(bookmark);
+    }
+
+    @Test
+    void addBookmarkReferencesSharedUrlRowAndRejectsDuplicatesByItsId() {
+        AppUser appUser = new AppUser("sub");
+        appUser.setId(4L);
+        UrlMetadata metadata = new UrlMetadata("hash", "https://example.com");
+        metadata.setId(10L);
+        when(urlMetadataRepository.findByUrlHash(anyString())).thenReturn(Optional.of(metadata));
+        when(urlMetadataRepository.getReferenceById(10L)).thenReturn(metadata);
+        when(bookmarkRepository.save(any(Bookmark.class))).thenAnswer(invocation -> invocation.getArgument(0));
+
+        Bookmark bookmark = new Bookmark(null, "Example", "https://example.com/");
+        bookmarkService.addBookmark(bookmark, "", appUser);
+        assertThat(bookmark.getUrlMetadata()).isSameAs(metadata);
+        verify(urlStatsService).prepareBookmark(10L);
+        verify(urlStatsService).addBookmark(10L);
+
+        when(bookmarkRepository.existsByAppUserAndUrlMetadata(appUser, metadata)).thenReturn(true);
+        assertThatThrownBy(() -> bookmarkService.addBookmark(new Bookmark(null, "Example", "https://EXAMPLE.com"), "java, web", appUser))
+                .isInstanceOf(IllegalArgumentException.class);
+        // 重複で登録しなかったブックマークは、URLごとの集計値に加算しない
+        verify(urlStatsService).addBookmark(10L);
+        // 重複の場合はタグを作成しない（作成は別のトランザクションでコミットされ、使われないタグが残る）
+        verifyNoInteractions(tagResolver);
+    }
+
+    @Test
+    void findBookmarkSliceReturnsCursorOfLastItemWhenMoreRowsExist() {
+        AppUser appUser = new AppUser("sub");
+        appUser.setId(3L);
+        when(bookmarkRepository.findListItems(any(), any(), anyInt())).thenReturn(List.of(
+                listItem(5L, "A"),
+                listItem(2L, "B"),
+                listItem(9L, "B")));
+
+        BookmarkSlice<BookmarkListItem> slice = bookmarkService.findBookmarkSlice(appUser, null, null, "title,asc", null, 2, null);
+
+        assertThat(slice.items()).extracting(BookmarkListItem::id).containsExactly(5L, 2L);
+        BookmarkCursor cursor = BookmarkCursor.decode(slice.nextCursor(), "title,asc");
+        assertThat(cursor.id()).isEqualTo(2L);
+        assertThat(cursor.title()).isEqualTo("B");
+    }
+
+    @Test
+    void findBookmarkSliceHasNoCursorOnLastSlice() {
+        AppUser appUser = new AppUser("sub");
+        appUser.setId(3L);
+        when(bookmarkRepository.findListItems(any(), any(), anyInt())).thenReturn(List.of(listItem(1L, "A")));
+
+        BookmarkSlice<BookmarkListItem> slice = bookmarkService.findBookmarkSlice(appUser, null, null, "id,desc", null, 2, null);
+
+        assertThat(slice.items()).hasSize(1);
+        assertThat(slice.hasNext()).isFalse();
+    }
+
+    @Test
+    void cursorOfAnotherSortOrderIsRejected() {
+        AppUser appUser = new AppUser("sub");
+        appUser.setId(3L);
+        String cursor = new BookmarkCursor("id,asc", 10L, null).encode();
+
+        assertThatThrownBy(() -> bookmarkService.findBookmarkSlice(appUser, null, null, "title,asc", cursor, 2, null))
+                .isInstanceOf(IllegalArgumentException.class);
+        verify(bookmarkRepository, never()).findListItems(any(), any(), anyInt());
+    }
+
+    private static BookmarkListItem listItem(Long id, String title) {
+        return new BookmarkListItem(id, title, "https://example.com/" + id, null, null, false, List.of());
+    }
+}
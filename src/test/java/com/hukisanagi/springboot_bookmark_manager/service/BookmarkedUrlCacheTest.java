@@ -0,0 +1,52 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import com.hukisanagi.springboot_bookmark_manager.model.AppUser;
+import com.hukisanagi.springboot_bookmark_manager.repository.BookmarkRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class BookmarkedUrlCacheTest {
+
+    private BookmarkRepository bookmarkRepository;
+    private BookmarkedUrlCache bookmarkedUrlCache;
+    private AppUser appUser;
+
+    @BeforeEach
+    void setUp() {
+        bookmarkRepository = mock(BookmarkRepository.class);
+        bookmarkedUrlCache = new BookmarkedUrlCache(bookmarkRepository, 1000, 10);
+        appUser = new AppUser("sub");
+        appUser.setId(1L);
+        when(bookmarkRepository.findUrlsByAppUser(appUser)).thenReturn(List.of("https://a.example", "https://b.example"));
+    }
+
+    @Test
+    void bookmarkedUrlsAreResolvedWithSingleQuery() {
+        List<String> rankingUrls = List.of("https://a.example", "https://c.example", "https://b.example", "https://d.example");
+
+        assertThat(bookmarkedUrlCache.findBookmarked(appUser, rankingUrls)).containsExactlyInAnyOrder("https://a.example", "https://b.example");
+        assertThat(bookmarkedUrlCache.isBookmarked(appUser, "https://c.example")).isFalse();
+        verify(bookmarkRepository, times(1)).findUrlsByAppUser(appUser);
+    }
+
+    @Test
+    void invalidationIsAppliedAgainAfterCommit() {
+        new TransactionTemplate(new ConnectionTrackingTransactionManager()).executeWithoutResult(status -> {
+            bookmarkedUrlCache.invalidate(appUser);
+            // コミット前に読み込まれた内容は、コミット後に破棄される
+            bookmarkedUrlCache.isBookmarked(appUser, "https://a.example");
+        });
+        when(bookmarkRepository.findUrlsByAppUser(appUser)).thenReturn(List.of("https://c.example"));
+
+        assertThat(bookmarkedUrlCache.isBookmarked(appUser, "https://c.example")).isTrue();
+    }
+}
@@ -0,0 +1,236 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import com.hukisanagi.springboot_bookmark_manager.repository.UrlStatsRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+
+class ClickIngestionServiceTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(ClickIngestionServiceTest.class);
+
+    private JdbcTemplate jdbcTemplate;
+    private DataSourceTransactionManager transactionManager;
+    private UrlStatsService urlStatsService;
+    private ClickIngestionService clickIngestionService;
+
+    @BeforeEach
+    void setUp() {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(
+                "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", "");
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        transactionManager = new DataSourceTransactionManager(dataSource);
+        jdbcTemplate.execute("CREATE TABLE bookmark (id BIGINT PRIMARY KEY, url_id BIGINT, total_click_count BIGINT NOT NULL)");
+        jdbcTemplate.execute("CREATE TABLE bookmark_click_log (id BIGINT AUTO_INCREMENT PRIMARY KEY, " +
+                "bookmark_id BIGINT REFERENCES bookmark(id), app_user_id BIGINT, clicked_at TIMESTAMP)");
+        jdbcTemplate.execute("CREATE TABLE url_stats (url_id BIGINT PRIMARY KEY, unique_user_count BIGINT NOT NULL, " +
+                "total_click_count BIGINT NOT NULL, public_url BOOLEAN NOT NULL)");
+        jdbcTemplate.execute("CREATE TABLE url_click_bucket (id BIGINT AUTO_INCREMENT PRIMARY KEY, url_id BIGINT NOT NULL, bucket_date DATE NOT NULL, " +
+                "click_count BIGINT NOT NULL, first_clicker_id BIGINT, multiple_clickers BOOLEAN NOT NULL, UNIQUE (url_id, bucket_date))");
+        // 2件のブックマークは別のユーザーが同じURLを登録したもの
+        jdbcTemplate.update("INSERT INTO bookmark (id, url_id, total_click_count) VALUES (1, 100, 0), (2, 100, 5)");
+        jdbcTemplate.update("INSERT INTO url_stats (url_id, unique_user_count, total_click_count, public_url) VALUES (100, 2, 5, TRUE)");
+        urlStatsService = new UrlStatsService(mock(UrlStatsRepository.class), jdbcTemplate, transactionManager, true, 60);
+        clickIngestionService = new ClickIngestionService(jdbcTemplate, new ClickDeduplicator(60, 10000), urlStatsService,
+                mock(TrendingRankingService.class), transactionManager,
+                new SimpleMeterRegistry(), 10000, 100);
+    }
+
+    @Test
+    void flushAppliesAggregatedIncrementsAndDeduplicatedLogs() {
+        clickIngestionService.record(1L, 10L);
+        clickIngestionService.record(1L, 10L);
+        clickIngestionService.record(1L, 11L);
+        clickIngestionService.record(2L, 10L);
+        clickIngestionService.record(99L, 10L); // 削除済みのブックマーク
+
+        clickIngestionService.flush();
+
+        assertThat(clickCount(1L)).isEqualTo(3);
+        assertThat(clickCount(2L)).isEqualTo(6);
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM bookmark_click_log WHERE bookmark_id = 1", Long.class)).isEqualTo(2);
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM bookmark_click_log", Long.class)).isEqualTo(3);
+    }
+
+    @Test
+    void flushAddsClicksToUrlStatsAndDailyBucket() {
+        clickIngestionService.record(1L, 10L);
+        clickIngestionService.record(1L, 10L);
+        clickIngestionService.flush();
+
+        // 1人だけのクリックは、複数のユーザーがクリックした日として扱わない
+        Map<String, Object> bucket = jdbcTemplate.queryForMap("SELECT * FROM url_click_bucket WHERE url_id = 100");
+        assertThat(bucket.get("CLICK_COUNT")).isEqualTo(1L);
+        assertThat(bucket.get("FIRST_CLICKER_ID")).isEqualTo(10L);
+        assertThat(bucket.get("MULTIPLE_CLICKERS")).isEqualTo(false);
+
+        clickIngestionService.record(2L, 11L);
+        clickIngestionService.flush();
+
+        assertThat(jdbcTemplate.queryForObject("SELECT total_click_count FROM url_stats WHERE url_id = 100", Long.class)).isEqualTo(8);
+        bucket = jdbcTemplate.queryForMap("SELECT * FROM url_click_bucket WHERE url_id = 100");
+        assertThat(bucket.get("CLICK_COUNT")).isEqualTo(2L);
+        assertThat(bucket.get("MULTIPLE_CLICKERS")).isEqualTo(true);
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM url_click_bucket", Long.class)).isEqualTo(1);
+    }
+
+    @Test
+    void clickIsLoggedAgainAfterWindowExpires() {
+        AtomicLong nanos = new AtomicLong();
+        ClickDeduplicator deduplicator = new ClickDeduplicator(Duration.ofSeconds(60), 10000, nanos::get);
+
+        assertThat(deduplicator.isFirstClick(10L, 1L)).isTrue();
+        assertThat(deduplicator.isFirstClick(10L, 1L)).isFalse();
+        assertThat(deduplicator.isFirstClick(11L, 1L)).isTrue();
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(61));
+        assertThat(deduplicator.isFirstClick(10L, 1L)).isTrue();
+    }
+
+    @Test
+    void concurrentDuplicateClicksAreLoggedOnce() throws Exception {
+        runConcurrently(8, 500, (thread, i) -> clickIngestionService.record(1L + (i % 2), 10L));
+        clickIngestionService.flush();
+
+        assertThat(clickCount(1L)).isEqualTo(2000);
+        assertThat(clickCount(2L)).isEqualTo(2005);
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM bookmark_click_log", Long.class)).isEqualTo(2);
+    }
+
+    @Test
+    void failingClickIsDroppedWithoutDiscardingRestOfBatch() {
+        // 1件のクリックだけが書き込めない（処理中にブックマークが削除された場合の外部キー違反などに相当）
+        jdbcTemplate.execute("ALTER TABLE bookmark_click_log ADD CONSTRAINT ck_not_broken CHECK (app_user_id <> 666)");
+        clickIngestionService.record(1L, 10L);
+        clickIngestionService.record(2L, 666L);
+        clickIngestionService.record(1L, 11L);
+        clickIngestionService.record(2L, 12L);
+
+        clickIngestionService.flush();
+
+        assertThat(clickCount(1L)).isEqualTo(2);
+        assertThat(clickCount(2L)).isEqualTo(6);
+        assertThat(jdbcTemplate.queryForList("SELECT app_user_id FROM bookmark_click_log", Long.class))
+                .containsExactlyInAnyOrder(10L, 11L, 12L);
+    }
+
+    @Test
+    void transientFailureIsRetriedOnce() {
+        JdbcTemplate failingOnce = spy(jdbcTemplate);
+        doThrow(new CannotAcquireLockException("deadlock detected")).doCallRealMethod()
+                .when(failingOnce).batchUpdate(startsWith("UPDATE bookmark SET"), anyList());
+        ClickIngestionService service = new ClickIngestionService(failingOnce, new ClickDeduplicator(60, 10000), urlStatsService,
+                mock(TrendingRankingService.class), transactionManager, new SimpleMeterRegistry(), 10000, 100);
+        service.record(1L, 10L);
+        service.record(2L, 10L);
+
+        service.flush();
+
+        assertThat(clickCount(1L)).isEqualTo(1);
+        assertThat(clickCount(2L)).isEqualTo(6);
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM bookmark_click_log", Long.class)).isEqualTo(2);
+    }
+
+    @Test
+    void shutdownFlushesQueuedClicks() {
+        clickIngestionService.record(1L, 10L);
+
+        clickIngestionService.shutdown();
+
+        assertThat(clickCount(1L)).isEqualTo(1);
+    }
+
+    // mvn test -Dtest=ClickIngestionServiceTest -Dbenchmark=true で実行する
+    @Test
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    void benchmark_bufferedIngestionVersusSynchronousWrites() throws Exception {
+        int threads = 8;
+        int clicksPerThread = 2000;
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+
+        // 変更前: 1クリックごとに読み込み・更新・重複確認のクエリ・挿入を同期的に実行
+        long syncNanos = runConcurrently(threads, clicksPerThread, (thread, i) -> transactionTemplate.executeWithoutResult(status -> {
+            long bookmarkId = 1 + (i % 2);
+            long count = jdbcTemplate.queryForObject("SELECT total_click_count FROM bookmark WHERE id = ?", Long.class, bookmarkId);
+            jdbcTemplate.update("UPDATE bookmark SET total_click_count = ? WHERE id = ?", count + 1, bookmarkId);
+            LocalDateTime now = LocalDateTime.now();
+            Long recent = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM bookmark_click_log " +
+                    "WHERE bookmark_id = ? AND app_user_id = ? AND clicked_at > ?", Long.class,
+                    bookmarkId, (long) thread, Timestamp.valueOf(now.minusMinutes(1)));
+            if (recent == 0) {
+                jdbcTemplate.update("INSERT INTO bookmark_click_log (bookmark_id, app_user_id, clicked_at) VALUES (?, ?, ?)",
+                        bookmarkId, (long) thread, Timestamp.valueOf(now));
+            }
+        }));
+
+        ClickIngestionService buffered = new ClickIngestionService(jdbcTemplate, new ClickDeduplicator(60, 10000), urlStatsService,
+                mock(TrendingRankingService.class), transactionManager,
+                new SimpleMeterRegistry(), threads * clicksPerThread, 500);
+        long bufferedNanos = runConcurrently(threads, clicksPerThread, (thread, i) -> buffered.record(1L + (i % 2), (long) thread));
+        long flushStart = System.nanoTime();
+        buffered.flush();
+        long flushNanos = System.nanoTime() - flushStart;
+
+        int total = threads * clicksPerThread;
+        logger.info("synchronous : {} clicks/s", String.format("%.0f", total / (syncNanos / 1e9)));
+        logger.info("buffered    : {} clicks/s (ack), flush {} clicks in {} ms",
+                String.format("%.0f", total / (bufferedNanos / 1e9)), total, String.format("%.1f", flushNanos / 1e6));
+    }
+
+    private interface ClickAction {
+        void run(int thread, int index);
+    }
+
+    private long runConcurrently(int threads, int clicksPerThread, ClickAction action) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            long start = System.nanoTime();
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < clicksPerThread; i++) {
+                        action.run(thread, i);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            return System.nanoTime() - start;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private long clickCount(Long bookmarkId) {
+        return jdbcTemplate.queryForObject("SELECT total_click_count FROM bookmark WHERE id = ?", Long.class, bookmarkId);
+    }
+}
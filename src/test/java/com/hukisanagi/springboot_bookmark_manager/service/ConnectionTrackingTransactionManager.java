@@ -0,0 +1,31 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionStatus;
+
+// トランザクション開始でコネクションを取得し、コミット/ロールバックで返却したものとみなすテスト用のトランザクションマネージャ
+class ConnectionTrackingTransactionManager extends AbstractPlatformTransactionManager {
+
+    boolean connectionHeld = false;
+
+    @Override
+    protected Object doGetTransaction() {
+        return new Object();
+    }
+
+    @Override
+    protected void doBegin(Object transaction, TransactionDefinition definition) {
+        connectionHeld = true;
+    }
+
+    @Override
+    protected void doCommit(DefaultTransactionStatus status) {
+        connectionHeld = false;
+    }
+
+    @Override
+    protected void doRollback(DefaultTransactionStatus status) {
+        connectionHeld = false;
+    }
+}
@@ -0,0 +1,59 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// 貸し出し中の接続の数と、同時に貸し出した接続の最大数を数えるテスト用のデータソース
+class CountingDataSource extends DelegatingDataSource {
+
+    final AtomicInteger openConnections = new AtomicInteger();
+    final AtomicInteger maxOpenConnections = new AtomicInteger();
+
+    CountingDataSource(DataSource targetDataSource) {
+        super(targetDataSource);
+    }
+
+    // アプリケーションのデータソースを置き換える（@TestConfigurationから登録する）
+    static BeanPostProcessor postProcessor() {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                return bean instanceof DataSource dataSource && !(bean instanceof CountingDataSource)
+                        ? new CountingDataSource(dataSource) : bean;
+            }
+        };
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return track(super.getConnection());
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return track(super.getConnection(username, password));
+    }
+
+    private Connection track(Connection connection) {
+        maxOpenConnections.accumulateAndGet(openConnections.incrementAndGet(), Math::max);
+        AtomicBoolean closed = new AtomicBoolean();
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+            if (method.getName().equals("close") && closed.compareAndSet(false, true)) {
+                openConnections.decrementAndGet();
+            }
+            try {
+                return method.invoke(connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        });
+    }
+}
@@ -0,0 +1,80 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import com.hukisanagi.springboot_bookmark_manager.model.AppUser;
+import com.hukisanagi.springboot_bookmark_manager.repository.BookmarkRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class DatabaseKeywordSearchTest {
+
+    private BookmarkRepository bookmarkRepository;
+    private JdbcTemplate jdbcTemplate;
+    private AppUser appUser;
+
+    @BeforeEach
+    void setUp() {
+        bookmarkRepository = mock(BookmarkRepository.class);
+        jdbcTemplate = mock(JdbcTemplate.class);
+        appUser = new AppUser("sub");
+        appUser.setId(1L);
+    }
+
+    @Test
+    void matchingIdsAreReturnedWithinLimit() {
+        DatabaseKeywordSearch search = new DatabaseKeywordSearch(bookmarkRepository, jdbcTemplate, true, 2);
+        when(bookmarkRepository.findIdsByKeyword(appUser, "京都観光", 3)).thenReturn(List.of(3L, 1L));
+
+        assertThat(search.search(appUser, "京都観光")).contains(List.of(3L, 1L));
+    }
+
+    @Test
+    void tooManyHitsFallBackToLike() {
+        DatabaseKeywordSearch search = new DatabaseKeywordSearch(bookmarkRepository, jdbcTemplate, true, 2);
+        when(bookmarkRepository.findIdsByKeyword(appUser, "https", 3)).thenReturn(List.of(1L, 2L, 3L));
+
+        assertThat(search.search(appUser, "https")).isEmpty();
+    }
+
+    @Test
+    void shortKeywordsAndDisabledSearchDoNotQuery() {
+        assertThat(new DatabaseKeywordSearch(bookmarkRepository, jdbcTemplate, true, 2).search(appUser, "東京")).isEmpty();
+        assertThat(new DatabaseKeywordSearch(bookmarkRepository, jdbcTemplate, false, 2).search(appUser, "京都観光")).isEmpty();
+        verify(bookmarkRepository, never()).findIdsByKeyword(any(), anyString(), anyInt());
+    }
+
+    @Test
+    void missingExtensionDisablesSearch() {
+        // 権限がなくpg_trgmを作成できなかった場合
+        when(jdbcTemplate.queryForObject(anyString(), eq(Long.class))).thenReturn(0L);
+        DatabaseKeywordSearch search = new DatabaseKeywordSearch(bookmarkRepository, jdbcTemplate, true, 2);
+
+        search.verifyExtension();
+
+        assertThat(search.search(appUser, "京都観光")).isEmpty();
+        verify(bookmarkRepository, never()).findIdsByKeyword(any(), anyString(), anyInt());
+    }
+
+    @Test
+    void installedExtensionKeepsSearchEnabled() {
+        when(jdbcTemplate.queryForObject(anyString(), eq(Long.class))).thenReturn(1L);
+        when(bookmarkRepository.findIdsByKeyword(appUser, "京都観光", 3)).thenReturn(List.of(1L));
+        DatabaseKeywordSearch search = new DatabaseKeywordSearch(bookmarkRepository, jdbcTemplate, true, 2);
+
+        search.verifyExtension();
+
+        assertThat(search.search(appUser, "京都観光")).contains(List.of(1L));
+    }
+}
@@ -0,0 +1,148 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import com.hukisanagi.springboot_bookmark_manager.model.AppUser;
+import com.hukisanagi.springboot_bookmark_manager.model.Bookmark;
+import com.hukisanagi.springboot_bookmark_manager.model.FaviconJob;
+import com.hukisanagi.springboot_bookmark_manager.model.FaviconStatus;
+import com.hukisanagi.springboot_bookmark_manager.repository.BookmarkRepository;
+import com.hukisanagi.springboot_bookmark_manager.repository.FaviconBlobRepository;
+import com.hukisanagi.springboot_bookmark_manager.repository.FaviconJobRepository;
+import com.hukisanagi.springboot_bookmark_manager.repository.UrlMetadataRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class FaviconEnrichmentServiceTest {
+
+    private FaviconJobRepository faviconJobRepository;
+    private BookmarkRepository bookmarkRepository;
+    private PageMetadataService pageMetadataService;
+    private StorageService storageService;
+    private FaviconBlobRepository faviconBlobRepository;
+    private ConnectionTrackingTransactionManager transactionManager;
+    private FaviconEnrichmentService faviconEnrichmentService;
+
+    @BeforeEach
+    void setUp() {
+        faviconJobRepository = mock(FaviconJobRepository.class);
+        bookmarkRepository = mock(BookmarkRepository.class);
+        pageMetadataService = mock(PageMetadataService.class);
+        storageService = mock(StorageService.class);
+        transactionManager = new ConnectionTrackingTransactionManager();
+        UrlMetadataRepository urlMetadataRepository = mock(UrlMetadataRepository.class);
+        when(urlMetadataRepository.findByUrlHash(anyString())).thenReturn(Optional.empty());
+        when(urlMetadataRepository.saveAndFlush(any())).thenAnswer(invocation -> invocation.getArgument(0));
+        faviconBlobRepository = mock(FaviconBlobRepository.class);
+        when(faviconBlobRepository.retain(anyString())).thenReturn(1);
+        FaviconBlobService faviconBlobService = new FaviconBlobService(faviconBlobRepository, urlMetadataRepository,
+                storageService, transactionManager, 24);
+        UrlMetadataService urlMetadataService = new UrlMetadataService(urlMetadataRepository, pageMetadataService,
+                faviconBlobService, transactionManager, 100, 168);
+        faviconEnrichmentService = new FaviconEnrichmentService(faviconJobRepository, bookmarkRepository,
+                urlMetadataService, faviconBlobService, transactionManager, 2, 3);
+    }
+
+    @AfterEach
+    void tearDown() {
+        faviconEnrichmentService.shutdown();
+    }
+
+    @Test
+    void processJobDoesNotHoldConnectionDuringOutboundHttp() {
+        FaviconJob job = jobFor(10L);
+        stubBookmark(10L, "https://example.com");
+        List<String> events = new ArrayList<>();
+        when(pageMetadataService.fetchFavicon("https://example.com", null)).thenAnswer(invocation -> {
+            events.add("fetch:connectionHeld=" + transactionManager.connectionHeld);
+            return new byte[] {1, 2, 3};
+        });
+        when(storageService.saveContentAddressed(any())).thenAnswer(invocation -> StorageService.contentAddressedKey(invocation.getArgument(0)));
+        when(bookmarkRepository.updateFavicon(eq(10L), anyString(), eq(FaviconStatus.DONE))).thenAnswer(invocation -> {
+            events.add("update:connectionHeld=" + transactionManager.connectionHeld);
+            return 1;
+        });
+
+        faviconEnrichmentService.processJob(job.getId());
+
+        assertThat(events).containsExactly("fetch:connectionHeld=false", "update:connectionHeld=true");
+        assertThat(transactionManager.connectionHeld).isFalse();
+        verify(faviconJobRepository).deleteLeased(job.getId(), job.getLockedUntil());
+    }
+
+    @Test
+    void processJobDoesNotOverwriteResultWhenLeaseWasLost() {
+        FaviconJob job = jobFor(10L);
+        stubBookmark(10L, "https://example.com");
+        when(pageMetadataService.fetchFavicon("https://example.com", null)).thenReturn(new byte[] {1, 2, 3});
+        when(storageService.saveContentAddressed(any())).thenAnswer(invocation -> StorageService.contentAddressedKey(invocation.getArgument(0)));
+        // リースが切れて他のワーカーが取得し、処理を終えていた
+        when(faviconJobRepository.deleteLeased(job.getId(), job.getLockedUntil())).thenReturn(0);
+
+        faviconEnrichmentService.processJob(job.getId());
+
+        verify(bookmarkRepository, never()).updateFavicon(any(), any(), any());
+        // 取得時に増やした参照を戻す
+        verify(faviconBlobRepository).release(eq(StorageService.contentAddressedKey(new byte[] {1, 2, 3})), eq(1L), any());
+    }
+
+    @Test
+    void processJobSchedulesRetryWithBackoffWhenFaviconIsMissing() {
+        FaviconJob job = jobFor(10L);
+        stubBookmark(10L, "https://example.com");
+        when(pageMetadataService.fetchFavicon(anyString(), any())).thenReturn(null);
+
+        faviconEnrichmentService.processJob(job.getId());
+
+        ArgumentCaptor<LocalDateTime> nextAttemptAt = ArgumentCaptor.forClass(LocalDateTime.class);
+        verify(faviconJobRepository).reschedule(eq(job.getId()), eq(job.getLockedUntil()), eq(1), nextAttemptAt.capture(), eq("Favicon not found"));
+        assertThat(nextAttemptAt.getValue()).isAfter(LocalDateTime.now().plusSeconds(20));
+        // 読み出したジョブを保存し直さない（処理中に削除されていた場合に作り直してしまう）
+        verify(faviconJobRepository, never()).save(any());
+    }
+
+    @Test
+    void processJobMarksBookmarkFailedAfterMaxAttempts() {
+        FaviconJob job = jobFor(10L);
+        job.setAttempts(2);
+        stubBookmark(10L, "https://example.com");
+        when(pageMetadataService.fetchFavicon(anyString(), any())).thenReturn(null);
+
+        faviconEnrichmentService.processJob(job.getId());
+
+        verify(bookmarkRepository).updateFavicon(eq(10L), isNull(), eq(FaviconStatus.FAILED));
+        verify(faviconJobRepository).deleteLeased(job.getId(), job.getLockedUntil());
+    }
+
+    private FaviconJob jobFor(Long bookmarkId) {
+        FaviconJob job = new FaviconJob(bookmarkId, LocalDateTime.now());
+        job.setId(1L);
+        job.setLockedUntil(LocalDateTime.now().plusMinutes(5));
+        when(faviconJobRepository.findById(1L)).thenReturn(Optional.of(job));
+        when(faviconJobRepository.deleteLeased(1L, job.getLockedUntil())).thenReturn(1);
+        return job;
+    }
+
+    private void stubBookmark(Long id, String url) {
+        AppUser appUser = new AppUser("sub");
+        appUser.setId(1L);
+        Bookmark bookmark = new Bookmark(id, "Example", url);
+        bookmark.setAppUser(appUser);
+        when(bookmarkRepository.findById(id)).thenReturn(Optional.of(bookmark));
+    }
+}
@@ -0,0 +1,158 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FaviconImageProcessorTest {
+
+    private final FaviconImageProcessor processor = new FaviconImageProcessor(3000, 1, 4, 1000);
+    // 制限時間で打ち切られないよう、描画前の確認だけで拒否されることを確かめる
+    private final FaviconImageProcessor patientProcessor = new FaviconImageProcessor(60_000, 1, 4, 1000);
+
+    @AfterEach
+    void tearDown() {
+        processor.shutdown();
+        patientProcessor.shutdown();
+    }
+
+    @Test
+    void normalizeScalesLargeIconDownToLargestTargetSize() throws IOException {
+        byte[] source = png(512, 512);
+
+        byte[] normalized = processor.normalize(source, "image/png", "https://example.com/apple-touch-icon.png");
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(normalized));
+        assertThat(image.getWidth()).isEqualTo(48);
+        assertThat(image.getHeight()).isEqualTo(48);
+        assertThat(normalized.length).isLessThan(source.length);
+    }
+
+    @Test
+    void normalizeDoesNotUpscaleSmallIcon() throws IOException {
+        byte[] normalized = processor.normalize(png(20, 20), "image/png", "https://example.com/favicon.png");
+
+        assertThat(ImageIO.read(new ByteArrayInputStream(normalized)).getWidth()).isEqualTo(16);
+    }
+
+    @Test
+    void normalizeRasterizesSvgAtTargetSize() throws IOException {
+        byte[] svg = "<svg xmlns=\"http://www.w3.org/2000/svg\" viewBox=\"0 0 100 100\"><circle cx=\"50\" cy=\"50\" r=\"40\" fill=\"red\"/></svg>"
+                .getBytes(StandardCharsets.UTF_8);
+
+        byte[] normalized = processor.normalize(svg, "image/svg+xml", "https://example.com/icon");
+
+        assertThat(ImageIO.read(new ByteArrayInputStream(normalized)).getWidth()).isEqualTo(48);
+    }
+
+    @Test
+    void normalizeReturnsNullForNonImage() {
+        byte[] html = "<html><body>Not Found</body></html>".getBytes(StandardCharsets.UTF_8);
+
+        assertThat(processor.normalize(html, "text/html", "https://example.com/favicon.ico")).isNull();
+    }
+
+    @Test
+    void slowSvgIsHaltedAndDoesNotBlockLaterSvgs() throws IOException {
+        FaviconImageProcessor guarded = new FaviconImageProcessor(1000, 1, 4, 10000);
+        try {
+            // 描画に数十秒かかるSVG（フィルターを重ねた図形を多数描く）
+            StringBuilder slow = new StringBuilder("<svg xmlns=\"http://www.w3.org/2000/svg\" viewBox=\"0 0 100 100\">" +
+                    "<filter id=\"f\" x=\"-10\" y=\"-10\" width=\"20\" height=\"20\"><feTurbulence baseFrequency=\"0.9\" numOctaves=\"50\"/>" +
+                    "<feGaussianBlur stdDeviation=\"30\"/></filter>");
+            slow.append("<rect width=\"100\" height=\"100\" filter=\"url(#f)\"/>".repeat(2000)).append("</svg>");
+            assertThat(guarded.normalize(slow.toString().getBytes(StandardCharsets.UTF_8), "image/svg+xml", "https://example.com/slow.svg")).isNull();
+
+            // 停止したスレッドで次のSVGを処理できる
+            byte[] svg = "<svg xmlns=\"http://www.w3.org/2000/svg\" viewBox=\"0 0 100 100\"><circle cx=\"50\" cy=\"50\" r=\"40\" fill=\"red\"/></svg>"
+                    .getBytes(StandardCharsets.UTF_8);
+            byte[] normalized = guarded.normalize(svg, "image/svg+xml", "https://example.com/icon.svg");
+            assertThat(ImageIO.read(new ByteArrayInputStream(normalized)).getWidth()).isEqualTo(48);
+        } finally {
+            guarded.shutdown();
+        }
+    }
+
+    @Test
+    void svgExpandingToTooManyElementsIsRejected() {
+        // <use>で参照を重ねると、ファイルは小さくても描画時のノードが指数的に増える
+        StringBuilder svg = new StringBuilder("<svg xmlns=\"http://www.w3.org/2000/svg\" xmlns:xlink=\"http://www.w3.org/1999/xlink\">" +
+                "<defs><rect id=\"l0\" width=\"1\" height=\"1\"/>");
+        for (int level = 1; level <= 10; level++) {
+            svg.append("<g id=\"l").append(level).append("\">");
+            svg.append(("<use xlink:href=\"#l" + (level - 1) + "\"/>").repeat(10));
+            svg.append("</g>");
+        }
+        svg.append("</defs><use xlink:href=\"#l10\"/></svg>");
+
+        long started = System.nanoTime();
+        assertThat(patientProcessor.normalize(svg.toString().getBytes(StandardCharsets.UTF_8), "image/svg+xml", "https://example.com/bomb.svg")).isNull();
+        assertThat(Duration.ofNanos(System.nanoTime() - started)).isLessThan(Duration.ofSeconds(10));
+    }
+
+    @Test
+    void svgWithLargeEmbeddedImageIsRejected() throws IOException {
+        // 圧縮後は小さいが、デコードすると巨大になる画像
+        BufferedImage large = new BufferedImage(5000, 5000, BufferedImage.TYPE_BYTE_BINARY);
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(large, "png", png);
+        String svg = "<svg xmlns=\"http://www.w3.org/2000/svg\" xmlns:xlink=\"http://www.w3.org/1999/xlink\" viewBox=\"0 0 100 100\">" +
+                "<image width=\"100\" height=\"100\" xlink:href=\"data:image/png;base64," + Base64.getEncoder().encodeToString(png.toByteArray()) + "\"/></svg>";
+
+        assertThat(patientProcessor.normalize(svg.getBytes(StandardCharsets.UTF_8), "image/svg+xml", "https://example.com/embedded.svg")).isNull();
+    }
+
+    @Test
+    void normalizeDecodesWideIconNearTargetSize() throws IOException {
+        byte[] normalized = processor.normalize(png(1000, 600), "image/png", "https://example.com/wide.png");
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(normalized));
+        assertThat(image.getWidth()).isEqualTo(48);
+        assertThat(image.getHeight()).isEqualTo(48);
+    }
+
+    @Test
+    void normalizeRejectsIconLargerThanSourceLimit() throws IOException {
+        assertThat(processor.normalize(png(1025, 16), "image/png", "https://example.com/huge.png")).isNull();
+    }
+
+    @Test
+    void subsamplingKeepsLongestSideAtLeastTargetSize() {
+        assertThat(FaviconImageProcessor.subsamplingFactor(1024, 1024)).isEqualTo(21);
+        assertThat(FaviconImageProcessor.subsamplingFactor(100, 20)).isEqualTo(2);
+        assertThat(FaviconImageProcessor.subsamplingFactor(48, 48)).isEqualTo(1);
+        assertThat(FaviconImageProcessor.subsamplingFactor(16, 16)).isEqualTo(1);
+    }
+
+    @Test
+    void targetSizeUsesFixedSizes() {
+        assertThat(FaviconImageProcessor.targetSize(256, 256)).isEqualTo(48);
+        assertThat(FaviconImageProcessor.targetSize(40, 32)).isEqualTo(32);
+        assertThat(FaviconImageProcessor.targetSize(12, 12)).isEqualTo(12);
+    }
+
+    private static byte[] png(int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = image.createGraphics();
+        for (int y = 0; y < height; y += 4) {
+            graphics.setColor(new Color((y * 7) % 256, (y * 13) % 256, (y * 29) % 256));
+            graphics.fillRect(0, y, width, 4);
+        }
+        graphics.dispose();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", output);
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,77 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import com.hukisanagi.springboot_bookmark_manager.repository.FaviconBlobRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import java.nio.file.Path;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class FaviconMigrationServiceTest {
+
+    @TempDir
+    Path storageDirectory;
+
+    private JdbcTemplate jdbcTemplate;
+    private StorageService storageService;
+    private FaviconBlobService faviconBlobService;
+    private FaviconBlobRepository faviconBlobRepository;
+    private FaviconMigrationService faviconMigrationService;
+
+    @BeforeEach
+    void setUp() {
+        jdbcTemplate = new JdbcTemplate(new DriverManagerDataSource(
+                "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", ""));
+        jdbcTemplate.execute("CREATE TABLE bookmark (id BIGINT PRIMARY KEY, favicon_path VARCHAR(2048))");
+        storageService = new LocalStorageService(storageDirectory.toString());
+        faviconBlobService = mock(FaviconBlobService.class);
+        when(faviconBlobService.store(any())).thenAnswer(invocation -> storageService.saveContentAddressed(invocation.getArgument(0)));
+        faviconBlobRepository = mock(FaviconBlobRepository.class);
+        when(faviconBlobRepository.retain(anyString(), anyLong())).thenReturn(1);
+        faviconMigrationService = new FaviconMigrationService(jdbcTemplate, storageService, faviconBlobService, faviconBlobRepository,
+                new DataSourceTransactionManager(jdbcTemplate.getDataSource()));
+    }
+
+    @Test
+    void legacyFilesAreStoredByContentAndReferencesAreRewritten() {
+        byte[] icon = {1, 2, 3};
+        storageService.saveFile(icon, "1/a.png");
+        jdbcTemplate.update("INSERT INTO bookmark (id, favicon_path) VALUES (1, '1/a.png'), (2, '1/a.png'), (3, NULL)");
+
+        assertThat(faviconMigrationService.migrate()).isEqualTo(2);
+
+        String storageKey = StorageService.contentAddressedKey(icon);
+        assertThat(jdbcTemplate.queryForList("SELECT favicon_path FROM bookmark WHERE id IN (1, 2)", String.class))
+                .containsOnly(storageKey);
+        // 参照するブックマークの数だけ参照数を増やし、旧形式のファイルは削除する
+        verify(faviconBlobRepository).retain(storageKey, 2);
+        assertThat(storageService.readFile(storageKey)).hasValueSatisfying(content -> assertThat(content).isEqualTo(icon));
+        assertThat(storageService.exists("1/a.png")).isFalse();
+
+        // 移行済みであれば何もしない
+        assertThat(faviconMigrationService.migrate()).isZero();
+    }
+
+    @Test
+    void referencesToMissingFilesAreCleared() {
+        jdbcTemplate.update("INSERT INTO bookmark (id, favicon_path) VALUES (1, '1/missing.png')");
+
+        assertThat(faviconMigrationService.migrate()).isEqualTo(1);
+
+        assertThat(jdbcTemplate.queryForObject("SELECT favicon_path FROM bookmark WHERE id = 1", String.class)).isNull();
+        verify(faviconBlobRepository, never()).retain(anyString(), anyLong());
+    }
+}
@@ -0,0 +1,142 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class HtmlHeadParserTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(HtmlHeadParserTest.class);
+
+    @Test
+    void parse_extractsTitleIconsAndOpenGraph() {
+        String html = """
+                <!DOCTYPE html>
+                <html lang="ja">
+                <head>
+                  <meta charset="utf-8">
+                  <!-- <title>コメント内のタイトル</title> -->
+                  <title> 記事 &amp; ニュース </title>
+                  <script>var s = "<link rel='icon' href='/fake.ico'>";</script>
+                  <link rel="stylesheet" href="/style.css">
+                  <link rel="shortcut icon" href="/favicon.ico">
+                  <link href='icons/apple.png' rel='apple-touch-icon'>
+                  <meta property="og:title" content="OGタイトル">
+                  <meta property="og:image" content="/og.png">
+                </head>
+                <body><link rel="icon" href="/body.ico"></body>
+                </html>
+                """;
+
+        HtmlHeadParser.HeadMetadata head = HtmlHeadParser.parse(html, "https://example.com/news/article");
+
+        assertEquals("記事 & ニュース", head.title());
+        assertEquals(List.of("https://example.com/favicon.ico", "https://example.com/news/icons/apple.png"), head.iconUrls());
+        assertEquals("OGタイトル", head.ogTitle());
+        assertEquals("https://example.com/og.png", head.ogImage());
+    }
+
+    @Test
+    void parse_stopsAtBodyWhenHeadIsNotClosed() {
+        String html = "<html><title>Title</title><body><link rel=icon href=/late.ico><title>Other</title>";
+
+        HtmlHeadParser.HeadMetadata head = HtmlHeadParser.parse(html, "https://example.com/");
+
+        assertEquals("Title", head.title());
+        assertEquals(List.of(), head.iconUrls());
+    }
+
+    @Test
+    void parse_detectsCharsetFromMetaTag() {
+        byte[] bytes = "<html><head><meta charset=\"Shift_JIS\"><title>日本語のタイトル</title></head>"
+                .getBytes(Charset.forName("Shift_JIS"));
+
+        HtmlHeadParser.HeadMetadata head = HtmlHeadParser.parse(bytes, null, "https://example.com/");
+
+        assertEquals("日本語のタイトル", head.title());
+    }
+
+    @Test
+    void parse_truncatedHeadReturnsWhatWasRead() {
+        HtmlHeadParser.HeadMetadata head = HtmlHeadParser.parse("<html><head><link rel=\"icon\" href=\"/a.ico\"><title>途中", "https://example.com/");
+
+        assertEquals("途中", head.title());
+        assertEquals(List.of("https://example.com/a.ico"), head.iconUrls());
+        assertNull(head.ogTitle());
+    }
+
+    // mvn test -Dtest=HtmlHeadParserTest -Dbenchmark=true で実行する
+    @Test
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    void benchmark_headOnlyParseVersusFullDocumentParse() {
+        byte[] page = buildLargePage(2 * 1024 * 1024);
+        int headLength = indexOf(page, HtmlHeadParser.HEAD_END_MARKER) + HtmlHeadParser.HEAD_END_MARKER.length;
+        byte[] headOnly = java.util.Arrays.copyOf(page, headLength);
+        String baseUri = "https://example.com/";
+        int iterations = 50;
+
+        // ウォームアップ
+        for (int i = 0; i < 10; i++) {
+            HtmlHeadParser.parse(headOnly, "UTF-8", baseUri);
+            Jsoup.parse(new String(page, StandardCharsets.UTF_8), baseUri);
+        }
+
+        long fullStart = System.nanoTime();
+        String fullTitle = null;
+        for (int i = 0; i < iterations; i++) {
+            Document doc = Jsoup.parse(new String(page, StandardCharsets.UTF_8), baseUri);
+            fullTitle = doc.title();
+            doc.select("link[rel~=(?i)^(shortcut|icon|apple-touch-icon)]").first();
+        }
+        long fullNanos = System.nanoTime() - fullStart;
+
+        long headStart = System.nanoTime();
+        String headTitle = null;
+        for (int i = 0; i < iterations; i++) {
+            headTitle = HtmlHeadParser.parse(headOnly, "UTF-8", baseUri).title();
+        }
+        long headNanos = System.nanoTime() - headStart;
+
+        assertEquals(fullTitle, headTitle);
+        logger.info("page={} bytes, head={} bytes", page.length, headOnly.length);
+        logger.info("Jsoup full parse : {} ms/op", String.format("%.3f", fullNanos / 1_000_000.0 / iterations));
+        logger.info("Head-only parse  : {} ms/op", String.format("%.3f", headNanos / 1_000_000.0 / iterations));
+    }
+
+    private static byte[] buildLargePage(int bodyBytes) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<!DOCTYPE html><html><head><meta charset=\"utf-8\"><title>ベンチマーク用ページ</title>");
+        for (int i = 0; i < 30; i++) {
+            sb.append("<meta name=\"keyword").append(i).append("\" content=\"value").append(i).append("\">");
+        }
+        sb.append("<link rel=\"icon\" href=\"/favicon.ico\"><meta property=\"og:title\" content=\"OG\"></head><body>");
+        while (sb.length() < bodyBytes) {
+            sb.append("<div class=\"item\"><a href=\"/path\">リンク</a><p>本文のテキストが続きます。</p></div>");
+        }
+        sb.append("</body></html>");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int indexOf(byte[] bytes, byte[] target) {
+        outer:
+        for (int i = 0; i <= bytes.length - target.length; i++) {
+            for (int j = 0; j < target.length; j++) {
+                if (bytes[i + j] != target[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
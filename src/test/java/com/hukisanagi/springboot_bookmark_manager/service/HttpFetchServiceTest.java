@@ -0,0 +1,245 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HttpFetchServiceTest {
+
+    private HttpServer server;
+    private HttpFetchService httpFetchService;
+    private final byte[] largeBody = new byte[64 * 1024];
+
+    @BeforeEach
+    void setUp() throws IOException {
+        Arrays.fill(largeBody, (byte) 'a');
+        // ホスト名（localhost）とIPアドレスの両方で接続できるよう、すべてのアドレスで待ち受ける
+        server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/page", exchange -> {
+            byte[] body = "<html><head><title>テスト</title></head></html>".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/html; charset=UTF-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        server.createContext("/large", exchange -> {
+            exchange.sendResponseHeaders(200, largeBody.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(largeBody);
+            } catch (IOException ignored) {
+                // クライアント側で打ち切られる
+            }
+        });
+        server.start();
+        httpFetchService = new HttpFetchService(4, 1, 1024 * 1024, 2000, 2000);
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+    }
+
+    private String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    @Test
+    void fetch_returnsBodyAndCharset() throws IOException {
+        HttpFetchService.FetchResponse response = httpFetchService.fetch(url("/page"));
+
+        assertTrue(response.isSuccessful());
+        assertFalse(response.truncated());
+        assertEquals("UTF-8", response.charset());
+        assertTrue(new String(response.body(), StandardCharsets.UTF_8).contains("テスト"));
+    }
+
+    @Test
+    void fetch_truncatesBodyOverLimit() throws IOException {
+        HttpFetchService.FetchResponse response = httpFetchService.fetch(url("/large"), 1000);
+
+        assertTrue(response.truncated());
+        assertArrayEquals(Arrays.copyOf(largeBody, 1000), response.body());
+    }
+
+    @Test
+    void fetchUntil_stopsReadingAtMarker() throws IOException {
+        HttpFetchService.FetchResponse response = httpFetchService.fetchUntil(url("/page"), 1024, HtmlHeadParser.HEAD_END_MARKER);
+
+        String body = new String(response.body(), StandardCharsets.UTF_8);
+        assertTrue(response.truncated());
+        assertTrue(body.endsWith("</head>"));
+    }
+
+    @Test
+    void fetch_sequentialRequestsToSameHostReuseHostPermit() throws IOException {
+        // ホスト単位の上限が1でも、完了後は枠が解放され続けて取得できる
+        for (int i = 0; i < 5; i++) {
+            assertTrue(httpFetchService.fetch(url("/page")).isSuccessful());
+        }
+    }
+
+    @Test
+    void fetch_concurrentRequestsNeverExceedHostLimit() throws Exception {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        server.createContext("/count", exchange -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            inFlight.decrementAndGet();
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        ExecutorService callers = Executors.newFixedThreadPool(8);
+        try {
+            // 枠の解放と取得が入れ替わり続けても、ホスト単位の上限（1）を超えない
+            HttpFetchService limited = new HttpFetchService(8, 1, 1024, 5000, 5000);
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(callers.submit(() -> {
+                    for (int j = 0; j < 20; j++) {
+                        limited.fetch(url("/count"));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+
+        assertEquals(1, maxInFlight.get());
+    }
+
+    @Test
+    void fetch_waitingForSlowHostDoesNotBlockOtherHosts() throws Exception {
+        CountDownLatch releaseSlow = new CountDownLatch(1);
+        server.createContext("/slow", exchange -> {
+            try {
+                releaseSlow.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        ExecutorService callers = Executors.newCachedThreadPool();
+        try {
+            // 全体の枠は2、ホスト単位の枠は1。同じホストへの取得を3件待たせる
+            HttpFetchService limited = new HttpFetchService(2, 1, 1024, 2000, 2000);
+            List<Future<HttpFetchService.FetchResponse>> slowFetches = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                slowFetches.add(callers.submit(() -> limited.fetch(url("/slow"))));
+            }
+            Thread.sleep(200);
+
+            // 別のホスト（同じサーバーをホスト名で指定）への取得は、枠の待ち時間（2秒）を待たされない
+            long started = System.nanoTime();
+            HttpFetchService.FetchResponse response = limited.fetch("http://localhost:" + server.getAddress().getPort() + "/page");
+
+            assertTrue(response.isSuccessful());
+            assertTrue(System.nanoTime() - started < TimeUnit.MILLISECONDS.toNanos(1000));
+            releaseSlow.countDown();
+            for (Future<HttpFetchService.FetchResponse> slowFetch : slowFetches) {
+                try {
+                    slowFetch.get(10, TimeUnit.SECONDS);
+                } catch (ExecutionException ignored) {
+                    // 枠を待ちきれずに失敗したものは対象外
+                }
+            }
+        } finally {
+            releaseSlow.countDown();
+            callers.shutdownNow();
+        }
+    }
+
+    @Test
+    void fetchAsync_waitsForPermitWithoutBlockingCaller() throws Exception {
+        CountDownLatch releaseSlow = new CountDownLatch(1);
+        server.createContext("/slow", exchange -> {
+            try {
+                releaseSlow.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        try {
+            HttpFetchService limited = new HttpFetchService(2, 1, 1024, 2000, 2000);
+            CompletableFuture<HttpFetchService.FetchResponse> first = limited.fetchAsync(url("/slow"), 1024, Map.of());
+
+            // ホスト単位の枠が埋まっていても、呼び出し元は待たされずに待機列に入る
+            long started = System.nanoTime();
+            CompletableFuture<HttpFetchService.FetchResponse> second = limited.fetchAsync(url("/slow"), 1024, Map.of());
+            assertTrue(System.nanoTime() - started < TimeUnit.MILLISECONDS.toNanos(500));
+            assertFalse(second.isDone());
+
+            releaseSlow.countDown();
+            assertEquals(204, first.get(5, TimeUnit.SECONDS).statusCode());
+            assertEquals(204, second.get(5, TimeUnit.SECONDS).statusCode());
+        } finally {
+            releaseSlow.countDown();
+        }
+    }
+
+    @Test
+    void fetch_timeoutAbortsExchangeAndReleasesPermit() throws Exception {
+        CountDownLatch aborted = new CountDownLatch(1);
+        server.createContext("/drip", exchange -> {
+            // ヘッダーを返した後、ボディを少しずつ送り続ける
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream os = exchange.getResponseBody()) {
+                for (int i = 0; i < 200; i++) {
+                    os.write('a');
+                    os.flush();
+                    Thread.sleep(50);
+                }
+            } catch (IOException e) {
+                aborted.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        HttpFetchService limited = new HttpFetchService(1, 1, 1024 * 1024, 300, 300);
+
+        long started = System.nanoTime();
+        IOException error = assertThrows(IOException.class, () -> limited.fetch(url("/drip")));
+        assertTrue(System.nanoTime() - started < TimeUnit.SECONDS.toNanos(5), error.getMessage());
+
+        // 打ち切った取得の通信は中断され、枠は次の取得に使える
+        assertTrue(aborted.await(5, TimeUnit.SECONDS));
+        assertTrue(limited.fetch(url("/page")).isSuccessful());
+    }
+}
@@ -0,0 +1,32 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LocalStorageServiceTest {
+
+    @TempDir
+    Path rootDirectory;
+
+    @Test
+    void saveContentAddressedStoresSameContentOnceInShardedDirectory() throws IOException {
+        LocalStorageService storageService = new LocalStorageService(rootDirectory.toString());
+        byte[] icon = {1, 2, 3};
+
+        String first = storageService.saveContentAddressed(icon);
+        Path storedFile = rootDirectory.resolve(first);
+        long firstModified = Files.getLastModifiedTime(storedFile).toMillis();
+        String second = storageService.saveContentAddressed(icon.clone());
+
+        assertThat(second).isEqualTo(first);
+        assertThat(first).matches("blobs/[0-9a-f]{2}/[0-9a-f]{2}/[0-9a-f]{64}\\.png");
+        assertThat(Files.getLastModifiedTime(storedFile).toMillis()).isEqualTo(firstModified);
+        assertThat(storageService.saveContentAddressed(new byte[] {4})).isNotEqualTo(first);
+    }
+}
@@ -0,0 +1,196 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import com.hukisanagi.springboot_bookmark_manager.model.RankingGeneration;
+import com.hukisanagi.springboot_bookmark_manager.repository.RankingCacheRepository;
+import com.hukisanagi.springboot_bookmark_manager.repository.RankingGenerationRepository;
+import com.hukisanagi.springboot_bookmark_manager.repository.UrlStatsRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class RankingBatchServiceTest {
+
+    private static final long GENERATION = 7L;
+
+    private JdbcTemplate jdbcTemplate;
+    private RankingCacheRepository rankingCacheRepository;
+    private RankingGenerationRepository rankingGenerationRepository;
+    private TitleRefreshService titleRefreshService;
+    private RankingBatchService rankingBatchService;
+
+    @BeforeEach
+    void setUp() {
+        jdbcTemplate = new JdbcTemplate(new DriverManagerDataSource(
+                "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", ""));
+        jdbcTemplate.execute("CREATE TABLE url_metadata (id BIGINT AUTO_INCREMENT PRIMARY KEY, url_hash VARCHAR(64) NOT NULL UNIQUE, url VARCHAR(2048) NOT NULL, " +
+                "title VARCHAR(1024), fetched_at TIMESTAMP)");
+        jdbcTemplate.execute("CREATE TABLE bookmark (id BIGINT PRIMARY KEY, title VARCHAR(255), url VARCHAR(2048), url_id BIGINT, app_user_id BIGINT, " +
+                "total_click_count BIGINT NOT NULL, favicon_path VARCHAR(2048))");
+        jdbcTemplate.execute("CREATE TABLE bookmark_click_log (id BIGINT AUTO_INCREMENT PRIMARY KEY, " +
+                "bookmark_id BIGINT, app_user_id BIGINT, clicked_at TIMESTAMP)");
+        jdbcTemplate.execute("CREATE TABLE ranking_cache_entry (id BIGINT AUTO_INCREMENT PRIMARY KEY, generation BIGINT NOT NULL, url_id BIGINT, url VARCHAR(2048) NOT NULL, " +
+                "title VARCHAR(512) NOT NULL, favicon_path VARCHAR(2048), unique_user_count BIGINT, total_click_count BIGINT, " +
+                "recent_click_count BIGINT, overall_score BIGINT, last_updated TIMESTAMP)");
+        jdbcTemplate.execute("CREATE TABLE url_stats (url_id BIGINT PRIMARY KEY, unique_user_count BIGINT NOT NULL, " +
+                "total_click_count BIGINT NOT NULL, public_url BOOLEAN NOT NULL)");
+        jdbcTemplate.execute("CREATE TABLE url_click_bucket (id BIGINT AUTO_INCREMENT PRIMARY KEY, url_id BIGINT NOT NULL, bucket_date DATE NOT NULL, " +
+                "click_count BIGINT NOT NULL, first_clicker_id BIGINT, multiple_clickers BOOLEAN NOT NULL, UNIQUE (url_id, bucket_date))");
+
+        rankingCacheRepository = mock(RankingCacheRepository.class);
+        rankingGenerationRepository = mock(RankingGenerationRepository.class);
+        AtomicLong nextGeneration = new AtomicLong(GENERATION);
+        when(rankingGenerationRepository.saveAndFlush(any())).thenAnswer(invocation -> {
+            RankingGeneration generation = invocation.getArgument(0);
+            generation.setId(nextGeneration.getAndIncrement());
+            return generation;
+        });
+        DataSourceTransactionManager transactionManager = new DataSourceTransactionManager(jdbcTemplate.getDataSource());
+        titleRefreshService = mock(TitleRefreshService.class);
+        when(titleRefreshService.staleBefore()).thenReturn(LocalDateTime.now().minusDays(7));
+        rankingBatchService = new RankingBatchService(rankingCacheRepository, rankingGenerationRepository,
+                titleRefreshService, mock(RankingSnapshotService.class), new BookmarkUrlBackfillService(jdbcTemplate, transactionManager), mock(FaviconMigrationService.class),
+                new UrlStatsService(mock(UrlStatsRepository.class), jdbcTemplate, transactionManager, true, 60), jdbcTemplate, transactionManager);
+    }
+
+    @Test
+    void updateRankingCacheAggregatesAllMetricsInOnePass() {
+        // a: 3人が登録、b: 2人が登録、c: 1人のみ（公開ブックマークではない）
+        insertBookmark(1, "https://a.example", 1, 5);
+        insertBookmark(2, "https://a.example", 2, 0);
+        insertBookmark(3, "https://a.example", 3, 1);
+        insertBookmark(4, "https://b.example", 1, 20);
+        insertBookmark(5, "https://b.example", 2, 0);
+        insertBookmark(6, "https://c.example", 1, 100);
+        LocalDateTime now = LocalDateTime.now();
+        insertClick(4, 1, now.minusDays(1));
+        insertClick(5, 2, now.minusDays(2));
+        insertClick(5, 2, now.minusDays(3));
+        insertClick(1, 1, now.minusDays(1)); // 1人だけのクリックは直近クリック数に数えない
+        insertClick(2, 2, now.minusMonths(2)); // 期間外
+
+        rankingBatchService.updateRankingCache();
+
+        Map<String, Object> a = jdbcTemplate.queryForMap("SELECT * FROM ranking_cache_entry WHERE url = 'https://a.example'");
+        assertThat(a.get("GENERATION")).isEqualTo(GENERATION);
+        assertThat(a.get("UNIQUE_USER_COUNT")).isEqualTo(3L);
+        assertThat(a.get("TOTAL_CLICK_COUNT")).isEqualTo(6L);
+        assertThat(a.get("RECENT_CLICK_COUNT")).isNull();
+        assertThat(a.get("OVERALL_SCORE")).isEqualTo(3L * 2 + 6);
+
+        Map<String, Object> b = jdbcTemplate.queryForMap("SELECT * FROM ranking_cache_entry WHERE url = 'https://b.example'");
+        assertThat(b.get("UNIQUE_USER_COUNT")).isEqualTo(2L);
+        assertThat(b.get("TOTAL_CLICK_COUNT")).isEqualTo(20L);
+        assertThat(b.get("RECENT_CLICK_COUNT")).isEqualTo(3L);
+        assertThat(b.get("OVERALL_SCORE")).isEqualTo(2L * 2 + 20 + 3 * 3);
+
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM ranking_cache_entry", Long.class)).isEqualTo(2);
+        // 集計前に、url_idが未設定のブックマークへ正規化済みURLの行が設定される
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM bookmark WHERE url_id IS NULL", Long.class)).isZero();
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM url_metadata", Long.class)).isEqualTo(3);
+        assertThat(a.get("URL_ID")).isEqualTo(jdbcTemplate.queryForObject("SELECT url_id FROM bookmark WHERE id = 1", Long.class));
+    }
+
+    @Test
+    void newGenerationIsPublishedOnlyAfterAllRowsAreWritten() {
+        insertBookmark(1, "https://a.example", 1, 5);
+        insertBookmark(2, "https://a.example", 2, 0);
+        when(rankingGenerationRepository.publish(eq(GENERATION), any())).thenAnswer(invocation -> {
+            // 公開する時点でタイトルまで書き込み済みであること
+            assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM ranking_cache_entry WHERE generation = ? AND title <> url",
+                    Long.class, GENERATION)).isEqualTo(1);
+            return 1;
+        });
+        when(rankingGenerationRepository.findPreviousGenerationId(GENERATION)).thenReturn(Optional.of(5L));
+
+        rankingBatchService.updateRankingCache();
+
+        InOrder inOrder = inOrder(rankingGenerationRepository, rankingCacheRepository);
+        inOrder.verify(rankingGenerationRepository).publish(eq(GENERATION), any());
+        // 直前の世代(5)は残し、それより古い世代を削除する
+        inOrder.verify(rankingCacheRepository).deleteGenerationsBefore(eq(5L), any());
+    }
+
+    @Test
+    void enrichmentUsesOnlyStoredTitlesAndQueuesStaleOnes() {
+        // a: 2人が同じタイトルを使っている。ファビコンは内容のハッシュ値で保存されたものだけを使う
+        insertBookmark(1, "https://a.example", 1, 0);
+        insertBookmark(2, "https://a.example", 2, 0);
+        insertBookmark(3, "https://a.example", 3, 0);
+        // b: タイトルがばらばらなので取得済みのタイトルを使う（期限切れのため再取得を登録する）
+        insertBookmark(4, "https://b.example", 1, 0);
+        insertBookmark(5, "https://b.example", 2, 0);
+        // c: 取得済みのタイトルがなく、取得日時も期限内
+        insertBookmark(6, "https://c.example", 1, 0);
+        insertBookmark(7, "https://c.example", 2, 0);
+        rankingBatchService.updateRankingCache();
+        clearInvocations(titleRefreshService);
+        jdbcTemplate.update("UPDATE bookmark SET title = 'Shared' WHERE id IN (1, 2)");
+        jdbcTemplate.update("UPDATE bookmark SET title = 'Own' WHERE id = 3");
+        jdbcTemplate.update("UPDATE bookmark SET favicon_path = 'favicons/user-1.png' WHERE id = 1");
+        jdbcTemplate.update("UPDATE bookmark SET favicon_path = ? WHERE id = 3", StorageService.BLOB_PREFIX + "ab/cd/abcd.png");
+        jdbcTemplate.update("UPDATE bookmark SET title = CONCAT('Title ', id) WHERE id IN (4, 5)");
+        // b: 旧形式（ユーザーごと）のファビコンしかない
+        jdbcTemplate.update("UPDATE bookmark SET favicon_path = 'favicons/user-2.png' WHERE id = 5");
+        jdbcTemplate.update("UPDATE url_metadata SET title = 'Stored B', fetched_at = ? WHERE url = 'https://b.example'",
+                Timestamp.valueOf(LocalDateTime.now().minusDays(30)));
+        jdbcTemplate.update("UPDATE url_metadata SET fetched_at = ? WHERE url = 'https://c.example'", Timestamp.valueOf(LocalDateTime.now()));
+
+        rankingBatchService.updateRankingCache();
+
+        assertThat(entry("https://a.example").get("TITLE")).isEqualTo("Shared");
+        assertThat(entry("https://a.example").get("FAVICON_PATH")).isEqualTo(StorageService.BLOB_PREFIX + "ab/cd/abcd.png");
+        assertThat(entry("https://b.example").get("TITLE")).isEqualTo("Stored B");
+        assertThat(entry("https://b.example").get("FAVICON_PATH")).isNull();
+        assertThat(entry("https://c.example").get("TITLE")).isEqualTo("C");
+        verify(titleRefreshService, atLeastOnce()).submit(argThat(urls -> urls.contains("https://b.example")));
+        verify(titleRefreshService, never()).submit(argThat(urls -> urls.contains("https://c.example") || urls.contains("https://a.example")));
+    }
+
+    @Test
+    void topNKeepsOnlyLargestValues() {
+        RankingBatchService.TopN topN = new RankingBatchService.TopN(2);
+        topN.offer("a", 1);
+        topN.offer("b", 5);
+        topN.offer("c", 3);
+        topN.offer("d", 0);
+
+        assertThat(topN.size()).isEqualTo(2);
+        assertThat(topN.toUpdateArgs(GENERATION)).extracting(args -> args[2]).containsExactlyInAnyOrder("b", "c");
+    }
+
+    private Map<String, Object> entry(String url) {
+        return jdbcTemplate.queryForMap("SELECT * FROM ranking_cache_entry WHERE url = ? ORDER BY generation DESC LIMIT 1", url);
+    }
+
+    private void insertBookmark(long id, String url, long appUserId, long totalClickCount) {
+        jdbcTemplate.update("INSERT INTO bookmark (id, url, app_user_id, total_click_count) VALUES (?, ?, ?, ?)",
+                id, url, appUserId, totalClickCount);
+    }
+
+    private void insertClick(long bookmarkId, long appUserId, LocalDateTime clickedAt) {
+        jdbcTemplate.update("INSERT INTO bookmark_click_log (bookmark_id, app_user_id, clicked_at) VALUES (?, ?, ?)",
+                bookmarkId, appUserId, Timestamp.valueOf(clickedAt));
+    }
+}
@@ -0,0 +1,107 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import com.hukisanagi.springboot_bookmark_manager.model.RankingCache;
+import com.hukisanagi.springboot_bookmark_manager.model.RankingItem;
+import com.hukisanagi.springboot_bookmark_manager.repository.RankingCacheRepository;
+import com.hukisanagi.springboot_bookmark_manager.repository.RankingGenerationRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class RankingSnapshotServiceTest {
+
+    private RankingCacheRepository rankingCacheRepository;
+    private RankingGenerationRepository rankingGenerationRepository;
+    private RankingSnapshotService rankingSnapshotService;
+
+    @BeforeEach
+    void setUp() {
+        rankingCacheRepository = mock(RankingCacheRepository.class);
+        rankingGenerationRepository = mock(RankingGenerationRepository.class);
+        rankingSnapshotService = new RankingSnapshotService(rankingCacheRepository, rankingGenerationRepository);
+        when(rankingGenerationRepository.findCurrentGenerationId()).thenReturn(Optional.of(1L));
+        when(rankingCacheRepository.findByGeneration(1L)).thenReturn(List.of(
+                row("https://a.example", 3L, null, 10L),
+                row("https://b.example", 5L, 7L, 20L),
+                row("https://c.example", null, null, 5L)));
+    }
+
+    @Test
+    void rankingsAreServedFromSnapshotSortedPerType() {
+        assertThat(urls(rankingSnapshotService.getTopBookmarks(PageRequest.of(0, 10))))
+                .containsExactly("https://b.example", "https://a.example");
+        assertThat(urls(rankingSnapshotService.getTopBookmarksByTotalClickCount(PageRequest.of(0, 10))))
+                .containsExactly("https://b.example");
+        assertThat(urls(rankingSnapshotService.getTopBookmarksByOverallScore(PageRequest.of(1, 2))))
+                .containsExactly("https://c.example");
+        assertThat(rankingSnapshotService.getTopBookmarksByOverallScore(Pageable.unpaged())).hasSize(3);
+        assertThat(rankingSnapshotService.getPublicBookmarkByUrl("https://a.example")).map(RankingItem::getCountValue).contains(10L);
+
+        // 世代が変わらない限りDBから読み込み直さない
+        rankingSnapshotService.refresh();
+        verify(rankingCacheRepository, times(1)).findByGeneration(1L);
+    }
+
+    @Test
+    void returnedItemsAreCopies() {
+        rankingSnapshotService.getTopBookmarks(PageRequest.of(0, 10)).forEach(item -> item.setBookmarked(true));
+
+        assertThat(rankingSnapshotService.getTopBookmarks(PageRequest.of(0, 10))).noneMatch(RankingItem::isBookmarked);
+    }
+
+    @Test
+    void refreshSwapsToNewGeneration() {
+        rankingSnapshotService.getTopBookmarksByOverallScore(PageRequest.of(0, 10));
+        when(rankingGenerationRepository.findCurrentGenerationId()).thenReturn(Optional.of(2L));
+        when(rankingCacheRepository.findByGeneration(2L)).thenReturn(List.of(row("https://d.example", 2L, 2L, 2L)));
+
+        rankingSnapshotService.refresh();
+
+        assertThat(urls(rankingSnapshotService.getTopBookmarksByOverallScore(PageRequest.of(0, 10)))).containsExactly("https://d.example");
+    }
+
+    @Test
+    void deckReturnsEveryPublicBookmarkOnceBeforeRepeating() {
+        BroadenDeck deck = new BroadenDeck();
+        List<String> drawn = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            drawn.add(rankingSnapshotService.drawPublicBookmark(deck).orElseThrow().getUrl());
+        }
+
+        assertThat(drawn).containsExactlyInAnyOrder("https://a.example", "https://b.example", "https://c.example");
+    }
+
+    @Test
+    void deckIndexesFormPermutation() {
+        BroadenDeck deck = new BroadenDeck();
+        Set<Integer> indexes = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            indexes.add(deck.nextIndex(1L, 1000, new Random(i)));
+        }
+
+        assertThat(indexes).hasSize(1000);
+    }
+
+    private static RankingCache row(String url, Long uniqueUserCount, Long totalClickCount, Long overallScore) {
+        return new RankingCache(url, url, null, uniqueUserCount, totalClickCount, null, overallScore, LocalDateTime.now());
+    }
+
+    private static List<String> urls(List<RankingItem> items) {
+        return items.stream().map(RankingItem::getUrl).toList();
+    }
+}
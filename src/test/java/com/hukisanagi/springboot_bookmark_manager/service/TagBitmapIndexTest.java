@@ -0,0 +1,95 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import com.hukisanagi.springboot_bookmark_manager.model.AppUser;
+import com.hukisanagi.springboot_bookmark_manager.model.Bookmark;
+import com.hukisanagi.springboot_bookmark_manager.model.Tag;
+import com.hukisanagi.springboot_bookmark_manager.repository.BookmarkRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class TagBitmapIndexTest {
+
+    private BookmarkRepository bookmarkRepository;
+    private TagBitmapIndex tagBitmapIndex;
+    private AppUser appUser;
+
+    @BeforeEach
+    void setUp() {
+        bookmarkRepository = mock(BookmarkRepository.class);
+        tagBitmapIndex = new TagBitmapIndex(bookmarkRepository, true, 1000, 10, 3);
+        appUser = new AppUser("sub");
+        appUser.setId(1L);
+        when(bookmarkRepository.findIdAndTagNameByAppUser(appUser)).thenReturn(List.of(
+                new Object[] {1L, "java"}, new Object[] {1L, "spring"}, new Object[] {1L, "db"},
+                new Object[] {2L, "java"}, new Object[] {2L, "spring"},
+                new Object[] {3L, "java"},
+                new Object[] {4L, "java"}));
+    }
+
+    @Test
+    void multipleTagsAreIntersected() {
+        assertThat(tagBitmapIndex.findByAllTags(appUser, List.of("java", "spring"))).contains(List.of(1L, 2L));
+        assertThat(tagBitmapIndex.findByAllTags(appUser, List.of("java", "spring", "db"))).contains(List.of(1L));
+        assertThat(tagBitmapIndex.findByAllTags(appUser, List.of("spring", "spring"))).contains(List.of(1L, 2L));
+        // 存在しないタグを含む場合は一致しない
+        assertThat(tagBitmapIndex.findByAllTags(appUser, List.of("java", "python"))).contains(List.of());
+        verify(bookmarkRepository, times(1)).findIdAndTagNameByAppUser(appUser);
+    }
+
+    @Test
+    void tooManyHitsFallBackToSubquery() {
+        assertThat(tagBitmapIndex.findByAllTags(appUser, List.of("java"))).isEmpty();
+    }
+
+    @Test
+    void disabledIndexDoesNotLoad() {
+        TagBitmapIndex disabled = new TagBitmapIndex(bookmarkRepository, false, 1000, 10, 3);
+
+        assertThat(disabled.findByAllTags(appUser, List.of("java", "spring"))).isEmpty();
+        verify(bookmarkRepository, never()).findIdAndTagNameByAppUser(any());
+    }
+
+    @Test
+    void changesAreAppliedAfterCommit() {
+        assertThat(tagBitmapIndex.findByAllTags(appUser, List.of("java", "spring"))).contains(List.of(1L, 2L));
+
+        Bookmark bookmark = new Bookmark(3L, "title", "https://example.com");
+        bookmark.setTags(Set.of(new Tag("spring"), new Tag("kotlin")));
+        new TransactionTemplate(new ConnectionTrackingTransactionManager()).executeWithoutResult(status -> {
+            tagBitmapIndex.indexBookmark(appUser, bookmark);
+            tagBitmapIndex.removeBookmark(appUser, 1L);
+            // コミットまでは反映しない
+            assertThat(tagBitmapIndex.findByAllTags(appUser, List.of("java", "spring"))).contains(List.of(1L, 2L));
+        });
+
+        assertThat(tagBitmapIndex.findByAllTags(appUser, List.of("java", "spring"))).contains(List.of(2L));
+        assertThat(tagBitmapIndex.findByAllTags(appUser, List.of("spring"))).contains(List.of(2L, 3L));
+        assertThat(tagBitmapIndex.findByAllTags(appUser, List.of("kotlin"))).contains(List.of(3L));
+        assertThat(tagBitmapIndex.findByAllTags(appUser, List.of("db"))).contains(List.of());
+        verify(bookmarkRepository, times(1)).findIdAndTagNameByAppUser(appUser);
+    }
+
+    @Test
+    void rollbackDiscardsChanges() {
+        assertThat(tagBitmapIndex.findByAllTags(appUser, List.of("db"))).contains(List.of(1L));
+
+        new TransactionTemplate(new ConnectionTrackingTransactionManager()).executeWithoutResult(status -> {
+            tagBitmapIndex.removeBookmark(appUser, 1L);
+            status.setRollbackOnly();
+        });
+
+        assertThat(tagBitmapIndex.findByAllTags(appUser, List.of("db"))).contains(List.of(1L));
+    }
+}
@@ -0,0 +1,97 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import com.hukisanagi.springboot_bookmark_manager.model.Tag;
+import com.hukisanagi.springboot_bookmark_manager.repository.TagRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.stubbing.Answer;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class TagResolverTest {
+
+    private JdbcTemplate jdbcTemplate;
+    private TagRepository tagRepository;
+    private TagResolver tagResolver;
+    private Answer<List<Tag>> findByNameIn;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(
+                "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", "");
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("CREATE TABLE tag (id BIGINT AUTO_INCREMENT PRIMARY KEY, name VARCHAR(255) NOT NULL, unused_since TIMESTAMP, " +
+                "CONSTRAINT uk_tag_name UNIQUE (name))");
+        jdbcTemplate.update("INSERT INTO tag (name) VALUES ('java')");
+
+        // リポジトリのIN検索はH2の表を参照する
+        NamedParameterJdbcTemplate namedJdbcTemplate = new NamedParameterJdbcTemplate(jdbcTemplate);
+        findByNameIn = invocation -> namedJdbcTemplate.query(
+                "SELECT id, name FROM tag WHERE name IN (:names)",
+                new MapSqlParameterSource("names", List.copyOf((Collection<String>) invocation.getArgument(0))),
+                (rs, rowNum) -> {
+                    Tag tag = new Tag(rs.getString("name"));
+                    tag.setId(rs.getLong("id"));
+                    return tag;
+                });
+        tagRepository = mock(TagRepository.class);
+        doAnswer(findByNameIn).when(tagRepository).findByNameIn(any());
+        when(tagRepository.getReferenceById(anyLong())).thenAnswer(invocation -> {
+            Tag tag = new Tag();
+            tag.setId(invocation.getArgument(0));
+            return tag;
+        });
+        tagResolver = new TagResolver(tagRepository, jdbcTemplate, new DataSourceTransactionManager(dataSource), 100, 10);
+    }
+
+    @Test
+    void missingTagsAreCreatedInOneBatch() {
+        Set<Tag> tags = tagResolver.resolve(List.of("java", "web", "spring", "web"));
+
+        assertThat(tags).extracting(Tag::getName).containsExactlyInAnyOrder("java", "web", "spring");
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM tag", Long.class)).isEqualTo(3);
+        // 既存分のIN検索と、作成分のIN検索の2回
+        verify(tagRepository, times(2)).findByNameIn(any());
+    }
+
+    @Test
+    void cachedTagsAreResolvedWithoutLookup() {
+        Set<Tag> first = tagResolver.resolve(List.of("java", "web"));
+        Set<Tag> second = tagResolver.resolve(List.of("web", "java"));
+
+        assertThat(second).isEqualTo(first);
+        verify(tagRepository, times(2)).findByNameIn(any());
+    }
+
+    @Test
+    void tagCreatedAfterLookupIsReused() {
+        // IN検索の直後に他のリクエストが同じ名前のタグを作成した場合も、重複したタグは作られない
+        doAnswer(invocation -> {
+            jdbcTemplate.update("INSERT INTO tag (name) VALUES ('web')");
+            return List.of();
+        }).doAnswer(findByNameIn).when(tagRepository).findByNameIn(any());
+
+        Set<Tag> tags = tagResolver.resolve(List.of("web", "spring"));
+
+        assertThat(tags).extracting(Tag::getName).containsExactlyInAnyOrder("web", "spring");
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM tag WHERE name = 'web'", Long.class)).isEqualTo(1);
+    }
+}
@@ -0,0 +1,169 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import com.hukisanagi.springboot_bookmark_manager.model.RankingItem;
+import org.assertj.core.groups.Tuple;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class TrendingRankingServiceTest {
+
+    private static final long BUCKET_MILLIS = 60_000;
+
+    private JdbcTemplate jdbcTemplate;
+    private RankingSnapshotService rankingSnapshotService;
+    private AtomicLong clock;
+
+    @BeforeEach
+    void setUp() {
+        jdbcTemplate = new JdbcTemplate(new DriverManagerDataSource(
+                "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", ""));
+        jdbcTemplate.execute("CREATE TABLE bookmark (id BIGINT PRIMARY KEY, url_id BIGINT)");
+        jdbcTemplate.execute("CREATE TABLE bookmark_click_log (id BIGINT AUTO_INCREMENT PRIMARY KEY, " +
+                "bookmark_id BIGINT, app_user_id BIGINT, clicked_at TIMESTAMP)");
+        jdbcTemplate.execute("CREATE TABLE url_metadata (id BIGINT PRIMARY KEY, url VARCHAR(2048), title VARCHAR(1024), favicon_path VARCHAR(2048))");
+        jdbcTemplate.execute("CREATE TABLE url_stats (url_id BIGINT PRIMARY KEY, public_url BOOLEAN)");
+        // ブックマーク1と3は別のユーザーが同じURLを登録したもの
+        jdbcTemplate.update("INSERT INTO bookmark (id, url_id) VALUES (1, 100), (2, 200), (3, 100), (4, 300)");
+        jdbcTemplate.update("INSERT INTO url_metadata (id, url, title, favicon_path) VALUES " +
+                "(100, 'https://example.com/100', 'page 100', NULL), (200, 'https://example.com/200', 'page 200', NULL), " +
+                "(300, 'https://example.com/300', 'page 300', 'blobs/ab/cd/abcd.png')");
+        jdbcTemplate.update("INSERT INTO url_stats (url_id, public_url) VALUES (100, TRUE), (200, TRUE), (300, TRUE)");
+        rankingSnapshotService = mock(RankingSnapshotService.class);
+        when(rankingSnapshotService.getPublicBookmarkByUrlId(anyLong(), anyLong())).thenAnswer(invocation ->
+                Optional.of(new RankingItem("https://example.com/" + invocation.getArgument(0), "title", null, invocation.<Long>getArgument(1))));
+        clock = new AtomicLong(System.currentTimeMillis() / BUCKET_MILLIS * BUCKET_MILLIS);
+    }
+
+    @Test
+    void countsClicksOfTheWindowAndExpiresOldBuckets() {
+        TrendingRankingService trendingRankingService = new TrendingRankingService(jdbcTemplate, rankingSnapshotService,
+                BUCKET_MILLIS, 3, 100, clock::get);
+
+        List<ClickIngestionService.ClickEvent> events = new ArrayList<>(List.of(click(1), click(1), click(3), click(2)));
+        // 重複として記録しなかったクリックは数えない
+        events.add(new ClickIngestionService.ClickEvent(2L, 2L, now(), false));
+        trendingRankingService.record(events);
+        assertThat(trendingRankingService.getTopBookmarks(Pageable.unpaged()))
+                .extracting(RankingItem::getUrl, RankingItem::getCountValue)
+                .containsExactly(tuple(100, 3L), tuple(200, 1L));
+
+        clock.addAndGet(2 * BUCKET_MILLIS);
+        trendingRankingService.record(List.of(click(2), click(2), click(2)));
+        assertThat(trendingRankingService.getTopBookmarks(Pageable.unpaged()))
+                .extracting(RankingItem::getUrl, RankingItem::getCountValue)
+                .containsExactly(tuple(200, 4L), tuple(100, 3L));
+        assertThat(trendingRankingService.getTopBookmarks(PageRequest.of(1, 1)))
+                .extracting(RankingItem::getUrl).containsExactly("https://example.com/100");
+
+        // クリックがなくても、期間外になったバケットは参照時に外れる
+        clock.addAndGet(BUCKET_MILLIS);
+        assertThat(trendingRankingService.getTopBookmarks(Pageable.unpaged()))
+                .extracting(RankingItem::getUrl, RankingItem::getCountValue)
+                .containsExactly(tuple(200, 3L));
+    }
+
+    @Test
+    void reloadRestoresCountsFromClickLogAndShowsOnlyPublicUrls() {
+        insertClick(1, now());
+        insertClick(3, now().minusMinutes(1));
+        insertClick(2, now());
+        // 期間外のクリック
+        insertClick(1, now().minusMinutes(10));
+        jdbcTemplate.update("UPDATE url_stats SET public_url = FALSE WHERE url_id = 200");
+
+        // 再起動後のインスタンスを想定し、クリックログから読み直す
+        TrendingRankingService trendingRankingService = new TrendingRankingService(jdbcTemplate, rankingSnapshotService,
+                BUCKET_MILLIS, 3, 100, clock::get);
+        trendingRankingService.reload();
+
+        assertThat(trendingRankingService.getTopBookmarks(Pageable.unpaged()))
+                .extracting(RankingItem::getUrl, RankingItem::getCountValue)
+                .containsExactly(tuple(100, 2L));
+    }
+
+    @Test
+    void urlsPublishedAfterSnapshotAreShownWithTheirMetadata() {
+        // URL 300は前回の集計の後に公開された（スナップショットにない）
+        when(rankingSnapshotService.getPublicBookmarkByUrlId(300L, 2L)).thenReturn(Optional.empty());
+        TrendingRankingService trendingRankingService = new TrendingRankingService(jdbcTemplate, rankingSnapshotService,
+                BUCKET_MILLIS, 3, 100, clock::get);
+
+        trendingRankingService.record(List.of(click(4), click(4), click(1)));
+
+        assertThat(trendingRankingService.getTopBookmarks(Pageable.unpaged()))
+                .extracting(RankingItem::getUrl, RankingItem::getTitle, RankingItem::getFaviconPath, RankingItem::getCountValue)
+                .containsExactly(
+                        Tuple.tuple("https://example.com/300", "page 300", "blobs/ab/cd/abcd.png", 2L),
+                        Tuple.tuple("https://example.com/100", "title", null, 1L));
+    }
+
+    @Test
+    void counterKeepsHeavyHittersWithinBoundedMemory() {
+        TrendingRankingService.SlidingWindowCounter counter = new TrendingRankingService.SlidingWindowCounter(2, 10);
+        for (long i = 0; i < 10_000; i++) {
+            long bucket = i % 2;
+            // 1回しかクリックされないURLに混ざって、URL 1〜3が繰り返しクリックされる
+            counter.add(bucket, 1_000 + i, 1);
+            counter.add(bucket, 1 + i % 3, 1);
+        }
+
+        assertThat(counter.size()).isLessThanOrEqualTo(2 * 10);
+        long[][] top = counter.top(3);
+        assertThat(top[0]).containsExactlyInAnyOrder(1L, 2L, 3L);
+        // 入れ替えによる誤差は多めに数える方向にだけ出る
+        assertThat(Arrays.stream(top[1]).min().orElseThrow()).isGreaterThanOrEqualTo(10_000 / 3);
+    }
+
+    @Test
+    void counterReplacesLeastCountedUrlAndInheritsItsCount() {
+        TrendingRankingService.SlidingWindowCounter counter = new TrendingRankingService.SlidingWindowCounter(1, 2);
+        counter.add(0, 1, 3);
+        counter.add(0, 2, 1);
+        counter.add(0, 2, 1);
+        counter.add(0, 1, 1);
+
+        // URL 2（2回）と入れ替わり、その数を引き継ぐ
+        counter.add(0, 3, 1);
+
+        long[][] top = counter.top(10);
+        assertThat(top[0]).containsExactly(1L, 3L);
+        assertThat(top[1]).containsExactly(4L, 3L);
+    }
+
+    private ClickIngestionService.ClickEvent click(long bookmarkId) {
+        return new ClickIngestionService.ClickEvent(bookmarkId, bookmarkId, now(), true);
+    }
+
+    private LocalDateTime now() {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(clock.get()), ZoneId.systemDefault());
+    }
+
+    private void insertClick(long bookmarkId, LocalDateTime clickedAt) {
+        jdbcTemplate.update("INSERT INTO bookmark_click_log (bookmark_id, app_user_id, clicked_at) VALUES (?, ?, ?)",
+                bookmarkId, bookmarkId, Timestamp.valueOf(clickedAt));
+    }
+
+    private static Tuple tuple(long urlId, long count) {
+        return Tuple.tuple("https://example.com/" + urlId, count);
+    }
+}
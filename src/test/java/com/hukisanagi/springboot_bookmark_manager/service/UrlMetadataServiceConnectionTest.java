@@ -0,0 +1,72 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import com.hukisanagi.springboot_bookmark_manager.repository.UrlMetadataRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.core.env.Environment;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.sql.DataSource;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+// 実際のデータソースとJPAで、外部サイトへの通信中にDB接続を保持していないことを確認する
+@DataJpaTest(properties = {"spring.config.import=optional:file:/nonexistent", "spring.cloud.aws.secretsmanager.enabled=false"})
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class UrlMetadataServiceConnectionTest {
+
+    @Autowired
+    private UrlMetadataRepository urlMetadataRepository;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    private Environment environment;
+
+    @TestConfiguration
+    static class Config {
+
+        @Bean
+        static BeanPostProcessor countingDataSourcePostProcessor() {
+            return CountingDataSource.postProcessor();
+        }
+    }
+
+    @Test
+    void connectionIsNotHeldWhileFetchingTitle() throws Exception {
+        // リクエストの間EntityManagerを保持すると、最初の参照で取得した接続をリクエストの終わりまで保持してしまう
+        assertThat(environment.getProperty("spring.jpa.open-in-view", Boolean.class)).isFalse();
+
+        CountingDataSource countingDataSource = (CountingDataSource) dataSource;
+        PageMetadataService pageMetadataService = mock(PageMetadataService.class);
+        AtomicInteger connectionsDuringFetch = new AtomicInteger(-1);
+        when(pageMetadataService.fetchPageHead(anyString(), any(), any())).thenAnswer(invocation -> {
+            connectionsDuringFetch.set(countingDataSource.openConnections.get());
+            return new PageMetadataService.PageHead(false, "Example", List.of(), null, null);
+        });
+        UrlMetadataService urlMetadataService = new UrlMetadataService(urlMetadataRepository, pageMetadataService,
+                mock(FaviconBlobService.class), transactionManager, 100, 168);
+
+        assertThat(urlMetadataService.getTitle("https://example.com/")).contains("Example");
+
+        assertThat(connectionsDuringFetch.get()).isZero();
+        assertThat(countingDataSource.openConnections.get()).isZero();
+        assertThat(urlMetadataRepository.findByUrlHash(StorageService.sha256("https://example.com"))).isPresent();
+    }
+}
@@ -0,0 +1,123 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import com.hukisanagi.springboot_bookmark_manager.model.UrlMetadata;
+import com.hukisanagi.springboot_bookmark_manager.repository.UrlMetadataRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class UrlMetadataServiceTest {
+
+    private UrlMetadataRepository urlMetadataRepository;
+    private PageMetadataService pageMetadataService;
+    private ConnectionTrackingTransactionManager transactionManager;
+    private UrlMetadataService urlMetadataService;
+
+    @BeforeEach
+    void setUp() {
+        urlMetadataRepository = mock(UrlMetadataRepository.class);
+        pageMetadataService = mock(PageMetadataService.class);
+        when(urlMetadataRepository.findByUrlHash(anyString())).thenReturn(Optional.empty());
+        when(urlMetadataRepository.saveAndFlush(any())).thenAnswer(invocation -> invocation.getArgument(0));
+        transactionManager = new ConnectionTrackingTransactionManager();
+        urlMetadataService = new UrlMetadataService(urlMetadataRepository, pageMetadataService,
+                mock(FaviconBlobService.class), transactionManager, 100, 168);
+    }
+
+    @Test
+    void urlReferenceIsRejectedInsideCallersTransaction() {
+        // 行の作成に2つ目の接続を使わないよう、呼び出し側のトランザクションの外でだけ作成する
+        assertThatThrownBy(() -> new TransactionTemplate(transactionManager)
+                .executeWithoutResult(status -> urlMetadataService.getUrlReference("https://example.com/")))
+                .isInstanceOf(IllegalStateException.class);
+        verify(urlMetadataRepository, never()).saveAndFlush(any());
+
+        UrlMetadata reference = new UrlMetadata();
+        when(urlMetadataRepository.getReferenceById(any())).thenReturn(reference);
+        assertThat(urlMetadataService.getUrlReference("https://example.com/")).isSameAs(reference);
+        verify(urlMetadataRepository).saveAndFlush(any());
+    }
+
+    @Test
+    void faviconUsesIconUrlFoundWhileFetchingTitle() throws Exception {
+        when(pageMetadataService.fetchPageHead(eq("https://example.com"), isNull(), isNull()))
+                .thenReturn(new PageMetadataService.PageHead(false, "Example", List.of("https://cdn.example.com/icon.png"), null, null));
+        assertThat(urlMetadataService.getTitle("https://example.com")).contains("Example");
+
+        urlMetadataService.acquireFavicon("https://example.com");
+
+        // ページを取得し直さずに、タイトルの取得時に見つけたアイコンを取得する
+        verify(pageMetadataService).fetchFavicon("https://example.com", "https://cdn.example.com/icon.png");
+        verify(pageMetadataService, times(1)).fetchPageHead(anyString(), any(), any());
+    }
+
+    @Test
+    void concurrentLookupsForSameUrlAreCoalesced() throws Exception {
+        CountDownLatch fetchStarted = new CountDownLatch(1);
+        CountDownLatch releaseFetch = new CountDownLatch(1);
+        when(pageMetadataService.fetchPageHead(eq("https://example.com"), isNull(), isNull())).thenAnswer(invocation -> {
+            fetchStarted.countDown();
+            releaseFetch.await(5, TimeUnit.SECONDS);
+            return new PageMetadataService.PageHead(false, "Example", List.of(), "\"v1\"", null);
+        });
+
+        CompletableFuture<Optional<String>> first = CompletableFuture.supplyAsync(() -> urlMetadataService.getTitle("https://example.com/"));
+        assertThat(fetchStarted.await(5, TimeUnit.SECONDS)).isTrue();
+        CompletableFuture<Optional<String>> second = CompletableFuture.supplyAsync(() -> urlMetadataService.getTitle("https://EXAMPLE.com"));
+        Thread.sleep(100);
+        releaseFetch.countDown();
+
+        assertThat(first.get(5, TimeUnit.SECONDS)).contains("Example");
+        assertThat(second.get(5, TimeUnit.SECONDS)).contains("Example");
+        // 取得後はメモリ上のキャッシュから返す
+        assertThat(urlMetadataService.getTitle("https://example.com")).contains("Example");
+        verify(pageMetadataService, times(1)).fetchPageHead(anyString(), any(), any());
+    }
+
+    @Test
+    void staleTitleIsRevalidatedWithConditionalRequest() throws Exception {
+        UrlMetadata stored = new UrlMetadata("hash", "https://example.com");
+        stored.setTitle("Old Title");
+        stored.setFetchedAt(LocalDateTime.now().minusDays(30));
+        stored.setEtag("\"v1\"");
+        when(urlMetadataRepository.findByUrlHash(anyString())).thenReturn(Optional.of(stored));
+        when(pageMetadataService.fetchPageHead("https://example.com", "\"v1\"", null))
+                .thenReturn(new PageMetadataService.PageHead(true, null, List.of(), "\"v1\"", null));
+
+        assertThat(urlMetadataService.getTitle("https://example.com")).contains("Old Title");
+        assertThat(stored.getFetchedAt()).isAfter(LocalDateTime.now().minusMinutes(1));
+    }
+
+    @Test
+    void missingTitleIsDistinguishedFromFetchFailure() throws Exception {
+        when(pageMetadataService.fetchPageHead(eq("https://example.com/no-title"), isNull(), isNull()))
+                .thenReturn(new PageMetadataService.PageHead(false, " ", List.of(), null, null));
+        when(pageMetadataService.fetchPageHead(eq("https://example.com/down"), isNull(), isNull()))
+                .thenThrow(new IOException("Connection refused"));
+
+        assertThat(urlMetadataService.lookupTitle("https://example.com/no-title"))
+                .isEqualTo(new UrlMetadataService.TitleLookup(null, false));
+        assertThat(urlMetadataService.lookupTitle("https://example.com/down"))
+                .isEqualTo(new UrlMetadataService.TitleLookup(null, true));
+    }
+}
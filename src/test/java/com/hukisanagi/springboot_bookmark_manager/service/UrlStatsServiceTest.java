@@ -0,0 +1,147 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import com.hukisanagi.springboot_bookmark_manager.model.AppUser;
+import com.hukisanagi.springboot_bookmark_manager.repository.UrlStatsRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class UrlStatsServiceTest {
+
+    private static final String STATS_SQL = "SELECT url_id, unique_user_count, total_click_count, public_url FROM url_stats ORDER BY url_id";
+    private static final String BUCKETS_SQL = "SELECT url_id, bucket_date, click_count FROM url_click_bucket ORDER BY url_id, bucket_date";
+
+    private JdbcTemplate jdbcTemplate;
+    private DataSourceTransactionManager transactionManager;
+    private UrlStatsRepository urlStatsRepository;
+
+    @BeforeEach
+    void setUp() {
+        jdbcTemplate = new JdbcTemplate(new DriverManagerDataSource(
+                "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", ""));
+        jdbcTemplate.execute("CREATE TABLE bookmark (id BIGINT PRIMARY KEY, url_id BIGINT, app_user_id BIGINT, total_click_count BIGINT NOT NULL)");
+        jdbcTemplate.execute("CREATE TABLE bookmark_click_log (id BIGINT AUTO_INCREMENT PRIMARY KEY, " +
+                "bookmark_id BIGINT, app_user_id BIGINT, clicked_at TIMESTAMP)");
+        jdbcTemplate.execute("CREATE TABLE url_stats (url_id BIGINT PRIMARY KEY, unique_user_count BIGINT NOT NULL, " +
+                "total_click_count BIGINT NOT NULL, public_url BOOLEAN NOT NULL)");
+        jdbcTemplate.execute("CREATE TABLE url_click_bucket (id BIGINT AUTO_INCREMENT PRIMARY KEY, url_id BIGINT NOT NULL, bucket_date DATE NOT NULL, " +
+                "click_count BIGINT NOT NULL, first_clicker_id BIGINT, multiple_clickers BOOLEAN NOT NULL, UNIQUE (url_id, bucket_date))");
+        transactionManager = new DataSourceTransactionManager(jdbcTemplate.getDataSource());
+        urlStatsRepository = mock(UrlStatsRepository.class);
+    }
+
+    @Test
+    void incrementalUpdatesMatchFullReconcile() {
+        UrlStatsService urlStatsService = new UrlStatsService(urlStatsRepository, jdbcTemplate, transactionManager, true, 60);
+        LocalDateTime now = LocalDateTime.now();
+        // URL 100: ユーザー1・2・3が登録、URL 200: ユーザー1のみ
+        addBookmark(urlStatsService, 1, 100, 1);
+        addBookmark(urlStatsService, 2, 100, 2);
+        addBookmark(urlStatsService, 3, 100, 3);
+        addBookmark(urlStatsService, 4, 200, 1);
+        assertThat(jdbcTemplate.queryForList(STATS_SQL)).extracting(row -> row.get("PUBLIC_URL")).containsExactly(true, false);
+
+        // クリックの書き込み（ClickIngestionServiceと同じ手順）
+        jdbcTemplate.update("UPDATE bookmark SET total_click_count = total_click_count + 4 WHERE id = 3");
+        insertClick(3, 3, now.minusDays(1));
+        insertClick(3, 3, now.minusDays(2));
+        insertClick(2, 2, now.minusDays(2));
+        List<UrlStatsService.LoggedClicks> loggedClicks = List.of(
+                new UrlStatsService.LoggedClicks(3L, now.minusDays(1).toLocalDate(), 1, Set.of(3L)),
+                new UrlStatsService.LoggedClicks(3L, now.minusDays(2).toLocalDate(), 1, Set.of(3L)),
+                new UrlStatsService.LoggedClicks(2L, now.minusDays(2).toLocalDate(), 1, Set.of(2L)));
+        urlStatsService.prepareClickBuckets(loggedClicks);
+        urlStatsService.recordClicks(List.<Object[]>of(new Object[] {4L, 3L}), loggedClicks);
+
+        // ユーザー3のブックマークを削除し、ユーザー2のアカウントを削除する
+        urlStatsService.removeBookmark(3L);
+        deleteBookmark("id = ?", 3L);
+        AppUser appUser = new AppUser("sub");
+        appUser.setId(2L);
+        urlStatsService.removeBookmarksOf(appUser);
+        deleteBookmark("app_user_id = ?", 2L);
+
+        List<Map<String, Object>> incrementalStats = jdbcTemplate.queryForList(STATS_SQL);
+        List<Map<String, Object>> incrementalBuckets = jdbcTemplate.queryForList(BUCKETS_SQL);
+        assertThat(incrementalStats.get(0)).containsEntry("UNIQUE_USER_COUNT", 1L).containsEntry("TOTAL_CLICK_COUNT", 0L)
+                .containsEntry("PUBLIC_URL", false);
+
+        urlStatsService.reconcile(now.minusMonths(1));
+
+        assertThat(jdbcTemplate.queryForList(STATS_SQL)).isEqualTo(incrementalStats);
+        // 数え直すとクリックが0件の日の行はなくなる
+        assertThat(incrementalBuckets).allSatisfy(row -> assertThat(row.get("CLICK_COUNT")).isEqualTo(0L));
+        assertThat(jdbcTemplate.queryForList(BUCKETS_SQL)).isEmpty();
+    }
+
+    @Test
+    void reconcileFixesOnlyRowsThatDiffer() {
+        UrlStatsService urlStatsService = new UrlStatsService(urlStatsRepository, jdbcTemplate, transactionManager, true, 60);
+        LocalDateTime yesterday = LocalDateTime.now().minusDays(1);
+        jdbcTemplate.update("INSERT INTO bookmark (id, url_id, app_user_id, total_click_count) VALUES (1, 100, 1, 3), (2, 100, 2, 0), (3, 200, 1, 1)");
+        insertClick(1, 1, yesterday);
+        insertClick(1, 2, yesterday);
+        // URL 100はずれている、URL 200は正しい、URL 300はブックマークが削除済み
+        jdbcTemplate.update("INSERT INTO url_stats (url_id, unique_user_count, total_click_count, public_url) VALUES " +
+                "(100, 1, 9, FALSE), (200, 1, 1, FALSE), (300, 2, 4, TRUE)");
+        jdbcTemplate.update("INSERT INTO url_click_bucket (url_id, bucket_date, click_count, first_clicker_id, multiple_clickers) VALUES " +
+                "(100, ?, 5, 1, FALSE), (200, ?, 2, 1, FALSE)", Date.valueOf(yesterday.toLocalDate()), Date.valueOf(yesterday.toLocalDate()));
+
+        urlStatsService.reconcile(LocalDateTime.now().minusMonths(1));
+
+        assertThat(jdbcTemplate.queryForList(STATS_SQL)).extracting(row -> List.of(row.get("URL_ID"), row.get("UNIQUE_USER_COUNT"),
+                row.get("TOTAL_CLICK_COUNT"), row.get("PUBLIC_URL"))).containsExactly(
+                List.of(100L, 2L, 3L, true), List.of(200L, 1L, 1L, false), List.of(300L, 0L, 0L, false));
+        // クリックログのない日の行は0にしてから削除する
+        assertThat(jdbcTemplate.queryForList(BUCKETS_SQL)).extracting(row -> List.of(row.get("URL_ID"), row.get("CLICK_COUNT")))
+                .containsExactly(List.of(100L, 2L));
+        assertThat(jdbcTemplate.queryForObject("SELECT multiple_clickers FROM url_click_bucket", Boolean.class)).isTrue();
+    }
+
+    @Test
+    void prepareForRankingOnlyPurgesOldBucketsWhenReconcileIsDisabled() {
+        UrlStatsService urlStatsService = new UrlStatsService(urlStatsRepository, jdbcTemplate, transactionManager, false, 60);
+        when(urlStatsRepository.count()).thenReturn(1L);
+        jdbcTemplate.update("INSERT INTO url_stats (url_id, unique_user_count, total_click_count, public_url) VALUES (100, 2, 7, TRUE)");
+        LocalDate today = LocalDate.now();
+        jdbcTemplate.update("INSERT INTO url_click_bucket (url_id, bucket_date, click_count, first_clicker_id, multiple_clickers) VALUES (100, ?, 3, 1, TRUE), (100, ?, 5, 1, TRUE)",
+                Date.valueOf(today.minusMonths(2)), Date.valueOf(today));
+
+        urlStatsService.prepareForRanking(LocalDateTime.now().minusMonths(1));
+
+        // 突き合わせを行わないため、ブックマークがなくても集計値は残る
+        assertThat(jdbcTemplate.queryForObject("SELECT total_click_count FROM url_stats WHERE url_id = 100", Long.class)).isEqualTo(7);
+        assertThat(jdbcTemplate.queryForList("SELECT click_count FROM url_click_bucket", Long.class)).containsExactly(5L);
+    }
+
+    private void addBookmark(UrlStatsService urlStatsService, long id, long urlId, long appUserId) {
+        jdbcTemplate.update("INSERT INTO bookmark (id, url_id, app_user_id, total_click_count) VALUES (?, ?, ?, 0)", id, urlId, appUserId);
+        urlStatsService.prepareBookmark(urlId);
+        urlStatsService.addBookmark(urlId);
+    }
+
+    private void deleteBookmark(String condition, Long id) {
+        jdbcTemplate.update("DELETE FROM bookmark_click_log WHERE bookmark_id IN (SELECT id FROM bookmark WHERE " + condition + ")", id);
+        jdbcTemplate.update("DELETE FROM bookmark WHERE " + condition, id);
+    }
+
+    private void insertClick(long bookmarkId, long appUserId, LocalDateTime clickedAt) {
+        jdbcTemplate.update("INSERT INTO bookmark_click_log (bookmark_id, app_user_id, clicked_at) VALUES (?, ?, ?)",
+                bookmarkId, appUserId, Timestamp.valueOf(clickedAt));
+    }
+}
@@ -0,0 +1,138 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import com.hukisanagi.springboot_bookmark_manager.model.AppUser;
+import com.hukisanagi.springboot_bookmark_manager.model.Bookmark;
+import com.hukisanagi.springboot_bookmark_manager.model.Tag;
+import com.hukisanagi.springboot_bookmark_manager.model.TagCount;
+import com.hukisanagi.springboot_bookmark_manager.repository.AppUserRepository;
+import com.hukisanagi.springboot_bookmark_manager.repository.BookmarkRepository;
+import com.hukisanagi.springboot_bookmark_manager.repository.TagRepository;
+import com.hukisanagi.springboot_bookmark_manager.repository.UserTagCountRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+// 実際のDBで、使われなくなったタグを書き込みの処理では削除せず、猶予期間を過ぎてから削除することを確認する
+// あわせて、事前に作成した使用数の行に加算し、使われなかった行はタグ一覧に表示しないことを確認する
+@DataJpaTest(properties = {"spring.config.import=optional:file:/nonexistent", "spring.cloud.aws.secretsmanager.enabled=false"})
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class UserTagCountServicePurgeTest {
+
+    @Autowired
+    private TagRepository tagRepository;
+
+    @Autowired
+    private UserTagCountRepository userTagCountRepository;
+
+    @Autowired
+    private BookmarkRepository bookmarkRepository;
+
+    @Autowired
+    private AppUserRepository appUserRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private TransactionTemplate transactionTemplate;
+    private TagResolver tagResolver;
+    private UserTagCountService userTagCountService;
+    private AppUser appUser;
+
+    @BeforeEach
+    void setUp() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        tagResolver = new TagResolver(tagRepository, jdbcTemplate, transactionManager, 100, 10);
+        userTagCountService = new UserTagCountService(userTagCountRepository, tagRepository, jdbcTemplate, tagResolver, transactionManager, 24);
+        appUser = appUserRepository.save(new AppUser("purge-" + System.nanoTime()));
+    }
+
+    @Test
+    void removedTagStaysUsableByRequestsHoldingItsId() {
+        Long tagId = transactionTemplate.execute(status -> {
+            Bookmark bookmark = bookmark("https://example.com/first", tagResolver.resolve(List.of("shared")));
+            userTagCountService.applyTagChange(appUser, Set.of(), bookmark.getTags());
+            return bookmark.getTags().iterator().next().getId();
+        });
+
+        // 他のリクエストがタグIDをキャッシュした後に、最後のブックマークからタグが外される
+        transactionTemplate.executeWithoutResult(status -> {
+            Bookmark bookmark = bookmarkRepository.findByAppUserAndUrl(appUser, "https://example.com/first").get(0);
+            Set<Tag> oldTags = Set.copyOf(bookmark.getTags());
+            bookmark.getTags().clear();
+            userTagCountService.applyTagChange(appUser, oldTags, Set.of());
+        });
+
+        // キャッシュ済みのIDで追加しても外部キー違反にならない
+        transactionTemplate.executeWithoutResult(status -> {
+            Set<Tag> tags = tagResolver.resolve(List.of("shared"));
+            assertThat(tags).extracting(Tag::getId).containsExactly(tagId);
+            bookmark("https://example.com/second", tags);
+            userTagCountService.applyTagChange(appUser, Set.of(), tags);
+        });
+        assertThat(tagRepository.findById(tagId)).isPresent();
+    }
+
+    @Test
+    void preparedCountsAreIncrementedAndUnusedOnesAreHidden() {
+        tagResolver.prepare(List.of("used", "abandoned"));
+        userTagCountService.prepareTagCounts(appUser, List.of("used", "abandoned"));
+        // 2回目の準備は作成済みの行をそのまま使う
+        userTagCountService.prepareTagCounts(appUser, List.of("used"));
+
+        transactionTemplate.executeWithoutResult(status -> {
+            Bookmark bookmark = bookmark("https://example.com/prepared", tagResolver.resolve(List.of("used")));
+            userTagCountService.applyTagChange(appUser, Set.of(), bookmark.getTags());
+        });
+
+        assertThat(userTagCountService.findTagCounts(appUser)).extracting(TagCount::name, TagCount::bookmarkCount)
+                .containsExactly(tuple("used", 1L));
+    }
+
+    @Test
+    void onlyTagsUnusedBeyondGracePeriodArePurged() {
+        LocalDateTime old = LocalDateTime.now().minusHours(48);
+        tagResolver.resolve(List.of("old", "recent", "inUse"));
+        setUnusedSince("old", old);
+        setUnusedSince("inUse", old);
+        // 未使用の日時が残ったまま再び使われているタグ
+        transactionTemplate.executeWithoutResult(status -> {
+            Set<Tag> tags = Set.copyOf(tagRepository.findByNameIn(List.of("inUse")));
+            bookmark("https://example.com/in-use", tags);
+            userTagCountService.applyTagChange(appUser, Set.of(), tags);
+        });
+
+        userTagCountService.purgeUnusedTags();
+
+        assertThat(tagRepository.findByNameIn(List.of("old", "recent", "inUse")))
+                .extracting(Tag::getName).containsExactlyInAnyOrder("recent", "inUse");
+    }
+
+    private Bookmark bookmark(String url, Set<Tag> tags) {
+        Bookmark bookmark = new Bookmark(null, "title", url);
+        bookmark.setAppUser(appUser);
+        bookmark.setTags(new HashSet<>(tags));
+        return bookmarkRepository.save(bookmark);
+    }
+
+    private void setUnusedSince(String name, LocalDateTime unusedSince) {
+        jdbcTemplate.update("UPDATE tag SET unused_since = ? WHERE name = ?", Timestamp.valueOf(unusedSince), name);
+    }
+}
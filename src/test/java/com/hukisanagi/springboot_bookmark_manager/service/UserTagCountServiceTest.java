@@ -0,0 +1,97 @@
+package com.hukisanagi.springboot_bookmark_manager.service;
+
+import com.hukisanagi.springboot_bookmark_manager.model.AppUser;
+import com.hukisanagi.springboot_bookmark_manager.model.Tag;
+import com.hukisanagi.springboot_bookmark_manager.repository.TagRepository;
+import com.hukisanagi.springboot_bookmark_manager.repository.UserTagCountRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.time.LocalDateTime;
+import java.util.Set;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class UserTagCountServiceTest {
+
+    private UserTagCountRepository userTagCountRepository;
+    private TagRepository tagRepository;
+    private UserTagCountService userTagCountService;
+    private AppUser appUser;
+
+    @BeforeEach
+    void setUp() {
+        userTagCountRepository = mock(UserTagCountRepository.class);
+        tagRepository = mock(TagRepository.class);
+        userTagCountService = new UserTagCountService(userTagCountRepository, tagRepository, mock(JdbcTemplate.class), mock(TagResolver.class),
+                mock(PlatformTransactionManager.class), 24);
+        appUser = new AppUser("sub");
+        appUser.setId(1L);
+    }
+
+    private static Tag tag(Long id, String name) {
+        Tag tag = new Tag(name);
+        tag.setId(id);
+        return tag;
+    }
+
+    @Test
+    void addedTagIsIncrementedOrInserted() {
+        Tag java = tag(1L, "java");
+        Tag web = tag(2L, "web");
+        when(userTagCountRepository.addBookmarkCount(appUser, java, 1)).thenReturn(1);
+        when(userTagCountRepository.addBookmarkCount(appUser, web, 1)).thenReturn(0);
+        when(userTagCountRepository.insertIfAbsent(1L, 2L, 1)).thenReturn(1);
+
+        userTagCountService.applyTagChange(appUser, Set.of(), Set.of(java, web));
+
+        verify(userTagCountRepository, never()).insertIfAbsent(1L, 1L, 1);
+        verify(userTagCountRepository).insertIfAbsent(1L, 2L, 1);
+        verify(userTagCountRepository, never()).save(any());
+        verify(userTagCountRepository, never()).deleteUnusedByAppUser(any());
+    }
+
+    @Test
+    void rowCreatedConcurrentlyIsIncrementedInsteadOfInserted() {
+        Tag web = tag(2L, "web");
+        when(userTagCountRepository.addBookmarkCount(appUser, web, 1)).thenReturn(0, 1);
+        when(userTagCountRepository.insertIfAbsent(1L, 2L, 1)).thenReturn(0);
+
+        userTagCountService.applyTagChange(appUser, Set.of(), Set.of(web));
+
+        verify(userTagCountRepository, times(2)).addBookmarkCount(appUser, web, 1);
+    }
+
+    @Test
+    void unchangedTagsAreNotCounted() {
+        Tag java = tag(1L, "java");
+
+        userTagCountService.applyTagChange(appUser, Set.of(java), Set.of(tag(1L, "java")));
+
+        verify(userTagCountRepository, never()).addBookmarkCount(any(), any(), anyLong());
+    }
+
+    @Test
+    void removedTagIsMarkedUnusedInsteadOfDeleted() {
+        Tag java = tag(1L, "java");
+        Tag web = tag(2L, "web");
+
+        userTagCountService.applyTagChange(appUser, Set.of(java, web), Set.of());
+
+        verify(userTagCountRepository).addBookmarkCount(appUser, java, -1);
+        verify(userTagCountRepository).addBookmarkCount(appUser, web, -1);
+        verify(userTagCountRepository).deleteUnusedByAppUser(appUser);
+        // 他のリクエストがキャッシュしたIDで使う場合があるため、書き込みの処理では削除しない
+        verify(tagRepository).markUnused(eq(Set.of(1L, 2L)), any(LocalDateTime.class));
+        verify(tagRepository, never()).delete(any());
+    }
+}